@@ -116,8 +116,8 @@ public abstract class AbstractBlockChain {
         }
     }
     // Holds blocks that we have received but can't plug into the chain yet, eg because they were created whilst we
-    // were downloading the block chain.
-    private final LinkedHashMap<Sha256Hash, OrphanBlock> orphanBlocks = new LinkedHashMap<Sha256Hash, OrphanBlock>();
+    // were downloading the block chain, or arrived out of order from several peers.
+    private final OrphanBlockPool orphanBlocks = new OrphanBlockPool(OrphanBlockPool.DEFAULT_MAX_BYTES);
 
     /**
      * Constructs a BlockChain connected to the given list of listeners (eg, wallets) and a store.
@@ -161,6 +161,49 @@ public abstract class AbstractBlockChain {
     public BlockStore getBlockStore() {
         return blockStore;
     }
+
+    // Created on first use.
+    private ProofOfWorkVerifier proofOfWorkVerifier;
+    private static final int HEADERS_PER_BATCH = 500;
+
+    /** Sets the verifier used to check runs of headers before they are connected, replacing the default one. */
+    public synchronized void setProofOfWorkVerifier(ProofOfWorkVerifier verifier) {
+        this.proofOfWorkVerifier = checkNotNull(verifier);
+    }
+
+    /**
+     * Returns the verifier used to check runs of headers before they are connected. By default this has one thread
+     * per processor, which are only started if the network's proof of work is expensive.
+     */
+    public synchronized ProofOfWorkVerifier getProofOfWorkVerifier() {
+        if (proofOfWorkVerifier == null)
+            proofOfWorkVerifier = new ProofOfWorkVerifier(params);
+        return proofOfWorkVerifier;
+    }
+
+    /**
+     * Adds every block from the given source in order, exactly as if {@link #add(Block)} were called on each. The
+     * headers are checked ahead in batches by the {@link #getProofOfWorkVerifier()}, which is faster for networks
+     * with an expensive proof of work. If a block fails to verify, the exception is thrown and none of the blocks
+     * after it are added.
+     *
+     * @return the number of blocks for which add() returned true
+     */
+    public int addAll(Iterable<Block> blocks) throws VerificationException, PrunedException {
+        Iterator<Block> iterator = blocks.iterator();
+        List<Block> batch = new ArrayList<Block>(HEADERS_PER_BATCH);
+        int added = 0;
+        while (iterator.hasNext()) {
+            batch.clear();
+            while (batch.size() < HEADERS_PER_BATCH && iterator.hasNext())
+                batch.add(iterator.next());
+            getProofOfWorkVerifier().verifyHeaders(batch);
+            for (Block block : batch)
+                if (add(block))
+                    added++;
+        }
+        return added;
+    }
     
     /**
      * Adds/updates the given {@link Block} with the block store.
@@ -312,7 +355,7 @@ public abstract class AbstractBlockChain {
             if (block.equals(getChainHead().getHeader())) {
                 return true;
             }
-            if (tryConnecting && orphanBlocks.containsKey(block.getHash())) {
+            if (tryConnecting && orphanBlocks.contains(block.getHash())) {
                 return false;
             }
 
@@ -357,7 +400,7 @@ public abstract class AbstractBlockChain {
                 // have more blocks.
                 checkState(tryConnecting, "bug in tryConnectingOrphans");
                 log.warn("Block does not connect: {} prev {}", block.getHashAsString(), block.getPrevBlockHash());
-                orphanBlocks.put(block.getHash(), new OrphanBlock(block, filteredTxHashList, filteredTxn));
+                orphanBlocks.add(new OrphanBlock(block, filteredTxHashList, filteredTxn));
                 return false;
             } else {
                 // It connects to somewhere on the chain. Not necessarily the top of the best known chain.
@@ -369,7 +412,7 @@ public abstract class AbstractBlockChain {
             }
 
             if (tryConnecting)
-                tryConnectingOrphans();
+                tryConnectingOrphans(block.getHash());
 
             statsBlocksAdded++;
             return true;
@@ -615,18 +658,42 @@ public abstract class AbstractBlockChain {
         //         \--> E -> F -> G
         //
         // findSplit will return block B. oldChainHead = D and newChainHead = G.
+        //
+        // Jump the higher of the two down to the height of the other, then step both back together.
+        if (currentChainCursor.getHeight() > newChainCursor.getHeight())
+            currentChainCursor = store.getAncestor(currentChainCursor, newChainCursor.getHeight());
+        else
+            newChainCursor = store.getAncestor(newChainCursor, currentChainCursor.getHeight());
+        checkNotNull(currentChainCursor, "Attempt to follow an orphan chain");
+        checkNotNull(newChainCursor, "Attempt to follow an orphan chain");
         while (!currentChainCursor.equals(newChainCursor)) {
-            if (currentChainCursor.getHeight() > newChainCursor.getHeight()) {
-                currentChainCursor = currentChainCursor.getPrev(store);
-                checkNotNull(currentChainCursor, "Attempt to follow an orphan chain");
-            } else {
-                newChainCursor = newChainCursor.getPrev(store);
-                checkNotNull(newChainCursor, "Attempt to follow an orphan chain");
-            }
+            currentChainCursor = checkNotNull(currentChainCursor.getPrev(store), "Attempt to follow an orphan chain");
+            newChainCursor = checkNotNull(newChainCursor.getPrev(store), "Attempt to follow an orphan chain");
         }
         return currentChainCursor;
     }
 
+    /**
+     * Returns a block locator for the given block, as sent in getblocks and getheaders messages: the hashes of the
+     * block and its ancestors, newest first, one apart for the first ten and then twice as far apart each time, and
+     * ending with the genesis block. However deep a fork goes, a peer can find the last block we have in common from a
+     * few dozen hashes. Ancestors the block store no longer has, such as those that fell out of an
+     * {@link com.google.bitcoin.store.SPVBlockStore}, are skipped over down to the genesis block.
+     */
+    public List<Sha256Hash> getBlockLocator(StoredBlock from) throws BlockStoreException {
+        List<Sha256Hash> locator = new ArrayList<Sha256Hash>(32);
+        StoredBlock cursor = from;
+        int step = 1;
+        while (cursor != null && cursor.getHeight() > 0) {
+            locator.add(cursor.getHeader().getHash());
+            if (locator.size() >= 10)
+                step *= 2;
+            cursor = blockStore.getAncestor(cursor, Math.max(cursor.getHeight() - step, 0));
+        }
+        locator.add(params.getGenesisBlock().getHash());
+        return locator;
+    }
+
     /**
      * @return the height of the best known chain, convenience for <tt>getChainHead().getHeight()</tt>.
      */
@@ -669,140 +736,42 @@ public abstract class AbstractBlockChain {
     }
 
     /**
-     * For each block in orphanBlocks, see if we can now fit it on top of the chain and if so, do so.
+     * Connects the orphans that were waiting for the given block, and then the ones waiting for those, parents always
+     * before their children.
      */
-    private void tryConnectingOrphans() throws VerificationException, BlockStoreException, PrunedException {
+    private void tryConnectingOrphans(Sha256Hash connected) throws VerificationException, BlockStoreException,
+            PrunedException {
         checkState(lock.isLocked());
-        // For each block in our orphan list, try and fit it onto the head of the chain. If we succeed remove it
-        // from the list and keep going. If we changed the head of the list at the end of the round try again until
-        // we can't fit anything else on the top.
-        //
-        // This algorithm is kind of crappy, we should do a topo-sort then just connect them in order, but for small
-        // numbers of orphan blocks it does OK.
-        int blocksConnectedThisRound;
-        do {
-            blocksConnectedThisRound = 0;
-            Iterator<OrphanBlock> iter = orphanBlocks.values().iterator();
-            while (iter.hasNext()) {
-                OrphanBlock orphanBlock = iter.next();
-                log.debug("Trying to connect {}", orphanBlock.block.getHash());
-                // Look up the blocks previous.
-                StoredBlock prev = getStoredBlockInCurrentScope(orphanBlock.block.getPrevBlockHash());
-                if (prev == null) {
-                    // This is still an unconnected/orphan block.
-                    log.debug("  but it is not connectable right now");
-                    continue;
-                }
-                // Otherwise we can connect it now.
+        int blocksConnected = 0;
+        LinkedList<OrphanBlock> queue = new LinkedList<OrphanBlock>(orphanBlocks.removeChildren(connected));
+        try {
+            while (!queue.isEmpty()) {
+                OrphanBlock orphanBlock = queue.peek();
+                log.debug("Connecting {}", orphanBlock.block.getHash());
                 // False here ensures we don't recurse infinitely downwards when connecting huge chains.
                 add(orphanBlock.block, orphanBlock.filteredTxHashes, orphanBlock.filteredTxn, false);
-                iter.remove();
-                blocksConnectedThisRound++;
+                queue.remove();
+                blocksConnected++;
+                queue.addAll(orphanBlocks.removeChildren(orphanBlock.block.getHash()));
             }
-            if (blocksConnectedThisRound > 0) {
-                log.info("Connected {} orphan blocks.", blocksConnectedThisRound);
+        } finally {
+            // If one of them failed to verify, its siblings and their children might still be good. It is dropped.
+            if (!queue.isEmpty()) {
+                queue.remove();
+                for (OrphanBlock orphanBlock : queue)
+                    orphanBlocks.add(orphanBlock);
             }
-        } while (blocksConnectedThisRound > 0);
+            if (blocksConnected > 0)
+                log.info("Connected {} orphan blocks.", blocksConnected);
+        }
     }
 
-    // February 16th 2012
-    private static Date testnetDiffDate = new Date(1329264000000L);
-
     /**
-     * Throws an exception if the blocks difficulty is not correct.
+     * Throws an exception if the blocks difficulty is not correct, by the rules of the network.
      */
     private void checkDifficultyTransitions(StoredBlock storedPrev, Block nextBlock) throws BlockStoreException, VerificationException {
         checkState(lock.isLocked());
-        Block prev = storedPrev.getHeader();
-        
-        // Is this supposed to be a difficulty transition point?
-        if ((storedPrev.getHeight() + 1) % params.getInterval() != 0) {
-
-            // TODO: Refactor this hack after 0.5 is released and we stop supporting deserialization compatibility.
-            // This should be a method of the NetworkParameters, which should in turn be using singletons and a subclass
-            // for each network type. Then each network can define its own difficulty transition rules.
-            if (params.getId().equals(NetworkParameters.ID_TESTNET) && nextBlock.getTime().after(testnetDiffDate)) {
-                checkTestnetDifficulty(storedPrev, prev, nextBlock);
-                return;
-            }
-
-            // No ... so check the difficulty didn't actually change.
-            if (nextBlock.getDifficultyTarget() != prev.getDifficultyTarget())
-                throw new VerificationException("Unexpected change in difficulty at height " + storedPrev.getHeight() +
-                        ": " + Long.toHexString(nextBlock.getDifficultyTarget()) + " vs " +
-                        Long.toHexString(prev.getDifficultyTarget()));
-            return;
-        }
-
-        // We need to find a block far back in the chain. It's OK that this is expensive because it only occurs every
-        // two weeks after the initial block chain download.
-        long now = System.currentTimeMillis();
-        StoredBlock cursor = blockStore.get(prev.getHash());
-        for (int i = 0; i < params.getInterval() - 1; i++) {
-            if (cursor == null) {
-                // This should never happen. If it does, it means we are following an incorrect or busted chain.
-                throw new VerificationException(
-                        "Difficulty transition point but we did not find a way back to the genesis block.");
-            }
-            cursor = blockStore.get(cursor.getHeader().getPrevBlockHash());
-        }
-        long elapsed = System.currentTimeMillis() - now;
-        if (elapsed > 50)
-            log.info("Difficulty transition traversal took {}msec", elapsed);
-
-        Block blockIntervalAgo = cursor.getHeader();
-        int timespan = (int) (prev.getTimeSeconds() - blockIntervalAgo.getTimeSeconds());
-        // Limit the adjustment step.
-        final int targetTimespan = params.getTargetTimespan();
-        if (timespan < targetTimespan / 4)
-            timespan = targetTimespan / 4;
-        if (timespan > targetTimespan * 4)
-            timespan = targetTimespan * 4;
-
-        BigInteger newDifficulty = Utils.decodeCompactBits(prev.getDifficultyTarget());
-        newDifficulty = newDifficulty.multiply(BigInteger.valueOf(timespan));
-        newDifficulty = newDifficulty.divide(BigInteger.valueOf(targetTimespan));
-
-        if (newDifficulty.compareTo(params.getProofOfWorkLimit()) > 0) {
-            log.info("Difficulty hit proof of work limit: {}", newDifficulty.toString(16));
-            newDifficulty = params.getProofOfWorkLimit();
-        }
-
-        int accuracyBytes = (int) (nextBlock.getDifficultyTarget() >>> 24) - 3;
-        BigInteger receivedDifficulty = nextBlock.getDifficultyTargetAsInteger();
-
-        // The calculated difficulty is to a higher precision than received, so reduce here.
-        BigInteger mask = BigInteger.valueOf(0xFFFFFFL).shiftLeft(accuracyBytes * 8);
-        newDifficulty = newDifficulty.and(mask);
-
-        if (newDifficulty.compareTo(receivedDifficulty) != 0)
-            throw new VerificationException("Network provided difficulty bits do not match what was calculated: " +
-                    receivedDifficulty.toString(16) + " vs " + newDifficulty.toString(16));
-    }
-
-    private void checkTestnetDifficulty(StoredBlock storedPrev, Block prev, Block next) throws VerificationException, BlockStoreException {
-        checkState(lock.isLocked());
-        // After 15th February 2012 the rules on the testnet change to avoid people running up the difficulty
-        // and then leaving, making it too hard to mine a block. On non-difficulty transition points, easy
-        // blocks are allowed if there has been a span of 20 minutes without one.
-        final long timeDelta = next.getTimeSeconds() - prev.getTimeSeconds();
-        // There is an integer underflow bug in bitcoin-qt that means mindiff blocks are accepted when time
-        // goes backwards.
-        if (timeDelta >= 0 && timeDelta <= NetworkParameters.TARGET_SPACING * 2) {
-            // Walk backwards until we find a block that doesn't have the easiest proof of work, then check
-            // that difficulty is equal to that one.
-            StoredBlock cursor = storedPrev;
-            while (!cursor.getHeader().equals(params.getGenesisBlock()) &&
-                   cursor.getHeight() % params.getInterval() != 0 &&
-                   cursor.getHeader().getDifficultyTargetAsInteger().equals(params.getProofOfWorkLimit()))
-                cursor = cursor.getPrev(blockStore);
-            BigInteger cursorDifficulty = cursor.getHeader().getDifficultyTargetAsInteger();
-            BigInteger newDifficulty = next.getDifficultyTargetAsInteger();
-            if (!cursorDifficulty.equals(newDifficulty))
-                throw new VerificationException("Testnet block transition that is not allowed: " +
-                    Long.toHexString(cursor.getHeader().getDifficultyTarget()) + " vs " +
-                    Long.toHexString(next.getDifficultyTarget()));
-        }
+        params.checkDifficultyTransitions(storedPrev, nextBlock, blockStore);
     }
 
     /**
@@ -862,7 +831,50 @@ public abstract class AbstractBlockChain {
     public boolean isOrphan(Sha256Hash block) {
         lock.lock();
         try {
-            return orphanBlocks.containsKey(block);
+            return orphanBlocks.contains(block);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** Returns how many orphan blocks are waiting for their parents to arrive. */
+    public int getOrphanBlockCount() {
+        lock.lock();
+        try {
+            return orphanBlocks.size();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** Returns roughly how much memory the orphan blocks take up, in bytes of their serialized form. */
+    public long getOrphanBlockBytes() {
+        lock.lock();
+        try {
+            return orphanBlocks.getBytes();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** Returns how many orphan blocks have been dropped because they took up too much memory. */
+    public long getEvictedOrphanBlockCount() {
+        lock.lock();
+        try {
+            return orphanBlocks.getEvictedCount();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Sets how much memory the orphan blocks may take up, in bytes of their serialized form. Once over it, the oldest
+     * ones are dropped. Defaults to 32 megabytes.
+     */
+    public void setMaxOrphanBlockBytes(long maxBytes) {
+        lock.lock();
+        try {
+            orphanBlocks.setMaxBytes(maxBytes);
         } finally {
             lock.unlock();
         }
@@ -870,17 +882,24 @@ public abstract class AbstractBlockChain {
 
     /**
      * Returns an estimate of when the given block will be reached, assuming a perfect 10 minute average for each
-     * block. This is useful for turning transaction lock times into human readable times. Note that a height in
-     * the past will still be estimated, even though the time of solving is actually known (we won't scan backwards
-     * through the chain to obtain the right answer).
+     * block. This is useful for turning transaction lock times into human readable times. For a height in the past
+     * the time of the block at that height on the best chain is returned instead, if the block store still has it.
      */
     public Date estimateBlockTime(int height) {
-        synchronized (chainHeadLock) {
-            long offset = height - chainHead.getHeight();
-            long headTime = chainHead.getHeader().getTimeSeconds();
-            long estimated = (headTime * 1000) + (1000L * 60L * 10L * offset);
-            return new Date(estimated);
+        StoredBlock head = getChainHead();
+        if (height >= 0 && height <= head.getHeight()) {
+            try {
+                StoredBlock block = blockStore.getAncestor(head, height);
+                if (block != null)
+                    return block.getHeader().getTime();
+            } catch (BlockStoreException e) {
+                log.warn("Could not look up the block at height {}, estimating its time instead: {}", height, e);
+            }
         }
+        long offset = height - head.getHeight();
+        long headTime = head.getHeader().getTimeSeconds();
+        long estimated = (headTime * 1000) + (1000L * 60L * 10L * offset);
+        return new Date(estimated);
     }
 
     /**
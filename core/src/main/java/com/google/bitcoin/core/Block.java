@@ -29,10 +29,10 @@ import java.io.ObjectInputStream;
 import java.io.OutputStream;
 import java.math.BigInteger;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Date;
 import java.util.List;
 
-import static com.google.bitcoin.core.Utils.doubleDigest;
 import static com.google.bitcoin.core.Utils.doubleDigestTwoBuffers;
 
 /**
@@ -83,6 +83,11 @@ public class Block extends Message {
 
     /** Stores the hash of the block. If null, getHash() will recalculate it. */
     private transient Sha256Hash hash;
+    /**
+     * The hash of the block the last time its proof of work was found to be valid, so that a header checked ahead of
+     * time by a {@link ProofOfWorkVerifier} isn't hashed again when it is connected.
+     */
+    private transient volatile Sha256Hash proofOfWorkCheckedFor;
 
     private transient boolean headerParsed;
     private transient boolean transactionsParsed;
@@ -160,7 +165,7 @@ public class Block extends Message {
         difficultyTarget = readUint32();
         nonce = readUint32();
 
-        hash = new Sha256Hash(Utils.reverseBytes(Utils.doubleDigest(bytes, offset, cursor)));
+        hash = Sha256Hash.createDoubleReversed(bytes, offset, cursor);
 
         headerParsed = true;
         headerBytesValid = parseRetain;
@@ -474,7 +479,8 @@ public class Block extends Message {
         try {
             ByteArrayOutputStream bos = new UnsafeByteArrayOutputStream(HEADER_SIZE);
             writeHeader(bos);
-            return new Sha256Hash(Utils.reverseBytes(doubleDigest(bos.toByteArray())));
+            byte[] header = bos.toByteArray();
+            return Sha256Hash.createDoubleReversed(header, 0, header.length);
         } catch (IOException e) {
             throw new RuntimeException(e); // Cannot happen.
         }
@@ -533,6 +539,23 @@ public class Block extends Message {
         return block;
     }
 
+    /**
+     * Returns a header read from the first {@link #HEADER_SIZE} bytes of the given array, which is not kept, taking its
+     * hash from the caller instead of calculating it.
+     */
+    static Block fromHeaderBytes(NetworkParameters params, byte[] header, Sha256Hash hash) {
+        Block block = new Block(params);
+        block.version = Utils.readUint32(header, 0);
+        block.prevBlockHash = new Sha256Hash(Utils.reverseBytes(Arrays.copyOfRange(header, 4, 36)));
+        block.merkleRoot = new Sha256Hash(Utils.reverseBytes(Arrays.copyOfRange(header, 36, 68)));
+        block.time = Utils.readUint32(header, 68);
+        block.difficultyTarget = Utils.readUint32(header, 72);
+        block.nonce = Utils.readUint32(header, 76);
+        block.transactions = null;
+        block.hash = hash;
+        return block;
+    }
+
     /**
      * Returns a multi-line string containing a description of the contents of
      * the block. Use for debugging purposes only.
@@ -615,15 +638,21 @@ public class Block extends Message {
         // field is of the right value. This requires us to have the preceeding blocks.
         BigInteger target = getDifficultyTargetAsInteger();
 
-        BigInteger h = getHash().toBigInteger();
+        // The hash covers the difficulty target too, so if it hasn't changed neither has the answer.
+        Sha256Hash hash = getHash();
+        if (hash.equals(proofOfWorkCheckedFor))
+            return true;
+        Sha256Hash powHash = params.getProofOfWorkHash(this);
+        BigInteger h = powHash.toBigInteger();
         if (h.compareTo(target) > 0) {
             // Proof of work check failed!
             if (throwException)
-                throw new VerificationException("Hash is higher than target: " + getHashAsString() + " vs "
+                throw new VerificationException("Hash is higher than target: " + powHash + " vs "
                         + target.toString(16));
             else
                 return false;
         }
+        proofOfWorkCheckedFor = hash;
         return true;
     }
 
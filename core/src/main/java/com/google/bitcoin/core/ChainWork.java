@@ -0,0 +1,171 @@
+/**
+ * Copyright 2013 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.bitcoin.core;
+
+import java.io.Serializable;
+import java.math.BigInteger;
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkState;
+
+/**
+ * <p>An amount of work done on a chain, as an unsigned 128 bit number held in two longs. Adding work and comparing
+ * chains happens once or more for every header received, so unlike a {@link BigInteger} neither allocates more than
+ * the result. 128 bits is far more than any chain needs: as of 2013 the Bitcoin chain has done around 2<sup>70</sup>
+ * hashes.</p>
+ *
+ * <p>Instances are immutable.</p>
+ */
+public final class ChainWork implements Comparable<ChainWork>, Serializable {
+    private static final long serialVersionUID = 1L;
+
+    /** The largest number of bytes a chain work is written in. */
+    public static final int MAX_BYTES = 16;
+
+    public static final ChainWork ZERO = new ChainWork(0, 0);
+
+    private static final BigInteger LARGEST_HASH = BigInteger.ONE.shiftLeft(256);
+
+    // The work of a block only depends on its difficulty target, which changes at most once per interval, so the
+    // division is done once per target. Direct mapped by the compact form of the target.
+    private static final int WORK_CACHE_SIZE = 64;
+    private static final AtomicReferenceArray<CachedWork> workCache =
+            new AtomicReferenceArray<CachedWork>(WORK_CACHE_SIZE);
+
+    private static class CachedWork {
+        final long difficultyTarget;
+        final ChainWork work;
+
+        CachedWork(long difficultyTarget, ChainWork work) {
+            this.difficultyTarget = difficultyTarget;
+            this.work = work;
+        }
+    }
+
+    private final long high;
+    private final long low;
+
+    private ChainWork(long high, long low) {
+        this.high = high;
+        this.low = low;
+    }
+
+    /**
+     * Returns the given amount of work, which must not be negative or take more than 128 bits.
+     *
+     * @throws IllegalArgumentException if the value is out of range.
+     */
+    public static ChainWork valueOf(BigInteger value) {
+        checkArgument(value.signum() >= 0 && value.bitLength() <= 128, "Chain work out of range: %s", value);
+        return new ChainWork(value.shiftRight(64).longValue(), value.longValue());
+    }
+
+    /**
+     * Returns the work done by a block with the given difficulty target, in the compact form used by
+     * {@link Block#getDifficultyTarget()}. This is the same value as {@link Block#getWork()}, but is only calculated
+     * once for each target.
+     *
+     * @throws VerificationException if the target isn't positive, or is so low the work doesn't fit in 128 bits.
+     */
+    public static ChainWork forDifficultyTarget(long difficultyTarget) throws VerificationException {
+        int slot = (int) (difficultyTarget ^ (difficultyTarget >>> 24)) & (WORK_CACHE_SIZE - 1);
+        CachedWork cached = workCache.get(slot);
+        if (cached != null && cached.difficultyTarget == difficultyTarget)
+            return cached.work;
+        BigInteger target = Utils.decodeCompactBits(difficultyTarget);
+        if (target.signum() <= 0)
+            throw new VerificationException("Difficulty target is bad: " + target.toString());
+        BigInteger work = LARGEST_HASH.divide(target.add(BigInteger.ONE));
+        if (work.bitLength() > 128)
+            throw new VerificationException("Difficulty target is too low: " + target.toString());
+        ChainWork result = valueOf(work);
+        workCache.set(slot, new CachedWork(difficultyTarget, result));
+        return result;
+    }
+
+    /** Returns the sum of this and the given work. */
+    public ChainWork add(ChainWork other) {
+        long sumLow = low + other.low;
+        long carry = unsignedLessThan(sumLow, low) ? 1 : 0;
+        long sumHigh = high + other.high;
+        boolean overflow = unsignedLessThan(sumHigh, high);
+        sumHigh += carry;
+        overflow |= carry == 1 && sumHigh == 0;
+        checkState(!overflow, "Ran out of space to store chain work!");
+        return new ChainWork(sumHigh, sumLow);
+    }
+
+    public int compareTo(ChainWork other) {
+        if (high != other.high)
+            return unsignedLessThan(high, other.high) ? -1 : 1;
+        if (low != other.low)
+            return unsignedLessThan(low, other.low) ? -1 : 1;
+        return 0;
+    }
+
+    private static boolean unsignedLessThan(long a, long b) {
+        return (a ^ Long.MIN_VALUE) < (b ^ Long.MIN_VALUE);
+    }
+
+    public BigInteger toBigInteger() {
+        return new BigInteger(1, ByteBuffer.allocate(MAX_BYTES).putLong(high).putLong(low).array());
+    }
+
+    /**
+     * Writes the work as a big endian unsigned number of the given number of bytes, which must be between 8 and
+     * {@link #MAX_BYTES}.
+     *
+     * @throws IllegalStateException if the work doesn't fit.
+     */
+    public void write(ByteBuffer buffer, int numBytes) {
+        checkArgument(numBytes >= 8 && numBytes <= MAX_BYTES);
+        int highBytes = numBytes - 8;
+        checkState(highBytes == 8 || (high >>> (highBytes * 8)) == 0, "Ran out of space to store chain work!");
+        for (int i = highBytes - 1; i >= 0; i--)
+            buffer.put((byte) (high >>> (i * 8)));
+        buffer.putLong(low);
+    }
+
+    /** Reads work written by {@link #write(ByteBuffer, int)} with the same number of bytes. */
+    public static ChainWork read(ByteBuffer buffer, int numBytes) {
+        checkArgument(numBytes >= 8 && numBytes <= MAX_BYTES);
+        long high = 0;
+        for (int i = 0; i < numBytes - 8; i++)
+            high = (high << 8) | (buffer.get() & 0xFF);
+        long low = buffer.getLong();
+        return high == 0 && low == 0 ? ZERO : new ChainWork(high, low);
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (!(o instanceof ChainWork)) return false;
+        ChainWork other = (ChainWork) o;
+        return high == other.high && low == other.low;
+    }
+
+    @Override
+    public int hashCode() {
+        return (int) (high ^ (high >>> 32) ^ low ^ (low >>> 32));
+    }
+
+    @Override
+    public String toString() {
+        return toBigInteger().toString();
+    }
+}
@@ -0,0 +1,246 @@
+/**
+ * Copyright 2013 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.bitcoin.core;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.math.BigInteger;
+import java.util.Arrays;
+
+/**
+ * <p>The building blocks of the compact form of {@link StoredTransactionOutput}, which follow the way the reference
+ * client stores its coins database:</p>
+ *
+ * <ul>
+ *     <li>Integers are written as a base-128 varint, most significant group first, where each continuation byte also
+ *     adds one so that every number has exactly one encoding. Unlike {@link VarInt} there is no fixed width form, so
+ *     small numbers always take a single byte.</li>
+ *     <li>Amounts are usually round numbers, so the trailing decimal zeros are moved into a single digit before the
+ *     varint is written. 50 BTC takes one byte instead of eight.</li>
+ *     <li>Scripts that follow one of the standard templates are replaced by a type byte and the hash or key they
+ *     contain. Anything else is written as its length plus six, followed by the script.</li>
+ * </ul>
+ */
+class CompactEncoding {
+    // Script types 0-5, so a raw script of length n is written as n + NUM_SPECIAL_SCRIPTS.
+    private static final int NUM_SPECIAL_SCRIPTS = 6;
+    private static final int TYPE_PAY_TO_ADDRESS = 0;
+    private static final int TYPE_PAY_TO_SCRIPT_HASH = 1;
+    private static final int TYPE_COMPRESSED_KEY_EVEN = 2;
+    private static final int TYPE_COMPRESSED_KEY_ODD = 3;
+    private static final int TYPE_UNCOMPRESSED_KEY_EVEN = 4;
+    private static final int TYPE_UNCOMPRESSED_KEY_ODD = 5;
+
+    // The field size of secp256k1, whose curve is y^2 = x^3 + 7.
+    private static final BigInteger CURVE_P = new BigInteger(
+            "FFFFFFFFFFFFFFFFFFFFFFFFFFFFFFFFFFFFFFFFFFFFFFFFFFFFFFFEFFFFFC2F", 16);
+    private static final BigInteger CURVE_B = BigInteger.valueOf(7);
+    // P is 3 mod 4, so a square root of a is a^((P + 1) / 4).
+    private static final BigInteger SQRT_EXPONENT = CURVE_P.add(BigInteger.ONE).shiftRight(2);
+
+    private CompactEncoding() {
+    }
+
+    static void writeVarInt(long n, OutputStream out) throws IOException {
+        byte[] tmp = new byte[10];
+        int len = 0;
+        while (true) {
+            tmp[len] = (byte) ((n & 0x7F) | (len != 0 ? 0x80 : 0x00));
+            if (n >= 0 && n <= 0x7F)
+                break;
+            n = (n >>> 7) - 1;
+            len++;
+        }
+        do {
+            out.write(tmp[len]);
+        } while (len-- > 0);
+    }
+
+    static long readVarInt(InputStream in) throws IOException {
+        long n = 0;
+        while (true) {
+            int b = in.read();
+            if (b < 0)
+                throw new EOFException();
+            if ((n >>> 57) != 0)
+                throw new IOException("Varint is too long");
+            n = (n << 7) | (b & 0x7F);
+            if ((b & 0x80) == 0)
+                return n;
+            n++;
+        }
+    }
+
+    /** Reads a varint that must fit in a non-negative int, such as a length or a count. */
+    static int readVarIntAsInt(InputStream in) throws IOException {
+        long n = readVarInt(in);
+        if (n < 0 || n > Integer.MAX_VALUE)
+            throw new IOException("Varint out of range: " + n);
+        return (int) n;
+    }
+
+    static long compressAmount(long n) {
+        if (n == 0)
+            return 0;
+        int e = 0;
+        while ((n % 10) == 0 && e < 9) {
+            n /= 10;
+            e++;
+        }
+        if (e < 9) {
+            int d = (int) (n % 10);
+            n /= 10;
+            return 1 + (n * 9 + d - 1) * 10 + e;
+        } else {
+            return 1 + (n - 1) * 10 + 9;
+        }
+    }
+
+    static long decompressAmount(long x) {
+        if (x == 0)
+            return 0;
+        x--;
+        int e = (int) (x % 10);
+        x /= 10;
+        long n;
+        if (e < 9) {
+            int d = (int) (x % 9) + 1;
+            x /= 9;
+            n = x * 10 + d;
+        } else {
+            n = x + 1;
+        }
+        while (e > 0) {
+            n *= 10;
+            e--;
+        }
+        return n;
+    }
+
+    static void writeScript(byte[] script, OutputStream out) throws IOException {
+        int len = script.length;
+        if (len == 25 && script[0] == 0x76 && script[1] == (byte) 0xa9 && script[2] == 20 &&
+                script[23] == (byte) 0x88 && script[24] == (byte) 0xac) {
+            // OP_DUP OP_HASH160 <20 bytes> OP_EQUALVERIFY OP_CHECKSIG
+            out.write(TYPE_PAY_TO_ADDRESS);
+            out.write(script, 3, 20);
+        } else if (len == 23 && script[0] == (byte) 0xa9 && script[1] == 20 && script[22] == (byte) 0x87) {
+            // OP_HASH160 <20 bytes> OP_EQUAL
+            out.write(TYPE_PAY_TO_SCRIPT_HASH);
+            out.write(script, 2, 20);
+        } else if (len == 35 && script[0] == 33 && (script[1] == 2 || script[1] == 3) && script[34] == (byte) 0xac) {
+            // <compressed key> OP_CHECKSIG
+            out.write(script[1]);
+            out.write(script, 2, 32);
+        } else if (len == 67 && script[0] == 65 && script[1] == 4 && script[66] == (byte) 0xac &&
+                isOnCurve(script)) {
+            // <uncompressed key> OP_CHECKSIG, reduced to the x coordinate and the parity of y.
+            out.write(TYPE_UNCOMPRESSED_KEY_EVEN + (script[65] & 1));
+            out.write(script, 2, 32);
+        } else {
+            writeVarInt(len + NUM_SPECIAL_SCRIPTS, out);
+            out.write(script);
+        }
+    }
+
+    static byte[] readScript(InputStream in) throws IOException {
+        int type = readVarIntAsInt(in);
+        byte[] script;
+        switch (type) {
+            case TYPE_PAY_TO_ADDRESS:
+                script = new byte[25];
+                script[0] = 0x76;
+                script[1] = (byte) 0xa9;
+                script[2] = 20;
+                readFully(in, script, 3, 20);
+                script[23] = (byte) 0x88;
+                script[24] = (byte) 0xac;
+                return script;
+            case TYPE_PAY_TO_SCRIPT_HASH:
+                script = new byte[23];
+                script[0] = (byte) 0xa9;
+                script[1] = 20;
+                readFully(in, script, 2, 20);
+                script[22] = (byte) 0x87;
+                return script;
+            case TYPE_COMPRESSED_KEY_EVEN:
+            case TYPE_COMPRESSED_KEY_ODD:
+                script = new byte[35];
+                script[0] = 33;
+                script[1] = (byte) type;
+                readFully(in, script, 2, 32);
+                script[34] = (byte) 0xac;
+                return script;
+            case TYPE_UNCOMPRESSED_KEY_EVEN:
+            case TYPE_UNCOMPRESSED_KEY_ODD:
+                script = new byte[67];
+                script[0] = 65;
+                script[1] = 4;
+                readFully(in, script, 2, 32);
+                BigInteger y = decompressY(new BigInteger(1, Arrays.copyOfRange(script, 2, 34)),
+                        type == TYPE_UNCOMPRESSED_KEY_ODD);
+                byte[] yBytes = y.toByteArray();
+                // toByteArray() may have a leading sign byte or be short, so right align it in the 32 byte slot.
+                int yLength = Math.min(yBytes.length, 32);
+                System.arraycopy(yBytes, yBytes.length - yLength, script, 66 - yLength, yLength);
+                script[66] = (byte) 0xac;
+                return script;
+            default:
+                int len = type - NUM_SPECIAL_SCRIPTS;
+                if (len > Block.MAX_BLOCK_SIZE)
+                    throw new IOException("Script is too long: " + len);
+                script = new byte[len];
+                readFully(in, script, 0, len);
+                return script;
+        }
+    }
+
+    // An uncompressed key can only be rebuilt from its x coordinate if it really is a point on the curve.
+    private static boolean isOnCurve(byte[] script) {
+        BigInteger x = new BigInteger(1, Arrays.copyOfRange(script, 2, 34));
+        BigInteger y = new BigInteger(1, Arrays.copyOfRange(script, 34, 66));
+        if (x.compareTo(CURVE_P) >= 0 || y.compareTo(CURVE_P) >= 0)
+            return false;
+        return y.multiply(y).mod(CURVE_P).equals(curveRhs(x));
+    }
+
+    private static BigInteger curveRhs(BigInteger x) {
+        return x.multiply(x).multiply(x).add(CURVE_B).mod(CURVE_P);
+    }
+
+    private static BigInteger decompressY(BigInteger x, boolean odd) throws IOException {
+        BigInteger rhs = curveRhs(x);
+        BigInteger y = rhs.modPow(SQRT_EXPONENT, CURVE_P);
+        if (!y.multiply(y).mod(CURVE_P).equals(rhs))
+            throw new IOException("Compressed key is not on the curve");
+        if (y.testBit(0) != odd)
+            y = CURVE_P.subtract(y);
+        return y;
+    }
+
+    static void readFully(InputStream in, byte[] b, int offset, int length) throws IOException {
+        while (length > 0) {
+            int read = in.read(b, offset, length);
+            if (read < 0)
+                throw new EOFException();
+            offset += read;
+            length -= read;
+        }
+    }
+}
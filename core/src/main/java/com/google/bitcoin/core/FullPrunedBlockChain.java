@@ -19,16 +19,17 @@ package com.google.bitcoin.core;
 import com.google.bitcoin.script.Script;
 import com.google.bitcoin.store.BlockStoreException;
 import com.google.bitcoin.store.FullPrunedBlockStore;
+import com.google.common.util.concurrent.Uninterruptibles;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.math.BigInteger;
-import java.util.ArrayList;
-import java.util.LinkedList;
-import java.util.List;
-import java.util.ListIterator;
+import java.util.*;
 import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 
+import static com.google.common.base.Preconditions.checkArgument;
 import static com.google.common.base.Preconditions.checkState;
 
 /**
@@ -72,6 +73,105 @@ public class FullPrunedBlockChain extends AbstractBlockChain {
         this.blockStore = blockStore;
         // Ignore upgrading for now
         this.chainHead = blockStore.getVerifiedChainHead();
+        this.assumeValidHash = params.getAssumeValidHash();
+        this.assumeValidHeight = params.getAssumeValidHeight();
+    }
+
+    /**
+     * <p>Sets the block whose ancestors, and the block itself, are connected without running their scripts. Everything
+     * else is still checked: outputs are spent and created as usual, and values, sigops and merkle roots are
+     * verified. Blocks above it are verified in full. Defaults to the one in the {@link NetworkParameters}, which
+     * none of the built in networks have; pass null to verify every script.</p>
+     *
+     * <p>Scripts are only skipped for a block once the header of the assume-valid block is known and the block is
+     * one of its ancestors: either the assume-valid block is in the store, or a run of headers leading up to it was
+     * passed to {@link #notifyHeaders(List)} first, as headers-first download does. Until then every script is
+     * run.</p>
+     *
+     * <p>Like a checkpoint, the block is locked in: a block at the same height with a different hash is rejected,
+     * so a chain that was connected without its scripts can never be extended past that height. Blocks connected
+     * as part of a re-org always have their scripts run.</p>
+     */
+    public void setAssumeValid(Sha256Hash hash, int height) {
+        checkArgument(hash == null || height >= 0);
+        lock.lock();
+        try {
+            this.assumeValidHash = hash;
+            this.assumeValidHeight = hash == null ? -1 : height;
+            headerRun.clear();
+            headerRunReachesAssumeValid = false;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** Returns the hash of the block set by {@link #setAssumeValid(Sha256Hash, int)}, or null. */
+    public Sha256Hash getAssumeValidHash() {
+        lock.lock();
+        try {
+            return assumeValidHash;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Tells the chain about headers, in chain order, that are known ahead of their blocks. If they link up from a
+     * block in the store to the assume-valid block, the blocks on the way are connected without running their
+     * scripts. The headers are only followed by their hashes, so they needn't have been checked in any other way.
+     */
+    public void notifyHeaders(List<Block> headers) throws BlockStoreException {
+        lock.lock();
+        try {
+            if (assumeValidHash == null || headerRunReachesAssumeValid)
+                return;
+            for (Block header : headers) {
+                int height;
+                if (!headerRun.isEmpty() && header.getPrevBlockHash().equals(headerRun.get(headerRun.size() - 1))) {
+                    height = headerRunStart + headerRun.size();
+                } else {
+                    // Start again from the store, which also covers headers that fork off the run.
+                    StoredBlock storedPrev = blockStore.get(header.getPrevBlockHash());
+                    headerRun.clear();
+                    if (storedPrev == null || storedPrev.getHeight() >= assumeValidHeight)
+                        continue;
+                    headerRunStart = height = storedPrev.getHeight() + 1;
+                }
+                Sha256Hash hash = header.getHash();
+                if (height == assumeValidHeight && !hash.equals(assumeValidHash)) {
+                    headerRun.clear();
+                    continue;
+                }
+                headerRun.add(hash);
+                if (height == assumeValidHeight) {
+                    headerRunReachesAssumeValid = true;
+                    return;
+                }
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // Returns true if the scripts of the block with the given height and hash on the best chain can be skipped.
+    private boolean isAssumedValid(int height, Sha256Hash hash) throws BlockStoreException {
+        if (assumeValidHash == null || height > assumeValidHeight)
+            return false;
+        if (headerRunReachesAssumeValid) {
+            int index = height - headerRunStart;
+            if (index >= 0 && index < headerRun.size())
+                return headerRun.get(index).equals(hash);
+        }
+        StoredBlock assumed = blockStore.get(assumeValidHash);
+        if (assumed == null)
+            return false;
+        StoredBlock ancestor = blockStore.getAncestor(assumed, height);
+        return ancestor != null && ancestor.getHeader().getHash().equals(hash);
+    }
+
+    private void checkAssumeValid(int height, Sha256Hash hash) throws VerificationException {
+        if (assumeValidHash != null && height == assumeValidHeight && !assumeValidHash.equals(hash))
+            throw new VerificationException("Block failed assume-valid lockin at " + height);
     }
 
     @Override
@@ -97,30 +197,175 @@ public class FullPrunedBlockChain extends AbstractBlockChain {
     
     //TODO: Remove lots of duplicated code in the two connectTransactions
     
-    // TODO: execute in order of largest transaction (by input count) first
-    ExecutorService scriptVerificationExecutor = Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors());
-    
-    class Verifyer implements Callable<VerificationException> {
-        final Transaction tx;
-        final List<Script> prevOutScripts;
-        final boolean enforcePayToScriptHash;
-        Verifyer(final Transaction tx, final List<Script> prevOutScripts, final boolean enforcePayToScriptHash) {
-            this.tx = tx; this.prevOutScripts = prevOutScripts; this.enforcePayToScriptHash = enforcePayToScriptHash;
+    private ScriptVerificationEngine scriptVerificationEngine;
+    // Guarded by lock.
+    private Sha256Hash assumeValidHash;
+    private int assumeValidHeight;
+    // Hashes of headers by height from headerRunStart on, building on a block in the store and heading towards the
+    // assume-valid block, see notifyHeaders. Guarded by lock.
+    private final ArrayList<Sha256Hash> headerRun = new ArrayList<Sha256Hash>();
+    private int headerRunStart;
+    private boolean headerRunReachesAssumeValid;
+
+    /**
+     * Sets the engine used to verify input scripts. Engines can be shared between chains. By default each chain
+     * creates its own, with one thread per processor, the first time it needs one.
+     */
+    public synchronized void setScriptVerificationEngine(ScriptVerificationEngine engine) {
+        this.scriptVerificationEngine = engine;
+    }
+
+    /**
+     * Returns the engine used to verify input scripts, which can be queried for metrics or told to verify each block's
+     * signatures together with {@link ScriptVerificationEngine#setDeferSignatures(boolean)}.
+     */
+    public synchronized ScriptVerificationEngine getScriptVerificationEngine() {
+        if (scriptVerificationEngine == null)
+            scriptVerificationEngine = new ScriptVerificationEngine();
+        return scriptVerificationEngine;
+    }
+
+    // Prepares blocks ahead of the one being connected by addAll(). Created on first use.
+    private ExecutorService prefetchExecutor;
+    private volatile int pipelineDepth = Runtime.getRuntime().availableProcessors() * 2;
+
+    /**
+     * Sets how many blocks ahead of the one currently being connected {@link #addAll(Iterable)} will prepare. Zero
+     * means blocks are prepared one at a time.
+     */
+    public void setPipelineDepth(int pipelineDepth) {
+        checkArgument(pipelineDepth >= 0);
+        this.pipelineDepth = pipelineDepth;
+    }
+
+    /** Returns how many blocks ahead of the one currently being connected {@link #addAll(Iterable)} will prepare. */
+    public int getPipelineDepth() {
+        return pipelineDepth;
+    }
+
+    private synchronized ExecutorService getPrefetchExecutor() {
+        if (prefetchExecutor == null) {
+            prefetchExecutor = Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors(), new ThreadFactory() {
+                private final AtomicInteger threadNumber = new AtomicInteger(1);
+
+                public Thread newThread(Runnable r) {
+                    Thread t = new Thread(r, "FullPrunedBlockChain-prefetch-" + threadNumber.getAndIncrement());
+                    t.setDaemon(true);
+                    return t;
+                }
+            });
+        }
+        return prefetchExecutor;
+    }
+
+    /**
+     * Does everything needed to connect a block that doesn't depend on the blocks before it: parses it, checks its
+     * proof of work with the chain's {@link ProofOfWorkVerifier}, hashes the transactions, checks the merkle root, and
+     * looks up the outputs it spends so the block store has them cached by the time the block is connected.
+     */
+    class Prefetcher implements Callable<Void> {
+        final Block block;
+        final ProofOfWorkVerifier verifier;
+        // Set by whichever comes first: the thread running it, or addAll() giving up on it.
+        final AtomicBoolean claimed = new AtomicBoolean();
+        Future<Void> future;
+        Prefetcher(Block block, ProofOfWorkVerifier verifier) {
+            this.block = block;
+            this.verifier = verifier;
         }
         @Override
-        public VerificationException call() throws Exception {
-            try{
-                ListIterator<Script> prevOutIt = prevOutScripts.listIterator();
-                for (int index = 0; index < tx.getInputs().size(); index++) {
-                    tx.getInputs().get(index).getScriptSig().correctlySpends(tx, index, prevOutIt.next(), enforcePayToScriptHash);
-                }
+        public Void call() throws Exception {
+            if (!claimed.compareAndSet(false, true))
+                return null;
+            try {
+                verifier.verifyHeaders(Collections.singletonList(block));
+                block.verifyTransactions();
             } catch (VerificationException e) {
-                return e;
+                // add() will find this again, once the blocks before this one are connected, and report it there.
+                return null;
+            }
+            // Outputs created earlier in this same block can't be in the store yet.
+            Set<Sha256Hash> txHashes = new HashSet<Sha256Hash>();
+            for (Transaction tx : block.transactions)
+                txHashes.add(tx.getHash());
+            try {
+                for (Transaction tx : block.transactions) {
+                    if (tx.isCoinBase())
+                        continue;
+                    for (TransactionInput in : tx.getInputs()) {
+                        TransactionOutPoint outpoint = in.getOutpoint();
+                        if (!txHashes.contains(outpoint.getHash()))
+                            blockStore.getTransactionOutput(outpoint.getHash(), outpoint.getIndex());
+                    }
+                }
+            } catch (BlockStoreException e) {
+                log.warn("Failed to prefetch outputs for block {}: {}", block.getHashAsString(), e.toString());
             }
             return null;
         }
     }
-    
+
+    /**
+     * <p>Adds every block from the given source in order, exactly as if {@link #add(Block)} were called on each, but
+     * pipelined: while one block is being connected and its scripts are being verified, the next
+     * {@link #getPipelineDepth()} blocks are parsed, have their proof of work checked by the
+     * {@link #getProofOfWorkVerifier()}, are checked against their merkle roots and have the outputs they spend looked
+     * up in the block store on other threads.</p>
+     *
+     * <p>Blocks are still connected and committed one at a time in order. If a block fails to verify its changes are
+     * rolled back as usual, the exception is thrown and none of the blocks after it are added. This is meant for
+     * catching up on a long run of blocks, such as when importing block files with
+     * {@link com.google.bitcoin.utils.BlockFileLoader}. Don't touch the blocks from other threads until it returns.</p>
+     *
+     * @return the number of blocks for which add() returned true
+     */
+    @Override
+    public int addAll(Iterable<Block> blocks) throws VerificationException, PrunedException {
+        ExecutorService executor = getPrefetchExecutor();
+        ProofOfWorkVerifier verifier = getProofOfWorkVerifier();
+        Iterator<Block> iterator = blocks.iterator();
+        LinkedList<Block> queue = new LinkedList<Block>();
+        LinkedList<Prefetcher> prefetches = new LinkedList<Prefetcher>();
+        int added = 0;
+        try {
+            while (true) {
+                while (queue.size() <= pipelineDepth && iterator.hasNext()) {
+                    Block block = iterator.next();
+                    queue.add(block);
+                    Prefetcher prefetcher = new Prefetcher(block, verifier);
+                    prefetcher.future = executor.submit(prefetcher);
+                    prefetches.add(prefetcher);
+                }
+                if (queue.isEmpty())
+                    return added;
+                // Wait for the block to be prepared, which also makes sure the preparing thread is done with it.
+                try {
+                    prefetches.removeFirst().future.get();
+                } catch (InterruptedException e) {
+                    throw new RuntimeException(e);
+                } catch (ExecutionException e) {
+                    throw new RuntimeException(e.getCause());
+                }
+                if (add(queue.removeFirst()))
+                    added++;
+            }
+        } finally {
+            // Drop the ones that haven't started, and wait for the rest: they parse the caller's blocks and read the
+            // block store, neither of which may happen after we return.
+            for (Prefetcher prefetch : prefetches) {
+                if (prefetch.claimed.compareAndSet(false, true)) {
+                    prefetch.future.cancel(false);
+                } else {
+                    try {
+                        Uninterruptibles.getUninterruptibly(prefetch.future);
+                    } catch (ExecutionException e) {
+                        // Already failing, or add() would have found the same problem.
+                    }
+                }
+            }
+        }
+    }
+
     @Override
     protected TransactionOutputChanges connectTransactions(int height, Block block)
             throws VerificationException, BlockStoreException {
@@ -129,6 +374,13 @@ public class FullPrunedBlockChain extends AbstractBlockChain {
             throw new RuntimeException("connectTransactions called with Block that didn't have transactions!");
         if (!params.passesCheckpoint(height, block.getHash()))
             throw new VerificationException("Block failed checkpoint lockin at " + height);
+        checkAssumeValid(height, block.getHash());
+        final boolean verifyScripts = !isAssumedValid(height, block.getHash());
+        if (height == assumeValidHeight && headerRunReachesAssumeValid) {
+            // From here on the assume-valid block is in the store.
+            headerRun.clear();
+            headerRunReachesAssumeValid = false;
+        }
 
         blockStore.beginDatabaseBatchWrite();
 
@@ -137,10 +389,7 @@ public class FullPrunedBlockChain extends AbstractBlockChain {
         long sigOps = 0;
         final boolean enforcePayToScriptHash = block.getTimeSeconds() >= NetworkParameters.BIP16_ENFORCE_TIME;
         
-        if (scriptVerificationExecutor.isShutdown())
-            scriptVerificationExecutor = Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors());
-        
-        List<Future<VerificationException>> listScriptVerificationResults = new ArrayList<Future<VerificationException>>(block.transactions.size());
+        ScriptVerificationEngine.Batch scriptVerification = getScriptVerificationEngine().newBatch();
         try {
             if (!params.isCheckpoint(height)) {
                 // BIP30 violator blocks are ones that contain a duplicated transaction. They are all in the
@@ -162,7 +411,7 @@ public class FullPrunedBlockChain extends AbstractBlockChain {
                 boolean isCoinBase = tx.isCoinBase();
                 BigInteger valueIn = BigInteger.ZERO;
                 BigInteger valueOut = BigInteger.ZERO;
-                final List<Script> prevOutScripts = new LinkedList<Script>();
+                final Script[] prevOutScripts = new Script[tx.getInputs().size()];
                 if (!isCoinBase) {
                     // For each input of the transaction remove the corresponding output from the set of unspent
                     // outputs.
@@ -186,9 +435,8 @@ public class FullPrunedBlockChain extends AbstractBlockChain {
                                 throw new VerificationException("Too many P2SH SigOps in block");
                         }
                         
-                        prevOutScripts.add(new Script(prevOut.getScriptBytes()));
-                        
-                        //in.getScriptSig().correctlySpends(tx, index, new Script(params, prevOut.getScriptBytes(), 0, prevOut.getScriptBytes().length));
+                        if (verifyScripts)
+                            prevOutScripts[index] = new Script(prevOut.getScriptBytes());
                         
                         blockStore.removeUnspentTransactionOutput(prevOut);
                         txOutsSpent.add(prevOut);
@@ -215,34 +463,21 @@ public class FullPrunedBlockChain extends AbstractBlockChain {
                     totalFees = totalFees.add(valueIn.subtract(valueOut));
                 }
                 
-                if (!isCoinBase) {
-                    // Because correctlySpends modifies transactions, this must come after we are done with tx
-                    FutureTask<VerificationException> future = new FutureTask<VerificationException>(new Verifyer(tx, prevOutScripts, enforcePayToScriptHash));
-                    scriptVerificationExecutor.execute(future);
-                    listScriptVerificationResults.add(future);
+                if (!isCoinBase && verifyScripts) {
+                    // Queued once we are done with tx, as the scripts may be checked on other threads straight away
+                    for (int index = 0; index < prevOutScripts.length; index++)
+                        scriptVerification.add(tx, index, prevOutScripts[index], enforcePayToScriptHash);
                 }
             }
             if (totalFees.compareTo(params.MAX_MONEY) > 0 || block.getBlockInflation(height).add(totalFees).compareTo(coinbaseValue) < 0)
                 throw new VerificationException("Transaction fees out of range");
-            for (Future<VerificationException> future : listScriptVerificationResults) {
-                VerificationException e;
-                try {
-                    e = future.get();
-                } catch (InterruptedException thrownE) {
-                    throw new RuntimeException(thrownE); // Shouldn't happen
-                } catch (ExecutionException thrownE) {
-                    log.error("Script.correctlySpends threw a non-normal exception: " + thrownE.getCause());
-                    throw new VerificationException("Bug in Script.correctlySpends, likely script malformed in some new and interesting way.", thrownE);
-                }
-                if (e != null)
-                    throw e;
-            }
+            scriptVerification.await();
         } catch (VerificationException e) {
-            scriptVerificationExecutor.shutdownNow();
+            scriptVerification.cancel();
             blockStore.abortDatabaseBatchWrite();
             throw e;
         } catch (BlockStoreException e) {
-            scriptVerificationExecutor.shutdownNow();
+            scriptVerification.cancel();
             blockStore.abortDatabaseBatchWrite();
             throw e;
         }
@@ -258,6 +493,7 @@ public class FullPrunedBlockChain extends AbstractBlockChain {
         checkState(lock.isLocked());
         if (!params.passesCheckpoint(newBlock.getHeight(), newBlock.getHeader().getHash()))
             throw new VerificationException("Block failed checkpoint lockin at " + newBlock.getHeight());
+        checkAssumeValid(newBlock.getHeight(), newBlock.getHeader().getHash());
         
         blockStore.beginDatabaseBatchWrite();
         StoredUndoableBlock block = blockStore.getUndoBlock(newBlock.getHeader().getHash());
@@ -267,6 +503,7 @@ public class FullPrunedBlockChain extends AbstractBlockChain {
             throw new PrunedException(newBlock.getHeader().getHash());
         }
         TransactionOutputChanges txOutChanges;
+        ScriptVerificationEngine.Batch scriptVerification = null;
         try {
             List<Transaction> transactions = block.getTransactions();
             if (transactions != null) {
@@ -284,14 +521,12 @@ public class FullPrunedBlockChain extends AbstractBlockChain {
                 BigInteger totalFees = BigInteger.ZERO;
                 BigInteger coinbaseValue = null;
                 
-                if (scriptVerificationExecutor.isShutdown())
-                    scriptVerificationExecutor = Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors());
-                List<Future<VerificationException>> listScriptVerificationResults = new ArrayList<Future<VerificationException>>(transactions.size());
+                scriptVerification = getScriptVerificationEngine().newBatch();
                 for(final Transaction tx : transactions) {
                     boolean isCoinBase = tx.isCoinBase();
                     BigInteger valueIn = BigInteger.ZERO;
                     BigInteger valueOut = BigInteger.ZERO;
-                    final List<Script> prevOutScripts = new LinkedList<Script>();
+                    final Script[] prevOutScripts = new Script[tx.getInputs().size()];
                     if (!isCoinBase) {
                         for (int index = 0; index < tx.getInputs().size(); index++) {
                             final TransactionInput in = tx.getInputs().get(index);
@@ -310,7 +545,7 @@ public class FullPrunedBlockChain extends AbstractBlockChain {
                                     throw new VerificationException("Too many P2SH SigOps in block");
                             }
                             
-                            prevOutScripts.add(new Script(prevOut.getScriptBytes()));
+                            prevOutScripts[index] = new Script(prevOut.getScriptBytes());
                             
                             blockStore.removeUnspentTransactionOutput(prevOut);
                             txOutsSpent.add(prevOut);
@@ -338,29 +573,16 @@ public class FullPrunedBlockChain extends AbstractBlockChain {
                     }
                     
                     if (!isCoinBase) {
-                        // Because correctlySpends modifies transactions, this must come after we are done with tx
-                        FutureTask<VerificationException> future = new FutureTask<VerificationException>(new Verifyer(tx, prevOutScripts, enforcePayToScriptHash));
-                        scriptVerificationExecutor.execute(future);
-                        listScriptVerificationResults.add(future);
+                        // Queued once we are done with tx, as the scripts may be checked on other threads straight away
+                        for (int index = 0; index < prevOutScripts.length; index++)
+                            scriptVerification.add(tx, index, prevOutScripts[index], enforcePayToScriptHash);
                     }
                 }
                 if (totalFees.compareTo(params.MAX_MONEY) > 0 ||
                         newBlock.getHeader().getBlockInflation(newBlock.getHeight()).add(totalFees).compareTo(coinbaseValue) < 0)
                     throw new VerificationException("Transaction fees out of range");
                 txOutChanges = new TransactionOutputChanges(txOutsCreated, txOutsSpent);
-                for (Future<VerificationException> future : listScriptVerificationResults) {
-                    VerificationException e;
-                    try {
-                        e = future.get();
-                    } catch (InterruptedException thrownE) {
-                        throw new RuntimeException(thrownE); // Shouldn't happen
-                    } catch (ExecutionException thrownE) {
-                        log.error("Script.correctlySpends threw a non-normal exception: " + thrownE.getCause());
-                        throw new VerificationException("Bug in Script.correctlySpends, likely script malformed in some new and interesting way.", thrownE);
-                    }
-                    if (e != null)
-                        throw e;
-                }
+                scriptVerification.await();
             } else {
                 txOutChanges = block.getTxOutChanges();
                 if (!params.isCheckpoint(newBlock.getHeight()))
@@ -375,11 +597,13 @@ public class FullPrunedBlockChain extends AbstractBlockChain {
                     blockStore.removeUnspentTransactionOutput(out);
             }
         } catch (VerificationException e) {
-            scriptVerificationExecutor.shutdownNow();
+            if (scriptVerification != null)
+                scriptVerification.cancel();
             blockStore.abortDatabaseBatchWrite();
             throw e;
         } catch (BlockStoreException e) {
-            scriptVerificationExecutor.shutdownNow();
+            if (scriptVerification != null)
+                scriptVerification.cancel();
             blockStore.abortDatabaseBatchWrite();
             throw e;
         }
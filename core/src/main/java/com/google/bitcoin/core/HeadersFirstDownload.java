@@ -0,0 +1,535 @@
+/**
+ * Copyright 2013 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.bitcoin.core;
+
+import com.google.bitcoin.store.BlockLookup;
+import com.google.bitcoin.store.BlockStoreException;
+import com.google.bitcoin.utils.Locks;
+import net.jcip.annotations.GuardedBy;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.*;
+import java.util.concurrent.locks.ReentrantLock;
+
+import static com.google.common.base.Preconditions.checkNotNull;
+
+/**
+ * <p>Downloads the chain headers first and the block bodies afterwards, from all connected peers at once. It is used
+ * by a {@link PeerGroup} when {@link PeerGroup#setHeadersFirstDownload(boolean)} is turned on.</p>
+ *
+ * <p>The download peer fetches headers with getheaders, 2000 at a time, and they are checked for proof of work and
+ * queued here without being added to the chain. The bodies (or filtered blocks, if a Bloom filter is in use) of the
+ * queued headers are then requested with getdata from every connected peer, a few at a time each, but only within a
+ * window of heights above the last block connected, so that a slow peer can't make us buffer the rest of the chain
+ * while we wait for it. Blocks arrive in any order and are connected to the {@link AbstractBlockChain} in chain order
+ * as soon as the next one is there. Headers from before the fast catchup time don't need a body and are connected as
+ * they are. A request that a peer sits on for too long is handed to another peer.</p>
+ */
+class HeadersFirstDownload {
+    private static final Logger log = LoggerFactory.getLogger(HeadersFirstDownload.class);
+
+    // How far above the last connected block bodies may be requested.
+    static final int BLOCK_DOWNLOAD_WINDOW = 1024;
+    // How many bodies each peer may have outstanding at once.
+    static final int MAX_BLOCKS_IN_FLIGHT_PER_PEER = 16;
+    // Stop asking for headers when this many are waiting to be connected, and start again at half of it.
+    static final int MAX_HEADERS_AHEAD = 20000;
+    // How long the lowest missing body may be outstanding before it is asked for from someone else.
+    static final long STALL_TIMEOUT_MSEC = 20 * 1000;
+
+    private final ReentrantLock lock = Locks.lock("headersfirst");
+    // Held while blocks are connected, so they go to the chain one at a time and in order. Never taken with lock held.
+    private final ReentrantLock connectLock = Locks.lock("headersfirst-connect");
+
+    private final NetworkParameters params;
+    private final AbstractBlockChain chain;
+
+    // A header waiting to be connected, and the body for it if one is needed.
+    private static class PendingBlock {
+        final StoredBlock stored;
+        final Block header;
+        final int height;
+        final boolean needsBody;
+        Peer requestedFrom;
+        long requestTimeMsec;
+        Peer stalledOn;
+        Message body;
+
+        PendingBlock(StoredBlock stored, boolean needsBody) {
+            this.stored = stored;
+            this.header = stored.getHeader();
+            this.height = stored.getHeight();
+            this.needsBody = needsBody;
+        }
+    }
+
+    // Headers in chain order, the first of which builds on a block in the store. Entries before first are connected
+    // and waiting to be trimmed off.
+    @GuardedBy("lock") private final ArrayList<PendingBlock> pending = new ArrayList<PendingBlock>();
+    @GuardedBy("lock") private int first = 0;
+    @GuardedBy("lock") private final HashMap<Sha256Hash, PendingBlock> pendingByHash = new HashMap<Sha256Hash, PendingBlock>();
+    @GuardedBy("lock") private final LinkedHashMap<Peer, Integer> blocksInFlight = new LinkedHashMap<Peer, Integer>();
+    // The peer the headers came from, which is told about our progress and asked for more headers.
+    @GuardedBy("lock") private Peer headersPeer;
+    @GuardedBy("lock") private boolean headersPaused;
+    @GuardedBy("lock") private long fastCatchupTimeSecs;
+    @GuardedBy("lock") private boolean useFilteredBlocks;
+
+    HeadersFirstDownload(NetworkParameters params, AbstractBlockChain chain) {
+        this.params = checkNotNull(params);
+        this.chain = checkNotNull(chain);
+        this.fastCatchupTimeSecs = params.getGenesisBlock().getTimeSeconds();
+    }
+
+    /** Sets which headers need their bodies downloaded, and whether to ask for filtered blocks instead of full ones. */
+    void setDownloadParameters(long fastCatchupTimeSecs, boolean useFilteredBlocks) {
+        lock.lock();
+        try {
+            this.fastCatchupTimeSecs = fastCatchupTimeSecs;
+            this.useFilteredBlocks = useFilteredBlocks;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** Makes a newly connected peer available for downloading block bodies. */
+    void addPeer(Peer peer) {
+        lock.lock();
+        try {
+            if (!blocksInFlight.containsKey(peer))
+                blocksInFlight.put(peer, 0);
+        } finally {
+            lock.unlock();
+        }
+        requestBodies();
+    }
+
+    /** Hands whatever the given peer was still downloading to the other peers. */
+    void removePeer(Peer peer) {
+        lock.lock();
+        try {
+            blocksInFlight.remove(peer);
+            for (int i = first; i < pending.size(); i++) {
+                PendingBlock block = pending.get(i);
+                if (block.requestedFrom == peer && block.body == null)
+                    block.requestedFrom = null;
+                if (block.stalledOn == peer)
+                    block.stalledOn = null;
+            }
+            if (headersPeer == peer)
+                headersPeer = null;
+        } finally {
+            lock.unlock();
+        }
+        requestBodies();
+    }
+
+    /**
+     * Returns a block locator starting at the last header we have, so that getheaders carries on from there rather
+     * than from the chain head.
+     */
+    List<Sha256Hash> getBlockLocator() throws BlockStoreException {
+        Sha256Hash tip = null;
+        lock.lock();
+        try {
+            if (first < pending.size())
+                tip = pending.get(pending.size() - 1).header.getHash();
+        } finally {
+            lock.unlock();
+        }
+        List<Sha256Hash> locator = chain.getBlockLocator(chain.getChainHead());
+        if (tip != null)
+            locator.add(0, tip);
+        return locator;
+    }
+
+    /**
+     * Queues a batch of headers received from the given peer and starts downloading their bodies. Returns true if
+     * the peer should be asked for the headers that follow, which is the case when it sent a full batch and not too
+     * many are queued already.
+     */
+    boolean addHeaders(Peer peer, List<Block> headers) throws VerificationException, ProtocolException,
+            BlockStoreException {
+        // Check they link up and the proof of work before taking any locks, as this can be slow.
+        for (int i = 1; i < headers.size(); i++) {
+            if (!headers.get(i).getPrevBlockHash().equals(headers.get(i - 1).getHash()))
+                throw new ProtocolException("Headers do not form a chain at " + headers.get(i).getHashAsString());
+        }
+        chain.getProofOfWorkVerifier().verifyHeaders(headers);
+        if (chain instanceof FullPrunedBlockChain)
+            ((FullPrunedBlockChain) chain).notifyHeaders(headers);
+
+        // Skip over any we have already.
+        int start = 0;
+        while (start < headers.size() && isKnown(headers.get(start).getHash()))
+            start++;
+        if (start < headers.size()) {
+            Block firstNew = headers.get(start);
+            // If the headers don't build on the ones we have, they must fork off the chain somewhere.
+            StoredBlock forkPoint = null;
+            boolean buildsOnPending;
+            lock.lock();
+            try {
+                buildsOnPending = firstNew.getPrevBlockHash().equals(getTipHash()) ||
+                        pendingByHash.containsKey(firstNew.getPrevBlockHash());
+            } finally {
+                lock.unlock();
+            }
+            if (!buildsOnPending) {
+                forkPoint = chain.getBlockStore().get(firstNew.getPrevBlockHash());
+                if (forkPoint == null)
+                    throw new ProtocolException("Got unconnected header from peer: " + firstNew.getHashAsString());
+            }
+            lock.lock();
+            try {
+                // Find what the new headers build on: the queued ones before keep, then prev.
+                int keep;
+                StoredBlock prev;
+                PendingBlock forkBlock = forkPoint == null ? pendingByHash.get(firstNew.getPrevBlockHash()) : null;
+                if (forkBlock != null) {
+                    keep = first + forkBlock.height - pending.get(first).height + 1;
+                    prev = forkBlock.stored;
+                } else {
+                    keep = first;
+                    prev = forkPoint != null ? forkPoint : chain.getBlockStore().get(firstNew.getPrevBlockHash());
+                    if (prev == null)
+                        throw new ProtocolException("Got unconnected header from peer: " + firstNew.getHashAsString());
+                }
+                // Check the difficulty and checkpoints before anything queued is thrown away for them, so that a
+                // batch that fails is dropped as a whole.
+                QueuedChain queued = new QueuedChain(keep);
+                for (int i = start; i < headers.size(); i++) {
+                    Block header = headers.get(i);
+                    int height = prev.getHeight() + 1;
+                    if (!params.passesCheckpoint(height, header.getHash()))
+                        throw new VerificationException("Header failed checkpoint lockin at " + height);
+                    params.checkDifficultyTransitions(prev, header, queued);
+                    prev = prev.build(header);
+                    queued.add(prev);
+                }
+                if (forkPoint != null)
+                    log.info("{}: Headers fork off the chain at height {}", peer, forkPoint.getHeight());
+                else if (keep < pending.size())
+                    log.info("{}: Headers fork off the queued ones at height {}", peer, forkBlock.height);
+                truncate(keep);
+                for (StoredBlock stored : queued.batch) {
+                    PendingBlock block = new PendingBlock(stored,
+                            stored.getHeader().getTimeSeconds() >= fastCatchupTimeSecs);
+                    pending.add(block);
+                    pendingByHash.put(block.header.getHash(), block);
+                }
+            } finally {
+                lock.unlock();
+            }
+        }
+        boolean wantMore;
+        lock.lock();
+        try {
+            headersPeer = peer;
+            headersPaused = headers.size() >= HeadersMessage.MAX_HEADERS && pending.size() - first >= MAX_HEADERS_AHEAD;
+            wantMore = headers.size() >= HeadersMessage.MAX_HEADERS && !headersPaused;
+        } finally {
+            lock.unlock();
+        }
+        connectReady();
+        requestBodies();
+        return wantMore;
+    }
+
+    private boolean isKnown(Sha256Hash hash) throws BlockStoreException {
+        lock.lock();
+        try {
+            if (pendingByHash.containsKey(hash))
+                return true;
+        } finally {
+            lock.unlock();
+        }
+        return chain.getBlockStore().get(hash) != null;
+    }
+
+    private Sha256Hash getTipHash() {
+        if (first < pending.size())
+            return pending.get(pending.size() - 1).header.getHash();
+        return chain.getChainHead().getHeader().getHash();
+    }
+
+    // Forgets the queued headers from the given index on.
+    private void truncate(int from) {
+        for (int i = from; i < pending.size(); i++) {
+            PendingBlock block = pending.get(i);
+            pendingByHash.remove(block.header.getHash());
+            if (block.requestedFrom != null && block.body == null)
+                release(block.requestedFrom);
+        }
+        pending.subList(from, pending.size()).clear();
+    }
+
+    /**
+     * The chain a batch of headers is checked against: the store, the queued headers it builds on and the ones from the
+     * batch checked so far. Only used with lock held.
+     */
+    private class QueuedChain implements BlockLookup {
+        // The queued headers from first up to here are ancestors of the batch.
+        private final int keep;
+        private final List<StoredBlock> batch = new ArrayList<StoredBlock>();
+        private final Map<Sha256Hash, StoredBlock> batchByHash = new HashMap<Sha256Hash, StoredBlock>();
+
+        QueuedChain(int keep) {
+            this.keep = keep;
+        }
+
+        void add(StoredBlock block) {
+            batch.add(block);
+            batchByHash.put(block.getHeader().getHash(), block);
+        }
+
+        // The height of the lowest block that isn't in the store.
+        private int lowestHeight() {
+            return keep > first ? pending.get(first).height : batch.isEmpty() ? -1 : batch.get(0).getHeight();
+        }
+
+        // Returns the queued header with the given hash if the batch builds on it, or null.
+        private PendingBlock getQueued(Sha256Hash hash) {
+            PendingBlock queued = pendingByHash.get(hash);
+            if (queued == null || keep == first || queued.height > pending.get(keep - 1).height)
+                return null;
+            return queued;
+        }
+
+        public StoredBlock get(Sha256Hash hash) throws BlockStoreException {
+            StoredBlock block = batchByHash.get(hash);
+            if (block != null)
+                return block;
+            PendingBlock queued = getQueued(hash);
+            return queued != null ? queued.stored : chain.getBlockStore().get(hash);
+        }
+
+        public StoredBlock getAncestor(StoredBlock block, int height) throws BlockStoreException {
+            Sha256Hash hash = block.getHeader().getHash();
+            if (!batchByHash.containsKey(hash) && getQueued(hash) == null)
+                return chain.getBlockStore().getAncestor(block, height);
+            if (height < 0 || height > block.getHeight())
+                return null;
+            int lowest = lowestHeight();
+            if (height >= lowest) {
+                int queuedCount = keep - first;
+                int index = height - lowest;
+                return index < queuedCount ? pending.get(first + index).stored : batch.get(index - queuedCount);
+            }
+            // Below everything here, so it's an ancestor of what the lowest one builds on.
+            Block lowestHeader = keep > first ? pending.get(first).header : batch.get(0).getHeader();
+            StoredBlock base = chain.getBlockStore().get(lowestHeader.getPrevBlockHash());
+            return base == null ? null : chain.getBlockStore().getAncestor(base, height);
+        }
+    }
+
+    private void release(Peer peer) {
+        Integer count = blocksInFlight.get(peer);
+        if (count != null && count > 0)
+            blocksInFlight.put(peer, count - 1);
+    }
+
+    /**
+     * Takes a block or filtered block that a peer sent us. Returns false if it isn't one we asked for, in which case
+     * the peer should deal with it as usual.
+     */
+    boolean receiveBlock(Peer peer, Message m) {
+        Sha256Hash hash = m instanceof FilteredBlock ? ((FilteredBlock) m).getBlockHeader().getHash() : m.getHash();
+        lock.lock();
+        try {
+            PendingBlock block = pendingByHash.get(hash);
+            if (block == null || !block.needsBody)
+                return false;
+            if (block.body != null)
+                return true;  // A duplicate from a peer we gave up waiting for.
+            if (block.requestedFrom != null)
+                release(block.requestedFrom);
+            block.body = m;
+        } finally {
+            lock.unlock();
+        }
+        connectReady();
+        requestBodies();
+        return true;
+    }
+
+    /** Asks another peer for the lowest missing body if it has been outstanding for too long. */
+    void retryStalledRequests() {
+        lock.lock();
+        try {
+            long now = Utils.now().getTime();
+            for (int i = first; i < pending.size(); i++) {
+                PendingBlock block = pending.get(i);
+                if (!block.needsBody || block.body != null)
+                    continue;
+                if (block.requestedFrom != null && now - block.requestTimeMsec > STALL_TIMEOUT_MSEC) {
+                    log.info("{}: Timed out waiting for block {}, asking someone else", block.requestedFrom, block.height);
+                    release(block.requestedFrom);
+                    block.stalledOn = block.requestedFrom;
+                    block.requestedFrom = null;
+                }
+                break;
+            }
+        } finally {
+            lock.unlock();
+        }
+        requestBodies();
+    }
+
+    // Hands out requests for missing bodies in the window to peers with room for them.
+    private void requestBodies() {
+        Map<Peer, GetDataMessage> requests = new HashMap<Peer, GetDataMessage>();
+        boolean filtered;
+        lock.lock();
+        try {
+            filtered = useFilteredBlocks;
+            int end = Math.min(pending.size(), first + BLOCK_DOWNLOAD_WINDOW);
+            long now = Utils.now().getTime();
+            for (int i = first; i < end; i++) {
+                PendingBlock block = pending.get(i);
+                if (!block.needsBody || block.body != null || block.requestedFrom != null)
+                    continue;
+                Peer peer = selectPeer(block, filtered);
+                if (peer == null)
+                    continue;
+                blocksInFlight.put(peer, blocksInFlight.get(peer) + 1);
+                block.requestedFrom = peer;
+                block.requestTimeMsec = now;
+                GetDataMessage getdata = requests.get(peer);
+                if (getdata == null) {
+                    getdata = new GetDataMessage(params);
+                    requests.put(peer, getdata);
+                }
+                InventoryItem.Type type = filtered ? InventoryItem.Type.FilteredBlock : InventoryItem.Type.Block;
+                getdata.addItem(new InventoryItem(type, block.header.getHash()));
+            }
+            // Spread the next round differently, so it isn't always the first peers that get the work.
+            if (!requests.isEmpty() && blocksInFlight.size() > 1) {
+                Peer head = blocksInFlight.keySet().iterator().next();
+                blocksInFlight.put(head, blocksInFlight.remove(head));
+            }
+        } finally {
+            lock.unlock();
+        }
+        for (Map.Entry<Peer, GetDataMessage> entry : requests.entrySet()) {
+            entry.getKey().sendMessage(entry.getValue());
+            // The end of the last filtered block's transactions is only seen when something else arrives.
+            if (filtered)
+                entry.getKey().sendMessage(new Ping((long) (Math.random() * Long.MAX_VALUE)));
+        }
+    }
+
+    // The least busy peer that can serve the given block, or null if they are all busy.
+    private Peer selectPeer(PendingBlock block, boolean filtered) {
+        Peer best = null;
+        int bestCount = MAX_BLOCKS_IN_FLIGHT_PER_PEER;
+        for (Map.Entry<Peer, Integer> entry : blocksInFlight.entrySet()) {
+            Peer peer = entry.getKey();
+            if (entry.getValue() >= bestCount || peer == block.stalledOn)
+                continue;
+            if (filtered && !peer.getPeerVersionMessage().isBloomFilteringSupported())
+                continue;
+            // The peer that sent the headers has the blocks, others might not have caught up yet.
+            if (peer != headersPeer && peer.getBestHeight() < block.height)
+                continue;
+            best = peer;
+            bestCount = entry.getValue();
+        }
+        return best;
+    }
+
+    // Connects the blocks at the bottom of the queue that are ready, in order.
+    private void connectReady() {
+        Peer resumeHeadersFrom = null;
+        connectLock.lock();
+        try {
+            while (true) {
+                PendingBlock block;
+                Peer progressPeer;
+                lock.lock();
+                try {
+                    if (first == pending.size())
+                        break;
+                    block = pending.get(first);
+                    if (block.needsBody && block.body == null)
+                        break;
+                    progressPeer = headersPeer;
+                } finally {
+                    lock.unlock();
+                }
+                boolean connected = false;
+                try {
+                    if (block.body instanceof FilteredBlock)
+                        connected = chain.add((FilteredBlock) block.body);
+                    else if (block.body != null)
+                        connected = chain.add((Block) block.body);
+                    else
+                        connected = chain.add(block.header);
+                    if (!connected)
+                        log.warn("Block {} at height {} did not connect", block.header.getHashAsString(), block.height);
+                } catch (VerificationException e) {
+                    log.warn("Block " + block.header.getHashAsString() + " at height " + block.height +
+                            " failed verification", e);
+                } catch (PrunedException e) {
+                    // Unreachable when in SPV mode, and full mode never prunes blocks we are about to build on.
+                    throw new RuntimeException(e);
+                }
+                lock.lock();
+                try {
+                    if (first == pending.size() || pending.get(first) != block)
+                        continue;  // The headers forked below this block whilst it was being connected.
+                    if (!connected) {
+                        // Everything queued builds on this block, so none of it can be connected either. Start again
+                        // from the chain head the next time headers arrive.
+                        truncate(first);
+                        break;
+                    }
+                    pendingByHash.remove(block.header.getHash());
+                    first++;
+                    // Don't let the connected entries pile up.
+                    if (first >= BLOCK_DOWNLOAD_WINDOW && first * 2 >= pending.size()) {
+                        pending.subList(0, first).clear();
+                        first = 0;
+                    }
+                    if (headersPaused && pending.size() - first <= MAX_HEADERS_AHEAD / 2 && headersPeer != null) {
+                        headersPaused = false;
+                        resumeHeadersFrom = headersPeer;
+                    }
+                } finally {
+                    lock.unlock();
+                }
+                if (progressPeer != null)
+                    progressPeer.invokeOnBlocksDownloaded(block.header);
+            }
+        } finally {
+            connectLock.unlock();
+        }
+        if (resumeHeadersFrom != null)
+            resumeHeadersFrom.continueHeadersFirstDownload();
+    }
+
+    /** Returns how many headers are waiting to be connected. */
+    int getPendingCount() {
+        lock.lock();
+        try {
+            return pending.size() - first;
+        } finally {
+            lock.unlock();
+        }
+    }
+}
@@ -0,0 +1,108 @@
+/**
+ * Copyright 2013 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.bitcoin.core;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkState;
+
+/**
+ * <p>Keeps a supply of freshly generated keys ready, so that handing out new receive addresses doesn't have to wait
+ * for elliptic curve maths. A background thread tops the pool up with {@link ECKey#generateKeys(int)} in batches
+ * whenever it falls below its capacity.</p>
+ *
+ * <p>Asking for more keys than the pool holds doesn't wait for the background thread: the shortfall is generated on
+ * the calling thread, alongside it. The keys' creation times are the times they were generated, which may be a while
+ * before they are taken. That is harmless, as a wallet only uses them to know how far back to look for transactions.
+ * Keys waiting in the pool are held in memory unencrypted.</p>
+ */
+public class KeyPool {
+    private static final Logger log = LoggerFactory.getLogger(KeyPool.class);
+
+    // Large enough to share the cost of the field inversion, small enough that the pool refills smoothly.
+    private static final int BATCH_SIZE = 256;
+
+    private final BlockingQueue<ECKey> keys;
+    private final Thread thread;
+    private volatile boolean shutdown;
+
+    /** Creates a pool that holds up to the given number of keys, and starts filling it. */
+    public KeyPool(int capacity) {
+        checkArgument(capacity > 0);
+        keys = new ArrayBlockingQueue<ECKey>(capacity);
+        thread = new Thread("KeyPool-thread") {
+            @Override
+            public void run() {
+                try {
+                    while (!shutdown) {
+                        for (ECKey key : ECKey.generateKeys(BATCH_SIZE))
+                            keys.put(key);
+                    }
+                } catch (InterruptedException e) {
+                    // Shut down.
+                }
+                log.info("Key pool thread stopped");
+            }
+        };
+        thread.setDaemon(true);
+        thread.setPriority(Thread.MIN_PRIORITY);
+        thread.start();
+    }
+
+    /** Returns a new key, waiting for one to be generated if the pool is empty. */
+    public ECKey take() {
+        checkState(!shutdown, "Key pool has been shut down");
+        try {
+            return keys.take();
+        } catch (InterruptedException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     * Returns the given number of new keys, taking as many as it can from the pool and generating the rest straight
+     * away on this thread.
+     */
+    public List<ECKey> take(int count) {
+        checkArgument(count >= 0);
+        checkState(!shutdown, "Key pool has been shut down");
+        List<ECKey> result = new ArrayList<ECKey>(count);
+        keys.drainTo(result, count);
+        if (result.size() < count)
+            result.addAll(ECKey.generateKeys(count - result.size()));
+        return result;
+    }
+
+    /** Returns the number of keys ready to be taken. */
+    public int size() {
+        return keys.size();
+    }
+
+    /** Stops the background thread. The pool can't be used afterwards. */
+    public void shutdown() {
+        shutdown = true;
+        thread.interrupt();
+        keys.clear();
+    }
+}
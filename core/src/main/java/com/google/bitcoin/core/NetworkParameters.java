@@ -22,7 +22,11 @@ import com.google.bitcoin.params.TestNet3Params;
 import com.google.bitcoin.params.UnitTestParams;
 import com.google.bitcoin.script.Script;
 import com.google.bitcoin.script.ScriptOpCodes;
+import com.google.bitcoin.store.BlockLookup;
+import com.google.bitcoin.store.BlockStoreException;
 import com.google.common.base.Objects;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 import org.spongycastle.util.encoders.Hex;
 
 import java.io.ByteArrayOutputStream;
@@ -42,6 +46,8 @@ import static com.google.bitcoin.core.Utils.COIN;
  * them, you are encouraged to call the static get() methods on each specific params class directly.</p>
  */
 public abstract class NetworkParameters implements Serializable {
+    private static final Logger log = LoggerFactory.getLogger(NetworkParameters.class);
+
     /**
      * The protocol version this library implements.
      */
@@ -89,6 +95,20 @@ public abstract class NetworkParameters implements Serializable {
     protected String[] dnsSeeds;
     protected Map<Integer, Sha256Hash> checkpoints = new HashMap<Integer, Sha256Hash>();
 
+    /**
+     * A block known to be in the best chain, at assumeValidHeight. The scripts of the blocks up to and including it
+     * are not verified by a {@link FullPrunedBlockChain}. Null if every script is verified, which is the case for all
+     * the built in networks.
+     */
+    protected Sha256Hash assumeValidHash;
+    protected int assumeValidHeight = -1;
+
+    /**
+     * Blocks with a timestamp after this time, in seconds, may drop to the easiest difficulty if none has been found for
+     * twenty minutes, except at a difficulty transition point. Only the test networks allow this.
+     */
+    protected long minDifficultyBlocksAfter = Long.MAX_VALUE;
+
     protected NetworkParameters() {
         alertSigningKey = SATOSHI_KEY;
         genesisBlock = createGenesis(this);
@@ -210,6 +230,20 @@ public abstract class NetworkParameters implements Serializable {
         return checkpointHash != null;
     }
 
+    /**
+     * Returns the hash of the block whose ancestors' scripts are assumed to be valid, or null if there isn't one.
+     */
+    public Sha256Hash getAssumeValidHash() {
+        return assumeValidHash;
+    }
+
+    /**
+     * Returns the height of the block returned by {@link #getAssumeValidHash()}, or -1 if there isn't one.
+     */
+    public int getAssumeValidHeight() {
+        return assumeValidHeight;
+    }
+
     public int getSubsidyDecreaseBlockCount() {
         return subsidyDecreaseBlockCount;
     }
@@ -293,6 +327,118 @@ public abstract class NetworkParameters implements Serializable {
         return proofOfWorkLimit;
     }
 
+    /**
+     * Returns the hash of the given header that must be no higher than its difficulty target. For Bitcoin this is the
+     * block hash itself, but a network can override this to use another function, such as scrypt, while blocks are
+     * still identified by their usual hash.
+     */
+    public Sha256Hash getProofOfWorkHash(Block header) {
+        return header.getHash();
+    }
+
+    /**
+     * Returns true if {@link #getProofOfWorkHash(Block)} is slow enough that headers are worth checking on several
+     * threads before they are connected, see {@link ProofOfWorkVerifier}.
+     */
+    public boolean isProofOfWorkExpensive() {
+        return false;
+    }
+
+    /**
+     * Throws if the difficulty target of nextBlock is not the one the chain ending at storedPrev calls for. By default
+     * these are Bitcoin's rules: the target changes every {@link #getInterval()} blocks, by how far the time taken
+     * for the last interval was from {@link #getTargetTimespan()}, and not by more than a factor of four. Networks
+     * with a different retarget algorithm override this. Earlier headers are looked up in blocks, which is usually
+     * the chain's {@link com.google.bitcoin.store.BlockStore}.
+     */
+    public void checkDifficultyTransitions(StoredBlock storedPrev, Block nextBlock, BlockLookup blocks)
+            throws VerificationException, BlockStoreException {
+        Block prev = storedPrev.getHeader();
+
+        // Is this supposed to be a difficulty transition point?
+        if ((storedPrev.getHeight() + 1) % getInterval() != 0) {
+            if (nextBlock.getTimeSeconds() > minDifficultyBlocksAfter) {
+                checkMinDifficultyTransition(storedPrev, nextBlock, blocks);
+                return;
+            }
+
+            // No ... so check the difficulty didn't actually change.
+            if (nextBlock.getDifficultyTarget() != prev.getDifficultyTarget())
+                throw new VerificationException("Unexpected change in difficulty at height " + storedPrev.getHeight() +
+                        ": " + Long.toHexString(nextBlock.getDifficultyTarget()) + " vs " +
+                        Long.toHexString(prev.getDifficultyTarget()));
+            return;
+        }
+
+        // We need to find a block far back in the chain. The store can usually jump straight to it, but the first
+        // time on a store that has just been opened it will walk back the whole interval.
+        long now = System.currentTimeMillis();
+        StoredBlock cursor = blocks.getAncestor(storedPrev, storedPrev.getHeight() - (getInterval() - 1));
+        if (cursor == null) {
+            // This should never happen. If it does, it means we are following an incorrect or busted chain.
+            throw new VerificationException(
+                    "Difficulty transition point but we did not find a way back to the genesis block.");
+        }
+        long elapsed = System.currentTimeMillis() - now;
+        if (elapsed > 50)
+            log.info("Difficulty transition traversal took {}msec", elapsed);
+
+        Block blockIntervalAgo = cursor.getHeader();
+        int timespan = (int) (prev.getTimeSeconds() - blockIntervalAgo.getTimeSeconds());
+        // Limit the adjustment step.
+        final int targetTimespan = getTargetTimespan();
+        if (timespan < targetTimespan / 4)
+            timespan = targetTimespan / 4;
+        if (timespan > targetTimespan * 4)
+            timespan = targetTimespan * 4;
+
+        BigInteger newDifficulty = Utils.decodeCompactBits(prev.getDifficultyTarget());
+        newDifficulty = newDifficulty.multiply(BigInteger.valueOf(timespan));
+        newDifficulty = newDifficulty.divide(BigInteger.valueOf(targetTimespan));
+
+        if (newDifficulty.compareTo(getProofOfWorkLimit()) > 0) {
+            log.info("Difficulty hit proof of work limit: {}", newDifficulty.toString(16));
+            newDifficulty = getProofOfWorkLimit();
+        }
+
+        int accuracyBytes = (int) (nextBlock.getDifficultyTarget() >>> 24) - 3;
+        BigInteger receivedDifficulty = nextBlock.getDifficultyTargetAsInteger();
+
+        // The calculated difficulty is to a higher precision than received, so reduce here.
+        BigInteger mask = BigInteger.valueOf(0xFFFFFFL).shiftLeft(accuracyBytes * 8);
+        newDifficulty = newDifficulty.and(mask);
+
+        if (newDifficulty.compareTo(receivedDifficulty) != 0)
+            throw new VerificationException("Network provided difficulty bits do not match what was calculated: " +
+                    receivedDifficulty.toString(16) + " vs " + newDifficulty.toString(16));
+    }
+
+    private void checkMinDifficultyTransition(StoredBlock storedPrev, Block next, BlockLookup blocks)
+            throws VerificationException, BlockStoreException {
+        Block prev = storedPrev.getHeader();
+        // After 15th February 2012 the rules on the testnet change to avoid people running up the difficulty
+        // and then leaving, making it too hard to mine a block. On non-difficulty transition points, easy
+        // blocks are allowed if there has been a span of 20 minutes without one.
+        final long timeDelta = next.getTimeSeconds() - prev.getTimeSeconds();
+        // There is an integer underflow bug in bitcoin-qt that means mindiff blocks are accepted when time
+        // goes backwards.
+        if (timeDelta >= 0 && timeDelta <= TARGET_SPACING * 2) {
+            // Walk backwards until we find a block that doesn't have the easiest proof of work, then check
+            // that difficulty is equal to that one.
+            StoredBlock cursor = storedPrev;
+            while (!cursor.getHeader().equals(getGenesisBlock()) &&
+                   cursor.getHeight() % getInterval() != 0 &&
+                   cursor.getHeader().getDifficultyTargetAsInteger().equals(getProofOfWorkLimit()))
+                cursor = cursor.getPrev(blocks);
+            BigInteger cursorDifficulty = cursor.getHeader().getDifficultyTargetAsInteger();
+            BigInteger newDifficulty = next.getDifficultyTargetAsInteger();
+            if (!cursorDifficulty.equals(newDifficulty))
+                throw new VerificationException("Testnet block transition that is not allowed: " +
+                    Long.toHexString(cursor.getHeader().getDifficultyTarget()) + " vs " +
+                    Long.toHexString(next.getDifficultyTarget()));
+        }
+    }
+
     /**
      * The key used to sign {@link com.google.bitcoin.core.AlertMessage}s. You can use {@link com.google.bitcoin.core.ECKey#verify(byte[], byte[], byte[])} to verify
      * signatures using it.
@@ -0,0 +1,163 @@
+/**
+ * Copyright 2013 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.bitcoin.core;
+
+import com.google.bitcoin.core.AbstractBlockChain.OrphanBlock;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.*;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+/**
+ * <p>Holds the blocks a chain has received but can't connect yet, indexed by the hash of the block they build on, so
+ * that when a block connects the orphans waiting for it can be found straight away instead of by trying every orphan
+ * again. The pool is bounded by the approximate number of bytes the blocks take up, and once it is over the limit the
+ * oldest orphans are dropped. They can be downloaded again if they turn out to be needed.</p>
+ *
+ * <p>Not thread safe, {@link AbstractBlockChain} only uses it whilst holding its lock.</p>
+ */
+class OrphanBlockPool {
+    private static final Logger log = LoggerFactory.getLogger(OrphanBlockPool.class);
+
+    /** The default limit on the size of the blocks held, in bytes. */
+    public static final long DEFAULT_MAX_BYTES = 32 * 1024 * 1024;
+
+    // An orphan with the hashes and size it had when it was added. Removing it takes out exactly what adding it put in,
+    // even if the block has been parsed or changed since.
+    private static class Entry {
+        final OrphanBlock orphan;
+        final Sha256Hash hash;
+        final Sha256Hash prev;
+        final long size;
+
+        Entry(OrphanBlock orphan) {
+            this.orphan = orphan;
+            this.hash = orphan.block.getHash();
+            this.prev = orphan.block.getPrevBlockHash();
+            this.size = sizeOf(orphan);
+        }
+    }
+
+    // In the order they arrived, so the oldest are evicted first.
+    private final LinkedHashMap<Sha256Hash, Entry> blocks = new LinkedHashMap<Sha256Hash, Entry>();
+    private final HashMap<Sha256Hash, List<Entry>> blocksByPrev = new HashMap<Sha256Hash, List<Entry>>();
+    private long maxBytes;
+    private long bytes;
+    private long evicted;
+
+    OrphanBlockPool(long maxBytes) {
+        setMaxBytes(maxBytes);
+    }
+
+    void setMaxBytes(long maxBytes) {
+        checkArgument(maxBytes > 0);
+        this.maxBytes = maxBytes;
+        evict(null);
+    }
+
+    long getMaxBytes() {
+        return maxBytes;
+    }
+
+    boolean contains(Sha256Hash hash) {
+        return blocks.containsKey(hash);
+    }
+
+    OrphanBlock get(Sha256Hash hash) {
+        Entry entry = blocks.get(hash);
+        return entry == null ? null : entry.orphan;
+    }
+
+    /** Adds an orphan, then evicts the oldest ones other than it until the pool is within its limit. */
+    void add(OrphanBlock orphan) {
+        Entry entry = new Entry(orphan);
+        if (blocks.containsKey(entry.hash))
+            return;
+        blocks.put(entry.hash, entry);
+        List<Entry> siblings = blocksByPrev.get(entry.prev);
+        if (siblings == null) {
+            siblings = new ArrayList<Entry>(1);
+            blocksByPrev.put(entry.prev, siblings);
+        }
+        siblings.add(entry);
+        bytes += entry.size;
+        evict(entry.hash);
+    }
+
+    /** Removes and returns the orphans that build on the given block, in the order they arrived. */
+    List<OrphanBlock> removeChildren(Sha256Hash prevHash) {
+        List<Entry> children = blocksByPrev.remove(prevHash);
+        if (children == null)
+            return Collections.emptyList();
+        List<OrphanBlock> result = new ArrayList<OrphanBlock>(children.size());
+        for (Entry child : children) {
+            blocks.remove(child.hash);
+            bytes -= child.size;
+            result.add(child.orphan);
+        }
+        return result;
+    }
+
+    private void remove(Entry entry) {
+        blocks.remove(entry.hash);
+        List<Entry> siblings = blocksByPrev.get(entry.prev);
+        siblings.remove(entry);
+        if (siblings.isEmpty())
+            blocksByPrev.remove(entry.prev);
+        bytes -= entry.size;
+    }
+
+    private void evict(Sha256Hash keep) {
+        Iterator<Entry> it = blocks.values().iterator();
+        while (bytes > maxBytes && it.hasNext()) {
+            Entry oldest = it.next();
+            if (oldest.hash.equals(keep))
+                continue;
+            log.info("Orphan blocks use {} bytes, dropping {}", bytes, oldest.hash);
+            remove(oldest);
+            evicted++;
+            it = blocks.values().iterator();
+        }
+    }
+
+    // Roughly how much memory the orphan takes up, by its serialized size.
+    private static long sizeOf(OrphanBlock orphan) {
+        if (orphan.block.transactions != null)
+            return orphan.block.getMessageSize();
+        long size = Block.HEADER_SIZE + orphan.filteredTxHashes.size() * 32;
+        for (Transaction tx : orphan.filteredTxn)
+            size += tx.getMessageSize();
+        return size;
+    }
+
+    /** Returns how many orphans are held. */
+    int size() {
+        return blocks.size();
+    }
+
+    /** Returns roughly how many bytes the orphans held take up. */
+    long getBytes() {
+        return bytes;
+    }
+
+    /** Returns how many orphans have been dropped to keep within the limit. */
+    long getEvictedCount() {
+        return evicted;
+    }
+}
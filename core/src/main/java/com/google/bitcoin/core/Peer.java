@@ -16,7 +16,6 @@
 
 package com.google.bitcoin.core;
 
-import com.google.bitcoin.store.BlockStore;
 import com.google.bitcoin.store.BlockStoreException;
 import com.google.bitcoin.utils.Locks;
 import com.google.common.base.Objects;
@@ -104,6 +103,9 @@ public class Peer {
     // It is important to avoid a nasty edge case where we can end up with parallel chain downloads proceeding
     // simultaneously if we were to receive a newly solved block whilst parts of the chain are streaming to us.
     private final HashSet<Sha256Hash> pendingBlockDownloads = new HashSet<Sha256Hash>();
+    // Set by PeerGroup when the chain is downloaded headers first. Headers then go to it instead of the chain, and it
+    // asks this peer for block bodies whether or not it is the download peer.
+    private volatile HeadersFirstDownload vHeadersFirst;
     // The lowest version number we're willing to accept. Lower than this will result in an immediate disconnect.
     private volatile int vMinProtocolVersion = Pong.MIN_PROTOCOL_VERSION;
     // When an API user explicitly requests a block or transaction from a peer, the InventoryItem is put here
@@ -386,6 +388,12 @@ public class Peer {
         boolean downloadBlockBodies;
         long fastCatchupTimeSecs;
 
+        HeadersFirstDownload headersFirst = vHeadersFirst;
+        if (headersFirst != null) {
+            processHeadersFirst(headersFirst, m);
+            return;
+        }
+
         lock.lock();
         fastCatchupTimeSecs = this.fastCatchupTimeSecs;
         downloadBlockBodies = this.downloadBlockBodies;
@@ -393,6 +401,12 @@ public class Peer {
 
         try {
             checkState(!downloadBlockBodies, toString());
+            // Check the headers we'll be adding all at once, which can use several threads if proof of work is slow.
+            int beforeCatchup = 0;
+            while (beforeCatchup < m.getBlockHeaders().size() &&
+                    m.getBlockHeaders().get(beforeCatchup).getTimeSeconds() < fastCatchupTimeSecs)
+                beforeCatchup++;
+            blockChain.getProofOfWorkVerifier().verifyHeaders(m.getBlockHeaders().subList(0, beforeCatchup));
             for (int i = 0; i < m.getBlockHeaders().size(); i++) {
                 Block header = m.getBlockHeaders().get(i);
                 if (header.getTimeSeconds() < fastCatchupTimeSecs) {
@@ -432,6 +446,24 @@ public class Peer {
         }
     }
 
+    private void processHeadersFirst(HeadersFirstDownload headersFirst, HeadersMessage m) throws IOException,
+            ProtocolException {
+        if (!vDownloadData) {
+            log.info("Lost download peer status, throwing away downloaded headers.");
+            return;
+        }
+        // The request has been answered, so a new one with the same locator isn't a duplicate.
+        lastGetBlocksBegin = null;
+        try {
+            if (headersFirst.addHeaders(this, m.getBlockHeaders()))
+                blockChainDownload(Sha256Hash.ZERO_HASH);
+        } catch (VerificationException e) {
+            log.warn("Block header verification failed", e);
+        } catch (BlockStoreException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
     private void processGetData(GetDataMessage getdata) throws IOException {
         log.info("{}: Received getdata message: {}", vAddress, getdata.toString());
         ArrayList<Message> items = new ArrayList<Message>();
@@ -681,6 +713,9 @@ public class Peer {
         }
         // Was this block requested by getBlock()?
         if (maybeHandleRequestedData(m)) return;
+        // Or as part of a headers first download, possibly from a peer other than the download peer?
+        HeadersFirstDownload headersFirst = vHeadersFirst;
+        if (headersFirst != null && headersFirst.receiveBlock(this, m)) return;
         // Did we lose download peer status after requesting block data?
         if (!vDownloadData) {
             log.debug("{}: Received block we did not ask for: {}", vAddress, m.getHashAsString());
@@ -730,6 +765,8 @@ public class Peer {
         if (log.isDebugEnabled()) {
             log.debug("{}: Received broadcast filtered block {}", vAddress, m.getHash().toString());
         }
+        HeadersFirstDownload headersFirst = vHeadersFirst;
+        if (headersFirst != null && headersFirst.receiveBlock(this, m)) return;
         if (!vDownloadData) {
             log.debug("{}: Received block we did not ask for: {}", vAddress, m.getHash().toString());
             return;
@@ -800,7 +837,7 @@ public class Peer {
         return found;
     }
 
-    private void invokeOnBlocksDownloaded(final Block m) {
+    void invokeOnBlocksDownloaded(final Block m) {
         // It is possible for the peer block height difference to be negative when blocks have been solved and broadcast
         // since the time we first connected to the peer. However, it's weird and unexpected to receive a callback
         // with negative "blocks left" in this case, so we clamp to zero so the API user doesn't have to think about it.
@@ -880,7 +917,10 @@ public class Peer {
 
         lock.lock();
         try {
-            if (blocks.size() > 0 && downloadData && blockChain != null) {
+            if (blocks.size() > 0 && downloadData && vHeadersFirst != null) {
+                // Fetch the headers of the new blocks, the bodies are requested once we have those.
+                blockChainDownload(Sha256Hash.ZERO_HASH);
+            } else if (blocks.size() > 0 && downloadData && blockChain != null) {
                 // Ideally, we'd only ask for the data here if we actually needed it. However that can imply a lot of
                 // disk IO to figure out what we've got. Normally peers will not send us inv for things we already have
                 // so we just re-request it here, and if we get duplicates the block chain / wallet will filter them out.
@@ -1064,16 +1104,6 @@ public class Peer {
 
         lock.lock();
         try {
-            // TODO: Block locators should be abstracted out rather than special cased here.
-            List<Sha256Hash> blockLocator = new ArrayList<Sha256Hash>(51);
-            // For now we don't do the exponential thinning as suggested here:
-            //
-            //   https://en.bitcoin.it/wiki/Protocol_specification#getblocks
-            //
-            // This is because it requires scanning all the block chain headers, which is very slow. Instead we add the top
-            // 50 block headers. If there is a re-org deeper than that, we'll end up downloading the entire chain. We
-            // must always put the genesis block as the first entry.
-            BlockStore store = blockChain.getBlockStore();
             StoredBlock chainHead = blockChain.getChainHead();
             Sha256Hash chainHeadHash = chainHead.getHeader().getHash();
             // Did we already make this request? If so, don't do it again.
@@ -1083,27 +1113,30 @@ public class Peer {
             }
             log.debug("{}: blockChainDownload({}) current head = {}", new Object[]{toString(),
                     toHash.toString(), chainHead.getHeader().getHashAsString()});
-            StoredBlock cursor = chainHead;
-            for (int i = 100; cursor != null && i > 0; i--) {
-                blockLocator.add(cursor.getHeader().getHash());
-                try {
-                    cursor = cursor.getPrev(store);
-                } catch (BlockStoreException e) {
-                    log.error("Failed to walk the block chain whilst constructing a locator");
-                    throw new RuntimeException(e);
-                }
+            List<Sha256Hash> blockLocator;
+            HeadersFirstDownload headersFirst = vHeadersFirst;
+            try {
+                // When downloading headers first, carry on from the last header we have rather than the chain head.
+                if (headersFirst != null)
+                    blockLocator = headersFirst.getBlockLocator();
+                else
+                    blockLocator = blockChain.getBlockLocator(chainHead);
+            } catch (BlockStoreException e) {
+                log.error("Failed to walk the block chain whilst constructing a locator");
+                throw new RuntimeException(e);
             }
-            // Only add the locator if we didn't already do so. If the chain is < 50 blocks we already reached it.
-            if (cursor != null) {
-                blockLocator.add(params.getGenesisBlock().getHash());
+            if (headersFirst != null && Objects.equal(lastGetBlocksBegin, blockLocator.get(0)) &&
+                    Objects.equal(lastGetBlocksEnd, toHash)) {
+                log.info("blockChainDownload({}): ignoring duplicated request", toHash.toString());
+                return;
             }
 
             // Record that we requested this range of blocks so we can filter out duplicate requests in the event of a
             // block being solved during chain download.
-            lastGetBlocksBegin = chainHeadHash;
+            lastGetBlocksBegin = headersFirst != null ? blockLocator.get(0) : chainHeadHash;
             lastGetBlocksEnd = toHash;
 
-            if (downloadBlockBodies) {
+            if (downloadBlockBodies && headersFirst == null) {
                 GetBlocksMessage message = new GetBlocksMessage(params, blockLocator, toHash);
                 sendMessage(message);
             } else {
@@ -1116,6 +1149,20 @@ public class Peer {
         }
     }
 
+    // Asks for more headers once the ones already queued by a headers first download have been mostly connected.
+    void continueHeadersFirstDownload() {
+        try {
+            blockChainDownload(Sha256Hash.ZERO_HASH);
+        } catch (IOException e) {
+            log.warn("{}: Failed to request more headers", vAddress, e);
+        }
+    }
+
+    /** Used by {@link PeerGroup} to switch this peer to downloading headers first, or back if null. */
+    void setHeadersFirstDownload(HeadersFirstDownload headersFirst) {
+        this.vHeadersFirst = headersFirst;
+    }
+
     /**
      * Starts an asynchronous download of the block chain. The chain download is deemed to be complete once we've
      * downloaded the same number of blocks that the peer advertised having in its version handshake message.
@@ -109,6 +109,10 @@ public class PeerGroup extends AbstractIdleService {
     private final NetworkParameters params;
     private final AbstractBlockChain chain;
     private long fastCatchupTimeSecs;
+    // Set when the chain is downloaded headers first, with block bodies fetched from all peers.
+    private volatile HeadersFirstDownload headersFirst;
+    // How often to check whether a headers first download is stuck waiting for a peer.
+    private static final long HEADERS_FIRST_STALL_CHECK_MSEC = 5000;
     private final CopyOnWriteArrayList<Wallet> wallets;
 
     // This event listener is added to every peer. It's here so when we announce transactions via an "inv", every
@@ -549,6 +553,14 @@ public class PeerGroup extends AbstractIdleService {
     protected void startUp() throws Exception {
         // This is run in a background thread by the AbstractIdleService implementation.
         pingTimer = new Timer("Peer pinging thread", true);
+        pingTimer.schedule(new TimerTask() {
+            @Override
+            public void run() {
+                HeadersFirstDownload download = headersFirst;
+                if (download != null)
+                    download.retryStalledRequests();
+            }
+        }, HEADERS_FIRST_STALL_CHECK_MSEC, HEADERS_FIRST_STALL_CHECK_MSEC);
         // Bring up the requested number of connections. If a connect attempt fails,
         // new peers will be tried until there is a success, so just calling connectToAnyPeer for the wanted number
         // of peers is sufficient.
@@ -756,6 +768,42 @@ public class PeerGroup extends AbstractIdleService {
         }
     }
 
+    /**
+     * <p>If set to true, the block chain is downloaded headers first. The download peer is asked only for headers,
+     * which are checked and queued, and then the blocks for them are fetched from all connected peers at once and
+     * connected to the chain in order. This makes download speed grow with the number of peers rather than depend on
+     * the download peer alone. Headers from before the fast catchup time are connected without fetching the blocks,
+     * as usual.</p>
+     *
+     * <p>Call this before starting block chain download. Defaults to false.</p>
+     */
+    public void setHeadersFirstDownload(boolean enabled) {
+        lock.lock();
+        try {
+            checkState(chain != null, "Headers first download needs a block chain");
+            if (enabled == (headersFirst != null))
+                return;
+            HeadersFirstDownload download = null;
+            if (enabled) {
+                download = new HeadersFirstDownload(params, chain);
+                download.setDownloadParameters(fastCatchupTimeSecs, bloomFilter != null);
+            }
+            headersFirst = download;
+            for (Peer peer : peers) {
+                peer.setHeadersFirstDownload(download);
+                if (download != null)
+                    download.addPeer(peer);
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** Returns whether the block chain is downloaded headers first, see {@link #setHeadersFirstDownload(boolean)}. */
+    public boolean isHeadersFirstDownload() {
+        return headersFirst != null;
+    }
+
     /**
      * Download the blockchain from peers. Convenience that uses a {@link DownloadListener} for you.<p>
      * 
@@ -791,6 +839,11 @@ public class PeerGroup extends AbstractIdleService {
             } // That was quick...already disconnected
             // Link the peer to the memory pool so broadcast transactions have their confidence levels updated.
             peer.setDownloadData(false);
+            // Blocks are fetched from every peer when downloading headers first.
+            if (headersFirst != null) {
+                peer.setHeadersFirstDownload(headersFirst);
+                headersFirst.addPeer(peer);
+            }
             // TODO: The peer should calculate the fast catchup time from the added wallets here.
             for (Wallet wallet : wallets)
                 peer.addWallet(wallet);
@@ -917,6 +970,8 @@ public class PeerGroup extends AbstractIdleService {
                 downloadPeer.setDownloadData(true);
                 downloadPeer.setDownloadParameters(fastCatchupTimeSecs, bloomFilter != null);
             }
+            if (headersFirst != null)
+                headersFirst.setDownloadParameters(fastCatchupTimeSecs, bloomFilter != null);
         } finally {
             lock.unlock();
         }
@@ -945,6 +1000,8 @@ public class PeerGroup extends AbstractIdleService {
             if (downloadPeer != null) {
                 downloadPeer.setDownloadParameters(secondsSinceEpoch, bloomFilter != null);
             }
+            if (headersFirst != null)
+                headersFirst.setDownloadParameters(secondsSinceEpoch, bloomFilter != null);
         } finally {
             lock.unlock();
         }
@@ -981,6 +1038,9 @@ public class PeerGroup extends AbstractIdleService {
             pendingPeers.remove(peer);
             peers.remove(peer);
             log.info("{}: Peer died", peer.getAddress());
+            // Hand any blocks it was fetching to the others.
+            if (headersFirst != null)
+                headersFirst.removePeer(peer);
             if (peer == downloadPeer) {
                 log.info("Download peer died. Picking a new one.");
                 setDownloadPeer(null);
@@ -0,0 +1,127 @@
+/**
+ * Copyright 2013 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.bitcoin.core;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
+
+/**
+ * <p>Checks the proof of work and timestamps of a run of headers before they are connected to a chain, which has to
+ * happen one block at a time. When the network's proof of work function is expensive, as
+ * {@link NetworkParameters#isProofOfWorkExpensive()} says it is for scrypt and the like, the headers are split across
+ * a pool of threads. Otherwise they are checked on the calling thread, since a double SHA-256 is cheaper than handing
+ * it to another thread.</p>
+ *
+ * <p>A header that passes remembers that it did, so connecting it afterwards doesn't repeat the work. Any
+ * {@link ExecutorService} can be plugged in; by default a fixed pool of daemon threads, one per processor, is created
+ * the first time it is needed.</p>
+ */
+public class ProofOfWorkVerifier {
+    // Fewer headers than this per thread isn't worth the hand off.
+    private static final int MIN_HEADERS_PER_TASK = 16;
+
+    private final NetworkParameters params;
+    private final int threads;
+    private ExecutorService executor;
+
+    /** Creates a verifier with one daemon thread per available processor. */
+    public ProofOfWorkVerifier(NetworkParameters params) {
+        this(params, Runtime.getRuntime().availableProcessors());
+    }
+
+    /** Creates a verifier with the given number of daemon threads. */
+    public ProofOfWorkVerifier(NetworkParameters params, int threads) {
+        checkArgument(threads > 0);
+        this.params = checkNotNull(params);
+        this.threads = threads;
+    }
+
+    /** Creates a verifier that runs its work on the given executor. */
+    public ProofOfWorkVerifier(NetworkParameters params, ExecutorService executor) {
+        this.params = checkNotNull(params);
+        this.executor = checkNotNull(executor);
+        this.threads = Runtime.getRuntime().availableProcessors();
+    }
+
+    private synchronized ExecutorService getExecutor() {
+        if (executor == null) {
+            executor = Executors.newFixedThreadPool(threads, new ThreadFactory() {
+                private final AtomicInteger threadNumber = new AtomicInteger(1);
+
+                public Thread newThread(Runnable r) {
+                    Thread t = new Thread(r, "ProofOfWorkVerifier-thread-" + threadNumber.getAndIncrement());
+                    t.setDaemon(true);
+                    return t;
+                }
+            });
+        }
+        return executor;
+    }
+
+    /**
+     * Checks each header with {@link Block#verifyHeader()}. If any of them fail, throws the exception for the first
+     * one in the list that did. Headers must not be modified by other threads until this returns.
+     */
+    public void verifyHeaders(List<Block> headers) throws VerificationException {
+        int tasks = Math.min(threads, headers.size() / MIN_HEADERS_PER_TASK);
+        if (!params.isProofOfWorkExpensive() || tasks < 2) {
+            for (Block header : headers)
+                header.verifyHeader();
+            return;
+        }
+        // Contiguous slices, so the first failure found in slice order is the first in the list.
+        List<Future<Void>> futures = new ArrayList<Future<Void>>(tasks);
+        int sliceSize = (headers.size() + tasks - 1) / tasks;
+        for (int start = 0; start < headers.size(); start += sliceSize) {
+            final List<Block> slice = headers.subList(start, Math.min(start + sliceSize, headers.size()));
+            futures.add(getExecutor().submit(new Callable<Void>() {
+                public Void call() throws VerificationException {
+                    for (Block header : slice)
+                        header.verifyHeader();
+                    return null;
+                }
+            }));
+        }
+        try {
+            for (Future<Void> future : futures) {
+                try {
+                    future.get();
+                } catch (ExecutionException e) {
+                    if (e.getCause() instanceof VerificationException)
+                        throw (VerificationException) e.getCause();
+                    throw new RuntimeException(e.getCause());
+                }
+            }
+        } catch (InterruptedException e) {
+            throw new RuntimeException(e);
+        } finally {
+            for (Future<Void> future : futures)
+                future.cancel(true);
+        }
+    }
+
+    /** Stops the threads, if any were started. */
+    public synchronized void shutdown() {
+        if (executor != null)
+            executor.shutdownNow();
+    }
+}
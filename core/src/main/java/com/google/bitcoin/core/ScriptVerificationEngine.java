@@ -0,0 +1,353 @@
+/**
+ * Copyright 2013 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.bitcoin.core;
+
+import com.google.bitcoin.script.Script;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
+import static com.google.common.base.Preconditions.checkState;
+
+/**
+ * <p>Runs script verification for transaction inputs on a long lived pool of threads. Work is split per input rather
+ * than per transaction, so a single transaction with many inputs is spread over every core.</p>
+ *
+ * <p>Inputs are grouped into a {@link Batch}, normally one per block. When an input fails to verify the rest of its
+ * batch is skipped and {@link Batch#await()} throws, but the threads themselves are left alone and carry straight on
+ * with the next batch. Any {@link ExecutorService} can be plugged in; by default a fixed pool of daemon threads, one
+ * per processor, is used.</p>
+ *
+ * <p>If {@link #setDeferSignatures(boolean)} is turned on, the signatures checked by OP_CHECKSIG are not verified as
+ * each input's script runs. Instead they are collected into an {@link ECKey.BatchVerifier} for the whole batch and
+ * verified together in {@link Batch#await()}. That is only cheaper with {@link ECKey#setUseSecp256k1Verifier(boolean)}
+ * turned on; otherwise each signature is still checked on its own, just later. Only the inputs with a bad signature,
+ * or whose script failed, are then run again with every signature checked on the spot, so the outcome is always the
+ * same.</p>
+ *
+ * <p>Inputs of the same transaction may be checked at the same time on different threads. This is safe because
+ * script execution only touches the transaction through
+ * {@link Transaction#hashTransactionForSignature(int, byte[], byte)}, which doesn't modify it, and the scriptSigs are
+ * read before the work is handed out.</p>
+ */
+public class ScriptVerificationEngine {
+    private static final Logger log = LoggerFactory.getLogger(ScriptVerificationEngine.class);
+
+    private final ExecutorService executor;
+
+    private final AtomicInteger queueDepth = new AtomicInteger();
+    private final AtomicLong inputsVerified = new AtomicLong();
+    private final AtomicLong batchesCompleted = new AtomicLong();
+    private final AtomicLong batchesFailed = new AtomicLong();
+    // Wall clock time spent between the start of a batch and the end of its await(), summed over all batches.
+    private final AtomicLong batchNanos = new AtomicLong();
+    private final AtomicLong signaturesDeferred = new AtomicLong();
+    private volatile boolean deferSignatures;
+
+    /** Creates an engine with one daemon thread per available processor. */
+    public ScriptVerificationEngine() {
+        this(Runtime.getRuntime().availableProcessors());
+    }
+
+    /** Creates an engine with the given number of daemon threads. */
+    public ScriptVerificationEngine(int threads) {
+        checkArgument(threads > 0);
+        this.executor = Executors.newFixedThreadPool(threads, new ThreadFactory() {
+            private final AtomicInteger threadNumber = new AtomicInteger(1);
+
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, "ScriptVerificationEngine-thread-" + threadNumber.getAndIncrement());
+                t.setDaemon(true);
+                return t;
+            }
+        });
+    }
+
+    /** Creates an engine that runs its work on the given executor. */
+    public ScriptVerificationEngine(ExecutorService executor) {
+        this.executor = checkNotNull(executor);
+    }
+
+    /** Starts a new, empty batch of inputs to verify. */
+    public Batch newBatch() {
+        return new Batch();
+    }
+
+    /**
+     * Sets whether batches started from now on collect the signatures checked by OP_CHECKSIG and verify them together
+     * at the end, rather than one at a time as each script runs. Off by default. The signatures are checked with the
+     * same backend as {@link ECKey#verify(byte[], byte[], byte[])}, so this is only faster when
+     * {@link ECKey#setUseSecp256k1Verifier(boolean)} is on.
+     */
+    public void setDeferSignatures(boolean deferSignatures) {
+        this.deferSignatures = deferSignatures;
+    }
+
+    /** Returns whether new batches defer signature checks until {@link Batch#await()}. */
+    public boolean getDeferSignatures() {
+        return deferSignatures;
+    }
+
+    /** Returns the number of signatures that were verified together in a batch rather than as scripts ran. */
+    public long getSignaturesDeferred() {
+        return signaturesDeferred.get();
+    }
+
+    /** Returns the number of inputs waiting for a thread. */
+    public int getQueueDepth() {
+        return queueDepth.get();
+    }
+
+    /** Returns the number of inputs verified so far, successfully or not. Skipped inputs are not counted. */
+    public long getInputsVerified() {
+        return inputsVerified.get();
+    }
+
+    /** Returns the number of batches that verified successfully. */
+    public long getBatchesCompleted() {
+        return batchesCompleted.get();
+    }
+
+    /** Returns the number of batches that contained an input that failed to verify. */
+    public long getBatchesFailed() {
+        return batchesFailed.get();
+    }
+
+    /** Returns the average number of inputs verified per second while batches were running. */
+    public double getInputsPerSecond() {
+        long nanos = batchNanos.get();
+        return nanos == 0 ? 0 : inputsVerified.get() * 1e9 / nanos;
+    }
+
+    /** Stops the threads. Batches that are still running will not complete. */
+    public void shutdown() {
+        executor.shutdownNow();
+    }
+
+    @Override
+    public String toString() {
+        return String.format("Script verification: %d inputs, %.0f inputs/sec, %d batches ok, %d failed, %d queued",
+                getInputsVerified(), getInputsPerSecond(), getBatchesCompleted(), getBatchesFailed(), getQueueDepth());
+    }
+
+    /**
+     * A group of inputs that succeed or fail together. Inputs are added from one thread, which then calls
+     * {@link #await()} exactly once.
+     */
+    public class Batch {
+        private final long startTime = System.nanoTime();
+        // Null unless signatures are being deferred.
+        private final ECKey.BatchVerifier signatures = deferSignatures ? new ECKey.BatchVerifier() : null;
+        // Guarded by this.
+        private final List<DeferredInput> deferredInputs = new ArrayList<DeferredInput>();
+        private int pending;
+        private VerificationException failure;
+        private boolean cancelled;
+        private boolean awaited;
+
+        private Batch() {
+        }
+
+        /**
+         * Queues the given input for verification.
+         * @param tx The transaction spending the output
+         * @param index The index of the input in tx
+         * @param scriptPubKey The script of the output being spent
+         * @param enforcePayToScriptHash Whether to apply the BIP 16 rules
+         */
+        public void add(final Transaction tx, final int index, final Script scriptPubKey,
+                        final boolean enforcePayToScriptHash) throws ScriptException {
+            // Read here, on the calling thread, so that a lazily parsed transaction is parsed before any verifying
+            // thread looks at it.
+            final Script scriptSig = tx.getInputs().get(index).getScriptSig();
+            synchronized (this) {
+                checkState(!awaited);
+                if (failure != null)
+                    return;
+                pending++;
+            }
+            queueDepth.incrementAndGet();
+            executor.execute(new Runnable() {
+                public void run() {
+                    queueDepth.decrementAndGet();
+                    VerificationException result = null;
+                    if (!hasFailed()) {
+                        try {
+                            if (signatures != null)
+                                verifyDeferring(tx, index, scriptSig, scriptPubKey, enforcePayToScriptHash);
+                            else
+                                scriptSig.correctlySpends(tx, index, scriptPubKey, enforcePayToScriptHash);
+                        } catch (VerificationException e) {
+                            result = e;
+                        } catch (RuntimeException e) {
+                            log.error("Script.correctlySpends threw a non-normal exception: " + e);
+                            result = new VerificationException("Bug in Script.correctlySpends, likely script " +
+                                    "malformed in some new and interesting way.", e);
+                        }
+                        inputsVerified.incrementAndGet();
+                    }
+                    done(result);
+                }
+            });
+        }
+
+        // Runs the scripts with OP_CHECKSIG signatures collected rather than checked, and remembers which ones this
+        // input needs so it can be run again properly if any of them turn out to be bad.
+        private void verifyDeferring(Transaction tx, int index, Script scriptSig, Script scriptPubKey,
+                                     boolean enforcePayToScriptHash) throws ScriptException {
+            ECKey.BatchVerifier inputSignatures = new ECKey.BatchVerifier();
+            try {
+                scriptSig.correctlySpends(tx, index, scriptPubKey, enforcePayToScriptHash, inputSignatures);
+            } catch (ScriptException e) {
+                // The script may only have failed because it expected a signature to be bad, so check properly.
+                scriptSig.correctlySpends(tx, index, scriptPubKey, enforcePayToScriptHash);
+                return;
+            }
+            if (inputSignatures.size() == 0)
+                return;
+            int first = signatures.addAll(inputSignatures);
+            synchronized (this) {
+                deferredInputs.add(new DeferredInput(tx, index, scriptSig, scriptPubKey, enforcePayToScriptHash,
+                        first, inputSignatures.size()));
+            }
+        }
+
+        // Verifies the collected signatures and, if any are bad, runs the inputs they came from again without
+        // deferring. Returns the first failure, or null.
+        private VerificationException verifyDeferredSignatures() {
+            signaturesDeferred.addAndGet(signatures.size());
+            if (signatures.verify(executor))
+                return null;
+            List<Integer> invalid = signatures.getInvalid();
+            List<DeferredInput> inputs;
+            synchronized (this) {
+                inputs = new ArrayList<DeferredInput>(deferredInputs);
+            }
+            for (DeferredInput input : inputs) {
+                if (!input.usesAnyOf(invalid))
+                    continue;
+                try {
+                    input.scriptSig.correctlySpends(input.tx, input.index, input.scriptPubKey,
+                            input.enforcePayToScriptHash);
+                } catch (VerificationException e) {
+                    return e;
+                } catch (RuntimeException e) {
+                    log.error("Script.correctlySpends threw a non-normal exception: " + e);
+                    return new VerificationException("Bug in Script.correctlySpends, likely script " +
+                            "malformed in some new and interesting way.", e);
+                }
+            }
+            return null;
+        }
+
+        private synchronized boolean hasFailed() {
+            return failure != null || cancelled;
+        }
+
+        private synchronized void done(VerificationException result) {
+            if (result != null && failure == null)
+                failure = result;
+            pending--;
+            notifyAll();
+        }
+
+        /**
+         * Waits for every input in the batch to be verified, or skipped once one has failed, and throws the first
+         * failure. No thread is still looking at the batch's transactions when this returns.
+         */
+        public void await() throws VerificationException {
+            VerificationException result;
+            synchronized (this) {
+                checkState(!awaited);
+                awaited = true;
+                try {
+                    while (pending > 0)
+                        wait();
+                } catch (InterruptedException e) {
+                    throw new RuntimeException(e);  // Shouldn't happen
+                }
+                result = failure;
+            }
+            if (result == null && signatures != null)
+                result = verifyDeferredSignatures();
+            batchNanos.addAndGet(System.nanoTime() - startTime);
+            if (result != null) {
+                batchesFailed.incrementAndGet();
+                throw result;
+            }
+            batchesCompleted.incrementAndGet();
+        }
+
+        /**
+         * Skips every input that hasn't started verifying yet and waits for the ones already running. Use this
+         * instead of {@link #await()} when giving up on a batch for some other reason. Does nothing if the batch has
+         * already been waited for.
+         */
+        public void cancel() {
+            synchronized (this) {
+                if (awaited)
+                    return;
+                awaited = true;
+                cancelled = true;
+                try {
+                    while (pending > 0)
+                        wait();
+                } catch (InterruptedException e) {
+                    throw new RuntimeException(e);  // Shouldn't happen
+                }
+            }
+            batchNanos.addAndGet(System.nanoTime() - startTime);
+        }
+    }
+
+    // An input whose OP_CHECKSIG signatures are elements first to first + count - 1 of its batch's BatchVerifier.
+    private static class DeferredInput {
+        final Transaction tx;
+        final int index;
+        final Script scriptSig, scriptPubKey;
+        final boolean enforcePayToScriptHash;
+        final int first, count;
+
+        DeferredInput(Transaction tx, int index, Script scriptSig, Script scriptPubKey, boolean enforcePayToScriptHash,
+                      int first, int count) {
+            this.tx = tx;
+            this.index = index;
+            this.scriptSig = scriptSig;
+            this.scriptPubKey = scriptPubKey;
+            this.enforcePayToScriptHash = enforcePayToScriptHash;
+            this.first = first;
+            this.count = count;
+        }
+
+        boolean usesAnyOf(List<Integer> signatureIndexes) {
+            for (int i : signatureIndexes) {
+                if (i >= first && i < first + count)
+                    return true;
+            }
+            return false;
+        }
+    }
+}
@@ -24,8 +24,6 @@ import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.Serializable;
 import java.math.BigInteger;
-import java.security.MessageDigest;
-import java.security.NoSuchAlgorithmException;
 import java.util.Arrays;
 
 import static com.google.common.base.Preconditions.checkArgument;
@@ -59,12 +57,7 @@ public class Sha256Hash implements Serializable, Comparable {
      * Calculates the (one-time) hash of contents and returns it as a new wrapped hash.
      */
     public static Sha256Hash create(byte[] contents) {
-        try {
-            MessageDigest digest = MessageDigest.getInstance("SHA-256");
-            return new Sha256Hash(digest.digest(contents));
-        } catch (NoSuchAlgorithmException e) {
-            throw new RuntimeException(e);  // Cannot happen.
-        }
+        return new Sha256Hash(Utils.singleDigest(contents, 0, contents.length));
     }
 
     /**
@@ -74,6 +67,22 @@ public class Sha256Hash implements Serializable, Comparable {
         return new Sha256Hash(Utils.doubleDigest(contents));
     }
 
+    /**
+     * Calculates the hash of the hash of the given byte range, in reverse byte order. This is how block and
+     * transaction hashes are calculated, and it is the same as
+     * <tt>new Sha256Hash(Utils.reverseBytes(Utils.doubleDigest(input, offset, length)))</tt> without the copies.
+     */
+    public static Sha256Hash createDoubleReversed(byte[] input, int offset, int length) {
+        byte[] hash = new byte[32];
+        Utils.doubleDigest(input, offset, length, hash, 0);
+        for (int i = 0; i < 16; i++) {
+            byte b = hash[i];
+            hash[i] = hash[31 - i];
+            hash[31 - i] = b;
+        }
+        return new Sha256Hash(hash);
+    }
+
     /**
      * Returns a hash of the given files contents. Reads the file fully into memory before hashing so only use with
      * small files.
@@ -0,0 +1,131 @@
+/**
+ * Copyright 2013 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.bitcoin.core;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheStats;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+/**
+ * <p>Remembers (signature hash, public key, signature) triples that have already been verified successfully, so that
+ * a signature checked when a transaction is first seen doesn't have to be checked again when it appears in a block,
+ * or when a block is connected again during a re-org. {@link com.google.bitcoin.script.Script} consults the
+ * {@link #getDefault() default cache} for every OP_CHECKSIG and OP_CHECKMULTISIG.</p>
+ *
+ * <p>Only valid signatures are cached, keyed by a SHA-256 of the triple so every entry is the same small size. Once
+ * the cache is full the least recently used entries are evicted. It is safe to use from many threads at once.</p>
+ */
+public class SignatureCache {
+    /** The default maximum number of signatures remembered. */
+    public static final int DEFAULT_MAX_SIZE = 100000;
+
+    private static volatile SignatureCache defaultCache = new SignatureCache(DEFAULT_MAX_SIZE);
+
+    private final Cache<Sha256Hash, Boolean> cache;
+
+    /** Creates a cache that remembers up to the given number of valid signatures. */
+    public SignatureCache(long maxSize) {
+        checkArgument(maxSize >= 0);
+        cache = CacheBuilder.newBuilder().maximumSize(maxSize).recordStats().build();
+    }
+
+    /** Returns the cache used by script execution, or null if signatures are always verified from scratch. */
+    public static SignatureCache getDefault() {
+        return defaultCache;
+    }
+
+    /** Replaces the cache used by script execution. Pass null to disable caching. */
+    public static void setDefault(SignatureCache cache) {
+        defaultCache = cache;
+    }
+
+    /**
+     * Verifies the given DER encoded signature (without the trailing sighash type byte) of the given signature hash
+     * against the public key, exactly as {@link ECKey#verify(byte[], byte[], byte[])} would, but returns straight
+     * away if this exact triple was verified before.
+     */
+    public boolean verify(byte[] sigHash, byte[] signature, byte[] pubKey) {
+        Sha256Hash key = keyFor(sigHash, signature, pubKey);
+        if (cache.getIfPresent(key) != null)
+            return true;
+        boolean valid = ECKey.verify(sigHash, signature, pubKey);
+        if (valid)
+            cache.put(key, Boolean.TRUE);
+        return valid;
+    }
+
+    /**
+     * Returns true if this exact triple was verified successfully before and is still remembered. Unlike
+     * {@link #verify(byte[], byte[], byte[])}, this doesn't count towards the hit and miss statistics.
+     */
+    public boolean contains(byte[] sigHash, byte[] signature, byte[] pubKey) {
+        return cache.asMap().containsKey(keyFor(sigHash, signature, pubKey));
+    }
+
+    private static Sha256Hash keyFor(byte[] sigHash, byte[] signature, byte[] pubKey) {
+        // Length prefix the signature so that moving bytes between it and the key can't produce the same triple.
+        // Script elements are at most 520 bytes, so two bytes is plenty.
+        byte[] triple = new byte[sigHash.length + 2 + signature.length + pubKey.length];
+        System.arraycopy(sigHash, 0, triple, 0, sigHash.length);
+        int offset = sigHash.length;
+        triple[offset++] = (byte) (signature.length >> 8);
+        triple[offset++] = (byte) signature.length;
+        System.arraycopy(signature, 0, triple, offset, signature.length);
+        offset += signature.length;
+        System.arraycopy(pubKey, 0, triple, offset, pubKey.length);
+        return Sha256Hash.create(triple);
+    }
+
+    /** Returns the number of signatures currently remembered. */
+    public long size() {
+        return cache.size();
+    }
+
+    /** Forgets every signature. */
+    public void clear() {
+        cache.invalidateAll();
+    }
+
+    /** Returns the number of verifications answered from the cache. */
+    public long getHitCount() {
+        return cache.stats().hitCount();
+    }
+
+    /** Returns the number of verifications that had to run the elliptic curve maths. */
+    public long getMissCount() {
+        return cache.stats().missCount();
+    }
+
+    /** Returns the fraction of verifications answered from the cache, or 1.0 if there haven't been any. */
+    public double getHitRate() {
+        return cache.stats().hitRate();
+    }
+
+    /** Returns the number of signatures that were forgotten to make room for newer ones. */
+    public long getEvictionCount() {
+        return cache.stats().evictionCount();
+    }
+
+    @Override
+    public String toString() {
+        CacheStats stats = cache.stats();
+        return String.format("Signature cache: %d entries, %d hits, %d misses, %.1f%% hit rate, %d evictions",
+                cache.size(), stats.hitCount(), stats.missCount(), stats.hitRate() * 100, stats.evictionCount());
+    }
+}
@@ -16,14 +16,14 @@
 
 package com.google.bitcoin.core;
 
+import com.google.bitcoin.store.BlockLookup;
 import com.google.bitcoin.store.BlockStore;
 import com.google.bitcoin.store.BlockStoreException;
 
 import java.io.*;
 import java.math.BigInteger;
 import java.nio.ByteBuffer;
-
-import static com.google.common.base.Preconditions.checkState;
+import java.util.Arrays;
 
 /**
  * Wraps a {@link Block} object with extra data that can be derived from the block chain but is slow or inconvenient to
@@ -44,15 +44,41 @@ public class StoredBlock implements Serializable {
     public static final int COMPACT_SERIALIZED_SIZE = Block.HEADER_SIZE + CHAIN_WORK_BYTES + 4;  // for height
 
     private Block header;
-    private BigInteger chainWork;
+    private ChainWork chainWork;
     private int height;
 
     public StoredBlock(Block header, BigInteger chainWork, int height) {
+        this(header, ChainWork.valueOf(chainWork), height);
+    }
+
+    public StoredBlock(Block header, ChainWork chainWork, int height) {
         this.header = header;
         this.chainWork = chainWork;
         this.height = height;
     }
 
+    /**
+     * Returns a stored block that only keeps the 80 bytes of the given serialized header and its hash, and makes a new
+     * header block from them each time {@link #getHeader()} is called. It takes a fraction of the memory of a parsed
+     * header, which makes it a better fit for stores that keep many blocks in memory and hand out few of them.
+     */
+    public static StoredBlock compact(NetworkParameters params, byte[] header, Sha256Hash hash, ChainWork chainWork,
+                                      int height) {
+        return new CompactStoredBlock(params, header, hash, chainWork, height);
+    }
+
+    /** The same as {@link #compact(NetworkParameters, byte[], Sha256Hash, ChainWork, int)}, hashing the header. */
+    public static StoredBlock compact(NetworkParameters params, byte[] header, ChainWork chainWork, int height) {
+        return compact(params, header, Sha256Hash.createDoubleReversed(header, 0, Block.HEADER_SIZE), chainWork,
+                height);
+    }
+
+    /** Returns a copy of this block as made by {@link #compact(NetworkParameters, byte[], ChainWork, int)}. */
+    public StoredBlock toCompact() {
+        Block block = getHeader();
+        return compact(block.params, block.unsafeBitcoinSerialize(), block.getHash(), chainWork, height);
+    }
+
     /**
      * The block header this object wraps. The referenced block object must not have any transactions in it.
      */
@@ -66,6 +92,11 @@ public class StoredBlock implements Serializable {
      * then the work represented by a block is 10.
      */
     public BigInteger getChainWork() {
+        return chainWork.toBigInteger();
+    }
+
+    /** The same as {@link #getChainWork()}, as a fixed width value that is cheaper to add to and compare. */
+    public ChainWork getFixedChainWork() {
         return chainWork;
     }
 
@@ -85,13 +116,13 @@ public class StoredBlock implements Serializable {
     public boolean equals(Object other) {
         if (!(other instanceof StoredBlock)) return false;
         StoredBlock o = (StoredBlock) other;
-        return o.header.equals(header) && o.chainWork.equals(chainWork) && o.height == height;
+        return o.getHeader().equals(getHeader()) && o.chainWork.equals(chainWork) && o.height == height;
     }
 
     @Override
     public int hashCode() {
         // A better hashCode is possible, but this works for now.
-        return header.hashCode() ^ chainWork.hashCode() ^ height;
+        return getHeader().hashCode() ^ chainWork.hashCode() ^ height;
     }
 
 
@@ -101,7 +132,7 @@ public class StoredBlock implements Serializable {
     public StoredBlock build(Block block) throws VerificationException {
         // Stored blocks track total work done in this chain, because the canonical chain is the one that represents
         // the largest amount of work done not the tallest.
-        BigInteger chainWork = this.chainWork.add(block.getWork());
+        ChainWork chainWork = this.chainWork.add(ChainWork.forDifficultyTarget(block.getDifficultyTarget()));
         int height = this.height + 1;
         return new StoredBlock(block, chainWork, height);
     }
@@ -112,19 +143,13 @@ public class StoredBlock implements Serializable {
      *
      * @return the previous block in the chain or null if it was not found in the store.
      */
-    public StoredBlock getPrev(BlockStore store) throws BlockStoreException {
+    public StoredBlock getPrev(BlockLookup store) throws BlockStoreException {
         return store.get(getHeader().getPrevBlockHash());
     }
 
     /** Serializes the stored block to a custom packed format. Used by {@link CheckpointManager}. */
     public void serializeCompact(ByteBuffer buffer) {
-        byte[] chainWorkBytes = getChainWork().toByteArray();
-        checkState(chainWorkBytes.length <= CHAIN_WORK_BYTES, "Ran out of space to store chain work!");
-        if (chainWorkBytes.length < CHAIN_WORK_BYTES) {
-            // Pad to the right size.
-            buffer.put(EMPTY_BYTES, 0, CHAIN_WORK_BYTES - chainWorkBytes.length);
-        }
-        buffer.put(chainWorkBytes);
+        chainWork.write(buffer, CHAIN_WORK_BYTES);
         buffer.putInt(getHeight());
         // Using unsafeBitcoinSerialize here can give us direct access to the same bytes we read off the wire,
         // avoiding serialization round-trips.
@@ -134,9 +159,7 @@ public class StoredBlock implements Serializable {
 
     /** De-serializes the stored block from a custom packed format. Used by {@link CheckpointManager}. */
     public static StoredBlock deserializeCompact(NetworkParameters params, ByteBuffer buffer) throws ProtocolException {
-        byte[] chainWorkBytes = new byte[StoredBlock.CHAIN_WORK_BYTES];
-        buffer.get(chainWorkBytes);
-        BigInteger chainWork = new BigInteger(1, chainWorkBytes);
+        ChainWork chainWork = ChainWork.read(buffer, CHAIN_WORK_BYTES);
         int height = buffer.getInt();  // +4 bytes
         byte[] header = new byte[Block.HEADER_SIZE + 1];    // Extra byte for the 00 transactions length.
         buffer.get(header, 0, Block.HEADER_SIZE);
@@ -148,4 +171,30 @@ public class StoredBlock implements Serializable {
         return String.format("Block %s at height %d: %s",
                 getHeader().getHashAsString(), getHeight(), getHeader().toString());
     }
+
+    private static class CompactStoredBlock extends StoredBlock {
+        private static final long serialVersionUID = 1L;
+
+        private final NetworkParameters params;
+        private final byte[] header;
+        private final Sha256Hash hash;
+
+        CompactStoredBlock(NetworkParameters params, byte[] header, Sha256Hash hash, ChainWork chainWork, int height) {
+            super(null, chainWork, height);
+            this.params = params;
+            this.header = Arrays.copyOf(header, Block.HEADER_SIZE);
+            this.hash = hash;
+        }
+
+        @Override
+        public Block getHeader() {
+            // Read field by field, so the stored bytes aren't shared with the block and the hash isn't recalculated.
+            return Block.fromHeaderBytes(params, header, hash);
+        }
+
+        @Override
+        public StoredBlock toCompact() {
+            return this;
+        }
+    }
 }
@@ -169,4 +169,36 @@ public class StoredTransactionOutput implements Serializable {
         bos.write(0xFF & (height >> 16));
         bos.write(0xFF & (height >> 24));
     }
+
+    /**
+     * Writes this output in the compact form used by the persistent block stores, leaving out the hash and index,
+     * which the stores already keep as the key. Standard scripts are reduced to the hash or key they contain, the value
+     * is written as a compressed varint and the height and coinbase flag share a single varint. Only values between
+     * zero and {@link NetworkParameters#MAX_MONEY} can be written this way, but nothing else gets past
+     * {@link Transaction#verify()}.
+     */
+    public void serializeCompact(OutputStream bos) throws IOException {
+        if (value.signum() < 0 || value.compareTo(NetworkParameters.MAX_MONEY) > 0)
+            throw new IOException("Output value out of range: " + value);
+        long amount = value.longValue();
+        // A zero code is an output that isn't a coinbase, which has no height worth keeping.
+        CompactEncoding.writeVarInt(height == NONCOINBASE_HEIGHT ? 0 : ((long) height << 1) | 1, bos);
+        CompactEncoding.writeVarInt(CompactEncoding.compressAmount(amount), bos);
+        CompactEncoding.writeScript(scriptBytes, bos);
+    }
+
+    /**
+     * Reads an output written by {@link #serializeCompact(java.io.OutputStream)}.
+     * @param hash The hash of the transaction the output belongs to
+     * @param index The index of the output in that transaction
+     */
+    public static StoredTransactionOutput deserializeCompact(Sha256Hash hash, long index, InputStream in)
+            throws IOException {
+        long code = CompactEncoding.readVarInt(in);
+        if (code < 0 || (code >>> 1) > Integer.MAX_VALUE)
+            throw new IOException("Bad height code: " + code);
+        BigInteger value = BigInteger.valueOf(CompactEncoding.decompressAmount(CompactEncoding.readVarInt(in)));
+        byte[] scriptBytes = CompactEncoding.readScript(in);
+        return new StoredTransactionOutput(hash, index, value, (int) (code >>> 1), (code & 1) != 0, scriptBytes);
+    }
 }
\ No newline at end of file
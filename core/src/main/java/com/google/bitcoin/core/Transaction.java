@@ -19,7 +19,6 @@ package com.google.bitcoin.core;
 import com.google.bitcoin.core.TransactionConfidence.ConfidenceType;
 import com.google.bitcoin.script.Script;
 import com.google.bitcoin.script.ScriptBuilder;
-import com.google.bitcoin.script.ScriptOpCodes;
 import com.google.common.base.Preconditions;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -83,6 +82,9 @@ public class Transaction extends ChildMessage implements Serializable {
 
     // This is an in memory helper only.
     private transient Sha256Hash hash;
+
+    // Serialized pieces of the transaction for calculating signature hashes, dropped whenever it changes.
+    private transient volatile TransactionSigHasher sigHasher;
     
     // Data about how confirmed this tx is. Serialized, may be null. 
     private TransactionConfidence confidence;
@@ -168,7 +170,7 @@ public class Transaction extends ChildMessage implements Serializable {
     public Sha256Hash getHash() {
         if (hash == null) {
             byte[] bits = bitcoinSerialize();
-            hash = new Sha256Hash(reverseBytes(doubleDigest(bits)));
+            hash = Sha256Hash.createDoubleReversed(bits, 0, bits.length);
         }
         return hash;
     }
@@ -420,6 +422,10 @@ public class Transaction extends ChildMessage implements Serializable {
     protected void unCache() {
         super.unCache();
         hash = null;
+        // Under the same lock getSigHasher() builds it in, so one built from the old contents can't be published after.
+        synchronized (this) {
+            sigHasher = null;
+        }
     }
 
     protected void parseLite() throws ProtocolException {
@@ -753,80 +759,91 @@ public class Transaction extends ChildMessage implements Serializable {
      * @param aesKey The AES key to use to decrypt the key before signing. Null if no decryption is required.
      */
     public synchronized void signInputs(SigHash hashType, Wallet wallet, KeyParameter aesKey) throws ScriptException {
-        // TODO: This should be a method of the TransactionInput that (possibly?) operates with a copy of this object.
         Preconditions.checkState(inputs.size() > 0);
         Preconditions.checkState(outputs.size() > 0);
 
+        // Calculate every script before setting any, so the transaction is only changed once they all succeed.
+        Script[] scriptSigs = new Script[inputs.size()];
+        for (int i = 0; i < inputs.size(); i++)
+            scriptSigs[i] = calculateInputScript(i, hashType, wallet, aesKey);
+        for (int i = 0; i < inputs.size(); i++) {
+            if (scriptSigs[i] != null)
+                inputs.get(i).setScriptSig(scriptSigs[i]);
+        }
+
+        // Every input is now complete.
+    }
+
+    /**
+     * <p>Calculates the scriptSig that signs the given input, as {@link #signInputs(SigHash, Wallet, KeyParameter)}
+     * would, but returns it rather than setting it. Returns null if the input needs no signature: it is already
+     * signed, or its connected output is unknown.</p>
+     *
+     * <p>The transaction is not modified, so the inputs of one transaction can be signed on several threads at once.
+     * Setting a scriptSig doesn't change the signature hashes of the other inputs, so the results can be set with
+     * {@link TransactionInput#setScriptSig(Script)} in any order once they are all calculated.</p>
+     *
+     * @param inputIndex The input to sign.
+     * @param hashType This should always be set to SigHash.ALL currently. Other types are unused.
+     * @param wallet  A wallet is required to fetch the keys needed for signing.
+     * @param aesKey The AES key to use to decrypt the key before signing. Null if no decryption is required.
+     */
+    public Script calculateInputScript(int inputIndex, SigHash hashType, Wallet wallet, KeyParameter aesKey)
+            throws ScriptException {
         // I don't currently have an easy way to test other modes work, as the official client does not use them.
         Preconditions.checkArgument(hashType == SigHash.ALL, "Only SIGHASH_ALL is currently supported");
 
-        // The transaction is signed with the input scripts empty except for the input we are signing. In the case
-        // where addInput has been used to set up a new transaction, they are already all empty. The input being signed
-        // has to have the connected OUTPUT program in it when the hash is calculated!
+        // The transaction is signed with the input scripts empty except for the input we are signing. The input being
+        // signed has to have the connected OUTPUT program in it when the hash is calculated!
         //
         // Note that each input may be claiming an output sent to a different key. So we have to look at the outputs
         // to figure out which key to sign with.
-
-        int[] sigHashFlags = new int[inputs.size()];
-        ECKey.ECDSASignature[] signatures = new ECKey.ECDSASignature[inputs.size()];
-        ECKey[] signingKeys = new ECKey[inputs.size()];
-        for (int i = 0; i < inputs.size(); i++) {
-            TransactionInput input = inputs.get(i);
-            // We don't have the connected output, we assume it was signed already and move on
-            if (input.getOutpoint().getConnectedOutput() == null) {
-                log.warn("Missing connected output, assuming input {} is already signed.", i);
-                continue;
-            }
-            try {
-                // We assume if its already signed, its hopefully got a SIGHASH type that will not invalidate when
-                // we sign missing pieces (to check this would require either assuming any signatures are signing
-                // standard output types or a way to get processed signatures out of script execution)
-                input.getScriptSig().correctlySpends(this, i, input.getOutpoint().getConnectedOutput().getScriptPubKey(), true);
-                log.warn("Input {} already correctly spends output, assuming SIGHASH type used will be safe and skipping signing.", i);
-                continue;
-            } catch (ScriptException e) {}
-            if (input.getScriptBytes().length != 0)
-                log.warn("Re-signing an already signed transaction! Be sure this is what you want.");
-            // Find the signing key we'll need to use.
-            ECKey key = input.getOutpoint().getConnectedKey(wallet);
-            // This assert should never fire. If it does, it means the wallet is inconsistent.
-            Preconditions.checkNotNull(key, "Transaction exists in wallet that we cannot redeem: %s",
-                                       input.getOutpoint().getHash());
-            // Keep the key around for the script creation step below.
-            signingKeys[i] = key;
-            // The anyoneCanPay feature isn't used at the moment.
-            boolean anyoneCanPay = false;
-            byte[] connectedPubKeyScript = input.getOutpoint().getConnectedPubKeyScript();
-            Sha256Hash hash = hashTransactionForSignature(i, connectedPubKeyScript, hashType, anyoneCanPay);
-
-            // Now calculate the signatures we need to prove we own this transaction and are authorized to claim the
-            // associated money.
-            signatures[i] = key.sign(hash, aesKey);
-            sigHashFlags[i] = (hashType.ordinal() + 1) | (anyoneCanPay ? SIGHASH_ANYONECANPAY_VALUE : 0);
+        TransactionInput input = getInputs().get(inputIndex);
+        // We don't have the connected output, we assume it was signed already and move on
+        if (input.getOutpoint().getConnectedOutput() == null) {
+            log.warn("Missing connected output, assuming input {} is already signed.", inputIndex);
+            return null;
         }
-
-        // Now we have calculated each signature, go through and create the scripts. Reminder: the script consists:
+        try {
+            // We assume if its already signed, its hopefully got a SIGHASH type that will not invalidate when
+            // we sign missing pieces (to check this would require either assuming any signatures are signing
+            // standard output types or a way to get processed signatures out of script execution)
+            input.getScriptSig().correctlySpends(this, inputIndex, input.getOutpoint().getConnectedOutput().getScriptPubKey(), true);
+            log.warn("Input {} already correctly spends output, assuming SIGHASH type used will be safe and skipping signing.", inputIndex);
+            return null;
+        } catch (ScriptException e) {}
+        if (input.getScriptBytes().length != 0)
+            log.warn("Re-signing an already signed transaction! Be sure this is what you want.");
+        // Find the signing key we'll need to use.
+        ECKey key = input.getOutpoint().getConnectedKey(wallet);
+        // This assert should never fire. If it does, it means the wallet is inconsistent.
+        Preconditions.checkNotNull(key, "Transaction exists in wallet that we cannot redeem: %s",
+                                   input.getOutpoint().getHash());
+        // The anyoneCanPay feature isn't used at the moment.
+        boolean anyoneCanPay = false;
+        byte[] connectedPubKeyScript = input.getOutpoint().getConnectedPubKeyScript();
+        Sha256Hash hash = hashTransactionForSignature(inputIndex, connectedPubKeyScript, hashType, anyoneCanPay);
+
+        // Now calculate the signature we need to prove we own this transaction and are authorized to claim the
+        // associated money.
+        ECKey.ECDSASignature signature = key.sign(hash, aesKey);
+        int sigHashFlags = (hashType.ordinal() + 1) | (anyoneCanPay ? SIGHASH_ANYONECANPAY_VALUE : 0);
+
+        // Reminder: the script consists:
         // 1) For pay-to-address outputs: a signature (over a hash of the simplified transaction) and the complete
         //    public key needed to sign for the connected output. The output script checks the provided pubkey hashes
         //    to the address and then checks the signature.
         // 2) For pay-to-key outputs: just a signature.
-        for (int i = 0; i < inputs.size(); i++) {
-            if (signatures[i] == null)
-                continue;
-            TransactionInput input = inputs.get(i);
-            Script scriptPubKey = input.getOutpoint().getConnectedOutput().getScriptPubKey();
-            if (scriptPubKey.isSentToAddress()) {
-                input.setScriptSig(ScriptBuilder.createInputScript(signatures[i], signingKeys[i], sigHashFlags[i]));
-            } else if (scriptPubKey.isSentToRawPubKey()) {
-                input.setScriptSig(ScriptBuilder.createInputScript(signatures[i], sigHashFlags[i]));
-            } else {
-                // Should be unreachable - if we don't recognize the type of script we're trying to sign for, we should
-                // have failed above when fetching the key to sign with.
-                throw new RuntimeException("Do not understand script type: " + scriptPubKey);
-            }
+        Script scriptPubKey = input.getOutpoint().getConnectedOutput().getScriptPubKey();
+        if (scriptPubKey.isSentToAddress()) {
+            return ScriptBuilder.createInputScript(signature, key, sigHashFlags);
+        } else if (scriptPubKey.isSentToRawPubKey()) {
+            return ScriptBuilder.createInputScript(signature, sigHashFlags);
+        } else {
+            // Should be unreachable - if we don't recognize the type of script we're trying to sign for, we should
+            // have failed above when fetching the key to sign with.
+            throw new RuntimeException("Do not understand script type: " + scriptPubKey);
         }
-
-        // Every input is now complete.
     }
 
     /**
@@ -841,8 +858,8 @@ public class Transaction extends ChildMessage implements Serializable {
      * @param type Should be SigHash.ALL
      * @param anyoneCanPay should be false.
      */
-    public synchronized Sha256Hash hashTransactionForSignature(int inputIndex, byte[] connectedScript,
-                                                               SigHash type, boolean anyoneCanPay) {
+    public Sha256Hash hashTransactionForSignature(int inputIndex, byte[] connectedScript,
+                                                  SigHash type, boolean anyoneCanPay) {
         return hashTransactionForSignature(inputIndex, connectedScript, (byte)((type.ordinal() + 1) | (anyoneCanPay ? SIGHASH_ANYONECANPAY_VALUE : 0x00)));
     }
 
@@ -858,121 +875,44 @@ public class Transaction extends ChildMessage implements Serializable {
      * @param type Should be SigHash.ALL
      * @param anyoneCanPay should be false.
      */
-    public synchronized Sha256Hash hashTransactionForSignature(int inputIndex, Script connectedScript,
-                                                               SigHash type, boolean anyoneCanPay) {
+    public Sha256Hash hashTransactionForSignature(int inputIndex, Script connectedScript,
+                                                  SigHash type, boolean anyoneCanPay) {
         return hashTransactionForSignature(inputIndex, connectedScript.getProgram(),
                 (byte)((type.ordinal() + 1) | (anyoneCanPay ? SIGHASH_ANYONECANPAY_VALUE : 0x00)));
     }
 
     /**
-     * This is required for signatures which use a sigHashType which cannot be represented using SigHash and anyoneCanPay
-     * See transaction c99c49da4c38af669dea436d3e73780dfdb6c1ecf9958baa52960e8baee30e73, which has sigHashType 0
+     * <p>This is required for signatures which use a sigHashType which cannot be represented using SigHash and
+     * anyoneCanPay. See transaction c99c49da4c38af669dea436d3e73780dfdb6c1ecf9958baa52960e8baee30e73, which has
+     * sigHashType 0.</p>
+     *
+     * <p>The transaction is not modified, so the inputs of one transaction can be hashed on several threads at once.
+     * The pieces of the simplified transaction that are the same for every input are serialized on the first call and
+     * kept until the transaction is next changed.</p>
      */
-    public synchronized Sha256Hash hashTransactionForSignature(int inputIndex, byte[] connectedScript,
-            byte sigHashType) {
+    public Sha256Hash hashTransactionForSignature(int inputIndex, byte[] connectedScript, byte sigHashType) {
         // TODO: This whole separate method should be un-necessary if we fix how we deserialize sighash flags.
 
         // The SIGHASH flags are used in the design of contracts, please see this page for a further understanding of
-        // the purposes of the code in this method:
+        // the purposes of the code in TransactionSigHasher:
         //
         //   https://en.bitcoin.it/wiki/Contracts
-
-        try {
-            // Store all the input scripts and clear them in preparation for signing. If we're signing a fresh
-            // transaction that step isn't very helpful, but it doesn't add much cost relative to the actual
-            // EC math so we'll do it anyway.
-            //
-            // Also store the input sequence numbers in case we are clearing them with SigHash.NONE/SINGLE
-            byte[][] inputScripts = new byte[inputs.size()][];
-            long[] inputSequenceNumbers = new long[inputs.size()];
-            for (int i = 0; i < inputs.size(); i++) {
-                inputScripts[i] = inputs.get(i).getScriptBytes();
-                inputSequenceNumbers[i] = inputs.get(i).getSequenceNumber();
-                inputs.get(i).setScriptBytes(TransactionInput.EMPTY_ARRAY);
-            }
-
-            // This step has no purpose beyond being synchronized with the reference clients bugs. OP_CODESEPARATOR
-            // is a legacy holdover from a previous, broken design of executing scripts that shipped in Bitcoin 0.1.
-            // It was seriously flawed and would have let anyone take anyone elses money. Later versions switched to
-            // the design we use today where scripts are executed independently but share a stack. This left the
-            // OP_CODESEPARATOR instruction having no purpose as it was only meant to be used internally, not actually
-            // ever put into scripts. Deleting OP_CODESEPARATOR is a step that should never be required but if we don't
-            // do it, we could split off the main chain.
-            connectedScript = Script.removeAllInstancesOfOp(connectedScript, ScriptOpCodes.OP_CODESEPARATOR);
-            
-            // Set the input to the script of its output. Satoshi does this but the step has no obvious purpose as
-            // the signature covers the hash of the prevout transaction which obviously includes the output script
-            // already. Perhaps it felt safer to him in some way, or is another leftover from how the code was written.
-            TransactionInput input = inputs.get(inputIndex);
-            input.setScriptBytes(connectedScript);
-            
-            ArrayList<TransactionOutput> outputs = this.outputs;
-            if ((sigHashType & 0x1f) == (SigHash.NONE.ordinal() + 1)) {
-                // SIGHASH_NONE means no outputs are signed at all - the signature is effectively for a "blank cheque".
-                this.outputs = new ArrayList<TransactionOutput>(0);
-                // The signature isn't broken by new versions of the transaction issued by other parties.
-                for (int i = 0; i < inputs.size(); i++)
-                    if (i != inputIndex)
-                        inputs.get(i).setSequenceNumber(0);
-            } else if ((sigHashType & 0x1f) == (SigHash.SINGLE.ordinal() + 1)) {
-                // SIGHASH_SINGLE means only sign the output at the same index as the input (ie, my output).
-                if (inputIndex >= this.outputs.size()) {
-                    // The input index is beyond the number of outputs, it's a buggy signature made by a broken
-                    // Bitcoin implementation. The reference client also contains a bug in handling this case:
-                    // any transaction output that is signed in this case will result in both the signed output
-                    // and any future outputs to this public key being steal-able by anyone who has
-                    // the resulting signature and the public key (both of which are part of the signed tx input).
-                    // Put the transaction back to how we found it.
-                    //
-                    // TODO: Only allow this to happen if we are checking a signature, not signing a transactions
-                    for (int i = 0; i < inputs.size(); i++) {
-                        inputs.get(i).setScriptBytes(inputScripts[i]);
-                        inputs.get(i).setSequenceNumber(inputSequenceNumbers[i]);
-                    }
-                    this.outputs = outputs;
-                    // Satoshis bug is that SignatureHash was supposed to return a hash and on this codepath it
-                    // actually returns the constant "1" to indicate an error, which is never checked for. Oops.
-                    return new Sha256Hash("0100000000000000000000000000000000000000000000000000000000000000");
+        return getSigHasher().hash(inputIndex, connectedScript, sigHashType);
+    }
+
+    private TransactionSigHasher getSigHasher() {
+        TransactionSigHasher hasher = sigHasher;
+        if (hasher == null) {
+            synchronized (this) {
+                hasher = sigHasher;
+                if (hasher == null) {
+                    maybeParse();
+                    hasher = new TransactionSigHasher(version, inputs, outputs, lockTime);
+                    sigHasher = hasher;
                 }
-                // In SIGHASH_SINGLE the outputs after the matching input index are deleted, and the outputs before
-                // that position are "nulled out". Unintuitively, the value in a "null" transaction is set to -1.
-                this.outputs = new ArrayList<TransactionOutput>(this.outputs.subList(0, inputIndex + 1));
-                for (int i = 0; i < inputIndex; i++)
-                    this.outputs.set(i, new TransactionOutput(params, this, BigInteger.valueOf(-1), new byte[] {}));
-                // The signature isn't broken by new versions of the transaction issued by other parties.
-                for (int i = 0; i < inputs.size(); i++)
-                    if (i != inputIndex)
-                        inputs.get(i).setSequenceNumber(0);
-            }
-            
-            ArrayList<TransactionInput> inputs = this.inputs;
-            if ((sigHashType & SIGHASH_ANYONECANPAY_VALUE) == SIGHASH_ANYONECANPAY_VALUE) {
-                // SIGHASH_ANYONECANPAY means the signature in the input is not broken by changes/additions/removals
-                // of other inputs. For example, this is useful for building assurance contracts.
-                this.inputs = new ArrayList<TransactionInput>();
-                this.inputs.add(input);
-            }
-
-            ByteArrayOutputStream bos = new UnsafeByteArrayOutputStream(length == UNKNOWN_LENGTH ? 256 : length + 4);
-            bitcoinSerialize(bos);
-            // We also have to write a hash type (sigHashType is actually an unsigned char)
-            uint32ToByteStreamLE(0x000000ff & sigHashType, bos);
-            // Note that this is NOT reversed to ensure it will be signed correctly. If it were to be printed out
-            // however then we would expect that it is IS reversed.
-            Sha256Hash hash = new Sha256Hash(doubleDigest(bos.toByteArray()));
-            bos.close();
-
-            // Put the transaction back to how we found it.
-            this.inputs = inputs;
-            for (int i = 0; i < inputs.size(); i++) {
-                inputs.get(i).setScriptBytes(inputScripts[i]);
-                inputs.get(i).setSequenceNumber(inputSequenceNumbers[i]);
             }
-            this.outputs = outputs;
-            return hash;
-        } catch (IOException e) {
-            throw new RuntimeException(e);  // Cannot happen.
         }
+        return hasher;
     }
 
     @Override
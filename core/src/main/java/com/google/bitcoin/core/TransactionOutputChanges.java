@@ -74,4 +74,42 @@ public class TransactionOutputChanges {
             output.serializeToStream(bos);
         }
     }
+
+    /**
+     * Writes the changes in the compact form used by the persistent block stores: a varint count of created outputs,
+     * then for each one its transaction hash, a varint index and the output as written by
+     * {@link StoredTransactionOutput#serializeCompact(java.io.OutputStream)}, then the spent outputs the same way.
+     */
+    public void serializeCompact(OutputStream bos) throws IOException {
+        serializeCompact(txOutsCreated, bos);
+        serializeCompact(txOutsSpent, bos);
+    }
+
+    private static void serializeCompact(List<StoredTransactionOutput> outputs, OutputStream bos) throws IOException {
+        CompactEncoding.writeVarInt(outputs.size(), bos);
+        for (StoredTransactionOutput output : outputs) {
+            bos.write(output.getHash().getBytes());
+            CompactEncoding.writeVarInt(output.getIndex(), bos);
+            output.serializeCompact(bos);
+        }
+    }
+
+    /** Reads changes written by {@link #serializeCompact(java.io.OutputStream)}. */
+    public static TransactionOutputChanges deserializeCompact(InputStream in) throws IOException {
+        List<StoredTransactionOutput> created = deserializeCompactList(in);
+        List<StoredTransactionOutput> spent = deserializeCompactList(in);
+        return new TransactionOutputChanges(created, spent);
+    }
+
+    private static List<StoredTransactionOutput> deserializeCompactList(InputStream in) throws IOException {
+        int count = CompactEncoding.readVarIntAsInt(in);
+        List<StoredTransactionOutput> outputs = new LinkedList<StoredTransactionOutput>();
+        for (int i = 0; i < count; i++) {
+            byte[] hash = new byte[32];
+            CompactEncoding.readFully(in, hash, 0, 32);
+            long index = CompactEncoding.readVarInt(in);
+            outputs.add(StoredTransactionOutput.deserializeCompact(new Sha256Hash(hash), index, in));
+        }
+        return outputs;
+    }
 }
@@ -0,0 +1,172 @@
+/**
+ * Copyright 2013 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.bitcoin.core;
+
+import com.google.bitcoin.script.Script;
+import com.google.bitcoin.script.ScriptOpCodes;
+
+import java.security.MessageDigest;
+import java.util.List;
+
+import static com.google.bitcoin.core.Utils.uint32ToByteArrayLE;
+import static com.google.common.base.Preconditions.checkElementIndex;
+
+/**
+ * <p>Calculates the signature hashes of a transaction's inputs without modifying the transaction. The simplified
+ * form of the transaction that is hashed is streamed straight into the digest, put together from pieces that are
+ * serialized once and shared by every input: the version, each input with its script blanked out, the outputs and
+ * the lock time.</p>
+ *
+ * <p>Instances are immutable, so any number of threads can hash with one at the same time. A {@link Transaction}
+ * keeps one until it is next changed, see {@link Transaction#hashTransactionForSignature(int, byte[], byte)}.</p>
+ */
+class TransactionSigHasher {
+    private static final int OUTPOINT_SIZE = 36;
+    // An input as it is hashed when it isn't the one being signed: the outpoint, an empty script and the sequence.
+    private static final int BLANK_INPUT_SIZE = OUTPOINT_SIZE + 1 + 4;
+    // An output with a value of -1 and an empty script, as written for the outputs before the signed one in
+    // SIGHASH_SINGLE.
+    private static final byte[] NULL_OUTPUT = { -1, -1, -1, -1, -1, -1, -1, -1, 0 };
+    private static final byte[] ZERO_SEQUENCE = new byte[4];
+
+    private final byte[] version;
+    private final byte[] inputCount;
+    private final byte[] blankInputs;
+    private final byte[][] outputs;
+    private final byte[] allOutputs;
+    private final byte[] lockTime;
+
+    TransactionSigHasher(long version, List<TransactionInput> inputs, List<TransactionOutput> outputs, long lockTime) {
+        this.version = new byte[4];
+        uint32ToByteArrayLE(version, this.version, 0);
+        inputCount = new VarInt(inputs.size()).encode();
+        blankInputs = new byte[inputs.size() * BLANK_INPUT_SIZE];
+        for (int i = 0; i < inputs.size(); i++) {
+            TransactionInput input = inputs.get(i);
+            int offset = i * BLANK_INPUT_SIZE;
+            System.arraycopy(input.getOutpoint().bitcoinSerialize(), 0, blankInputs, offset, OUTPOINT_SIZE);
+            uint32ToByteArrayLE(input.getSequenceNumber(), blankInputs, offset + OUTPOINT_SIZE + 1);
+        }
+        this.outputs = new byte[outputs.size()][];
+        byte[] outputCount = new VarInt(outputs.size()).encode();
+        int length = outputCount.length;
+        for (int i = 0; i < outputs.size(); i++) {
+            this.outputs[i] = outputs.get(i).bitcoinSerialize();
+            length += this.outputs[i].length;
+        }
+        allOutputs = new byte[length];
+        System.arraycopy(outputCount, 0, allOutputs, 0, outputCount.length);
+        int offset = outputCount.length;
+        for (byte[] output : this.outputs) {
+            System.arraycopy(output, 0, allOutputs, offset, output.length);
+            offset += output.length;
+        }
+        this.lockTime = new byte[4];
+        uint32ToByteArrayLE(lockTime, this.lockTime, 0);
+    }
+
+    /** See {@link Transaction#hashTransactionForSignature(int, byte[], byte)}. */
+    Sha256Hash hash(int inputIndex, byte[] connectedScript, byte sigHashType) {
+        int inputs = blankInputs.length / BLANK_INPUT_SIZE;
+        checkElementIndex(inputIndex, inputs);
+        // This step has no purpose beyond being synchronized with the reference clients bugs. OP_CODESEPARATOR
+        // is a legacy holdover from a previous, broken design of executing scripts that shipped in Bitcoin 0.1.
+        // It was seriously flawed and would have let anyone take anyone elses money. Later versions switched to
+        // the design we use today where scripts are executed independently but share a stack. This left the
+        // OP_CODESEPARATOR instruction having no purpose as it was only meant to be used internally, not actually
+        // ever put into scripts. Deleting OP_CODESEPARATOR is a step that should never be required but if we don't
+        // do it, we could split off the main chain.
+        connectedScript = Script.removeAllInstancesOfOp(connectedScript, ScriptOpCodes.OP_CODESEPARATOR);
+
+        boolean none = (sigHashType & 0x1f) == (Transaction.SigHash.NONE.ordinal() + 1);
+        boolean single = (sigHashType & 0x1f) == (Transaction.SigHash.SINGLE.ordinal() + 1);
+        boolean anyoneCanPay =
+                (sigHashType & Transaction.SIGHASH_ANYONECANPAY_VALUE) == Transaction.SIGHASH_ANYONECANPAY_VALUE;
+        if (single && inputIndex >= outputs.length) {
+            // The input index is beyond the number of outputs, it's a buggy signature made by a broken
+            // Bitcoin implementation. The reference client also contains a bug in handling this case:
+            // any transaction output that is signed in this case will result in both the signed output
+            // and any future outputs to this public key being steal-able by anyone who has
+            // the resulting signature and the public key (both of which are part of the signed tx input).
+            // Satoshis bug is that SignatureHash was supposed to return a hash and on this codepath it
+            // actually returns the constant "1" to indicate an error, which is never checked for. Oops.
+            //
+            // TODO: Only allow this to happen if we are checking a signature, not signing a transactions
+            return new Sha256Hash("0100000000000000000000000000000000000000000000000000000000000000");
+        }
+
+        MessageDigest digest = Utils.sha256Digest();
+        digest.update(version);
+        int offset = inputIndex * BLANK_INPUT_SIZE;
+        if (anyoneCanPay) {
+            // SIGHASH_ANYONECANPAY means the signature in the input is not broken by changes/additions/removals
+            // of other inputs. For example, this is useful for building assurance contracts.
+            digest.update((byte) 1);
+            updateSignedInput(digest, offset, connectedScript);
+        } else if (none || single) {
+            // The signature isn't broken by new versions of the transaction issued by other parties, so the other
+            // inputs' sequence numbers are hashed as zero.
+            digest.update(inputCount);
+            for (int i = 0; i < inputs; i++) {
+                if (i == inputIndex) {
+                    updateSignedInput(digest, offset, connectedScript);
+                } else {
+                    digest.update(blankInputs, i * BLANK_INPUT_SIZE, OUTPOINT_SIZE + 1);
+                    digest.update(ZERO_SEQUENCE);
+                }
+            }
+        } else {
+            // The input being signed holds the script of the output it spends and the others are empty. Satoshi does
+            // this but the step has no obvious purpose as the signature covers the hash of the prevout transaction
+            // which obviously includes the output script already.
+            digest.update(inputCount);
+            digest.update(blankInputs, 0, offset + OUTPOINT_SIZE);
+            digest.update(new VarInt(connectedScript.length).encode());
+            digest.update(connectedScript);
+            int rest = offset + OUTPOINT_SIZE + 1;
+            digest.update(blankInputs, rest, blankInputs.length - rest);
+        }
+
+        if (none) {
+            // SIGHASH_NONE means no outputs are signed at all - the signature is effectively for a "blank cheque".
+            digest.update((byte) 0);
+        } else if (single) {
+            // SIGHASH_SINGLE means only sign the output at the same index as the input (ie, my output). The outputs
+            // after it are deleted, and the outputs before it are "nulled out".
+            digest.update(new VarInt(inputIndex + 1).encode());
+            for (int i = 0; i < inputIndex; i++)
+                digest.update(NULL_OUTPUT);
+            digest.update(outputs[inputIndex]);
+        } else {
+            digest.update(allOutputs);
+        }
+        digest.update(lockTime);
+        // We also have to write a hash type (sigHashType is actually an unsigned char). Note that the hash is NOT
+        // reversed to ensure it will be signed correctly.
+        byte[] type = new byte[4];
+        uint32ToByteArrayLE(0x000000ff & sigHashType, type, 0);
+        digest.update(type);
+        return new Sha256Hash(digest.digest(digest.digest()));
+    }
+
+    private void updateSignedInput(MessageDigest digest, int offset, byte[] connectedScript) {
+        digest.update(blankInputs, offset, OUTPOINT_SIZE);
+        digest.update(new VarInt(connectedScript.length).encode());
+        digest.update(connectedScript);
+        digest.update(blankInputs, offset + OUTPOINT_SIZE + 1, 4);
+    }
+}
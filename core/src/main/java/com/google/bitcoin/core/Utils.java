@@ -25,6 +25,7 @@ import java.io.OutputStream;
 import java.math.BigDecimal;
 import java.math.BigInteger;
 import java.nio.charset.Charset;
+import java.security.DigestException;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
 import java.util.Arrays;
@@ -38,15 +39,39 @@ import static com.google.common.base.Preconditions.checkArgument;
  * To enable debug logging from the library, run with -Dbitcoinj.logging=true on your command line.
  */
 public class Utils {
-    private static final MessageDigest digest;
-    static {
-        try {
-            digest = MessageDigest.getInstance("SHA-256");
-        } catch (NoSuchAlgorithmException e) {
-            throw new RuntimeException(e);  // Can't happen.
+    // Each thread hashes with its own digests, so threads never wait for each other to hash. Neither MessageDigest
+    // nor RIPEMD160Digest is thread safe.
+    private static class Digests {
+        final MessageDigest sha256;
+        final RIPEMD160Digest ripemd160 = new RIPEMD160Digest();
+        final byte[] scratch = new byte[32];
+
+        Digests() {
+            try {
+                sha256 = MessageDigest.getInstance("SHA-256");
+            } catch (NoSuchAlgorithmException e) {
+                throw new RuntimeException(e);  // Can't happen.
+            }
         }
     }
 
+    private static final ThreadLocal<Digests> digests = new ThreadLocal<Digests>() {
+        @Override
+        protected Digests initialValue() {
+            return new Digests();
+        }
+    };
+
+    /**
+     * Returns this thread's SHA-256 digest, reset and ready for data that doesn't sit in one buffer. It must be
+     * finished before anything else on the thread hashes.
+     */
+    static MessageDigest sha256Digest() {
+        MessageDigest digest = digests.get().sha256;
+        digest.reset();  // In case an earlier caller was interrupted by an exception.
+        return digest;
+    }
+
     /** The string that prefixes all text messages signed using Bitcoin keys. */
     public static final String BITCOIN_SIGNED_MESSAGE_HEADER = "Bitcoin Signed Message:\n";
 
@@ -180,19 +205,41 @@ public class Utils {
      * standard procedure in Bitcoin. The resulting hash is in big endian form.
      */
     public static byte[] doubleDigest(byte[] input, int offset, int length) {
-        synchronized (digest) {
-            digest.reset();
-            digest.update(input, offset, length);
-            byte[] first = digest.digest();
-            return digest.digest(first);
-        }
+        byte[] out = new byte[32];
+        doubleDigest(input, offset, length, out, 0);
+        return out;
+    }
+
+    /**
+     * Like {@link #doubleDigest(byte[], int, int)}, but writes the 32 byte hash into the given array at the given
+     * offset instead of allocating a new one.
+     */
+    public static void doubleDigest(byte[] input, int offset, int length, byte[] out, int outOffset) {
+        MessageDigest digest = sha256Digest();
+        digest.update(input, offset, length);
+        digestInto(digest, out, outOffset);
+        digest.update(out, outOffset, 32);
+        digestInto(digest, out, outOffset);
     }
 
     public static byte[] singleDigest(byte[] input, int offset, int length) {
-        synchronized (digest) {
-            digest.reset();
-            digest.update(input, offset, length);
-            return digest.digest();
+        byte[] out = new byte[32];
+        singleDigest(input, offset, length, out, 0);
+        return out;
+    }
+
+    /** Calculates the SHA-256 hash of the given byte range into the given array at the given offset. */
+    public static void singleDigest(byte[] input, int offset, int length, byte[] out, int outOffset) {
+        MessageDigest digest = sha256Digest();
+        digest.update(input, offset, length);
+        digestInto(digest, out, outOffset);
+    }
+
+    private static void digestInto(MessageDigest digest, byte[] out, int outOffset) {
+        try {
+            digest.digest(out, outOffset, 32);
+        } catch (DigestException e) {
+            throw new IllegalArgumentException(e);  // No room for the hash.
         }
     }
 
@@ -201,13 +248,14 @@ public class Utils {
      */
     public static byte[] doubleDigestTwoBuffers(byte[] input1, int offset1, int length1,
                                                 byte[] input2, int offset2, int length2) {
-        synchronized (digest) {
-            digest.reset();
-            digest.update(input1, offset1, length1);
-            digest.update(input2, offset2, length2);
-            byte[] first = digest.digest();
-            return digest.digest(first);
-        }
+        MessageDigest digest = sha256Digest();
+        digest.update(input1, offset1, length1);
+        digest.update(input2, offset2, length2);
+        byte[] out = new byte[32];
+        digestInto(digest, out, 0);
+        digest.update(out, 0, 32);
+        digestInto(digest, out, 0);
+        return out;
     }
 
     /**
@@ -298,16 +346,18 @@ public class Utils {
      * Calculates RIPEMD160(SHA256(input)). This is used in Address calculations.
      */
     public static byte[] sha256hash160(byte[] input) {
-        try {
-            byte[] sha256 = MessageDigest.getInstance("SHA-256").digest(input);
-            RIPEMD160Digest digest = new RIPEMD160Digest();
-            digest.update(sha256, 0, sha256.length);
-            byte[] out = new byte[20];
-            digest.doFinal(out, 0);
-            return out;
-        } catch (NoSuchAlgorithmException e) {
-            throw new RuntimeException(e);  // Cannot happen.
-        }
+        byte[] out = new byte[20];
+        sha256hash160(input, 0, input.length, out, 0);
+        return out;
+    }
+
+    /** Calculates RIPEMD160(SHA256(byte range)) into the given array at the given offset. */
+    public static void sha256hash160(byte[] input, int offset, int length, byte[] out, int outOffset) {
+        Digests digests = Utils.digests.get();
+        singleDigest(input, offset, length, digests.scratch, 0);
+        digests.ripemd160.reset();
+        digests.ripemd160.update(digests.scratch, 0, 32);
+        digests.ripemd160.doFinal(out, outOffset);
     }
 
     /**
@@ -2079,8 +2079,10 @@ public class Wallet implements Serializable, BlockChainListener {
         lock.lock();
         try {
             // TODO: Consider making keys a sorted list or hashset so membership testing is faster.
+            // Until then, don't search the whole keychain for every key when adding lots of them.
+            Set<ECKey> present = keys.size() > 1 ? new HashSet<ECKey>(keychain) : null;
             for (final ECKey key : keys) {
-                if (keychain.contains(key)) continue;
+                if (present != null ? !present.add(key) : keychain.contains(key)) continue;
 
                 // If the key has a keyCrypter that does not match the Wallet's then a KeyCrypterException is thrown.
                 // This is done because only one keyCrypter is persisted per Wallet and hence all the keys must be homogenous.
@@ -2108,6 +2110,16 @@ public class Wallet implements Serializable, BlockChainListener {
         return added;
     }
 
+    /**
+     * Takes the given number of new keys from the pool, adds them to the wallet as {@link #addKeys(java.util.List)}
+     * does and returns them. This is the quick way to create many receive addresses at once.
+     */
+    public List<ECKey> addNewKeys(KeyPool pool, int count) {
+        List<ECKey> keys = pool.take(count);
+        addKeys(keys);
+        return keys;
+    }
+
     /**
      * Locates a keypair from the keychain given the hash of the public key. This is needed when finding out which
      * key we need to use to redeem a transaction output.
@@ -0,0 +1,521 @@
+/**
+ * Copyright 2013 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.bitcoin.crypto;
+
+import java.math.BigInteger;
+
+import static com.google.bitcoin.crypto.Secp256k1Field.*;
+import static com.google.common.base.Preconditions.checkArgument;
+
+/**
+ * <p>ECDSA signature verification on the secp256k1 curve, written for speed rather than generality.</p>
+ *
+ * <p>The generic Spongy Castle code works on BigIntegers and affine points, so every point addition costs a modular
+ * inversion. Here points are kept in Jacobian coordinates over a field with a fast reduction (see
+ * {@link Secp256k1Field}), and the two multiplications a verification needs, u1*G + u2*Q, are done together in one
+ * pass of doublings (Shamir's trick) using width-w NAF digits. Each scalar is first split into two halves of about
+ * 128 bits using the curve's efficiently computable endomorphism (the GLV method), which halves the number of
+ * doublings again. Multiples of G are taken from a table of affine points that is built once, the first time it's
+ * needed.</p>
+ *
+ * <p>Public keys that are not on the curve are rejected, as OpenSSL does.</p>
+ */
+public class Secp256k1 {
+    /** The order of the curve, and so of every point on it. */
+    public static final BigInteger N =
+            new BigInteger("FFFFFFFFFFFFFFFFFFFFFFFFFFFFFFFEBAAEDCE6AF48A03BBFD25E8CD0364141", 16);
+    private static final BigInteger HALF_N = N.shiftRight(1);
+    private static final BigInteger GX =
+            new BigInteger("79BE667EF9DCBBAC55A06295CE870B07029BFCDB2DCE28D959F2815B16F81798", 16);
+    private static final BigInteger GY =
+            new BigInteger("483ADA7726A3C4655DA4FBFC0E1108A8FD17B448A68554199C47D08FFB10D4B8", 16);
+    private static final int[] SEVEN = fromBigInteger(BigInteger.valueOf(7));
+
+    // Multiplying a point by LAMBDA = 5363AD4C...1B23BD72 is the same as multiplying its x coordinate by BETA.
+    private static final int[] BETA =
+            fromBigInteger(new BigInteger("7AE96A2B657C07106E64479EAC3434E99CF0497512F58995C1396C28719501EE", 16));
+    // A short basis of the lattice of (a, b) where a + b * LAMBDA = 0 mod N, used to split scalars. B2 is A1.
+    private static final BigInteger A1 = new BigInteger("3086D221A7D46BCDE86C90E49284EB15", 16);
+    private static final BigInteger MINUS_B1 = new BigInteger("E4437ED6010E88286F547FA90ABFE4C3", 16);
+    private static final BigInteger A2 = new BigInteger("114CA50F7A8E2F3F657C1108D9D44CFD8", 16);
+
+    // Window widths for the NAF digits of multipliers of G, which come from the precomputed table, and of the public
+    // key, whose table has to be built for each verification.
+    private static final int WINDOW_G = 12;
+    private static final int WINDOW_Q = 5;
+
+    private Secp256k1() {}
+
+    // A point in Jacobian coordinates, standing for the affine point (x / z^2, y / z^3).
+    private static final class Point {
+        final int[] x = new int[8], y = new int[8], z = new int[8];
+        boolean infinity = true;
+
+        Point() {}
+
+        Point(int[] x, int[] y, int[] z) {
+            System.arraycopy(x, 0, this.x, 0, 8);
+            System.arraycopy(y, 0, this.y, 0, 8);
+            System.arraycopy(z, 0, this.z, 0, 8);
+            infinity = false;
+        }
+    }
+
+    private static Point generator() {
+        return new Point(fromBigInteger(GX), fromBigInteger(GY), fromBigInteger(BigInteger.ONE));
+    }
+
+    // The odd multiples G, 3G, 5G ... of the generator in affine coordinates, along with LAMBDA times each of them.
+    private static final class GTable {
+        static final int[][] X, Y, LAMBDA_X;
+
+        static {
+            int size = 1 << (WINDOW_G - 2);
+            Point[] points = oddMultiples(generator(), size);
+            X = new int[size][8];
+            Y = new int[size][8];
+            LAMBDA_X = new int[size][8];
+            toAffine(points, X, Y);
+            for (int i = 0; i < size; i++)
+                mul(X[i], BETA, LAMBDA_X[i]);
+        }
+    }
+
+    // For generating keys: entry 15 * i + j - 1 is j * 16^i * G in affine coordinates, for every 4 bit window i of a
+    // scalar and every non-zero value j of it, so that k * G is a sum of one entry per window with no doublings.
+    private static final class KeyTable {
+        static final int WINDOWS = 64;
+        static final int[][] X, Y;
+
+        static {
+            Point[] points = new Point[WINDOWS * 15];
+            Point base = generator();
+            for (int i = 0; i < WINDOWS; i++) {
+                points[15 * i] = base;
+                for (int j = 1; j < 15; j++) {
+                    Point previous = points[15 * i + j - 1];
+                    points[15 * i + j] = new Point(previous.x, previous.y, previous.z);
+                    addJacobian(points[15 * i + j], base.x, base.y, base.z);
+                }
+                // 16 * 16^i * G is the next window's base.
+                Point next = new Point(points[15 * i + 14].x, points[15 * i + 14].y, points[15 * i + 14].z);
+                addJacobian(next, base.x, base.y, base.z);
+                base = next;
+            }
+            X = new int[points.length][8];
+            Y = new int[points.length][8];
+            toAffine(points, X, Y);
+        }
+    }
+
+    /**
+     * <p>Calculates the public keys for many private keys at once, giving the same bytes as
+     * {@link com.google.bitcoin.core.ECKey#publicKeyFromPrivate(BigInteger, boolean)} would for each.</p>
+     *
+     * <p>Each multiplication of G adds up one precomputed point per four bits of the private key, taken from a table
+     * of about 60KB built the first time it is needed, with no doublings at all. The results are then made affine
+     * together, sharing a single field inversion between the whole batch.</p>
+     *
+     * @throws IllegalArgumentException if a private key is not between 1 and N - 1.
+     */
+    public static byte[][] publicKeysFromPrivate(BigInteger[] privKeys, boolean compressed) {
+        Point[] points = new Point[privKeys.length];
+        for (int i = 0; i < privKeys.length; i++) {
+            checkArgument(inRange(privKeys[i]), "Private key out of range");
+            Point point = new Point();
+            for (int window = 0; window < KeyTable.WINDOWS; window++) {
+                int digit = 0;
+                for (int bit = 3; bit >= 0; bit--)
+                    digit = (digit << 1) | (privKeys[i].testBit(window * 4 + bit) ? 1 : 0);
+                if (digit != 0)
+                    addAffine(point, KeyTable.X[15 * window + digit - 1], KeyTable.Y[15 * window + digit - 1]);
+            }
+            points[i] = point;
+        }
+        int[][] xs = new int[points.length][8], ys = new int[points.length][8];
+        toAffine(points, xs, ys);
+        byte[][] pubKeys = new byte[points.length][];
+        for (int i = 0; i < points.length; i++) {
+            byte[] pub = new byte[compressed ? 33 : 65];
+            toBytes(xs[i], pub, 1);
+            if (compressed) {
+                pub[0] = (byte) (isOdd(ys[i]) ? 3 : 2);
+            } else {
+                pub[0] = 4;
+                toBytes(ys[i], pub, 33);
+            }
+            pubKeys[i] = pub;
+        }
+        return pubKeys;
+    }
+
+    // Writes the affine coordinates of each point, none of which may be infinity, sharing one inversion between them.
+    private static void toAffine(Point[] points, int[][] xs, int[][] ys) {
+        int size = points.length;
+        if (size == 0)
+            return;
+        // products[i] is the product of the z coordinates of points 0 to i.
+        int[][] products = new int[size][8];
+        System.arraycopy(points[0].z, 0, products[0], 0, 8);
+        for (int i = 1; i < size; i++)
+            mul(products[i - 1], points[i].z, products[i]);
+        int[] inverse = new int[8];
+        Secp256k1Field.inverse(products[size - 1], inverse);
+        int[] zInv = new int[8], zInv2 = new int[8];
+        for (int i = size - 1; i >= 0; i--) {
+            if (i > 0) {
+                mul(inverse, products[i - 1], zInv);
+                mul(inverse, points[i].z, inverse);
+            } else {
+                System.arraycopy(inverse, 0, zInv, 0, 8);
+            }
+            sqr(zInv, zInv2);
+            mul(points[i].x, zInv2, xs[i]);
+            mul(zInv2, zInv, zInv2);
+            mul(points[i].y, zInv2, ys[i]);
+        }
+    }
+
+    /**
+     * Verifies an ECDSA signature over the given hash, with the same result as the Spongy Castle ECDSASigner for any
+     * public key that is on the curve.
+     *
+     * @param data Hash of the data to verify.
+     * @param r    The r component of the signature.
+     * @param s    The s component of the signature.
+     * @param pub  The public key, in compressed, uncompressed or hybrid form.
+     * @throws IllegalArgumentException if the public key is not in a known encoding.
+     */
+    public static boolean verify(byte[] data, BigInteger r, BigInteger s, byte[] pub) {
+        if (!inRange(r) || !inRange(s))
+            return false;
+        return verifyWithInverse(data, r, s.modInverse(N), pub);
+    }
+
+    /**
+     * Verifies many signatures at once, writing to results whether each one is valid exactly as
+     * {@link #verify(byte[], BigInteger, BigInteger, byte[])} would have returned. The inverses of the s values are
+     * found together with Montgomery's trick, which costs one modular inversion and three multiplications per
+     * signature instead of an inversion each. Public keys in an unknown encoding count as invalid rather than
+     * throwing.
+     */
+    public static void verify(byte[][] data, BigInteger[] r, BigInteger[] s, byte[][] pub, boolean[] results) {
+        int count = data.length;
+        checkArgument(r.length == count && s.length == count && pub.length == count && results.length == count);
+        // products[i] is the product of every usable s up to and including the i'th.
+        BigInteger[] products = new BigInteger[count];
+        BigInteger product = BigInteger.ONE;
+        for (int i = 0; i < count; i++) {
+            if (inRange(r[i]) && inRange(s[i]))
+                product = product.multiply(s[i]).mod(N);
+            products[i] = product;
+        }
+        BigInteger inverse = product.modInverse(N);
+        for (int i = count - 1; i >= 0; i--) {
+            if (!inRange(r[i]) || !inRange(s[i])) {
+                results[i] = false;
+                continue;
+            }
+            BigInteger before = i > 0 ? products[i - 1] : BigInteger.ONE;
+            BigInteger w = inverse.multiply(before).mod(N);
+            inverse = inverse.multiply(s[i]).mod(N);
+            try {
+                results[i] = verifyWithInverse(data[i], r[i], w, pub[i]);
+            } catch (IllegalArgumentException e) {
+                results[i] = false;
+            }
+        }
+    }
+
+    private static boolean inRange(BigInteger value) {
+        return value.signum() > 0 && value.compareTo(N) < 0;
+    }
+
+    // Verifies a signature whose r is known to be in range, given w = s^-1 mod N.
+    private static boolean verifyWithInverse(byte[] data, BigInteger r, BigInteger w, byte[] pub) {
+        Point q = decodePoint(pub);
+        if (q == null)
+            return false;
+        BigInteger u1 = calculateE(data).multiply(w).mod(N);
+        BigInteger u2 = r.multiply(w).mod(N);
+        Point result = multiplyAdd(u1, q, u2);
+        if (result.infinity)
+            return false;
+        // The x coordinate of the result reduced mod N must equal r. Rather than spending an inversion to make the
+        // result affine, bring the candidates into its coordinates instead: x is r or, if it fits below p, r + N.
+        int[] zz = new int[8], t = new int[8];
+        sqr(result.z, zz);
+        mul(fromBigInteger(r), zz, t);
+        if (equal(t, result.x))
+            return true;
+        BigInteger rPlusN = r.add(N);
+        if (rPlusN.compareTo(P) >= 0)
+            return false;
+        mul(fromBigInteger(rPlusN), zz, t);
+        return equal(t, result.x);
+    }
+
+    // The same truncation of the hash to the bit length of N that ECDSASigner does.
+    private static BigInteger calculateE(byte[] message) {
+        int messageBitLength = message.length * 8;
+        BigInteger e = new BigInteger(1, message);
+        if (N.bitLength() < messageBitLength)
+            e = e.shiftRight(messageBitLength - N.bitLength());
+        return e;
+    }
+
+    // Returns the public key as a point with z = 1, or null if it is the point at infinity or not on the curve.
+    private static Point decodePoint(byte[] pub) {
+        if (pub.length == 1 && pub[0] == 0)
+            return null;
+        int[] x, y;
+        if (pub.length == 33 && (pub[0] == 2 || pub[0] == 3)) {
+            x = fromBytes(pub, 1);
+            if (x == null)
+                return null;
+            y = new int[8];
+            if (!sqrt(curveRhs(x), y))
+                return null;
+            if (isOdd(y) != (pub[0] == 3))
+                negate(y, y);
+        } else if (pub.length == 65 && (pub[0] == 4 || pub[0] == 6 || pub[0] == 7)) {
+            x = fromBytes(pub, 1);
+            y = fromBytes(pub, 33);
+            if (x == null || y == null)
+                return null;
+            if (pub[0] != 4 && isOdd(y) != (pub[0] == 7))
+                return null;
+            int[] yy = new int[8];
+            sqr(y, yy);
+            if (!equal(yy, curveRhs(x)))
+                return null;
+        } else {
+            throw new IllegalArgumentException("Invalid point encoding");
+        }
+        return new Point(x, y, fromBigInteger(BigInteger.ONE));
+    }
+
+    // x^3 + 7
+    private static int[] curveRhs(int[] x) {
+        int[] r = new int[8];
+        sqr(x, r);
+        mul(r, x, r);
+        add(r, SEVEN, r);
+        return r;
+    }
+
+    // Computes u1 * G + u2 * q.
+    private static Point multiplyAdd(BigInteger u1, Point q, BigInteger u2) {
+        BigInteger[] split1 = split(u1), split2 = split(u2);
+        int[][] nafs = new int[4][];
+        boolean[] negative = new boolean[4];
+        int length = 0;
+        for (int i = 0; i < 4; i++) {
+            BigInteger k = (i < 2 ? split1 : split2)[i % 2];
+            negative[i] = k.signum() < 0;
+            nafs[i] = wnaf(k.abs(), i < 2 ? WINDOW_G : WINDOW_Q);
+            length = Math.max(length, nafs[i].length);
+        }
+
+        Point[] qTable = oddMultiples(q, 1 << (WINDOW_Q - 2));
+        int[][] qLambdaX = new int[qTable.length][8];
+        for (int i = 0; i < qTable.length; i++)
+            mul(qTable[i].x, BETA, qLambdaX[i]);
+
+        Point result = new Point();
+        int[] negY = new int[8];
+        for (int bit = length - 1; bit >= 0; bit--) {
+            twice(result);
+            for (int i = 0; i < 4; i++) {
+                int digit = bit < nafs[i].length ? nafs[i][bit] : 0;
+                if (digit == 0)
+                    continue;
+                int index = (Math.abs(digit) - 1) / 2;
+                int[] y = i < 2 ? GTable.Y[index] : qTable[index].y;
+                if ((digit < 0) != negative[i]) {
+                    negate(y, negY);
+                    y = negY;
+                }
+                switch (i) {
+                    case 0: addAffine(result, GTable.X[index], y); break;
+                    case 1: addAffine(result, GTable.LAMBDA_X[index], y); break;
+                    case 2: addJacobian(result, qTable[index].x, y, qTable[index].z); break;
+                    default: addJacobian(result, qLambdaX[index], y, qTable[index].z); break;
+                }
+            }
+        }
+        return result;
+    }
+
+    // Splits k into k1 and k2 of about 128 bits each, either of which may be negative, where
+    // k = k1 + k2 * LAMBDA mod N.
+    private static BigInteger[] split(BigInteger k) {
+        BigInteger c1 = A1.multiply(k).add(HALF_N).divide(N);
+        BigInteger c2 = MINUS_B1.multiply(k).add(HALF_N).divide(N);
+        BigInteger k1 = k.subtract(c1.multiply(A1)).subtract(c2.multiply(A2));
+        BigInteger k2 = c1.multiply(MINUS_B1).subtract(c2.multiply(A1));
+        return new BigInteger[] { k1, k2 };
+    }
+
+    // Returns the width-w NAF of a non-negative k, least significant digit first. Each digit is zero or odd and less
+    // than 2^(w-1) in magnitude, and any w consecutive digits hold at most one that is not zero.
+    private static int[] wnaf(BigInteger k, int w) {
+        int length = k.bitLength() + 1;
+        int[] naf = new int[length];
+        int carry = 0;
+        int bit = 0;
+        while (bit < length) {
+            if ((k.testBit(bit) ? 1 : 0) == carry) {
+                bit++;
+                continue;
+            }
+            int now = Math.min(w, length - bit);
+            int word = carry;
+            for (int i = 0; i < now; i++) {
+                if (k.testBit(bit + i))
+                    word += 1 << i;
+            }
+            carry = (word >> (w - 1)) & 1;
+            word -= carry << w;
+            naf[bit] = word;
+            bit += now;
+        }
+        return naf;
+    }
+
+    // Returns p, 3p, 5p ... up to count of them.
+    private static Point[] oddMultiples(Point p, int count) {
+        Point[] multiples = new Point[count];
+        multiples[0] = p;
+        Point twiceP = new Point(p.x, p.y, p.z);
+        twice(twiceP);
+        for (int i = 1; i < count; i++) {
+            Point previous = multiples[i - 1];
+            multiples[i] = new Point(previous.x, previous.y, previous.z);
+            addJacobian(multiples[i], twiceP.x, twiceP.y, twiceP.z);
+        }
+        return multiples;
+    }
+
+    // Doubles p in place, using the formulas for a curve with a = 0.
+    private static void twice(Point p) {
+        if (p.infinity)
+            return;
+        if (isZero(p.y)) {
+            p.infinity = true;
+            return;
+        }
+        int[] a = new int[8], b = new int[8], c = new int[8], d = new int[8], e = new int[8], t = new int[8];
+        sqr(p.x, a);
+        sqr(p.y, b);
+        sqr(b, c);
+        // d = 4 * x * y^2
+        mul(p.x, b, d);
+        add(d, d, d);
+        add(d, d, d);
+        // e = 3 * x^2
+        add(a, a, e);
+        add(e, a, e);
+        // z' = 2 * y * z
+        mul(p.y, p.z, p.z);
+        add(p.z, p.z, p.z);
+        // x' = e^2 - 2 * d
+        sqr(e, t);
+        sub(t, d, t);
+        sub(t, d, p.x);
+        // y' = e * (d - x') - 8 * y^4
+        sub(d, p.x, t);
+        mul(e, t, t);
+        add(c, c, c);
+        add(c, c, c);
+        add(c, c, c);
+        sub(t, c, p.y);
+    }
+
+    // Adds the affine point (x2, y2) to p in place.
+    private static void addAffine(Point p, int[] x2, int[] y2) {
+        if (p.infinity) {
+            System.arraycopy(x2, 0, p.x, 0, 8);
+            System.arraycopy(y2, 0, p.y, 0, 8);
+            p.z[0] = 1;
+            for (int i = 1; i < 8; i++)
+                p.z[i] = 0;
+            p.infinity = false;
+            return;
+        }
+        int[] zz = new int[8], u2 = new int[8], s2 = new int[8];
+        sqr(p.z, zz);
+        mul(x2, zz, u2);
+        mul(zz, p.z, s2);
+        mul(y2, s2, s2);
+        finishAdd(p, p.x, u2, p.y, s2, null);
+    }
+
+    // Adds the Jacobian point (x2, y2, z2) to p in place.
+    private static void addJacobian(Point p, int[] x2, int[] y2, int[] z2) {
+        if (p.infinity) {
+            System.arraycopy(x2, 0, p.x, 0, 8);
+            System.arraycopy(y2, 0, p.y, 0, 8);
+            System.arraycopy(z2, 0, p.z, 0, 8);
+            p.infinity = false;
+            return;
+        }
+        int[] z1z1 = new int[8], z2z2 = new int[8], u1 = new int[8], u2 = new int[8], s1 = new int[8], s2 = new int[8];
+        sqr(p.z, z1z1);
+        sqr(z2, z2z2);
+        mul(p.x, z2z2, u1);
+        mul(x2, z1z1, u2);
+        mul(z2z2, z2, s1);
+        mul(p.y, s1, s1);
+        mul(z1z1, p.z, s2);
+        mul(y2, s2, s2);
+        finishAdd(p, u1, u2, s1, s2, z2);
+    }
+
+    // The rest of an addition once both points are brought to the same z, as (u1, s1) and (u2, s2). Writes the sum
+    // to p, whose z is multiplied by z2 unless that is null, meaning 1.
+    private static void finishAdd(Point p, int[] u1, int[] u2, int[] s1, int[] s2, int[] z2) {
+        int[] h = new int[8], r = new int[8];
+        sub(u2, u1, h);
+        sub(s2, s1, r);
+        if (isZero(h)) {
+            if (isZero(r))
+                twice(p);
+            else
+                p.infinity = true;
+            return;
+        }
+        int[] hh = new int[8], hhh = new int[8], v = new int[8], t = new int[8];
+        sqr(h, hh);
+        mul(h, hh, hhh);
+        mul(u1, hh, v);
+        // x' = r^2 - h^3 - 2 * u1 * h^2
+        sqr(r, t);
+        sub(t, hhh, t);
+        sub(t, v, t);
+        sub(t, v, p.x);
+        // y' = r * (u1 * h^2 - x') - s1 * h^3
+        sub(v, p.x, v);
+        mul(r, v, v);
+        mul(s1, hhh, t);
+        sub(v, t, p.y);
+        // z' = z1 * z2 * h
+        if (z2 != null)
+            mul(p.z, z2, p.z);
+        mul(p.z, h, p.z);
+    }
+}
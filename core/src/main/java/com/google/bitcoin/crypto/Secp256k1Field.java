@@ -0,0 +1,262 @@
+/**
+ * Copyright 2013 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.bitcoin.crypto;
+
+import java.math.BigInteger;
+
+/**
+ * <p>Arithmetic modulo the secp256k1 field prime p = 2<sup>256</sup> - 2<sup>32</sup> - 977, on elements held as
+ * eight 32 bit limbs, least significant first. Every element passed in or returned is fully reduced, below p.</p>
+ *
+ * <p>Results are written to an array passed in by the caller, which may be the same array as an input. Because p
+ * is so close to 2<sup>256</sup>, a product is reduced by folding its top half back in multiplied by
+ * 2<sup>256</sup> - p, which is far cheaper than a division.</p>
+ */
+final class Secp256k1Field {
+    static final BigInteger P = BigInteger.ONE.shiftLeft(256).subtract(BigInteger.ONE.shiftLeft(32))
+            .subtract(BigInteger.valueOf(977));
+
+    private static final long MASK = 0xFFFFFFFFL;
+    // 2^256 - p = 2^32 + 977, as the low two limbs.
+    private static final long C0 = 977;
+    private static final long C1 = 1;
+    private static final int[] P_LIMBS = fromBigInteger(P);
+
+    private Secp256k1Field() {}
+
+    static int[] fromBigInteger(BigInteger value) {
+        int[] r = new int[8];
+        for (int i = 0; i < 8; i++)
+            r[i] = value.shiftRight(i * 32).intValue();
+        return r;
+    }
+
+    static BigInteger toBigInteger(int[] a) {
+        byte[] bytes = new byte[32];
+        toBytes(a, bytes, 0);
+        return new BigInteger(1, bytes);
+    }
+
+    /** Reads 32 big endian bytes, or returns null if they are not below p. */
+    static int[] fromBytes(byte[] bytes, int offset) {
+        int[] r = new int[8];
+        for (int i = 0; i < 8; i++) {
+            int o = offset + 28 - i * 4;
+            r[i] = ((bytes[o] & 0xFF) << 24) | ((bytes[o + 1] & 0xFF) << 16) | ((bytes[o + 2] & 0xFF) << 8) |
+                    (bytes[o + 3] & 0xFF);
+        }
+        return geP(r) ? null : r;
+    }
+
+    /** Writes the element as 32 big endian bytes. */
+    static void toBytes(int[] a, byte[] bytes, int offset) {
+        for (int i = 0; i < 8; i++) {
+            int o = offset + 28 - i * 4;
+            bytes[o] = (byte) (a[i] >>> 24);
+            bytes[o + 1] = (byte) (a[i] >>> 16);
+            bytes[o + 2] = (byte) (a[i] >>> 8);
+            bytes[o + 3] = (byte) a[i];
+        }
+    }
+
+    static boolean isZero(int[] a) {
+        return (a[0] | a[1] | a[2] | a[3] | a[4] | a[5] | a[6] | a[7]) == 0;
+    }
+
+    static boolean isOdd(int[] a) {
+        return (a[0] & 1) != 0;
+    }
+
+    static boolean equal(int[] a, int[] b) {
+        return ((a[0] ^ b[0]) | (a[1] ^ b[1]) | (a[2] ^ b[2]) | (a[3] ^ b[3]) | (a[4] ^ b[4]) | (a[5] ^ b[5]) |
+                (a[6] ^ b[6]) | (a[7] ^ b[7])) == 0;
+    }
+
+    private static boolean geP(int[] a) {
+        for (int i = 7; i >= 0; i--) {
+            long ai = a[i] & MASK, pi = P_LIMBS[i] & MASK;
+            if (ai != pi)
+                return ai > pi;
+        }
+        return true;
+    }
+
+    // Adds 2^256 - p, dropping any carry out of the top. Taking p away is the same thing modulo 2^256.
+    private static void addC(int[] r) {
+        long c = (r[0] & MASK) + C0;
+        r[0] = (int) c;
+        c = (c >>> 32) + (r[1] & MASK) + C1;
+        r[1] = (int) c;
+        c >>>= 32;
+        for (int i = 2; i < 8 && c != 0; i++) {
+            c += r[i] & MASK;
+            r[i] = (int) c;
+            c >>>= 32;
+        }
+    }
+
+    static void add(int[] a, int[] b, int[] r) {
+        long c = 0;
+        for (int i = 0; i < 8; i++) {
+            c += (a[i] & MASK) + (b[i] & MASK);
+            r[i] = (int) c;
+            c >>>= 32;
+        }
+        if (c != 0 || geP(r))
+            addC(r);
+    }
+
+    static void sub(int[] a, int[] b, int[] r) {
+        long borrow = 0;
+        for (int i = 0; i < 8; i++) {
+            long d = (a[i] & MASK) - (b[i] & MASK) - borrow;
+            r[i] = (int) d;
+            borrow = d < 0 ? 1 : 0;
+        }
+        if (borrow != 0) {
+            // r is a - b + 2^256, so taking 2^256 - p away leaves a - b + p.
+            long d = (r[0] & MASK) - C0;
+            r[0] = (int) d;
+            d = (r[1] & MASK) - C1 - (d < 0 ? 1 : 0);
+            r[1] = (int) d;
+            for (int i = 2; i < 8 && d < 0; i++) {
+                d = (r[i] & MASK) - 1;
+                r[i] = (int) d;
+            }
+        }
+    }
+
+    static void negate(int[] a, int[] r) {
+        sub(new int[8], a, r);
+    }
+
+    static void mul(int[] a, int[] b, int[] r) {
+        int[] t = new int[16];
+        for (int i = 0; i < 8; i++) {
+            long ai = a[i] & MASK;
+            long c = 0;
+            for (int j = 0; j < 8; j++) {
+                c += ai * (b[j] & MASK) + (t[i + j] & MASK);
+                t[i + j] = (int) c;
+                c >>>= 32;
+            }
+            t[i + 8] = (int) c;
+        }
+        reduce(t, r);
+    }
+
+    static void sqr(int[] a, int[] r) {
+        mul(a, a, r);
+    }
+
+    private static void sqr(int[] a, int times, int[] r) {
+        sqr(a, r);
+        for (int i = 1; i < times; i++)
+            sqr(r, r);
+    }
+
+    // Folds the top eight limbs of a 512 bit product into the bottom eight, as t = high * 2^256 + low is congruent to
+    // low + high * (2^32 + 977).
+    private static void reduce(int[] t, int[] r) {
+        long c = 0;
+        for (int i = 0; i < 8; i++) {
+            c += (t[i] & MASK) + (t[i + 8] & MASK) * C0;
+            if (i > 0)
+                c += t[i + 7] & MASK;
+            r[i] = (int) c;
+            c >>>= 32;
+        }
+        long e = c + (t[15] & MASK);
+        // Fold in what spilled over the top, a little over 32 bits, the same way.
+        c = (r[0] & MASK) + e * C0;
+        r[0] = (int) c;
+        c = (c >>> 32) + (r[1] & MASK) + e;
+        r[1] = (int) c;
+        c >>>= 32;
+        for (int i = 2; i < 8 && c != 0; i++) {
+            c += r[i] & MASK;
+            r[i] = (int) c;
+            c >>>= 32;
+        }
+        if (c != 0)
+            addC(r);  // What is left is small, so this can't carry again.
+        if (geP(r))
+            addC(r);
+    }
+
+    // The powers of a used to build the exponents below: x[n] is a^(2^n - 1).
+    private static int[][] powers(int[] a) {
+        int[] x2 = new int[8], x3 = new int[8], x6 = new int[8], x9 = new int[8], x11 = new int[8];
+        int[] x22 = new int[8], x44 = new int[8], x88 = new int[8], x176 = new int[8], x220 = new int[8];
+        int[] x223 = new int[8];
+        sqr(a, x2);
+        mul(x2, a, x2);
+        sqr(x2, x3);
+        mul(x3, a, x3);
+        sqr(x3, 3, x6);
+        mul(x6, x3, x6);
+        sqr(x6, 3, x9);
+        mul(x9, x3, x9);
+        sqr(x9, 2, x11);
+        mul(x11, x2, x11);
+        sqr(x11, 11, x22);
+        mul(x22, x11, x22);
+        sqr(x22, 22, x44);
+        mul(x44, x22, x44);
+        sqr(x44, 44, x88);
+        mul(x88, x44, x88);
+        sqr(x88, 88, x176);
+        mul(x176, x88, x176);
+        sqr(x176, 44, x220);
+        mul(x220, x44, x220);
+        sqr(x220, 3, x223);
+        mul(x223, x3, x223);
+        return new int[][] { x2, x22, x223 };
+    }
+
+    /** Sets r to the inverse of a, which must not be zero, as a<sup>p - 2</sup>. */
+    static void inverse(int[] a, int[] r) {
+        int[][] x = powers(a);
+        int[] t = new int[8];
+        sqr(x[2], 23, t);
+        mul(t, x[1], t);
+        sqr(t, 5, t);
+        mul(t, a, t);
+        sqr(t, 3, t);
+        mul(t, x[0], t);
+        sqr(t, 2, t);
+        mul(t, a, r);
+    }
+
+    /**
+     * Sets r to a square root of a, as a<sup>(p + 1) / 4</sup>, and returns true, or returns false if a has no
+     * square root.
+     */
+    static boolean sqrt(int[] a, int[] r) {
+        int[][] x = powers(a);
+        int[] t = new int[8];
+        sqr(x[2], 23, t);
+        mul(t, x[1], t);
+        sqr(t, 6, t);
+        mul(t, x[0], t);
+        sqr(t, 2, t);
+        int[] check = new int[8];
+        sqr(t, check);
+        System.arraycopy(t, 0, r, 0, 8);
+        return equal(check, a);
+    }
+}
@@ -42,6 +42,7 @@ public class TestNet2Params extends NetworkParameters {
         genesisBlock.setNonce(384568319);
         spendableCoinbaseDepth = 100;
         subsidyDecreaseBlockCount = 210000;
+        minDifficultyBlocksAfter = 1329264000L;  // 15th February 2012
         String genesisHash = genesisBlock.getHashAsString();
         checkState(genesisHash.equals("00000007199508e34a9ff81e6ec0c477a4cccff2a4767a8eee39c11db367b008"));
         dnsSeeds = null;
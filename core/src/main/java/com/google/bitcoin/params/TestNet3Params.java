@@ -43,6 +43,7 @@ public class TestNet3Params extends NetworkParameters {
         genesisBlock.setNonce(414098458);
         spendableCoinbaseDepth = 100;
         subsidyDecreaseBlockCount = 210000;
+        minDifficultyBlocksAfter = 1329264000L;  // 15th February 2012
         String genesisHash = genesisBlock.getHashAsString();
         checkState(genesisHash.equals("000000000933ea01ad0ee984209779baaec3ced90fa3f408719526f8d77f4943"));
 
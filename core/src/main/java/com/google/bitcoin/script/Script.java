@@ -528,8 +528,8 @@ public class Script {
         return Utils.decodeMPI(Utils.reverseBytes(chunk), false);
     }
     
-    private static void executeScript(Transaction txContainingThis, long index,
-                                      Script script, LinkedList<byte[]> stack) throws ScriptException {
+    private static void executeScript(Transaction txContainingThis, long index, Script script, LinkedList<byte[]> stack,
+                                      ECKey.BatchVerifier deferredSignatures) throws ScriptException {
         int opCount = 0;
         int lastCodeSepLocation = 0;
         
@@ -985,11 +985,8 @@ public class Script {
                 case OP_SHA256:
                     if (stack.size() < 1)
                         throw new ScriptException("Attempted OP_SHA256 on an empty stack");
-                    try {
-                        stack.add(MessageDigest.getInstance("SHA-256").digest(stack.pollLast()));
-                    } catch (NoSuchAlgorithmException e) {
-                        throw new RuntimeException(e);  // Cannot happen.
-                    }
+                    byte[] data = stack.pollLast();
+                    stack.add(Utils.singleDigest(data, 0, data.length));
                     break;
                 case OP_HASH160:
                     if (stack.size() < 1)
@@ -1006,7 +1003,8 @@ public class Script {
                     break;
                 case OP_CHECKSIG:
                 case OP_CHECKSIGVERIFY:
-                    executeCheckSig(txContainingThis, (int) index, script, stack, lastCodeSepLocation, opcode);
+                    executeCheckSig(txContainingThis, (int) index, script, stack, lastCodeSepLocation, opcode,
+                            deferredSignatures);
                     break;
                 case OP_CHECKMULTISIG:
                 case OP_CHECKMULTISIGVERIFY:
@@ -1037,8 +1035,25 @@ public class Script {
             throw new ScriptException("OP_IF/OP_NOTIF without OP_ENDIF");
     }
 
+    private static boolean verifySignature(Sha256Hash hash, byte[] sig, byte[] pubKey) {
+        SignatureCache cache = SignatureCache.getDefault();
+        if (cache != null)
+            return cache.verify(hash.getBytes(), sig, pubKey);
+        return ECKey.verify(hash.getBytes(), sig, pubKey);
+    }
+
+    // Assumes the signature is valid, leaving it to be checked later, unless the cache already knows it is.
+    private static boolean deferSignature(Sha256Hash hash, byte[] sig, byte[] pubKey,
+                                          ECKey.BatchVerifier deferredSignatures) {
+        SignatureCache cache = SignatureCache.getDefault();
+        if (cache == null || !cache.contains(hash.getBytes(), sig, pubKey))
+            deferredSignatures.add(hash.getBytes(), sig, pubKey);
+        return true;
+    }
+
     private static void executeCheckSig(Transaction txContainingThis, int index, Script script, LinkedList<byte[]> stack,
-                                        int lastCodeSepLocation, int opcode) throws ScriptException {
+                                        int lastCodeSepLocation, int opcode,
+                                        ECKey.BatchVerifier deferredSignatures) throws ScriptException {
         if (stack.size() < 2)
             throw new ScriptException("Attempted OP_CHECKSIG(VERIFY) on a stack with size < 2");
         byte[] pubKey = stack.pollLast();
@@ -1062,7 +1077,10 @@ public class Script {
 
         boolean sigValid;
         try {
-            sigValid = ECKey.verify(hash.getBytes(), Arrays.copyOf(sig, sig.length - 1), pubKey);
+            if (deferredSignatures != null)
+                sigValid = deferSignature(hash, Arrays.copyOf(sig, sig.length - 1), pubKey, deferredSignatures);
+            else
+                sigValid = verifySignature(hash, Arrays.copyOf(sig, sig.length - 1), pubKey);
         } catch (Exception e1) {
             // There is (at least) one exception that could be hit here (EOFException, if the sig is too short)
             // Because I can't verify there aren't more, we use a very generic Exception catch
@@ -1134,7 +1152,7 @@ public class Script {
             // more expensive than hashing, its not a big deal.
             Sha256Hash hash = txContainingThis.hashTransactionForSignature(index, connectedScript, sig[sig.length - 1]);
             try {
-                if (ECKey.verify(hash.getBytes(), Arrays.copyOf(sig, sig.length - 1), pubKey))
+                if (verifySignature(hash, Arrays.copyOf(sig, sig.length - 1), pubKey))
                     sigs.pollFirst();
             } catch (Exception e) {
                 // There is (at least) one exception that could be hit here (EOFException, if the sig is too short)
@@ -1169,16 +1187,30 @@ public class Script {
      */
     public void correctlySpends(Transaction txContainingThis, long scriptSigIndex, Script scriptPubKey,
                                 boolean enforceP2SH) throws ScriptException {
+        correctlySpends(txContainingThis, scriptSigIndex, scriptPubKey, enforceP2SH, null);
+    }
+
+    /**
+     * <p>Like {@link #correctlySpends(Transaction, long, Script, boolean)}, but if deferredSignatures is not null the
+     * signatures checked by OP_CHECKSIG and OP_CHECKSIGVERIFY are assumed to be valid and added to it instead of
+     * being verified. OP_CHECKMULTISIG still verifies its signatures straight away.</p>
+     *
+     * <p>The result only holds if every deferred signature turns out to be valid. If one doesn't, or if this throws,
+     * the input has to be verified again without deferring to find out whether it really is valid, as a script is
+     * free to expect a signature to fail.</p>
+     */
+    public void correctlySpends(Transaction txContainingThis, long scriptSigIndex, Script scriptPubKey,
+                                boolean enforceP2SH, ECKey.BatchVerifier deferredSignatures) throws ScriptException {
         if (getProgram().length > 10000 || scriptPubKey.getProgram().length > 10000)
             throw new ScriptException("Script larger than 10,000 bytes");
         
         LinkedList<byte[]> stack = new LinkedList<byte[]>();
         LinkedList<byte[]> p2shStack = null;
         
-        executeScript(txContainingThis, scriptSigIndex, this, stack);
+        executeScript(txContainingThis, scriptSigIndex, this, stack, deferredSignatures);
         if (enforceP2SH)
             p2shStack = new LinkedList<byte[]>(stack);
-        executeScript(txContainingThis, scriptSigIndex, scriptPubKey, stack);
+        executeScript(txContainingThis, scriptSigIndex, scriptPubKey, stack, deferredSignatures);
         
         if (stack.size() == 0)
             throw new ScriptException("Stack empty at end of script execution.");
@@ -1207,7 +1239,7 @@ public class Script {
             byte[] scriptPubKeyBytes = p2shStack.pollLast();
             Script scriptPubKeyP2SH = new Script(scriptPubKeyBytes);
             
-            executeScript(txContainingThis, scriptSigIndex, scriptPubKeyP2SH, p2shStack);
+            executeScript(txContainingThis, scriptSigIndex, scriptPubKeyP2SH, p2shStack, deferredSignatures);
             
             if (p2shStack.size() == 0)
                 throw new ScriptException("P2SH stack empty at end of script execution.");
@@ -0,0 +1,189 @@
+/**
+ * Copyright 2013 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.bitcoin.store;
+
+import com.google.bitcoin.core.Sha256Hash;
+import com.google.bitcoin.core.StoredBlock;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * <p>Remembers the hashes of the blocks on the best chain of a {@link BlockStore} by height, so that
+ * {@link BlockStore#getAncestor(StoredBlock, int)} can go straight to an ancestor instead of following
+ * {@link StoredBlock#getPrev(BlockStore)} one block at a time. Block stores own one of these and tell it whenever
+ * their chain head moves.</p>
+ *
+ * <p>The table covers a run of heights that ends at the chain head. It starts out holding only the head and grows
+ * downwards as older ancestors are asked for, so each block below the head is read at most once to fill it in, and a
+ * store that is never asked for old ancestors never pays for them. Moving the head onto a new chain only rewrites the
+ * heights above the split. A block that isn't on the best chain is walked back until it meets it, which is as far as
+ * its side chain goes.</p>
+ *
+ * <p>The index is never locked while the store is being read, so it is safe to use from a store's own methods.</p>
+ */
+public class AncestorIndex {
+    private static final int CHUNK_HEIGHTS = 2048;
+
+    private final BlockStore store;
+
+    // Chunk i holds the hashes of heights i * CHUNK_HEIGHTS up to the next chunk, and is only allocated once written.
+    // Everything below is guarded by this.
+    private final ArrayList<byte[]> chunks = new ArrayList<byte[]>();
+    private int lowest = 0;
+    private int highest = -1;
+
+    public AncestorIndex(BlockStore store) {
+        this.store = store;
+    }
+
+    /**
+     * Moves the top of the table to the given block. Must be called whenever the store's chain head changes, and not
+     * from more than one thread at a time.
+     */
+    public void setChainHead(StoredBlock head) throws BlockStoreException {
+        // Walk back from the new head until it links up with the chain we already have. Usually the head just extends
+        // it, which is seen from its previous block hash without reading anything. If the head jumped several blocks,
+        // the ones in between are read on the way down. Only a walk that drops below the table without meeting it
+        // starts the table again.
+        List<StoredBlock> path = new ArrayList<StoredBlock>();
+        path.add(head);
+        StoredBlock cursor = head;
+        boolean linked = false;
+        while (cursor.getHeight() > 0) {
+            synchronized (this) {
+                int prevHeight = cursor.getHeight() - 1;
+                if (highest < 0 || prevHeight < lowest)
+                    break;
+                if (prevHeight <= highest && cursor.getHeader().getPrevBlockHash().equals(hashAt(prevHeight))) {
+                    linked = true;
+                    break;
+                }
+            }
+            cursor = cursor.getPrev(store);
+            if (cursor == null)
+                break;
+            path.add(cursor);
+        }
+        synchronized (this) {
+            if (!linked)
+                lowest = path.get(path.size() - 1).getHeight();
+            highest = head.getHeight();
+            for (StoredBlock block : path)
+                set(block.getHeight(), block.getHeader().getHash());
+        }
+    }
+
+    /**
+     * Returns the ancestor of the given block at the given height, the block itself if the height is its own, or
+     * null if the height is out of range or an ancestor on the way is missing from the store.
+     */
+    public StoredBlock getAncestor(StoredBlock block, int height) throws BlockStoreException {
+        if (height < 0 || height > block.getHeight())
+            return null;
+        seed();
+        StoredBlock cursor = block;
+        while (cursor.getHeight() > height) {
+            Sha256Hash hash = null;
+            boolean onBestChain;
+            synchronized (this) {
+                onBestChain = contains(cursor);
+                if (onBestChain && height >= lowest)
+                    hash = hashAt(height);
+            }
+            if (hash != null)
+                return store.get(hash);
+            if (onBestChain) {
+                if (!extendTo(height))
+                    return null;
+                continue;
+            }
+            cursor = cursor.getPrev(store);
+            if (cursor == null)
+                return null;
+        }
+        return cursor;
+    }
+
+    // A store that was just opened hasn't told us its head yet.
+    private void seed() throws BlockStoreException {
+        synchronized (this) {
+            if (highest >= 0)
+                return;
+        }
+        StoredBlock head = store.getChainHead();
+        synchronized (this) {
+            if (highest >= 0 || head == null)
+                return;
+            lowest = highest = head.getHeight();
+            set(head.getHeight(), head.getHeader().getHash());
+        }
+    }
+
+    // Fills in the table down to the given height, returning false if a block on the way is missing from the store.
+    private boolean extendTo(int height) throws BlockStoreException {
+        int low;
+        Sha256Hash lowHash;
+        synchronized (this) {
+            if (height >= lowest)
+                return true;
+            low = lowest;
+            lowHash = hashAt(low);
+        }
+        StoredBlock cursor = store.get(lowHash);
+        List<Sha256Hash> hashes = new ArrayList<Sha256Hash>();
+        while (cursor != null && cursor.getHeight() > height) {
+            cursor = cursor.getPrev(store);
+            if (cursor != null)
+                hashes.add(cursor.getHeader().getHash());
+        }
+        synchronized (this) {
+            // If the chain head moved below where we started, leave it to the caller to look again. Otherwise keep
+            // what we found even if we didn't get all the way, so the same blocks aren't walked over next time.
+            if (lowest == low && lowHash.equals(hashAt(low))) {
+                for (int i = 0; i < hashes.size(); i++)
+                    set(low - 1 - i, hashes.get(i));
+                lowest = low - hashes.size();
+            }
+        }
+        return cursor != null;
+    }
+
+    private boolean contains(StoredBlock block) {
+        int height = block.getHeight();
+        return height >= lowest && height <= highest && block.getHeader().getHash().equals(hashAt(height));
+    }
+
+    private Sha256Hash hashAt(int height) {
+        byte[] chunk = chunks.get(height / CHUNK_HEIGHTS);
+        byte[] hash = new byte[32];
+        System.arraycopy(chunk, (height % CHUNK_HEIGHTS) * 32, hash, 0, 32);
+        return new Sha256Hash(hash);
+    }
+
+    private void set(int height, Sha256Hash hash) {
+        int index = height / CHUNK_HEIGHTS;
+        while (chunks.size() <= index)
+            chunks.add(null);
+        byte[] chunk = chunks.get(index);
+        if (chunk == null) {
+            chunk = new byte[CHUNK_HEIGHTS * 32];
+            chunks.set(index, chunk);
+        }
+        System.arraycopy(hash.getBytes(), 0, chunk, (height % CHUNK_HEIGHTS) * 32, 32);
+    }
+}
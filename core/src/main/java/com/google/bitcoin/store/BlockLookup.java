@@ -0,0 +1,40 @@
+/**
+ * Copyright 2013 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.bitcoin.store;
+
+import com.google.bitcoin.core.Sha256Hash;
+import com.google.bitcoin.core.StoredBlock;
+
+/**
+ * Read only access to stored headers, which is all that checking a header against the chain it builds on needs. Every
+ * {@link BlockStore} provides it, and so can anything else that holds headers not yet in a store, such as headers
+ * queued during a download.
+ */
+public interface BlockLookup {
+    /**
+     * Returns the StoredBlock given a hash. The returned values block.getHash() method will be equal to the
+     * parameter. If no such block is found, returns null.
+     */
+    StoredBlock get(Sha256Hash hash) throws BlockStoreException;
+
+    /**
+     * Returns the ancestor of the given block at the given height, or the block itself if that is its height. Returns
+     * null if the height is negative or above the block, or if an ancestor on the way is no longer in the store.
+     * Ancestors on the best chain are found without reading every block in between, see {@link AncestorIndex}.
+     */
+    StoredBlock getAncestor(StoredBlock block, int height) throws BlockStoreException;
+}
@@ -16,7 +16,6 @@
 
 package com.google.bitcoin.store;
 
-import com.google.bitcoin.core.Sha256Hash;
 import com.google.bitcoin.core.StoredBlock;
 
 /**
@@ -27,9 +26,9 @@ import com.google.bitcoin.core.StoredBlock;
  * A BlockStore is a map of hashes to StoredBlock. The hash is the double digest of the BitCoin serialization
  * of the block header, <b>not</b> the header with the extra data as well.<p>
  *
- * BlockStores are thread safe.
+ * BlockStores are thread safe. Headers are read through the methods of {@link BlockLookup}.
  */
-public interface BlockStore {
+public interface BlockStore extends BlockLookup {
     /**
      * Saves the given block header+extra data. The key isn't specified explicitly as it can be calculated from the
      * StoredBlock directly. Can throw if there is a problem with the underlying storage layer such as running out of
@@ -37,12 +36,6 @@ public interface BlockStore {
      */
     void put(StoredBlock block) throws BlockStoreException;
 
-    /**
-     * Returns the StoredBlock given a hash. The returned values block.getHash() method will be equal to the
-     * parameter. If no such block is found, returns null.
-     */
-    StoredBlock get(Sha256Hash hash) throws BlockStoreException;
-
     /**
      * Returns the {@link StoredBlock} that represents the top of the chain of greatest total work. Note that this
      * can be arbitrarily expensive, you probably should use {@link com.google.bitcoin.core.BlockChain#getChainHead()}
@@ -55,7 +48,7 @@ public interface BlockStore {
      * Sets the {@link StoredBlock} that represents the top of the chain of greatest total work.
      */
     void setChainHead(StoredBlock chainHead) throws BlockStoreException;
-    
+
     /** Closes the store. */
     void close() throws BlockStoreException;
 }
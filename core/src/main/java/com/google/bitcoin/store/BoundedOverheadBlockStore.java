@@ -25,17 +25,14 @@ import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.RandomAccessFile;
-import java.math.BigInteger;
 import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
 import java.nio.channels.FileChannel;
 import java.nio.channels.FileLock;
 import java.nio.channels.OverlappingFileLockException;
-import java.util.Date;
 import java.util.LinkedHashMap;
 import java.util.Map;
 
-import static com.google.common.base.Preconditions.checkState;
-
 /**
  * <p></p>Stores the block chain to disk.<p>
  *
@@ -45,6 +42,10 @@ import static com.google.common.base.Preconditions.checkState;
  * needed to process a re-org.</p>
  *
  * <p>This class will eventually be deleted.</p>
+ *
+ * <p>Blocks are found through a hash index kept in a second file next to the store (the store's file name plus
+ * ".idx"), which is built the first time the store is opened without one, and rebuilt if the store wasn't closed
+ * cleanly. Records are read from disk a batch at a time, so walking back along the chain mostly hits memory.</p>
  */
 @Deprecated
 public class BoundedOverheadBlockStore implements BlockStore {
@@ -67,7 +68,7 @@ public class BoundedOverheadBlockStore implements BlockStore {
     //
     // We don't care about the value in this cache. It is always notFoundMarker. Unfortunately LinkedHashSet does not
     // provide the removeEldestEntry control.
-    private static final StoredBlock notFoundMarker = new StoredBlock(null, null, -1);
+    private static final StoredBlock notFoundMarker = new StoredBlock(null, ChainWork.ZERO, -1);
     private LinkedHashMap<Sha256Hash, StoredBlock> notFoundCache = new LinkedHashMap<Sha256Hash, StoredBlock>() {
         @Override
         protected boolean removeEldestEntry(Map.Entry<Sha256Hash, StoredBlock> entry) {
@@ -76,39 +77,46 @@ public class BoundedOverheadBlockStore implements BlockStore {
     };
 
     private Sha256Hash chainHead;
+    private final AncestorIndex ancestors = new AncestorIndex(this);
     private final NetworkParameters params;
     private FileChannel channel;
     private FileLock lock;
     private String fileName;
 
+    // The hash index. Each bucket holds the hash code of a block and the number of its record plus one, or zeros if
+    // it is empty. Hits are checked against the record, so the index can never hand out the wrong block.
+    private RandomAccessFile indexFile;
+    private MappedByteBuffer index;
+    private int numBuckets;
+
+    // The records last read from disk. A miss reads the batch ending just after the record wanted, as blocks are
+    // mostly looked up walking backwards along the chain.
+    private static final int READ_AHEAD_RECORDS = 128;
+    private final ByteBuffer readAhead = ByteBuffer.allocate(READ_AHEAD_RECORDS * Record.SIZE);
+    private int readAheadFirst = 0;
+    private int readAheadCount = 0;
+
     private static class Record {
-        // A BigInteger representing the total amount of work done so far on this chain. As of May 2011 it takes 8
-        // bytes to represent this field, so 16 bytes should be plenty for a long time.
-        private static final int CHAIN_WORK_BYTES = 16;
-        private static final byte[] EMPTY_BYTES = new byte[CHAIN_WORK_BYTES];
+        // The total amount of work done so far on this chain. As of May 2011 it takes 8 bytes to represent this field,
+        // so 16 bytes should be plenty for a long time.
+        private static final int CHAIN_WORK_BYTES = ChainWork.MAX_BYTES;
 
         private int height;           // 4 bytes
-        private byte[] chainWork;     // 16 bytes
+        private ChainWork chainWork;  // 16 bytes
         private byte[] blockHeader;   // 80 bytes
 
         public static final int SIZE = 4 + Record.CHAIN_WORK_BYTES + Block.HEADER_SIZE;
 
         public Record() {
             height = 0;
-            chainWork = new byte[CHAIN_WORK_BYTES];
+            chainWork = ChainWork.ZERO;
             blockHeader = new byte[Block.HEADER_SIZE];
         }
 
         public static void write(FileChannel channel, StoredBlock block) throws IOException {
             ByteBuffer buf = ByteBuffer.allocate(Record.SIZE);
             buf.putInt(block.getHeight());
-            byte[] chainWorkBytes = block.getChainWork().toByteArray();
-            checkState(chainWorkBytes.length <= CHAIN_WORK_BYTES, "Ran out of space to store chain work!");
-            if (chainWorkBytes.length < CHAIN_WORK_BYTES) {
-                // Pad to the right size.
-                buf.put(EMPTY_BYTES, 0, CHAIN_WORK_BYTES - chainWorkBytes.length);
-            }
-            buf.put(chainWorkBytes);
+            block.getFixedChainWork().write(buf, CHAIN_WORK_BYTES);
             buf.put(block.getHeader().cloneAsHeader().bitcoinSerialize());
             buf.position(0);
             channel.position(channel.size());
@@ -117,32 +125,24 @@ public class BoundedOverheadBlockStore implements BlockStore {
             channel.position(channel.size() - Record.SIZE);
         }
 
-        public boolean read(FileChannel channel, long position, ByteBuffer buffer) throws IOException {
-            buffer.position(0);
-            long bytesRead = channel.read(buffer, position);
-            if (bytesRead < Record.SIZE)
-                return false;
-            buffer.position(0);
+        public void read(ByteBuffer buffer) {
             height = buffer.getInt();
-            buffer.get(chainWork);
+            chainWork = ChainWork.read(buffer, CHAIN_WORK_BYTES);
             buffer.get(blockHeader);
-            return true;
         }
 
-        public BigInteger getChainWork() {
-            return new BigInteger(1, chainWork);
-        }
-
-        public Block getHeader(NetworkParameters params) throws ProtocolException {
-            return new Block(params, blockHeader);
+        /** Returns the hash of the header, without parsing it into a block. */
+        public Sha256Hash getHash() {
+            return Sha256Hash.createDoubleReversed(blockHeader, 0, blockHeader.length);
         }
 
         public int getHeight() {
             return height;
         }
 
-        public StoredBlock toStoredBlock(NetworkParameters params) throws ProtocolException {
-            return new StoredBlock(getHeader(params), getChainWork(), getHeight());
+        // Compact, as the cache holds a couple of thousand of these. The hash is the one the record was found by.
+        public StoredBlock toStoredBlock(NetworkParameters params, Sha256Hash hash) {
+            return StoredBlock.compact(params, blockHeader, hash, chainWork, height);
         }
     }
 
@@ -170,6 +170,7 @@ public class BoundedOverheadBlockStore implements BlockStore {
     private void createNewStore(NetworkParameters params, File file) throws BlockStoreException {
         // Create a new block store if the file wasn't found or anything went wrong whilst reading.
         blockCache.clear();
+        readAheadCount = 0;
         try {
             if (file.exists()) {
                 if (!file.delete())
@@ -180,6 +181,8 @@ public class BoundedOverheadBlockStore implements BlockStore {
             this.channel = this.file.getChannel();
             lock();
             this.file.write(FILE_FORMAT_VERSION);
+            this.file.write(new byte[32]);  // Room for the chain head.
+            openIndex(true);
         } catch (IOException e1) {
             // We could not load a block store nor could we create a new one!
             throw new BlockStoreException(e1);
@@ -189,7 +192,7 @@ public class BoundedOverheadBlockStore implements BlockStore {
             Block genesis = params.getGenesisBlock().cloneAsHeader();
             StoredBlock storedGenesis = new StoredBlock(genesis, genesis.getWork(), 0);
             this.chainHead = storedGenesis.getHeader().getHash();
-            this.file.write(this.chainHead.getBytes());
+            channel.write(ByteBuffer.wrap(this.chainHead.getBytes()), 1);
             put(storedGenesis);
         } catch (VerificationException e1) {
             throw new RuntimeException(e1);  // Cannot happen.
@@ -221,10 +224,13 @@ public class BoundedOverheadBlockStore implements BlockStore {
                 throw new BlockStoreException("Truncated store: could not read chain head hash.");
             this.chainHead = new Sha256Hash(chainHeadHash);
             log.info("Read chain head from disk: {}", this.chainHead);
-            channel.position(channel.size() - Record.SIZE);
+            openIndex(false);
         } catch (IOException e) {
             if (this.file != null)
                 this.file.close();
+            if (indexFile != null)
+                indexFile.close();
+            indexFile = null;
             throw e;
         } catch (BlockStoreException e) {
             this.file.close();
@@ -262,9 +268,11 @@ public class BoundedOverheadBlockStore implements BlockStore {
         ensureOpen();
         try {
             Sha256Hash hash = block.getHeader().getHash();
+            int record = numRecords();
             // Append to the end of the file.
             Record.write(channel, block);
-            blockCache.put(hash, block);
+            indexPut(hash, record);
+            blockCache.put(hash, block.toCompact());
         } catch (IOException e) {
             throw new BlockStoreException(e);
         }
@@ -287,56 +295,156 @@ public class BoundedOverheadBlockStore implements BlockStore {
             if (fromDisk == null) {
                 notFoundCache.put(hash, notFoundMarker);
             } else {
-                block = fromDisk.toStoredBlock(params);
+                block = fromDisk.toStoredBlock(params, hash);
                 blockCache.put(hash, block);
             }
             return block;
         } catch (IOException e) {
             throw new BlockStoreException(e);
-        } catch (ProtocolException e) {
-            throw new BlockStoreException(e);
         }
     }
 
-    private ByteBuffer buf = ByteBuffer.allocateDirect(Record.SIZE);
+    private static final long RECORDS_START = 1 + 32;  // Version byte and chain head.
+
+    private int numRecords() throws IOException {
+        return (int) ((channel.size() - RECORDS_START) / Record.SIZE);
+    }
+
+    private Record getRecord(Sha256Hash hash) throws IOException {
+        int bucket = indexFind(hash);
+        return bucket < 0 ? null : readRecord(index.getInt(bucketOffset(bucket) + 4) - 1);
+    }
 
-    private Record getRecord(Sha256Hash hash) throws IOException, ProtocolException {
-        long startPos = channel.position();
-        // Use our own file pointer within the tight loop as updating channel positions is really expensive.
-        long pos = startPos;
+    private Record readRecord(int number) throws IOException {
+        if (number < readAheadFirst || number >= readAheadFirst + readAheadCount) {
+            readAheadFirst = Math.max(0, number + 2 - READ_AHEAD_RECORDS);
+            readAheadCount = Math.min(READ_AHEAD_RECORDS, numRecords() - readAheadFirst);
+            readRecords(readAheadFirst, readAheadCount, readAhead);
+        }
+        readAhead.position((number - readAheadFirst) * Record.SIZE);
         Record record = new Record();
-        int numMoves = 0;
-        long startTime = new Date().getTime();
-        do {
-            if (!record.read(channel, pos, buf))
+        record.read(readAhead);
+        return record;
+    }
+
+    private void readRecords(int first, int count, ByteBuffer buffer) throws IOException {
+        buffer.clear();
+        buffer.limit(count * Record.SIZE);
+        long position = RECORDS_START + (long) first * Record.SIZE;
+        while (buffer.hasRemaining()) {
+            int read = channel.read(buffer, position + buffer.position());
+            if (read < 0) {
+                readAheadCount = 0;
                 throw new IOException("Failed to read buffer");
-            if (record.getHeader(params).getHash().equals(hash)) {
-                // Found it. Update file position for next time.
-                channel.position(pos);
-                long endTime = new Date().getTime();
-                if (endTime - startTime > 100) {
-                    log.info("Spent {} seconds doing {} backwards seeks", (endTime - startTime) / 1000.0, numMoves);
-                }
-                return record;
             }
-            // Did not find it.
-            if (pos == 1 + 32) {
-                // At the start so wrap around to the end.
-                pos = channel.size() - Record.SIZE;
-            } else {
-                // Move backwards.
-                pos = pos - Record.SIZE;
-                checkState(pos >= 1 + 32, pos);
+        }
+        buffer.flip();
+    }
+
+    //////////////////////////////////////////////////////////////////////////////////////////////////////////////////
+    // The hash index.
+
+    /**
+     * Maps the hash index, creating it if needed. It is rebuilt from the records if it is new, looks wrong, or was
+     * not marked clean by {@link #close()}. Records appended since it was last written, for instance by an older
+     * version that didn't know about it, are added. While the store is open the index is marked as not clean.
+     */
+    private void openIndex(boolean newStore) throws IOException {
+        int count = numRecords();
+        indexFile = new RandomAccessFile(fileName + ".idx", "rw");
+        long length = indexFile.length();
+        boolean valid = false;
+        if (!newStore && length >= INDEX_PROLOGUE_BYTES && length <= Integer.MAX_VALUE) {
+            index = indexFile.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, length);
+            byte[] magic = new byte[4];
+            index.get(magic);
+            numBuckets = index.getInt(4);
+            valid = new String(magic, "US-ASCII").equals(INDEX_MAGIC) && Integer.bitCount(numBuckets) == 1 &&
+                    length == bucketOffset(numBuckets) && index.getInt(8) <= count &&
+                    index.getInt(12) == INDEX_CLEAN;
+        }
+        if (valid) {
+            for (int record = index.getInt(8); record < count; record++)
+                indexPut(readRecord(record).getHash(), record);
+        } else {
+            if (!newStore)
+                log.info("Building the block store index for {} blocks", count);
+            rebuildIndex(Math.max(INITIAL_BUCKETS, Integer.highestOneBit(Math.max(count, 1)) * 4));
+        }
+        index.putInt(12, 0);
+        index.force();
+    }
+
+    private void rebuildIndex(int buckets) throws IOException {
+        numBuckets = buckets;
+        indexFile.setLength(bucketOffset(buckets));
+        index = indexFile.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, bucketOffset(buckets));
+        index.position(0);
+        index.put(INDEX_MAGIC.getBytes("US-ASCII"));
+        index.putInt(4, buckets);
+        for (int i = 0; i < buckets; i++)
+            index.putLong(bucketOffset(i), 0);
+        // Straight through the file, a batch at a time. Later copies of a block win, as they did for the old scan.
+        int count = numRecords();
+        ByteBuffer buffer = ByteBuffer.allocate(READ_AHEAD_RECORDS * Record.SIZE);
+        Record record = new Record();
+        for (int first = 0; first < count; first += READ_AHEAD_RECORDS) {
+            int batch = Math.min(READ_AHEAD_RECORDS, count - first);
+            readRecords(first, batch, buffer);
+            for (int i = 0; i < batch; i++) {
+                record.read(buffer);
+                Sha256Hash hash = record.getHash();
+                int bucket = indexFind(hash);
+                if (bucket < 0)
+                    bucket = emptyBucket(hash);
+                setBucket(bucket, hash, first + i);
             }
-            numMoves++;
-        } while (pos != startPos);
-        // Was never stored.
-        channel.position(pos);
-        long endTime = new Date().getTime();
-        if (endTime - startTime > 1000) {
-            log.info("Spent {} seconds doing {} backwards seeks", (endTime - startTime) / 1000.0, numMoves);
         }
-        return null;
+        index.putInt(8, count);
+    }
+
+    private static int bucketOffset(int bucket) {
+        return INDEX_PROLOGUE_BYTES + bucket * 8;
+    }
+
+    /** Returns the bucket holding the given hash, or -1. */
+    private int indexFind(Sha256Hash hash) throws IOException {
+        int tag = hash.hashCode();
+        int bucket = tag & (numBuckets - 1);
+        for (int i = 0; i < numBuckets; i++, bucket = (bucket + 1) & (numBuckets - 1)) {
+            int entry = index.getInt(bucketOffset(bucket) + 4);
+            if (entry == 0)
+                return -1;
+            // Only read the record if the hash code matches.
+            if (index.getInt(bucketOffset(bucket)) == tag && readRecord(entry - 1).getHash().equals(hash))
+                return bucket;
+        }
+        return -1;
+    }
+
+    private int emptyBucket(Sha256Hash hash) {
+        int bucket = hash.hashCode() & (numBuckets - 1);
+        while (index.getInt(bucketOffset(bucket) + 4) != 0)
+            bucket = (bucket + 1) & (numBuckets - 1);
+        return bucket;
+    }
+
+    private void setBucket(int bucket, Sha256Hash hash, int record) {
+        index.putInt(bucketOffset(bucket), hash.hashCode());
+        index.putInt(bucketOffset(bucket) + 4, record + 1);
+    }
+
+    private void indexPut(Sha256Hash hash, int record) throws IOException {
+        if ((record + 1) * 2L > numBuckets) {
+            // Keeps the table at most half full. This indexes the new record too.
+            rebuildIndex(numBuckets * 2);
+            return;
+        }
+        int bucket = indexFind(hash);
+        if (bucket < 0)
+            bucket = emptyBucket(hash);
+        setBucket(bucket, hash, record);
+        index.putInt(8, record + 1);
     }
 
     public synchronized StoredBlock getChainHead() throws BlockStoreException {
@@ -357,11 +465,23 @@ public class BoundedOverheadBlockStore implements BlockStore {
         } catch (IOException e) {
             throw new BlockStoreException(e);
         }
+        ancestors.setChainHead(chainHead);
+    }
+
+    public StoredBlock getAncestor(StoredBlock block, int height) throws BlockStoreException {
+        return ancestors.getAncestor(block, height);
     }
 
-    public void close() throws BlockStoreException {
+    public synchronized void close() throws BlockStoreException {
         ensureOpen();
         try {
+            if (index != null) {
+                // The index matches the records, so it can be trusted next time.
+                index.putInt(12, INDEX_CLEAN);
+                index.force();
+                index = null;
+                indexFile.close();
+            }
             file.close();
         } catch (IOException e) {
             throw new BlockStoreException(e);
@@ -370,4 +490,15 @@ public class BoundedOverheadBlockStore implements BlockStore {
             file = null;
         }
     }
+
+    // Index file format:
+    //   4 header bytes = "BOSI"
+    //   4 bytes number of buckets
+    //   4 bytes number of records indexed
+    //   4 bytes INDEX_CLEAN if the store was closed cleanly, otherwise zero
+    //   then for each bucket, 4 bytes hash code of the block and 4 bytes its record number plus one, or zeros
+    private static final String INDEX_MAGIC = "BOSI";
+    private static final int INDEX_PROLOGUE_BYTES = 16;
+    private static final int INITIAL_BUCKETS = 8192;
+    private static final int INDEX_CLEAN = 0x434c4e21;
 }
@@ -0,0 +1,471 @@
+/**
+ * Copyright 2013 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.bitcoin.store;
+
+import com.google.bitcoin.core.Sha256Hash;
+import com.google.bitcoin.core.StoredBlock;
+import com.google.bitcoin.core.StoredTransactionOutput;
+import com.google.bitcoin.core.StoredUndoableBlock;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.*;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
+
+/**
+ * <p>A write-back cache of unspent transaction outputs that sits in front of any other {@link FullPrunedBlockStore}.
+ * </p>
+ *
+ * <p>Lots of outputs are spent within a few blocks of being created. Connecting blocks directly against a database
+ * turns each of those into an insert followed shortly after by a delete. This store instead keeps newly created
+ * outputs and spends in memory: an output that is created and spent before the next flush never reaches the backing
+ * store at all, whether that happens within one batch write or across several. Once the cache grows beyond its memory
+ * limit all the outstanding changes are written to the backing store in one batch, together with the verified chain
+ * head they correspond to, and then the least recently used clean entries are evicted.</p>
+ *
+ * <p>Because the verified chain head is only passed on when the outputs are flushed, the backing store always holds
+ * an unspent output set that matches its verified chain head, so nothing is corrupted if the process dies with
+ * changes still in the cache. The blocks after that point are simply connected again. Remember to {@link #close()}
+ * (or at least {@link #flush()}) the store when shutting down.</p>
+ *
+ * <p>Headers, undoable blocks and the regular chain head are passed straight through. Per-thread batch writes follow
+ * the {@link FullPrunedBlockStore} contract: outputs written in a batch are only visible to the writing thread until
+ * commit, and are thrown away on abort.</p>
+ */
+public class CachingFullPrunedBlockStore implements IterableFullPrunedBlockStore {
+    private static final Logger log = LoggerFactory.getLogger(CachingFullPrunedBlockStore.class);
+
+    /** The default memory limit, in bytes. */
+    public static final long DEFAULT_MAX_BYTES = 64 * 1024 * 1024;
+
+    // A rough guess at the heap used by a cache entry not counting the script: the map entry, the entry object, the
+    // key, two hash objects, the output and its BigInteger.
+    private static final int ENTRY_OVERHEAD_BYTES = 240;
+
+    private enum State {
+        /** The backing store has this output and we have a copy of it. */
+        CLEAN,
+        /** This output was created since the last flush and the backing store doesn't have it yet. */
+        CREATED,
+        /** This output was spent since the last flush and the backing store still has it. */
+        SPENT
+    }
+
+    private static class Entry {
+        StoredTransactionOutput output;
+        State state;
+
+        Entry(StoredTransactionOutput output, State state) {
+            this.output = output;
+            this.state = state;
+        }
+    }
+
+    /** Uncommitted writes made by one thread. A null value is a spend of an output the committed view has. */
+    private static class Batch {
+        final Map<StoredTransactionOutPoint, StoredTransactionOutput> outputs =
+                new HashMap<StoredTransactionOutPoint, StoredTransactionOutput>();
+        StoredBlock verifiedChainHead;
+    }
+
+    private final FullPrunedBlockStore backing;
+    private final long maxBytes;
+    private final ThreadLocal<Batch> batch = new ThreadLocal<Batch>();
+
+    // Guarded by this. Iterates in least recently used order.
+    private final LinkedHashMap<StoredTransactionOutPoint, Entry> cache =
+            new LinkedHashMap<StoredTransactionOutPoint, Entry>(16, 0.75f, true);
+    private long cacheBytes;
+    private int dirtyEntries;
+    // The verified chain head the cached changes correspond to, or null if there are no changes since the last flush.
+    private StoredBlock pendingVerifiedChainHead;
+
+    private long hits, misses, flushes, flushedWrites, coalescedOutputs;
+
+    /** Creates a cache in front of the given store with the {@link #DEFAULT_MAX_BYTES} memory limit. */
+    public CachingFullPrunedBlockStore(FullPrunedBlockStore backing) {
+        this(backing, DEFAULT_MAX_BYTES);
+    }
+
+    /**
+     * Creates a cache in front of the given store.
+     * @param backing The store to write through to
+     * @param maxBytes Approximately how much memory the cached outputs may use before they are flushed and evicted
+     */
+    public CachingFullPrunedBlockStore(FullPrunedBlockStore backing, long maxBytes) {
+        checkArgument(maxBytes > 0);
+        this.backing = checkNotNull(backing);
+        this.maxBytes = maxBytes;
+    }
+
+    private static long sizeOf(StoredTransactionOutput output) {
+        return ENTRY_OVERHEAD_BYTES + output.getScriptBytes().length;
+    }
+
+    //////////////////////////////////////////////////////////////////////////////////////////////////////////////////
+    // Unspent outputs.
+
+    public StoredTransactionOutput getTransactionOutput(Sha256Hash hash, long index) throws BlockStoreException {
+        StoredTransactionOutPoint key = new StoredTransactionOutPoint(hash, index);
+        Batch b = batch.get();
+        if (b != null && b.outputs.containsKey(key))
+            return b.outputs.get(key);
+        return getCommitted(key, true);
+    }
+
+    /**
+     * Looks up an output ignoring the current thread's batch, loading it from the backing store if needed. Only
+     * lookups made for callers are counted in the hit and miss statistics, not the store's own checks.
+     */
+    private synchronized StoredTransactionOutput getCommitted(StoredTransactionOutPoint key, boolean count)
+            throws BlockStoreException {
+        Entry entry = cache.get(key);
+        if (entry != null) {
+            if (count)
+                hits++;
+            return entry.state == State.SPENT ? null : entry.output;
+        }
+        if (count)
+            misses++;
+        StoredTransactionOutput output = backing.getTransactionOutput(key.getHash(), key.getIndex());
+        if (output != null) {
+            cache.put(key, new Entry(output, State.CLEAN));
+            cacheBytes += sizeOf(output);
+        }
+        return output;
+    }
+
+    public void addUnspentTransactionOutput(StoredTransactionOutput out) throws BlockStoreException {
+        StoredTransactionOutPoint key = new StoredTransactionOutPoint(out);
+        Batch b = batch.get();
+        if (b != null) {
+            b.outputs.put(key, out);
+        } else {
+            synchronized (this) {
+                mergeCreated(key, out);
+            }
+            maybeFlush();
+        }
+    }
+
+    public void removeUnspentTransactionOutput(StoredTransactionOutput out) throws BlockStoreException {
+        StoredTransactionOutPoint key = new StoredTransactionOutPoint(out);
+        Batch b = batch.get();
+        if (b != null) {
+            boolean committed = getCommitted(key, false) != null;
+            if (b.outputs.containsKey(key)) {
+                if (b.outputs.get(key) == null)
+                    throw new BlockStoreException("Tried to remove a StoredTransactionOutput from CachingFullPrunedBlockStore that it didn't have!");
+                // Created earlier in this batch. If nobody else has seen it, the two just cancel out.
+                if (committed) {
+                    b.outputs.put(key, null);
+                } else {
+                    b.outputs.remove(key);
+                    synchronized (this) {
+                        coalescedOutputs++;
+                    }
+                }
+            } else {
+                if (!committed)
+                    throw new BlockStoreException("Tried to remove a StoredTransactionOutput from CachingFullPrunedBlockStore that it didn't have!");
+                b.outputs.put(key, null);
+            }
+        } else {
+            if (getCommitted(key, false) == null)
+                throw new BlockStoreException("Tried to remove a StoredTransactionOutput from CachingFullPrunedBlockStore that it didn't have!");
+            synchronized (this) {
+                mergeSpent(key, out);
+            }
+            maybeFlush();
+        }
+    }
+
+    public boolean hasUnspentOutputs(Sha256Hash hash, int numOutputs) throws BlockStoreException {
+        Batch b = batch.get();
+        List<Integer> unknown = new ArrayList<Integer>();
+        boolean anySpent = false;
+        synchronized (this) {
+            for (int i = 0; i < numOutputs; i++) {
+                StoredTransactionOutPoint key = new StoredTransactionOutPoint(hash, i);
+                if (b != null && b.outputs.containsKey(key)) {
+                    if (b.outputs.get(key) != null)
+                        return true;
+                    anySpent = true;
+                    continue;
+                }
+                Entry entry = cache.get(key);
+                if (entry == null) {
+                    unknown.add(i);
+                } else if (entry.state == State.SPENT) {
+                    anySpent = true;
+                } else {
+                    return true;
+                }
+            }
+        }
+        if (unknown.isEmpty())
+            return false;
+        // If nothing of this transaction is waiting to be spent, the backing store's answer is the right one.
+        if (!anySpent)
+            return backing.hasUnspentOutputs(hash, numOutputs);
+        for (int i : unknown)
+            if (getCommitted(new StoredTransactionOutPoint(hash, i), false) != null)
+                return true;
+        return false;
+    }
+
+    /**
+     * Flushes the cache and then walks the unspent outputs of the backing store, which must be an
+     * {@link IterableFullPrunedBlockStore}.
+     */
+    public void forEachUnspentOutput(OutputVisitor visitor) throws BlockStoreException {
+        if (!(backing instanceof IterableFullPrunedBlockStore))
+            throw new BlockStoreException("Backing store can't list its unspent outputs: " + backing.getClass().getName());
+        synchronized (this) {
+            flush();
+            ((IterableFullPrunedBlockStore) backing).forEachUnspentOutput(visitor);
+        }
+    }
+
+    // The two merge methods fold a committed change into the cache, cancelling out creates and spends that the
+    // backing store never needs to hear about. They must be called with the lock held.
+
+    private void mergeCreated(StoredTransactionOutPoint key, StoredTransactionOutput out) {
+        Entry entry = cache.get(key);
+        if (entry == null) {
+            cache.put(key, new Entry(out, State.CREATED));
+            cacheBytes += sizeOf(out);
+            dirtyEntries++;
+        } else if (entry.state == State.SPENT) {
+            // Un-spent again by a re-org before the spend was flushed: the backing store still has it.
+            entry.state = State.CLEAN;
+            dirtyEntries--;
+        }
+    }
+
+    private void mergeSpent(StoredTransactionOutPoint key, StoredTransactionOutput out) {
+        Entry entry = cache.get(key);
+        if (entry == null) {
+            cache.put(key, new Entry(out, State.SPENT));
+            cacheBytes += sizeOf(out);
+            dirtyEntries++;
+        } else if (entry.state == State.CREATED) {
+            cache.remove(key);
+            cacheBytes -= sizeOf(entry.output);
+            dirtyEntries--;
+            coalescedOutputs++;
+        } else if (entry.state == State.CLEAN) {
+            entry.state = State.SPENT;
+            dirtyEntries++;
+        }
+    }
+
+    //////////////////////////////////////////////////////////////////////////////////////////////////////////////////
+    // Batches, flushing and eviction.
+
+    public void beginDatabaseBatchWrite() throws BlockStoreException {
+        if (batch.get() == null)
+            batch.set(new Batch());
+        backing.beginDatabaseBatchWrite();
+    }
+
+    public void commitDatabaseBatchWrite() throws BlockStoreException {
+        Batch b = batch.get();
+        batch.remove();
+        // Headers and undoable blocks written in this batch go to the backing store now.
+        backing.commitDatabaseBatchWrite();
+        if (b == null)
+            return;
+        synchronized (this) {
+            for (Map.Entry<StoredTransactionOutPoint, StoredTransactionOutput> entry : b.outputs.entrySet()) {
+                if (entry.getValue() != null)
+                    mergeCreated(entry.getKey(), entry.getValue());
+                else
+                    mergeSpent(entry.getKey(), cache.containsKey(entry.getKey()) ? cache.get(entry.getKey()).output
+                            : backing.getTransactionOutput(entry.getKey().getHash(), entry.getKey().getIndex()));
+            }
+            if (b.verifiedChainHead != null)
+                pendingVerifiedChainHead = b.verifiedChainHead;
+        }
+        maybeFlush();
+    }
+
+    public void abortDatabaseBatchWrite() throws BlockStoreException {
+        batch.remove();
+        backing.abortDatabaseBatchWrite();
+    }
+
+    private void maybeFlush() throws BlockStoreException {
+        synchronized (this) {
+            if (cacheBytes <= maxBytes)
+                return;
+            flush();
+            // Evict clean entries until we're comfortably under the limit, so we don't flush again straight away.
+            Iterator<Entry> it = cache.values().iterator();
+            while (cacheBytes > maxBytes * 3 / 4 && it.hasNext()) {
+                Entry entry = it.next();
+                if (entry.state == State.CLEAN) {
+                    it.remove();
+                    cacheBytes -= sizeOf(entry.output);
+                }
+            }
+        }
+    }
+
+    /**
+     * Writes every cached change, along with the verified chain head it corresponds to, to the backing store in a
+     * single batch. Cached outputs stay in the cache.
+     */
+    public synchronized void flush() throws BlockStoreException {
+        if (dirtyEntries == 0 && pendingVerifiedChainHead == null)
+            return;
+        long startTime = System.currentTimeMillis();
+        int writes = 0;
+        backing.beginDatabaseBatchWrite();
+        try {
+            for (Entry entry : cache.values()) {
+                if (entry.state == State.CREATED) {
+                    backing.addUnspentTransactionOutput(entry.output);
+                    writes++;
+                } else if (entry.state == State.SPENT) {
+                    backing.removeUnspentTransactionOutput(entry.output);
+                    writes++;
+                }
+            }
+            if (pendingVerifiedChainHead != null)
+                backing.setVerifiedChainHead(pendingVerifiedChainHead);
+            backing.commitDatabaseBatchWrite();
+        } catch (BlockStoreException e) {
+            backing.abortDatabaseBatchWrite();
+            throw e;
+        }
+        Iterator<Entry> it = cache.values().iterator();
+        while (it.hasNext()) {
+            Entry entry = it.next();
+            if (entry.state == State.SPENT) {
+                it.remove();
+                cacheBytes -= sizeOf(entry.output);
+            } else {
+                entry.state = State.CLEAN;
+            }
+        }
+        dirtyEntries = 0;
+        pendingVerifiedChainHead = null;
+        flushes++;
+        flushedWrites += writes;
+        log.info("Flushed {} output changes in {}ms", writes, System.currentTimeMillis() - startTime);
+    }
+
+    /** Returns the number of output lookups answered from the cache. */
+    public synchronized long getHits() {
+        return hits;
+    }
+
+    /** Returns the number of output lookups that had to go to the backing store. */
+    public synchronized long getMisses() {
+        return misses;
+    }
+
+    /** Returns how many times the cache has been flushed to the backing store. */
+    public synchronized long getFlushes() {
+        return flushes;
+    }
+
+    /** Returns the total number of output inserts and deletes passed to the backing store by flushes. */
+    public synchronized long getFlushedWrites() {
+        return flushedWrites;
+    }
+
+    /** Returns how many outputs were created and then spent without the backing store ever seeing them. */
+    public synchronized long getCoalescedOutputs() {
+        return coalescedOutputs;
+    }
+
+    /** Returns the estimated memory used by cached outputs, in bytes. */
+    public synchronized long getCacheBytes() {
+        return cacheBytes;
+    }
+
+    //////////////////////////////////////////////////////////////////////////////////////////////////////////////////
+    // Everything else goes straight through, apart from the verified chain head which waits for the next flush.
+
+    public StoredBlock getVerifiedChainHead() throws BlockStoreException {
+        Batch b = batch.get();
+        if (b != null && b.verifiedChainHead != null)
+            return b.verifiedChainHead;
+        synchronized (this) {
+            if (pendingVerifiedChainHead != null)
+                return pendingVerifiedChainHead;
+        }
+        return backing.getVerifiedChainHead();
+    }
+
+    public void setVerifiedChainHead(StoredBlock chainHead) throws BlockStoreException {
+        // Keep the regular chain head moving as the FullPrunedBlockStore contract requires.
+        if (backing.getChainHead().getHeight() < chainHead.getHeight())
+            backing.setChainHead(chainHead);
+        Batch b = batch.get();
+        if (b != null) {
+            b.verifiedChainHead = chainHead;
+        } else {
+            synchronized (this) {
+                pendingVerifiedChainHead = chainHead;
+            }
+            maybeFlush();
+        }
+    }
+
+    public void put(StoredBlock storedBlock, StoredUndoableBlock undoableBlock) throws BlockStoreException {
+        backing.put(storedBlock, undoableBlock);
+    }
+
+    public StoredBlock getOnceUndoableStoredBlock(Sha256Hash hash) throws BlockStoreException {
+        return backing.getOnceUndoableStoredBlock(hash);
+    }
+
+    public StoredUndoableBlock getUndoBlock(Sha256Hash hash) throws BlockStoreException {
+        return backing.getUndoBlock(hash);
+    }
+
+    public void put(StoredBlock block) throws BlockStoreException {
+        backing.put(block);
+    }
+
+    public StoredBlock get(Sha256Hash hash) throws BlockStoreException {
+        return backing.get(hash);
+    }
+
+    public StoredBlock getChainHead() throws BlockStoreException {
+        return backing.getChainHead();
+    }
+
+    public void setChainHead(StoredBlock chainHead) throws BlockStoreException {
+        backing.setChainHead(chainHead);
+    }
+
+    public StoredBlock getAncestor(StoredBlock block, int height) throws BlockStoreException {
+        return backing.getAncestor(block, height);
+    }
+
+    /** Flushes any cached changes and closes the backing store. */
+    public void close() throws BlockStoreException {
+        flush();
+        backing.close();
+    }
+}
@@ -43,6 +43,7 @@ public class DiskBlockStore implements BlockStore {
     private RandomAccessFile file;
     private Map<Sha256Hash, StoredBlock> blockMap;
     private Sha256Hash chainHead;
+    private final AncestorIndex ancestors = new AncestorIndex(this);
     private NetworkParameters params;
     private FileLock lock;
     private String fileName;
@@ -210,6 +211,11 @@ public class DiskBlockStore implements BlockStore {
         } catch (IOException e) {
             throw new BlockStoreException(e);
         }
+        ancestors.setChainHead(chainHead);
+    }
+
+    public StoredBlock getAncestor(StoredBlock block, int height) throws BlockStoreException {
+        return ancestors.getAncestor(block, height);
     }
 
     private void lock() throws IOException, BlockStoreException {
@@ -24,10 +24,17 @@ import org.slf4j.LoggerFactory;
 import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
+import java.io.OutputStream;
 import java.math.BigInteger;
 import java.sql.*;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.LinkedList;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 
 // Originally written for Apache Derby, but its DELETE (and general) performance was awful
 /**
@@ -37,20 +44,46 @@ import java.util.List;
  * you may see the database files grow quite large (around 1.5G).
  * H2 automatically frees some space at shutdown, so close()ing the database
  * decreases the space usage somewhat (to only around 1.3G).
+ *
+ * Prepared statements are kept and reused for the lifetime of each thread's connection. Between
+ * {@link #beginDatabaseBatchWrite()} and {@link #commitDatabaseBatchWrite()} output inserts and deletes are
+ * held back and sent as two JDBC batches when the batch write is committed.
+ *
+ * Undo data older than fullStoreDepth blocks is deleted by a background thread, a few heights at a time, so that
+ * connecting a block never waits for a large DELETE. The thread backs off while other threads are in the middle of
+ * a batch write. See {@link #setPruneChunkSize(int)} and {@link #setPrunePause(long)}.
  */
-public class H2FullPrunedBlockStore implements FullPrunedBlockStore {
+public class H2FullPrunedBlockStore implements IterableFullPrunedBlockStore {
     private static final Logger log = LoggerFactory.getLogger(H2FullPrunedBlockStore.class);
 
     private Sha256Hash chainHeadHash;
     private StoredBlock chainHeadBlock;
     private Sha256Hash verifiedChainHeadHash;
     private StoredBlock verifiedChainHeadBlock;
+    private final AncestorIndex ancestors = new AncestorIndex(this);
     private NetworkParameters params;
     private ThreadLocal<Connection> conn;
+    private ThreadLocal<Map<String, PreparedStatement>> preparedStatements;
+    // Outputs added (non-null) or removed (null) by a batch write that have not been sent to the database yet.
+    private ThreadLocal<Map<StoredTransactionOutPoint, StoredTransactionOutput>> pendingOutputs;
+    // The prune height asked for by a batch write, which is only acted on once the batch commits.
+    private ThreadLocal<Integer> pendingPruneHeight;
     private List<Connection> allConnections;
     private String connectionURL;
     private int fullStoreDepth;
 
+    // Undo data at or below this height can be deleted. Only ever raised.
+    private volatile int pruneHeight = -1;
+    private volatile int pruneChunkSize = 20;
+    private volatile long prunePause = 50;
+    private volatile boolean closing;
+    private final AtomicBoolean pruneScheduled = new AtomicBoolean();
+    // The number of threads currently inside a batch write, which the pruner gives way to.
+    private final AtomicInteger activeBatchWrites = new AtomicInteger();
+    private ExecutorService pruneExecutor;
+    // How long the pruner waits for the other threads to leave their batch writes before deleting anyway.
+    private static final long MAX_PRUNE_DELAY = 1000;
+
     static final String driver = "org.h2.Driver";
     static final String CREATE_SETTINGS_TABLE = "CREATE TABLE settings ( "
         + "name VARCHAR(32) NOT NULL CONSTRAINT settings_pk PRIMARY KEY,"
@@ -59,6 +92,7 @@ public class H2FullPrunedBlockStore implements FullPrunedBlockStore {
     static final String CHAIN_HEAD_SETTING = "chainhead";
     static final String VERIFIED_CHAIN_HEAD_SETTING = "verifiedchainhead";
     static final String VERSION_SETTING = "version";
+    static final String SCHEMA_VERSION = "05";
 
     static final String CREATE_HEADERS_TABLE = "CREATE TABLE headers ( "
         + "hash BINARY(28) NOT NULL CONSTRAINT headers_pk PRIMARY KEY,"
@@ -76,15 +110,18 @@ public class H2FullPrunedBlockStore implements FullPrunedBlockStore {
         + ")";
     static final String CREATE_UNDOABLE_TABLE_INDEX = "CREATE INDEX heightIndex ON undoableBlocks (height)";
     
+    // The outpoint is the transaction hash followed by the output index, see outpointKey(). The output is the rest of
+    // the StoredTransactionOutput in its compact form.
     static final String CREATE_OPEN_OUTPUT_TABLE = "CREATE TABLE openOutputs ("
-        + "hash BINARY(32) NOT NULL,"
-        + "index INT NOT NULL,"
-        + "height INT NOT NULL,"
-        + "value BLOB NOT NULL,"
-        + "scriptBytes BLOB NOT NULL,"
-        + "PRIMARY KEY (hash, index),"
+        + "outpoint BINARY(36) NOT NULL CONSTRAINT openOutputs_pk PRIMARY KEY,"
+        + "output VARBINARY NOT NULL"
         + ")";
 
+    static final String SELECT_OPEN_OUTPUT = "SELECT output FROM openOutputs WHERE outpoint = ?";
+    static final String SELECT_OPEN_OUTPUT_RANGE = "SELECT outpoint FROM openOutputs WHERE outpoint BETWEEN ? AND ?";
+    static final String MERGE_OPEN_OUTPUT = "MERGE INTO openOutputs (outpoint, output) KEY (outpoint) VALUES (?, ?)";
+    static final String DELETE_OPEN_OUTPUT = "DELETE FROM openOutputs WHERE outpoint = ?";
+
     /**
      * Creates a new H2FullPrunedBlockStore
      * @param params A copy of the NetworkParameters used
@@ -100,7 +137,18 @@ public class H2FullPrunedBlockStore implements FullPrunedBlockStore {
         connectionURL = "jdbc:h2:" + dbName + ";create=true;LOCK_TIMEOUT=60000";
         
         conn = new ThreadLocal<Connection>();
+        preparedStatements = new ThreadLocal<Map<String, PreparedStatement>>();
+        pendingOutputs = new ThreadLocal<Map<StoredTransactionOutPoint, StoredTransactionOutput>>();
+        pendingPruneHeight = new ThreadLocal<Integer>();
         allConnections = new LinkedList<Connection>();
+        pruneExecutor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, "H2FullPrunedBlockStore-pruner");
+                t.setDaemon(true);
+                t.setPriority(Thread.MIN_PRIORITY);
+                return t;
+            }
+        });
 
         try {
             Class.forName(driver);
@@ -143,6 +191,81 @@ public class H2FullPrunedBlockStore implements FullPrunedBlockStore {
         }
     }
     
+    NetworkParameters getParams() {
+        return params;
+    }
+
+    int getFullStoreDepth() {
+        return fullStoreDepth;
+    }
+
+    /** Returns a prepared statement for the given SQL on this thread's connection, reusing it if we have one already. */
+    private PreparedStatement prepare(String sql) throws SQLException {
+        Map<String, PreparedStatement> statements = preparedStatements.get();
+        if (statements == null) {
+            statements = new HashMap<String, PreparedStatement>();
+            preparedStatements.set(statements);
+        }
+        PreparedStatement s = statements.get(sql);
+        if (s == null) {
+            s = conn.get().prepareStatement(sql);
+            statements.put(sql, s);
+        }
+        return s;
+    }
+
+    private void closePreparedStatements() throws SQLException {
+        Map<String, PreparedStatement> statements = preparedStatements.get();
+        if (statements == null)
+            return;
+        for (PreparedStatement s : statements.values())
+            s.close();
+        preparedStatements.remove();
+    }
+
+    /**
+     * Returns the primary key of an output in the openOutputs table: the transaction hash followed by the index as a
+     * big endian 32 bit number. H2 compares binary values as signed bytes, so the top bit of each index byte is
+     * flipped to keep all the outputs of a transaction in index order, which the range query in
+     * {@link #hasUnspentOutputs(Sha256Hash, int)} relies on.
+     */
+    static byte[] outpointKey(Sha256Hash hash, long index) {
+        byte[] key = new byte[36];
+        System.arraycopy(hash.getBytes(), 0, key, 0, 32);
+        for (int i = 0; i < 4; i++)
+            key[32 + i] = (byte) ((index >>> (24 - 8 * i)) ^ 0x80);
+        return key;
+    }
+
+    static Sha256Hash outpointHash(byte[] key) {
+        byte[] hash = new byte[32];
+        System.arraycopy(key, 0, hash, 0, 32);
+        return new Sha256Hash(hash);
+    }
+
+    static long outpointIndex(byte[] key) {
+        long index = 0;
+        for (int i = 0; i < 4; i++)
+            index = (index << 8) | ((key[32 + i] ^ 0x80) & 0xFF);
+        return index;
+    }
+
+    /** Returns the value of an output in the openOutputs table. */
+    static byte[] encodeOutput(StoredTransactionOutput out) throws IOException {
+        ByteArrayOutputStream bos = new ByteArrayOutputStream(32);
+        out.serializeCompact(bos);
+        return bos.toByteArray();
+    }
+
+    static StoredTransactionOutput decodeOutput(Sha256Hash hash, long index, byte[] output) throws BlockStoreException {
+        try {
+            return StoredTransactionOutput.deserializeCompact(hash, index, new ByteArrayInputStream(output));
+        } catch (IOException e) {
+            // Corrupted database.
+            throw new BlockStoreException(e);
+        }
+    }
+
     private synchronized void maybeConnect() throws BlockStoreException {
         try {
             if (conn.get() != null)
@@ -156,7 +279,26 @@ public class H2FullPrunedBlockStore implements FullPrunedBlockStore {
         }
     }
     
-    public synchronized void close() {
+    public void close() {
+        // Let the pruner finish the chunk it is on, rather than interrupting it in the middle of a write. This must
+        // not hold the lock, which the pruner may need to connect.
+        closing = true;
+        pruneExecutor.shutdown();
+        try {
+            if (!pruneExecutor.awaitTermination(60, TimeUnit.SECONDS))
+                log.warn("Undo data pruner did not stop");
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        closeConnections();
+    }
+
+    private synchronized void closeConnections() {
+        try {
+            closePreparedStatements();
+        } catch (SQLException ex) {
+            throw new RuntimeException(ex);
+        }
         for (Connection conn : allConnections) {
             try {
                 conn.rollback();
@@ -170,6 +312,8 @@ public class H2FullPrunedBlockStore implements FullPrunedBlockStore {
     public void resetStore() throws BlockStoreException {
         maybeConnect();
         try {
+            closePreparedStatements();
+            pruneHeight = -1;
             Statement s = conn.get().createStatement();
             s.executeUpdate("DROP TABLE settings");
             s.executeUpdate("DROP TABLE headers");
@@ -202,7 +346,7 @@ public class H2FullPrunedBlockStore implements FullPrunedBlockStore {
 
         s.executeUpdate("INSERT INTO settings(name, value) VALUES('" + CHAIN_HEAD_SETTING + "', NULL)");
         s.executeUpdate("INSERT INTO settings(name, value) VALUES('" + VERIFIED_CHAIN_HEAD_SETTING + "', NULL)");
-        s.executeUpdate("INSERT INTO settings(name, value) VALUES('" + VERSION_SETTING + "', '03')");
+        s.executeUpdate("INSERT INTO settings(name, value) VALUES('" + VERSION_SETTING + "', '" + SCHEMA_VERSION + "')");
         s.close();
         createNewStore(params);
     }
@@ -213,6 +357,16 @@ public class H2FullPrunedBlockStore implements FullPrunedBlockStore {
         while (rs.next())
             if (rs.getString(1).equalsIgnoreCase("openOutputsIndex"))
                 throw new BlockStoreException("Attempted to open a H2 database with an old schema, please reset database.");
+        rs.close();
+        rs = s.executeQuery("SELECT value FROM settings WHERE name = '" + VERSION_SETTING + "'");
+        // The value was written as a string literal into a BLOB, which H2 reads as hex, so it reads back the same way.
+        String version = rs.next() ? rs.getString(1) : null;
+        rs.close();
+        if ("03".equals(version)) {
+            upgradeFromVersion3();
+        } else if (!SCHEMA_VERSION.equals(version)) {
+            throw new BlockStoreException("Attempted to open a H2 database with an unknown schema version " + version);
+        }
         
         rs = s.executeQuery("SELECT value FROM settings WHERE name = '" + CHAIN_HEAD_SETTING + "'");
         if (!rs.next()) {
@@ -242,6 +396,107 @@ public class H2FullPrunedBlockStore implements FullPrunedBlockStore {
         }
     }
 
+    /**
+     * Converts a version 03 database, which keyed unspent outputs by separate hash and index columns, kept the value as
+     * a BigInteger and the undo data in the old fixed width form, straight to the current schema. The outputs are
+     * streamed into a new table in the compact encoding in committed batches, then the new table replaces the old
+     * one. Each step can be run again if a previous attempt was interrupted, and the undo data is converted in the same
+     * transaction that changes the version.
+     */
+    private void upgradeFromVersion3() throws SQLException, BlockStoreException {
+        log.info("Converting H2 block store to schema version " + SCHEMA_VERSION + ", this may take a while");
+        Connection connection = conn.get();
+        Statement s = connection.createStatement();
+        try {
+            if (!tableExists("openOutputs")) {
+                // Interrupted after the old table was dropped, so the copy is complete.
+                s.executeUpdate("ALTER TABLE openOutputsNew RENAME TO openOutputs");
+            } else if (!columnExists("openOutputs", "outpoint")) {
+                if (tableExists("openOutputsNew"))
+                    s.executeUpdate("DROP TABLE openOutputsNew");
+                s.executeUpdate(CREATE_OPEN_OUTPUT_TABLE.replace("TABLE openOutputs", "TABLE openOutputsNew"));
+                connection.setAutoCommit(false);
+                PreparedStatement insert = connection.prepareStatement(
+                        "INSERT INTO openOutputsNew (outpoint, output) VALUES (?, ?)");
+                // H2 keeps large results in a temporary file, so the whole set is never in memory at once.
+                ResultSet rs = s.executeQuery("SELECT hash, index, height, value, scriptBytes FROM openOutputs");
+                int rows = 0;
+                while (rs.next()) {
+                    // The index was stored as a signed int, and the height already has the non-coinbase marker
+                    // applied, so it is passed through as a coinbase.
+                    StoredTransactionOutput out = new StoredTransactionOutput(new Sha256Hash(rs.getBytes(1)),
+                            rs.getInt(2) & 0xFFFFFFFFL, new BigInteger(rs.getBytes(4)), rs.getInt(3), true,
+                            rs.getBytes(5));
+                    insert.setBytes(1, outpointKey(out.getHash(), out.getIndex()));
+                    insert.setBytes(2, encodeOutput(out));
+                    insert.addBatch();
+                    if (++rows % 10000 == 0) {
+                        insert.executeBatch();
+                        connection.commit();
+                        log.info("Converted {} unspent outputs", rows);
+                    }
+                }
+                rs.close();
+                insert.executeBatch();
+                insert.close();
+                connection.commit();
+                connection.setAutoCommit(true);
+                log.info("Converted {} unspent outputs", rows);
+                s.executeUpdate("DROP TABLE openOutputs");
+                s.executeUpdate("ALTER TABLE openOutputsNew RENAME TO openOutputs");
+            }
+            connection.setAutoCommit(false);
+            convertUndoData(s);
+            s.executeUpdate("UPDATE settings SET value = '" + SCHEMA_VERSION + "' WHERE name = '" + VERSION_SETTING + "'");
+            connection.commit();
+        } catch (IOException e) {
+            connection.rollback();
+            throw new BlockStoreException(e);
+        } catch (SQLException e) {
+            connection.rollback();
+            throw e;
+        } finally {
+            connection.setAutoCommit(true);
+            s.close();
+        }
+        log.info("Converted H2 block store to schema version " + SCHEMA_VERSION);
+    }
+
+    /**
+     * Rewrites the undo data from the old fixed width form to the compact one, sending the updates in batches. Doesn't
+     * commit, so that the caller can change the version in the same transaction.
+     */
+    private void convertUndoData(Statement s) throws SQLException, IOException {
+        PreparedStatement update = conn.get().prepareStatement(
+                "UPDATE undoableBlocks SET txOutChanges = ? WHERE hash = ?");
+        ResultSet rs = s.executeQuery("SELECT hash, txOutChanges FROM undoableBlocks WHERE txOutChanges IS NOT NULL");
+        int rows = 0;
+        while (rs.next()) {
+            ByteArrayOutputStream bos = new ByteArrayOutputStream();
+            new TransactionOutputChanges(new ByteArrayInputStream(rs.getBytes(2))).serializeCompact(bos);
+            update.setBytes(1, bos.toByteArray());
+            update.setBytes(2, rs.getBytes(1));
+            update.addBatch();
+            if (++rows % 1000 == 0)
+                update.executeBatch();
+        }
+        rs.close();
+        update.executeBatch();
+        update.close();
+    }
+
+    private boolean columnExists(String table, String column) throws SQLException {
+        Statement s = conn.get().createStatement();
+        try {
+            s.executeQuery("SELECT " + column + " FROM " + table + " WHERE 1 = 2").close();
+            return true;
+        } catch (SQLException ex) {
+            return false;
+        } finally {
+            s.close();
+        }
+    }
+
     private void createNewStore(NetworkParameters params) throws BlockStoreException {
         try {
             // Set up the genesis block. When we start out fresh, it is by
@@ -322,20 +577,17 @@ public class H2FullPrunedBlockStore implements FullPrunedBlockStore {
         System.out.printf("Undoable Blocks size: %d, count: %d, average size: %f%n", size, count, (double)size/count);
         
         totalSize += size; size = 0; count = 0;
-        long scriptSize = 0;
-        rs = s.executeQuery("SELECT value, scriptBytes FROM openOutputs");
+        long outputSize = 0;
+        rs = s.executeQuery("SELECT output FROM openOutputs");
         while (rs.next()) {
-            size += 32; // hash
-            size += 4; // index
-            size += 4; // height
+            size += 36; // outpoint
             size += rs.getBytes(1).length;
-            size += rs.getBytes(2).length;
-            scriptSize += rs.getBytes(2).length;
+            outputSize += rs.getBytes(1).length;
             count++;
         }
         rs.close();
-        System.out.printf("Open Outputs size: %d, count: %d, average size: %f, average script size: %f (%d in id indexes)%n",
-                size, count, (double)size/count, (double)scriptSize/count, count * 8);
+        System.out.printf("Open Outputs size: %d, count: %d, average size: %f, average output size: %f (%d in id indexes)%n",
+                size, count, (double)size/count, (double)outputSize/count, count * 36);
         
         totalSize += size;
         System.out.println("Total Size: " + totalSize);
@@ -346,9 +598,8 @@ public class H2FullPrunedBlockStore implements FullPrunedBlockStore {
     
     private void putUpdateStoredBlock(StoredBlock storedBlock, boolean wasUndoable) throws SQLException {
         try {
-            PreparedStatement s =
-                    conn.get().prepareStatement("INSERT INTO headers(hash, chainWork, height, header, wasUndoable)"
-                            + " VALUES(?, ?, ?, ?, ?)");
+            PreparedStatement s = prepare("INSERT INTO headers(hash, chainWork, height, header, wasUndoable)"
+                    + " VALUES(?, ?, ?, ?, ?)");
             // We skip the first 4 bytes because (on prodnet) the minimum target has 4 0-bytes
             byte[] hashBytes = new byte[28];
             System.arraycopy(storedBlock.getHeader().getHash().getBytes(), 3, hashBytes, 0, 28);
@@ -358,21 +609,19 @@ public class H2FullPrunedBlockStore implements FullPrunedBlockStore {
             s.setBytes(4, storedBlock.getHeader().unsafeBitcoinSerialize());
             s.setBoolean(5, wasUndoable);
             s.executeUpdate();
-            s.close();
         } catch (SQLException e) {
             // It is possible we try to add a duplicate StoredBlock if we upgraded
             // In that case, we just update the entry to mark it wasUndoable
             if (e.getErrorCode() != 23505 || !wasUndoable)
                 throw e;
             
-            PreparedStatement s = conn.get().prepareStatement("UPDATE headers SET wasUndoable=? WHERE hash=?");
+            PreparedStatement s = prepare("UPDATE headers SET wasUndoable=? WHERE hash=?");
             s.setBoolean(1, true);
             // We skip the first 4 bytes because (on prodnet) the minimum target has 4 0-bytes
             byte[] hashBytes = new byte[28];
             System.arraycopy(storedBlock.getHeader().getHash().getBytes(), 3, hashBytes, 0, 28);
             s.setBytes(2, hashBytes);
             s.executeUpdate();
-            s.close();
         }
     }
 
@@ -396,16 +645,10 @@ public class H2FullPrunedBlockStore implements FullPrunedBlockStore {
         try {
             ByteArrayOutputStream bos = new ByteArrayOutputStream();
             if (undoableBlock.getTxOutChanges() != null) {
-                undoableBlock.getTxOutChanges().serializeToStream(bos);
+                undoableBlock.getTxOutChanges().serializeCompact(bos);
                 txOutChanges = bos.toByteArray();
             } else {
-                int numTxn = undoableBlock.getTransactions().size();
-                bos.write((int) (0xFF & (numTxn >> 0)));
-                bos.write((int) (0xFF & (numTxn >> 8)));
-                bos.write((int) (0xFF & (numTxn >> 16)));
-                bos.write((int) (0xFF & (numTxn >> 24)));
-                for (Transaction tx : undoableBlock.getTransactions())
-                    tx.bitcoinSerialize(bos);
+                serializeTransactions(undoableBlock.getTransactions(), bos);
                 transactions = bos.toByteArray();
             }
             bos.close();
@@ -415,9 +658,8 @@ public class H2FullPrunedBlockStore implements FullPrunedBlockStore {
         
         try {
             try {
-                PreparedStatement s =
-                        conn.get().prepareStatement("INSERT INTO undoableBlocks(hash, height, txOutChanges, transactions)"
-                                + " VALUES(?, ?, ?, ?)");
+                PreparedStatement s = prepare("INSERT INTO undoableBlocks(hash, height, txOutChanges, transactions)"
+                        + " VALUES(?, ?, ?, ?)");
                 s.setBytes(1, hashBytes);
                 s.setInt(2, height);
                 if (transactions == null) {
@@ -428,7 +670,6 @@ public class H2FullPrunedBlockStore implements FullPrunedBlockStore {
                     s.setBytes(4, transactions);
                 }
                 s.executeUpdate();
-                s.close();
                 try {
                     putUpdateStoredBlock(storedBlock, true);
                 } catch (SQLException e) {
@@ -439,9 +680,7 @@ public class H2FullPrunedBlockStore implements FullPrunedBlockStore {
                     throw new BlockStoreException(e);
                 
                 // There is probably an update-or-insert statement, but it wasn't obvious from the docs
-                PreparedStatement s =
-                        conn.get().prepareStatement("UPDATE undoableBlocks SET txOutChanges=?, transactions=?"
-                                + " WHERE hash = ?");
+                PreparedStatement s = prepare("UPDATE undoableBlocks SET txOutChanges=?, transactions=? WHERE hash = ?");
                 s.setBytes(3, hashBytes);
                 if (transactions == null) {
                     s.setBytes(1, txOutChanges);
@@ -451,7 +690,6 @@ public class H2FullPrunedBlockStore implements FullPrunedBlockStore {
                     s.setBytes(2, transactions);
                 }
                 s.executeUpdate();
-                s.close();
             }
         } catch (SQLException ex) {
             throw new BlockStoreException(ex);
@@ -465,15 +703,14 @@ public class H2FullPrunedBlockStore implements FullPrunedBlockStore {
         if (verifiedChainHeadHash != null && verifiedChainHeadHash.equals(hash))
             return verifiedChainHeadBlock;
         maybeConnect();
-        PreparedStatement s = null;
+        ResultSet results = null;
         try {
-            s = conn.get()
-                .prepareStatement("SELECT chainWork, height, header, wasUndoable FROM headers WHERE hash = ?");
+            PreparedStatement s = prepare("SELECT chainWork, height, header, wasUndoable FROM headers WHERE hash = ?");
             // We skip the first 4 bytes because (on prodnet) the minimum target has 4 0-bytes
             byte[] hashBytes = new byte[28];
             System.arraycopy(hash.getBytes(), 3, hashBytes, 0, 28);
             s.setBytes(1, hashBytes);
-            ResultSet results = s.executeQuery();
+            results = s.executeQuery();
             if (!results.next()) {
                 return null;
             }
@@ -498,10 +735,10 @@ public class H2FullPrunedBlockStore implements FullPrunedBlockStore {
             // blocks.
             throw new BlockStoreException(e);
         } finally {
-            if (s != null)
+            if (results != null)
                 try {
-                    s.close();
-                } catch (SQLException e) { throw new BlockStoreException("Failed to close PreparedStatement"); }
+                    results.close();
+                } catch (SQLException e) { throw new BlockStoreException("Failed to close ResultSet"); }
         }
     }
     
@@ -515,41 +752,21 @@ public class H2FullPrunedBlockStore implements FullPrunedBlockStore {
     
     public StoredUndoableBlock getUndoBlock(Sha256Hash hash) throws BlockStoreException {
         maybeConnect();
-        PreparedStatement s = null;
+        ResultSet results = null;
         try {
-            s = conn.get()
-                .prepareStatement("SELECT txOutChanges, transactions FROM undoableBlocks WHERE hash = ?");
+            PreparedStatement s = prepare("SELECT txOutChanges, transactions FROM undoableBlocks WHERE hash = ?");
             // We skip the first 4 bytes because (on prodnet) the minimum target has 4 0-bytes
             byte[] hashBytes = new byte[28];
             System.arraycopy(hash.getBytes(), 3, hashBytes, 0, 28);
             s.setBytes(1, hashBytes);
-            ResultSet results = s.executeQuery();
+            results = s.executeQuery();
             if (!results.next()) {
                 return null;
             }
             // Parse it.
             byte[] txOutChanges = results.getBytes(1);
             byte[] transactions = results.getBytes(2);
-            StoredUndoableBlock block;
-            if (txOutChanges == null) {
-                int offset = 0;
-                int numTxn = ((transactions[offset++] & 0xFF) << 0) |
-                             ((transactions[offset++] & 0xFF) << 8) |
-                             ((transactions[offset++] & 0xFF) << 16) |
-                             ((transactions[offset++] & 0xFF) << 24);
-                List<Transaction> transactionList = new LinkedList<Transaction>();
-                for (int i = 0; i < numTxn; i++) {
-                    Transaction tx = new Transaction(params, transactions, offset);
-                    transactionList.add(tx);
-                    offset += tx.getMessageSize();
-                }
-                block = new StoredUndoableBlock(hash, transactionList);
-            } else {
-                TransactionOutputChanges outChangesObject =
-                        new TransactionOutputChanges(new ByteArrayInputStream(txOutChanges));
-                block = new StoredUndoableBlock(hash, outChangesObject);
-            }
-            return block;
+            return deserializeUndoableBlock(params, hash, txOutChanges, transactions);
         } catch (SQLException ex) {
             throw new BlockStoreException(ex);
         } catch (NullPointerException e) {
@@ -565,10 +782,48 @@ public class H2FullPrunedBlockStore implements FullPrunedBlockStore {
             // Corrupted database.
             throw new BlockStoreException(e);
         } finally {
-            if (s != null)
+            if (results != null)
                 try {
-                    s.close();
-                } catch (SQLException e) { throw new BlockStoreException("Failed to close PreparedStatement"); }
+                    results.close();
+                } catch (SQLException e) { throw new BlockStoreException("Failed to close ResultSet"); }
+        }
+    }
+
+    /** Writes the full transaction list of an undoable block in the format used by the transactions column. */
+    static void serializeTransactions(List<Transaction> transactions, OutputStream stream) throws IOException {
+        int numTxn = transactions.size();
+        stream.write((int) (0xFF & (numTxn >> 0)));
+        stream.write((int) (0xFF & (numTxn >> 8)));
+        stream.write((int) (0xFF & (numTxn >> 16)));
+        stream.write((int) (0xFF & (numTxn >> 24)));
+        for (Transaction tx : transactions)
+            tx.bitcoinSerialize(stream);
+    }
+
+    /**
+     * Reads back an undoable block from its two possible serializations, exactly one of which should be non-null:
+     * the {@link TransactionOutputChanges} or the full transaction list written by
+     * {@link #serializeTransactions(java.util.List, java.io.OutputStream)}.
+     */
+    static StoredUndoableBlock deserializeUndoableBlock(NetworkParameters params, Sha256Hash hash, byte[] txOutChanges,
+                                                        byte[] transactions) throws ProtocolException, IOException {
+        if (txOutChanges == null) {
+            int offset = 0;
+            int numTxn = ((transactions[offset++] & 0xFF) << 0) |
+                         ((transactions[offset++] & 0xFF) << 8) |
+                         ((transactions[offset++] & 0xFF) << 16) |
+                         ((transactions[offset++] & 0xFF) << 24);
+            List<Transaction> transactionList = new LinkedList<Transaction>();
+            for (int i = 0; i < numTxn; i++) {
+                Transaction tx = new Transaction(params, transactions, offset);
+                transactionList.add(tx);
+                offset += tx.getMessageSize();
+            }
+            return new StoredUndoableBlock(hash, transactionList);
+        } else {
+            TransactionOutputChanges outChangesObject =
+                    TransactionOutputChanges.deserializeCompact(new ByteArrayInputStream(txOutChanges));
+            return new StoredUndoableBlock(hash, outChangesObject);
         }
     }
 
@@ -582,15 +837,18 @@ public class H2FullPrunedBlockStore implements FullPrunedBlockStore {
         this.chainHeadBlock = chainHead;
         maybeConnect();
         try {
-            PreparedStatement s = conn.get()
-                .prepareStatement("UPDATE settings SET value = ? WHERE name = ?");
+            PreparedStatement s = prepare("UPDATE settings SET value = ? WHERE name = ?");
             s.setString(2, CHAIN_HEAD_SETTING);
             s.setBytes(1, hash.getBytes());
             s.executeUpdate();
-            s.close();
         } catch (SQLException ex) {
             throw new BlockStoreException(ex);
         }
+        ancestors.setChainHead(chainHead);
+    }
+
+    public StoredBlock getAncestor(StoredBlock block, int height) throws BlockStoreException {
+        return ancestors.getAncestor(block, height);
     }
     
     public StoredBlock getVerifiedChainHead() throws BlockStoreException {
@@ -603,103 +861,204 @@ public class H2FullPrunedBlockStore implements FullPrunedBlockStore {
         this.verifiedChainHeadBlock = chainHead;
         maybeConnect();
         try {
-            PreparedStatement s = conn.get()
-                .prepareStatement("UPDATE settings SET value = ? WHERE name = ?");
+            PreparedStatement s = prepare("UPDATE settings SET value = ? WHERE name = ?");
             s.setString(2, VERIFIED_CHAIN_HEAD_SETTING);
             s.setBytes(1, hash.getBytes());
             s.executeUpdate();
-            s.close();
         } catch (SQLException ex) {
             throw new BlockStoreException(ex);
         }
         if (this.chainHeadBlock.getHeight() < chainHead.getHeight())
             setChainHead(chainHead);
-        removeUndoableBlocksWhereHeightIsLessThan(chainHead.getHeight() - fullStoreDepth);
+        int height = chainHead.getHeight() - fullStoreDepth;
+        if (pendingOutputs.get() != null) {
+            // The batch may yet be rolled back, leaving an older head that still needs this undo data.
+            Integer pending = pendingPruneHeight.get();
+            if (pending == null || pending < height)
+                pendingPruneHeight.set(height);
+        } else {
+            schedulePrune(height);
+        }
+    }
+
+    /**
+     * Sets the greatest number of heights whose undo data is deleted in one statement by the background pruner.
+     * Smaller chunks hold the undoableBlocks table locked for less time.
+     */
+    public void setPruneChunkSize(int heights) {
+        if (heights <= 0)
+            throw new IllegalArgumentException("Chunk size must be positive");
+        this.pruneChunkSize = heights;
+    }
+
+    /** Sets how long the background pruner sleeps between chunks, in milliseconds. */
+    public void setPrunePause(long millis) {
+        if (millis < 0)
+            throw new IllegalArgumentException("Pause must not be negative");
+        this.prunePause = millis;
+    }
+
+    private synchronized void schedulePrune(int height) {
+        if (height <= pruneHeight)
+            return;
+        pruneHeight = height;
+        if (closing || !pruneScheduled.compareAndSet(false, true))
+            return;
+        pruneExecutor.execute(new Runnable() {
+            public void run() {
+                pruneScheduled.set(false);
+                try {
+                    pruneUndoableBlocks(true);
+                } catch (BlockStoreException e) {
+                    // Nothing is lost, the next chain head will try again.
+                    log.error("Failed to prune undo data", e);
+                }
+            }
+        });
+    }
+
+    /**
+     * Deletes all undo data more than fullStoreDepth blocks below the verified chain head on the calling thread, in
+     * the same chunks the background pruner uses but without pausing. Normally there is no need to call this.
+     */
+    public void pruneUndoableBlocks() throws BlockStoreException {
+        pruneUndoableBlocks(false);
     }
 
-    private void removeUndoableBlocksWhereHeightIsLessThan(int height) throws BlockStoreException {
+    private void pruneUndoableBlocks(boolean throttle) throws BlockStoreException {
+        maybeConnect();
         try {
-            PreparedStatement s = conn.get()
-                .prepareStatement("DELETE FROM undoableBlocks WHERE height <= ?");
-            s.setInt(1, height);
-            s.executeUpdate();
-            s.close();
+            PreparedStatement lowest = prepare("SELECT MIN(height) FROM undoableBlocks");
+            PreparedStatement delete = prepare("DELETE FROM undoableBlocks WHERE height <= ?");
+            while (!closing) {
+                int target = pruneHeight;
+                ResultSet rs = lowest.executeQuery();
+                rs.next();
+                int from = rs.getInt(1);
+                boolean empty = rs.wasNull();
+                rs.close();
+                if (empty || from > target)
+                    return;
+                if (throttle)
+                    waitForIdleWriters();
+                delete.setInt(1, Math.min(target, from + pruneChunkSize - 1));
+                int deleted = delete.executeUpdate();
+                log.debug("Pruned undo data for {} blocks from height {}", deleted, from);
+                if (throttle && prunePause > 0)
+                    Thread.sleep(prunePause);
+            }
         } catch (SQLException ex) {
             throw new BlockStoreException(ex);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
         }
     }
 
+    // Waits until no other thread is in a batch write, or for MAX_PRUNE_DELAY if they never all are at once.
+    private void waitForIdleWriters() throws InterruptedException {
+        long giveUp = System.currentTimeMillis() + MAX_PRUNE_DELAY;
+        while (activeBatchWrites.get() > 0 && System.currentTimeMillis() < giveUp && !closing)
+            Thread.sleep(5);
+    }
+
     public StoredTransactionOutput getTransactionOutput(Sha256Hash hash, long index) throws BlockStoreException {
         maybeConnect();
-        PreparedStatement s = null;
+        Map<StoredTransactionOutPoint, StoredTransactionOutput> pending = pendingOutputs.get();
+        if (pending != null) {
+            StoredTransactionOutPoint outPoint = new StoredTransactionOutPoint(hash, index);
+            if (pending.containsKey(outPoint))
+                return pending.get(outPoint);
+        }
+        ResultSet results = null;
         try {
-            s = conn.get()
-                .prepareStatement("SELECT height, value, scriptBytes FROM openOutputs " +
-                		"WHERE hash = ? AND index = ?");
-            s.setBytes(1, hash.getBytes());
-            // index is actually an unsigned int
-            s.setInt(2, (int)index);
-            ResultSet results = s.executeQuery();
+            PreparedStatement s = prepare(SELECT_OPEN_OUTPUT);
+            s.setBytes(1, outpointKey(hash, index));
+            results = s.executeQuery();
             if (!results.next()) {
                 return null;
             }
-            // Parse it.
-            int height = results.getInt(1);
-            BigInteger value = new BigInteger(results.getBytes(2));
-            // Tell the StoredTransactionOutput that we are a coinbase, as that is encoded in height
-            StoredTransactionOutput txout = new StoredTransactionOutput(hash, index, value, height, true, results.getBytes(3));
-            return txout;
+            return decodeOutput(hash, index, results.getBytes(1));
         } catch (SQLException ex) {
             throw new BlockStoreException(ex);
         } finally {
-            if (s != null)
+            if (results != null)
                 try {
-                    s.close();
-                } catch (SQLException e) { throw new BlockStoreException("Failed to close PreparedStatement"); }
+                    results.close();
+                } catch (SQLException e) { throw new BlockStoreException("Failed to close ResultSet"); }
         }
     }
 
     public void addUnspentTransactionOutput(StoredTransactionOutput out) throws BlockStoreException {
         maybeConnect();
-        PreparedStatement s = null;
+        Map<StoredTransactionOutPoint, StoredTransactionOutput> pending = pendingOutputs.get();
+        if (pending != null) {
+            pending.put(new StoredTransactionOutPoint(out), out);
+            return;
+        }
         try {
-            s = conn.get().prepareStatement("INSERT INTO openOutputs (hash, index, height, value, scriptBytes) " +
-            		"VALUES (?, ?, ?, ?, ?)");
-            s.setBytes(1, out.getHash().getBytes());
-            // index is actually an unsigned int
-            s.setInt(2, (int)out.getIndex());
-            s.setInt(3, out.getHeight());
-            s.setBytes(4, out.getValue().toByteArray());
-            s.setBytes(5, out.getScriptBytes());
+            // MERGE rather than INSERT, as adding an output we already have is not an error.
+            PreparedStatement s = prepare(MERGE_OPEN_OUTPUT);
+            setOutputParameters(s, out);
             s.executeUpdate();
-            s.close();
         } catch (SQLException e) {
-            if (e.getErrorCode() != 23505)
-                throw new BlockStoreException(e);
-        } finally {
-            if (s != null)
-                try {
-                    s.close();
-                } catch (SQLException e) { throw new BlockStoreException(e); }
+            throw new BlockStoreException(e);
+        }
+    }
+
+    private static void setOutputParameters(PreparedStatement s, StoredTransactionOutput out)
+            throws SQLException, BlockStoreException {
+        s.setBytes(1, outpointKey(out.getHash(), out.getIndex()));
+        try {
+            s.setBytes(2, encodeOutput(out));
+        } catch (IOException e) {
+            throw new BlockStoreException(e);
         }
     }
 
     public void removeUnspentTransactionOutput(StoredTransactionOutput out) throws BlockStoreException {
         maybeConnect();
-        // TODO: This should only need one query (maybe a stored procedure)
-        if (getTransactionOutput(out.getHash(), out.getIndex()) == null)
-            throw new BlockStoreException("Tried to remove a StoredTransactionOutput from H2FullPrunedBlockStore that it didn't have!");
+        Map<StoredTransactionOutPoint, StoredTransactionOutput> pending = pendingOutputs.get();
+        if (pending != null) {
+            if (getTransactionOutput(out.getHash(), out.getIndex()) == null)
+                throw new BlockStoreException("Tried to remove a StoredTransactionOutput from H2FullPrunedBlockStore that it didn't have!");
+            pending.put(new StoredTransactionOutPoint(out), null);
+            return;
+        }
+        int deleted;
         try {
-            PreparedStatement s = conn.get()
-                .prepareStatement("DELETE FROM openOutputs WHERE hash = ? AND index = ?");
-            s.setBytes(1, out.getHash().getBytes());
-            // index is actually an unsigned int
-            s.setInt(2, (int)out.getIndex());
-            s.executeUpdate();
-            s.close();
+            PreparedStatement s = prepare(DELETE_OPEN_OUTPUT);
+            s.setBytes(1, outpointKey(out.getHash(), out.getIndex()));
+            deleted = s.executeUpdate();
         } catch (SQLException e) {
             throw new BlockStoreException(e);
         }
+        if (deleted == 0)
+            throw new BlockStoreException("Tried to remove a StoredTransactionOutput from H2FullPrunedBlockStore that it didn't have!");
+    }
+
+    /** Sends the outputs held back by the current batch write to the database as one batch of deletes and one of merges. */
+    private void writePendingOutputs(Map<StoredTransactionOutPoint, StoredTransactionOutput> pending)
+            throws SQLException, BlockStoreException {
+        PreparedStatement delete = prepare(DELETE_OPEN_OUTPUT);
+        PreparedStatement merge = prepare(MERGE_OPEN_OUTPUT);
+        int deletes = 0, merges = 0;
+        for (Map.Entry<StoredTransactionOutPoint, StoredTransactionOutput> entry : pending.entrySet()) {
+            StoredTransactionOutput out = entry.getValue();
+            if (out == null) {
+                delete.setBytes(1, outpointKey(entry.getKey().getHash(), entry.getKey().getIndex()));
+                delete.addBatch();
+                deletes++;
+            } else {
+                setOutputParameters(merge, out);
+                merge.addBatch();
+                merges++;
+            }
+        }
+        // Each outpoint appears only once, so the order of the two batches doesn't matter.
+        if (deletes > 0)
+            delete.executeBatch();
+        if (merges > 0)
+            merge.executeBatch();
     }
 
     public void beginDatabaseBatchWrite() throws BlockStoreException {
@@ -709,20 +1068,40 @@ public class H2FullPrunedBlockStore implements FullPrunedBlockStore {
         } catch (SQLException e) {
             throw new BlockStoreException(e);
         }
+        if (pendingOutputs.get() == null) {
+            pendingOutputs.set(new LinkedHashMap<StoredTransactionOutPoint, StoredTransactionOutput>());
+            activeBatchWrites.incrementAndGet();
+        }
     }
 
     public void commitDatabaseBatchWrite() throws BlockStoreException {
         maybeConnect();
+        Map<StoredTransactionOutPoint, StoredTransactionOutput> pending = pendingOutputs.get();
+        if (pending != null) {
+            pendingOutputs.remove();
+            activeBatchWrites.decrementAndGet();
+        }
+        Integer pruneTo = pendingPruneHeight.get();
+        pendingPruneHeight.remove();
         try {
+            if (pending != null && !pending.isEmpty())
+                writePendingOutputs(pending);
             conn.get().commit();
             conn.get().setAutoCommit(true);
         } catch (SQLException e) {
             throw new BlockStoreException(e);
         }
+        if (pruneTo != null)
+            schedulePrune(pruneTo);
     }
 
     public void abortDatabaseBatchWrite() throws BlockStoreException {
         maybeConnect();
+        if (pendingOutputs.get() != null) {
+            pendingOutputs.remove();
+            activeBatchWrites.decrementAndGet();
+        }
+        pendingPruneHeight.remove();
         try {
             conn.get().rollback();
             conn.get().setAutoCommit(true);
@@ -733,24 +1112,136 @@ public class H2FullPrunedBlockStore implements FullPrunedBlockStore {
 
     public boolean hasUnspentOutputs(Sha256Hash hash, int numOutputs) throws BlockStoreException {
         maybeConnect();
-        PreparedStatement s = null;
+        Map<StoredTransactionOutPoint, StoredTransactionOutput> pending = pendingOutputs.get();
+        if (pending != null)
+            for (int i = 0; i < numOutputs; i++)
+                if (pending.get(new StoredTransactionOutPoint(hash, i)) != null)
+                    return true;
+        ResultSet results = null;
         try {
-            s = conn.get()
-                .prepareStatement("SELECT COUNT(*) FROM openOutputs WHERE hash = ?");
-            s.setBytes(1, hash.getBytes());
-            ResultSet results = s.executeQuery();
-            if (!results.next()) {
-                throw new BlockStoreException("Got no results from a COUNT(*) query");
+            PreparedStatement s = prepare(SELECT_OPEN_OUTPUT_RANGE);
+            s.setBytes(1, outpointKey(hash, 0));
+            s.setBytes(2, outpointKey(hash, 0xFFFFFFFFL));
+            results = s.executeQuery();
+            while (results.next()) {
+                // Skip over anything the current batch write has removed.
+                if (pending == null || !pending.containsKey(new StoredTransactionOutPoint(hash, outpointIndex(results.getBytes(1)))))
+                    return true;
             }
-            int count = results.getInt(1);
-            return count != 0;
+            return false;
         } catch (SQLException ex) {
             throw new BlockStoreException(ex);
         } finally {
-            if (s != null)
+            if (results != null)
                 try {
+                    results.close();
+                } catch (SQLException e) { throw new BlockStoreException("Failed to close ResultSet"); }
+        }
+    }
+
+    public void forEachUnspentOutput(OutputVisitor visitor) throws BlockStoreException {
+        maybeConnect();
+        Statement s = null;
+        try {
+            s = conn.get().createStatement();
+            // H2 keeps large results in a temporary file, so the whole set is never in memory at once.
+            ResultSet rs = s.executeQuery("SELECT outpoint, output FROM openOutputs");
+            while (rs.next()) {
+                byte[] outpoint = rs.getBytes(1);
+                visitor.visit(decodeOutput(outpointHash(outpoint), outpointIndex(outpoint), rs.getBytes(2)));
+            }
+            rs.close();
+        } catch (SQLException e) {
+            throw new BlockStoreException(e);
+        } finally {
+            try {
+                if (s != null)
+                    s.close();
+            } catch (SQLException e) {
+                throw new BlockStoreException(e);
+            }
+        }
+    }
+
+    /**
+     * Copies every header, undoable block and unspent output in this database into the given store, followed by the
+     * chain head pointers. Used by {@link MappedFullPrunedBlockStore#migrateFrom(H2FullPrunedBlockStore, java.io.File)}.
+     */
+    void copyTo(MappedFullPrunedBlockStore target, int rowsPerBatch) throws BlockStoreException {
+        maybeConnect();
+        Statement s = null;
+        PreparedStatement headerQuery = null;
+        try {
+            s = conn.get().createStatement();
+            int rows = 0;
+            target.beginDatabaseBatchWrite();
+            ResultSet rs = s.executeQuery("SELECT chainWork, height, header, wasUndoable FROM headers");
+            while (rs.next()) {
+                Block header = new Block(params, rs.getBytes(3));
+                target.putStoredBlock(new StoredBlock(header, new BigInteger(rs.getBytes(1)), rs.getInt(2)),
+                        rs.getBoolean(4));
+                if (++rows % rowsPerBatch == 0) {
+                    target.commitDatabaseBatchWrite();
+                    target.beginDatabaseBatchWrite();
+                }
+            }
+            rs.close();
+            log.info("Copied {} headers", rows);
+
+            // The undoable blocks are keyed by a truncated hash, so recover the full one from the matching header.
+            headerQuery = conn.get().prepareStatement("SELECT header FROM headers WHERE hash = ?");
+            rs = s.executeQuery("SELECT hash, txOutChanges, transactions FROM undoableBlocks");
+            while (rs.next()) {
+                headerQuery.setBytes(1, rs.getBytes(1));
+                ResultSet headerResult = headerQuery.executeQuery();
+                if (!headerResult.next())
+                    throw new BlockStoreException("corrupt H2 block store - undoable block without a header");
+                Sha256Hash hash = new Block(params, headerResult.getBytes(1)).getHash();
+                headerResult.close();
+                StoredBlock block = get(hash);
+                target.put(block, deserializeUndoableBlock(params, hash, rs.getBytes(2), rs.getBytes(3)));
+                if (++rows % rowsPerBatch == 0) {
+                    target.commitDatabaseBatchWrite();
+                    target.beginDatabaseBatchWrite();
+                }
+            }
+            rs.close();
+
+            rs = s.executeQuery("SELECT outpoint, output FROM openOutputs");
+            while (rs.next()) {
+                byte[] outpoint = rs.getBytes(1);
+                target.addUnspentTransactionOutput(decodeOutput(outpointHash(outpoint), outpointIndex(outpoint),
+                        rs.getBytes(2)));
+                if (++rows % rowsPerBatch == 0) {
+                    target.commitDatabaseBatchWrite();
+                    target.beginDatabaseBatchWrite();
+                }
+            }
+            rs.close();
+            log.info("Copied {} rows in total", rows);
+
+            target.setChainHead(getChainHead());
+            target.setVerifiedChainHead(getVerifiedChainHead());
+            target.commitDatabaseBatchWrite();
+        } catch (SQLException e) {
+            target.abortDatabaseBatchWrite();
+            throw new BlockStoreException(e);
+        } catch (ProtocolException e) {
+            target.abortDatabaseBatchWrite();
+            throw new BlockStoreException(e);
+        } catch (IOException e) {
+            target.abortDatabaseBatchWrite();
+            throw new BlockStoreException(e);
+        } catch (BlockStoreException e) {
+            target.abortDatabaseBatchWrite();
+            throw e;
+        } finally {
+            try {
+                if (headerQuery != null)
+                    headerQuery.close();
+                if (s != null)
                     s.close();
-                } catch (SQLException e) { throw new BlockStoreException("Failed to close PreparedStatement"); }
+            } catch (SQLException e) { throw new BlockStoreException(e); }
         }
     }
 }
@@ -0,0 +1,572 @@
+/**
+ * Copyright 2013 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.bitcoin.store;
+
+import com.google.bitcoin.core.*;
+import com.google.bitcoin.utils.Locks;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.util.Arrays;
+import java.util.concurrent.locks.ReentrantLock;
+
+import static com.google.common.base.Preconditions.checkNotNull;
+
+/**
+ * <p>A HeightIndexedBlockStore keeps every header it is given, for as long as it exists, which makes it a fit for
+ * servers that run for a long time and need the whole header chain. Unlike an {@link SPVBlockStore} nothing is ever
+ * forgotten, and unlike a {@link DiskBlockStore} nothing needs to be read in when the store is opened.</p>
+ *
+ * <p>Headers are appended to a memory mapped file and never change once written. Two more memory mapped files sit
+ * next to it: an open addressing hash table from the hash of a header to where it is in the file (the file name plus
+ * ".idx"), and the position of the header at each height of the best chain (the file name plus ".hgt"). So finding a
+ * header by hash, by height on the best chain, or an ancestor of a header on the best chain, all take the same time
+ * however long the chain is. The files grow as needed, up to a little over sixteen million headers.</p>
+ *
+ * <p>The chain head is moved by a single write, made after the headers it depends on have been forced to disk, so the
+ * head on disk always points at a header that is there, even after a power failure. That costs a sync each time the
+ * head moves. If the store wasn't closed cleanly, the hash table and the heights are rebuilt from the headers when it
+ * is next opened, and any headers at the end of the file that never made it to disk are dropped.</p>
+ *
+ * <p>{@link #get(Sha256Hash)} only takes the lock when a header isn't found, so reads of headers that are there don't
+ * wait for writers.</p>
+ */
+public class HeightIndexedBlockStore implements BlockStore {
+    private static final Logger log = LoggerFactory.getLogger(HeightIndexedBlockStore.class);
+
+    public static final String HEADER_MAGIC = "HIBS";
+
+    private final NetworkParameters params;
+    // Held by everything except a get() of a header that is there.
+    private final ReentrantLock lock = Locks.lock("HeightIndexedBlockStore");
+    private RandomAccessFile dataFile;
+    private RandomAccessFile indexFile;
+    private RandomAccessFile heightsFile;
+    // Used to stop other applications/processes from opening the store.
+    private FileLock fileLock;
+
+    // The mappings are replaced by bigger ones as the files grow. A reader that still has an old mapping of the
+    // headers can read every header that was there when it took it.
+    private volatile MappedByteBuffer data;
+    private volatile MappedByteBuffer index;
+    private MappedByteBuffer heights;
+    // Headers below this are complete. Only changed after the headers are written, and before they are indexed.
+    private volatile int numRecords;
+    private volatile StoredBlock chainHead;
+
+    /**
+     * Opens the store in the given file, creating it with just the genesis block if it's missing. This operation will
+     * block on disk.
+     */
+    public HeightIndexedBlockStore(NetworkParameters params, File file) throws BlockStoreException {
+        checkNotNull(file);
+        this.params = checkNotNull(params);
+        try {
+            boolean exists = file.exists() && file.length() > 0;
+            dataFile = new RandomAccessFile(file, "rw");
+            fileLock = dataFile.getChannel().tryLock();
+            if (fileLock == null)
+                throw new BlockStoreException("Store file is already locked by another process");
+            indexFile = new RandomAccessFile(file.getPath() + ".idx", "rw");
+            heightsFile = new RandomAccessFile(file.getPath() + ".hgt", "rw");
+            lock.lock();
+            try {
+                if (exists)
+                    load(file);
+                else
+                    initNewStore(file);
+            } finally {
+                lock.unlock();
+            }
+        } catch (Exception e) {
+            try {
+                if (dataFile != null) dataFile.close();
+                if (indexFile != null) indexFile.close();
+                if (heightsFile != null) heightsFile.close();
+            } catch (IOException e2) {
+                throw new BlockStoreException(e2);
+            }
+            if (e instanceof BlockStoreException)
+                throw (BlockStoreException) e;
+            throw new BlockStoreException(e);
+        }
+    }
+
+    private void initNewStore(File file) throws Exception {
+        log.info("Creating new block store file " + file);
+        data = map(dataFile, FILE_PROLOGUE_BYTES + INITIAL_RECORDS * RECORD_SIZE);
+        data.position(0);
+        data.put(HEADER_MAGIC.getBytes("US-ASCII"));
+        numRecords = 0;
+        data.putInt(4, 0);
+        rebuildIndex(INITIAL_BUCKETS);
+        rebuildHeights(-1, -1);
+        // Insert the genesis block.
+        Block genesis = params.getGenesisBlock().cloneAsHeader();
+        StoredBlock storedGenesis = new StoredBlock(genesis, genesis.getWork(), 0);
+        put(storedGenesis);
+        setChainHead(storedGenesis);
+    }
+
+    private void load(File file) throws Exception {
+        data = map(dataFile, dataFile.length());
+        byte[] magic = new byte[4];
+        data.position(0);
+        data.get(magic);
+        if (!new String(magic, "US-ASCII").equals(HEADER_MAGIC))
+            throw new BlockStoreException("Header bytes do not equal " + HEADER_MAGIC);
+        int capacity = (data.capacity() - FILE_PROLOGUE_BYTES) / RECORD_SIZE;
+        int count = Math.min(data.getInt(4), capacity);
+        int head = data.getInt(8);
+        boolean clean = data.getInt(12) == CLEAN;
+        // Until it is closed again, the indexes can't be trusted after a crash.
+        data.putInt(12, 0);
+        data.force();
+
+        if (!clean) {
+            log.info("Block store {} was not closed cleanly, rebuilding its indexes", file);
+            // Headers at the end that never made it to disk read back as zeros.
+            while (count > 0 && isEmptyRecord(count - 1))
+                count--;
+            data.putInt(4, count);
+        }
+        numRecords = count;
+        if (count == 0)
+            throw new BlockStoreException("Corrupted block store: no headers in " + file);
+        if (head < 0 || head >= count) {
+            head = mostWorkRecord();
+            log.warn("Chain head was lost, using the header with the most work at {}", head);
+            data.putInt(8, head);
+        }
+        StoredBlock headBlock = readRecord(data, head);
+        if (!clean || !openIndex() || !openHeights(headBlock.getHeight())) {
+            rebuildIndex(Math.max(INITIAL_BUCKETS, Integer.highestOneBit(count) * 4));
+            rebuildHeights(head, headBlock.getHeight());
+        }
+        chainHead = headBlock;
+    }
+
+    private boolean openIndex() throws IOException {
+        long length = indexFile.length();
+        if (length < INDEX_PROLOGUE_BYTES || length > Integer.MAX_VALUE)
+            return false;
+        MappedByteBuffer buffer = map(indexFile, length);
+        byte[] magic = new byte[4];
+        buffer.get(magic);
+        int buckets = buffer.getInt(4);
+        if (!new String(magic, "US-ASCII").equals(INDEX_MAGIC) || Integer.bitCount(buckets) != 1 ||
+                length != INDEX_PROLOGUE_BYTES + buckets * 4L || numRecords * 2L > buckets)
+            return false;
+        index = buffer;
+        return true;
+    }
+
+    private boolean openHeights(int headHeight) throws IOException {
+        long length = heightsFile.length();
+        if (length < HEIGHTS_PROLOGUE_BYTES + (headHeight + 1) * 4L || length > Integer.MAX_VALUE)
+            return false;
+        MappedByteBuffer buffer = map(heightsFile, length);
+        byte[] magic = new byte[4];
+        buffer.get(magic);
+        if (!new String(magic, "US-ASCII").equals(HEIGHTS_MAGIC))
+            return false;
+        heights = buffer;
+        return true;
+    }
+
+    private static MappedByteBuffer map(RandomAccessFile file, long size) throws IOException {
+        if (file.length() < size)
+            file.setLength(size);
+        return file.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, size);
+    }
+
+    //////////////////////////////////////////////////////////////////////////////////////////////////////////////////
+    // The headers.
+
+    private static int recordOffset(int record) {
+        return FILE_PROLOGUE_BYTES + record * RECORD_SIZE;
+    }
+
+    private void ensureRecordCapacity(int records) throws IOException, BlockStoreException {
+        if (recordOffset(0) + (long) records * RECORD_SIZE <= data.capacity())
+            return;
+        if (records > MAX_RECORDS)
+            throw new BlockStoreException("Block store is full");
+        long size = Math.min(FILE_PROLOGUE_BYTES + (data.capacity() - FILE_PROLOGUE_BYTES) * 2L,
+                FILE_PROLOGUE_BYTES + (long) MAX_RECORDS * RECORD_SIZE);
+        data = map(dataFile, size);
+    }
+
+    private StoredBlock readRecord(MappedByteBuffer data, int record) {
+        ByteBuffer buffer = data.duplicate();
+        buffer.position(recordOffset(record));
+        byte[] hash = new byte[32];
+        buffer.get(hash);
+        ChainWork chainWork = ChainWork.read(buffer, ChainWork.MAX_BYTES);
+        int height = buffer.getInt();
+        byte[] header = new byte[Block.HEADER_SIZE];
+        buffer.get(header);
+        return StoredBlock.compact(params, header, new Sha256Hash(hash), chainWork, height);
+    }
+
+    private boolean isEmptyRecord(int record) {
+        byte[] hash = new byte[32];
+        ByteBuffer buffer = data.duplicate();
+        buffer.position(recordOffset(record));
+        buffer.get(hash);
+        return Arrays.equals(hash, EMPTY_HASH);
+    }
+
+    private int mostWorkRecord() {
+        int best = 0;
+        ChainWork bestWork = ChainWork.ZERO;
+        ByteBuffer buffer = data.duplicate();
+        for (int record = 0; record < numRecords; record++) {
+            buffer.position(recordOffset(record) + 32);
+            ChainWork work = ChainWork.read(buffer, ChainWork.MAX_BYTES);
+            if (work.compareTo(bestWork) > 0) {
+                best = record;
+                bestWork = work;
+            }
+        }
+        return best;
+    }
+
+    // The hash of the header before the given one, in the same byte order as the stored hashes.
+    private byte[] prevHash(int record) {
+        byte[] hash = new byte[32];
+        ByteBuffer buffer = data.duplicate();
+        buffer.position(recordOffset(record) + 32 + ChainWork.MAX_BYTES + 4 + 4);
+        buffer.get(hash);
+        return Utils.reverseBytes(hash);
+    }
+
+    //////////////////////////////////////////////////////////////////////////////////////////////////////////////////
+    // The hash index. Each bucket is an int holding the number of a header plus one, or zero if it is empty. Headers
+    // are never removed, so there are no tombstones, and readers can probe it while it is written. Only writers
+    // holding the lock may change it.
+
+    private static int bucketOffset(int bucket) {
+        return INDEX_PROLOGUE_BYTES + bucket * 4;
+    }
+
+    private static int hashTail(byte[] hash) {
+        return (hash[31] & 0xFF) | ((hash[30] & 0xFF) << 8) | ((hash[29] & 0xFF) << 16) | ((hash[28] & 0xFF) << 24);
+    }
+
+    /**
+     * Returns the number of the header with the given hash, or -1. Only headers below the given count are looked at,
+     * which the given mapping of the headers must cover. A reader racing with a rebuild of the index may miss a
+     * header that is there, but never finds the wrong one.
+     */
+    private static int find(MappedByteBuffer data, MappedByteBuffer index, int count, byte[] hash) {
+        int numBuckets = (index.capacity() - INDEX_PROLOGUE_BYTES) / 4;
+        ByteBuffer buffer = data.duplicate();
+        byte[] scratch = new byte[32];
+        int bucket = hashTail(hash) & (numBuckets - 1);
+        for (int i = 0; i < numBuckets; i++, bucket = (bucket + 1) & (numBuckets - 1)) {
+            int entry = index.getInt(bucketOffset(bucket));
+            if (entry == 0)
+                return -1;
+            int record = entry - 1;
+            if (record < 0 || record >= count)
+                continue;
+            buffer.position(recordOffset(record));
+            buffer.get(scratch);
+            if (Arrays.equals(scratch, hash))
+                return record;
+        }
+        return -1;
+    }
+
+    private void indexPut(byte[] hash, int record) throws IOException {
+        int numBuckets = (index.capacity() - INDEX_PROLOGUE_BYTES) / 4;
+        if (numRecords * 2L > numBuckets) {
+            // Keeps the table at most half full. This indexes the new header too.
+            rebuildIndex(numBuckets * 2);
+            return;
+        }
+        int bucket = hashTail(hash) & (numBuckets - 1);
+        while (index.getInt(bucketOffset(bucket)) != 0)
+            bucket = (bucket + 1) & (numBuckets - 1);
+        index.putInt(bucketOffset(bucket), record + 1);
+    }
+
+    private void rebuildIndex(int numBuckets) throws IOException {
+        index = map(indexFile, bucketOffset(numBuckets));
+        index.position(0);
+        index.put(INDEX_MAGIC.getBytes("US-ASCII"));
+        index.putInt(4, numBuckets);
+        for (int i = 0; i < numBuckets; i++)
+            index.putInt(bucketOffset(i), 0);
+        ByteBuffer buffer = data.duplicate();
+        byte[] hash = new byte[32];
+        for (int record = 0; record < numRecords; record++) {
+            buffer.position(recordOffset(record));
+            buffer.get(hash);
+            int bucket = hashTail(hash) & (numBuckets - 1);
+            while (index.getInt(bucketOffset(bucket)) != 0)
+                bucket = (bucket + 1) & (numBuckets - 1);
+            index.putInt(bucketOffset(bucket), record + 1);
+        }
+    }
+
+    //////////////////////////////////////////////////////////////////////////////////////////////////////////////////
+    // The best chain by height. Each entry is the number of the header at that height plus one, and every entry
+    // above the chain head is zero. Guarded by the lock.
+
+    private static int heightOffset(int height) {
+        return HEIGHTS_PROLOGUE_BYTES + height * 4;
+    }
+
+    private int recordAtHeight(int height) {
+        if (heightOffset(height) + 4 > heights.capacity())
+            return -1;
+        return heights.getInt(heightOffset(height)) - 1;
+    }
+
+    private void setRecordAtHeight(int height, int record) throws IOException {
+        if (heightOffset(height) + 4 > heights.capacity())
+            heights = map(heightsFile, Math.max(heights.capacity() * 2L, heightOffset(height) + 4));
+        heights.putInt(heightOffset(height), record + 1);
+    }
+
+    /**
+     * Points the heights at the chain ending in the given header, walking back from it until the heights already
+     * agree, or to the genesis block if full is set. Entries above the old head that are not on the new chain are
+     * cleared.
+     */
+    private void updateHeights(int record, int height, int oldHeight, boolean full) throws IOException,
+            BlockStoreException {
+        for (int h = height + 1; h <= oldHeight; h++)
+            setRecordAtHeight(h, -1);
+        for (int h = height; h >= 0; h--) {
+            if (!full && recordAtHeight(h) == record)
+                break;
+            setRecordAtHeight(h, record);
+            if (h == 0)
+                break;
+            byte[] prev = prevHash(record);
+            record = find(data, index, numRecords, prev);
+            if (record < 0)
+                throw new BlockStoreException("Corrupted block store: missing header " + new Sha256Hash(prev));
+        }
+    }
+
+    private void rebuildHeights(int headRecord, int headHeight) throws IOException, BlockStoreException {
+        heights = map(heightsFile, heightOffset(Math.max(INITIAL_RECORDS, headHeight + 1)));
+        heights.position(0);
+        heights.put(HEIGHTS_MAGIC.getBytes("US-ASCII"));
+        for (int h = 0; heightOffset(h) < heights.capacity(); h++)
+            heights.putInt(heightOffset(h), 0);
+        if (headRecord >= 0)
+            updateHeights(headRecord, headHeight, -1, true);
+    }
+
+    private boolean isOnBestChain(StoredBlock block) {
+        int record = recordAtHeight(block.getHeight());
+        if (record < 0 || block.getHeight() > chainHead.getHeight())
+            return false;
+        byte[] hash = new byte[32];
+        ByteBuffer buffer = data.duplicate();
+        buffer.position(recordOffset(record));
+        buffer.get(hash);
+        return Arrays.equals(hash, block.getHeader().getHash().getBytes());
+    }
+
+    private void checkOpen() throws BlockStoreException {
+        if (data == null) throw new BlockStoreException("Store closed");
+    }
+
+    public void put(StoredBlock block) throws BlockStoreException {
+        lock.lock();
+        try {
+            checkOpen();
+            byte[] hash = block.getHeader().getHash().getBytes();
+            int record = numRecords;
+            // Headers never change once written, so there is nothing to do for one that is already here.
+            if (find(data, index, record, hash) >= 0)
+                return;
+            ensureRecordCapacity(record + 1);
+            ByteBuffer buffer = data.duplicate();
+            buffer.position(recordOffset(record));
+            buffer.put(hash);
+            block.getFixedChainWork().write(buffer, ChainWork.MAX_BYTES);
+            buffer.putInt(block.getHeight());
+            buffer.put(block.getHeader().unsafeBitcoinSerialize(), 0, Block.HEADER_SIZE);
+            numRecords = record + 1;
+            data.putInt(4, record + 1);
+            indexPut(hash, record);
+        } catch (IOException e) {
+            throw new BlockStoreException(e);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public StoredBlock get(Sha256Hash hash) throws BlockStoreException {
+        // The count is read before the mapping, which was replaced before the count was last raised.
+        int count = numRecords;
+        MappedByteBuffer data = this.data;
+        MappedByteBuffer index = this.index;
+        if (data == null) throw new BlockStoreException("Store closed");
+        byte[] bytes = hash.getBytes();
+        int record = find(data, index, count, bytes);
+        if (record < 0) {
+            // Either it isn't here, or the index was being rebuilt. Make sure.
+            lock.lock();
+            try {
+                checkOpen();
+                data = this.data;
+                record = find(data, this.index, numRecords, bytes);
+            } finally {
+                lock.unlock();
+            }
+        }
+        return record < 0 ? null : readRecord(data, record);
+    }
+
+    /**
+     * Returns the block at the given height on the best chain, or null if the height is negative or above the chain
+     * head.
+     */
+    public StoredBlock getByHeight(int height) throws BlockStoreException {
+        lock.lock();
+        try {
+            checkOpen();
+            if (height < 0 || height > chainHead.getHeight())
+                return null;
+            return readRecord(data, recordAtHeight(height));
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public StoredBlock getChainHead() throws BlockStoreException {
+        checkOpen();
+        return chainHead;
+    }
+
+    public void setChainHead(StoredBlock chainHead) throws BlockStoreException {
+        lock.lock();
+        try {
+            checkOpen();
+            Sha256Hash hash = chainHead.getHeader().getHash();
+            int record = find(data, index, numRecords, hash.getBytes());
+            if (record < 0)
+                throw new BlockStoreException("Chain head is not in the store: " + hash);
+            StoredBlock oldHead = this.chainHead;
+            updateHeights(record, chainHead.getHeight(), oldHead == null ? -1 : oldHead.getHeight(), false);
+            // The heights are written before the head, so they are only wrong after a crash, when they are rebuilt.
+            // The headers have to be on disk before a head that points at them is.
+            data.force();
+            data.putInt(8, record);
+            this.chainHead = chainHead;
+        } catch (IOException e) {
+            throw new BlockStoreException(e);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public StoredBlock getAncestor(StoredBlock block, int height) throws BlockStoreException {
+        if (height < 0 || height > block.getHeight())
+            return null;
+        if (height == block.getHeight())
+            return block;
+        lock.lock();
+        try {
+            checkOpen();
+            // A block on a side chain is walked back until it joins the best chain.
+            StoredBlock cursor = block;
+            while (!isOnBestChain(cursor)) {
+                if (cursor.getHeight() == height)
+                    return cursor;
+                cursor = cursor.getPrev(this);
+                if (cursor == null)
+                    return null;
+            }
+            return readRecord(data, recordAtHeight(height));
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public void close() throws BlockStoreException {
+        lock.lock();
+        try {
+            checkOpen();
+            data.force();
+            index.force();
+            heights.force();
+            // Everything on disk matches, so the indexes can be trusted next time.
+            data.putInt(12, CLEAN);
+            data.force();
+            data = null;  // Allow the mappings to be GCd and go away.
+            index = null;
+            heights = null;
+            dataFile.close();
+            indexFile.close();
+            heightsFile.close();
+        } catch (IOException e) {
+            throw new BlockStoreException(e);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // File format:
+    //   4 header bytes = "HIBS"
+    //   4 bytes number of headers
+    //   4 bytes number of the chain head
+    //   4 bytes CLEAN if the store was closed cleanly, otherwise zero
+    //
+    // For each header (132 bytes)
+    //   32 bytes hash of the header
+    //   16 bytes of chain work
+    //    4 bytes of height
+    //   80 bytes of block header data
+    static final int RECORD_SIZE = 32 + ChainWork.MAX_BYTES + 4 + Block.HEADER_SIZE;
+    private static final int FILE_PROLOGUE_BYTES = 16;
+    private static final int INITIAL_RECORDS = 4096;
+    // The most that fits in a single mapping.
+    private static final int MAX_RECORDS = (Integer.MAX_VALUE - FILE_PROLOGUE_BYTES) / RECORD_SIZE;
+    private static final int CLEAN = 0x434c4e21;
+    private static final byte[] EMPTY_HASH = new byte[32];
+
+    // Index file format:
+    //   4 header bytes = "HIBI"
+    //   4 bytes number of buckets
+    //   then for each bucket, 4 bytes number of a header plus one, or zero if empty
+    private static final String INDEX_MAGIC = "HIBI";
+    private static final int INDEX_PROLOGUE_BYTES = 8;
+    private static final int INITIAL_BUCKETS = INITIAL_RECORDS * 4;
+
+    // Heights file format:
+    //   4 header bytes = "HIBH"
+    //   4 unused bytes
+    //   then for each height, 4 bytes number of the header on the best chain plus one, or zero above the head
+    private static final String HEIGHTS_MAGIC = "HIBH";
+    private static final int HEIGHTS_PROLOGUE_BYTES = 8;
+}
@@ -0,0 +1,37 @@
+/**
+ * Copyright 2013 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.bitcoin.store;
+
+import com.google.bitcoin.core.StoredTransactionOutput;
+
+/**
+ * A {@link FullPrunedBlockStore} that can walk through its whole unspent output set, which is what
+ * {@link UnspentOutputSnapshot} needs to export it.
+ */
+public interface IterableFullPrunedBlockStore extends FullPrunedBlockStore {
+    /** Callback for {@link IterableFullPrunedBlockStore#forEachUnspentOutput(OutputVisitor)}. */
+    interface OutputVisitor {
+        void visit(StoredTransactionOutput out) throws BlockStoreException;
+    }
+
+    /**
+     * Calls the visitor once for every unspent output that has been committed, in no particular order. The outputs
+     * are handed over one at a time rather than collected first, so this works however large the set is. Blocks
+     * should not be connected while this is running.
+     */
+    void forEachUnspentOutput(OutputVisitor visitor) throws BlockStoreException;
+}
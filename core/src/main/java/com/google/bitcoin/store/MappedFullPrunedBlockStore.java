@@ -0,0 +1,657 @@
+/**
+ * Copyright 2013 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.bitcoin.store;
+
+import com.google.bitcoin.core.*;
+import com.google.common.collect.Lists;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.util.*;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedInputStream;
+import java.util.zip.CheckedOutputStream;
+
+import static com.google.common.base.Preconditions.checkNotNull;
+
+/**
+ * <p>A full pruned block store that keeps its data in memory mapped files inside a directory, with no database
+ * involved. Headers, undoable blocks and the unspent output set each live in a {@link MappedHashTable}, a hash
+ * index keyed by block hash or by (transaction hash, output index) pointing into a data file, so looking up or
+ * removing an output during block connection costs a couple of memory reads instead of a query.</p>
+ *
+ * <p>Batch writes are buffered per thread until {@link #commitDatabaseBatchWrite()}, so other threads never see
+ * them and {@link #abortDatabaseBatchWrite()} just throws them away. Committed writes go into an in-memory page
+ * overlay rather than straight into the mapping. Once the overlay grows beyond a limit (or the store is closed) it is
+ * checkpointed: every dirty page is written to a checksummed journal which is synced to disk, then the pages are
+ * copied into the mapped files and forced out, and finally the journal is deleted. A journal that is still there
+ * when the store is opened is replayed if it is complete and ignored if it is not, so after a crash the store is
+ * always in the state of some checkpoint, with both chain heads matching the unspent output set. Blocks committed
+ * after the last checkpoint are simply downloaded and connected again.</p>
+ *
+ * <p>An existing {@link H2FullPrunedBlockStore} can be converted with
+ * {@link #migrateFrom(H2FullPrunedBlockStore, File)}.</p>
+ */
+public class MappedFullPrunedBlockStore implements IterableFullPrunedBlockStore {
+    private static final Logger log = LoggerFactory.getLogger(MappedFullPrunedBlockStore.class);
+
+    /** The default amount of dirty data that is allowed to build up in memory before it is written to disk. */
+    public static final long DEFAULT_CHECKPOINT_BYTES = 64 * 1024 * 1024;
+
+    private static final int META_MAGIC = 0x4d465042;  // "MFPB"
+    private static final int JOURNAL_MAGIC = 0x4d464a4c;  // "MFJL"
+    private static final int VERSION = 1;
+    // Meta file format: 4 bytes magic, 4 bytes version, 32 bytes chain head hash, 32 bytes verified chain head hash
+    private static final long CHAIN_HEAD_OFFSET = 8;
+    private static final long VERIFIED_CHAIN_HEAD_OFFSET = 40;
+
+    private static final int HEADERS = 0;
+    private static final int UNDOABLE_BLOCKS = 1;
+    private static final int OUTPUTS = 2;
+    // Output keys are the transaction hash followed by the output index. The values are the rest of the output in
+    // the form written by StoredTransactionOutput.serializeCompact().
+    private static final int OUTPUT_KEY_LENGTH = 36;
+
+    // Undoable block values are the height followed by one of these and the serialized data.
+    private static final int UNDO_CHANGES = 0;
+    private static final int UNDO_TRANSACTIONS = 1;
+
+    /** The writes made by one thread between beginDatabaseBatchWrite() and commit. A null value is a removal. */
+    private static class Batch {
+        final List<Map<ByteBuffer, byte[]>> writes = new ArrayList<Map<ByteBuffer, byte[]>>(3);
+        StoredBlock chainHead;
+        StoredBlock verifiedChainHead;
+
+        Batch() {
+            for (int i = 0; i < 3; i++)
+                writes.add(new LinkedHashMap<ByteBuffer, byte[]>());
+        }
+    }
+
+    private final NetworkParameters params;
+    private final File directory;
+    private final File journalFile;
+    private final int fullStoreDepth;
+    private final long checkpointBytes;
+
+    private RandomAccessFile lockFile;
+    private FileLock fileLock;
+    private MappedPageFile meta;
+    private MappedHashTable[] tables;
+    // Heights of the undoable blocks we hold, so old ones can be pruned without scanning.
+    private final TreeMap<Integer, Set<Sha256Hash>> undoableBlockHeights = new TreeMap<Integer, Set<Sha256Hash>>();
+    private final ThreadLocal<Batch> batch = new ThreadLocal<Batch>();
+
+    private volatile StoredBlock chainHead;
+    private volatile StoredBlock verifiedChainHead;
+    private final AncestorIndex ancestors = new AncestorIndex(this);
+
+    /**
+     * Opens or creates a store in the given directory.
+     * @param params A copy of the NetworkParameters used
+     * @param directory The directory to keep the store files in, which will be created if needed
+     * @param fullStoreDepth The number of blocks of history stored in full (something like 1000 is pretty safe)
+     * @throws BlockStoreException if the store can't be opened or is locked by another process
+     */
+    public MappedFullPrunedBlockStore(NetworkParameters params, File directory, int fullStoreDepth)
+            throws BlockStoreException {
+        this(params, directory, fullStoreDepth, DEFAULT_CHECKPOINT_BYTES);
+    }
+
+    /**
+     * Opens or creates a store in the given directory.
+     * @param params A copy of the NetworkParameters used
+     * @param directory The directory to keep the store files in, which will be created if needed
+     * @param fullStoreDepth The number of blocks of history stored in full (something like 1000 is pretty safe)
+     * @param checkpointBytes How much dirty data to keep in memory before writing it out. Larger values mean fewer,
+     *                        bigger disk writes but more heap and more blocks to replay after a crash.
+     * @throws BlockStoreException if the store can't be opened or is locked by another process
+     */
+    public MappedFullPrunedBlockStore(NetworkParameters params, File directory, int fullStoreDepth,
+                                      long checkpointBytes) throws BlockStoreException {
+        this.params = checkNotNull(params);
+        this.directory = checkNotNull(directory);
+        this.journalFile = new File(directory, "journal");
+        this.fullStoreDepth = fullStoreDepth > 0 ? fullStoreDepth : 1;
+        this.checkpointBytes = checkpointBytes;
+        try {
+            if (!directory.isDirectory() && !directory.mkdirs())
+                throw new BlockStoreException("Could not create directory " + directory);
+            lockFile = new RandomAccessFile(new File(directory, "lock"), "rw");
+            try {
+                fileLock = lockFile.getChannel().tryLock();
+            } catch (OverlappingFileLockException e) {
+                fileLock = null;  // Already open elsewhere in this process.
+            }
+            if (fileLock == null)
+                throw new BlockStoreException("Store directory is already locked by another process");
+
+            replayJournal();
+
+            meta = new MappedPageFile(new File(directory, "meta"));
+            tables = new MappedHashTable[] {
+                    new MappedHashTable(directory, "headers", 32),
+                    new MappedHashTable(directory, "undoable", 32),
+                    new MappedHashTable(directory, "outputs", OUTPUT_KEY_LENGTH)
+            };
+            if (meta.length() == 0) {
+                createNewStore();
+            } else {
+                if (meta.getInt(0) != META_MAGIC || meta.getInt(4) != VERSION)
+                    throw new BlockStoreException("Not a store directory, or one of the wrong version: " + directory);
+                initFromFiles();
+            }
+        } catch (IOException e) {
+            closeQuietly();
+            throw new BlockStoreException(e);
+        } catch (BlockStoreException e) {
+            closeQuietly();
+            throw e;
+        }
+    }
+
+    /**
+     * Creates a new store in the given directory holding the same headers, undoable blocks, unspent outputs and
+     * chain heads as the given H2 store. The H2 store is left untouched.
+     */
+    public static MappedFullPrunedBlockStore migrateFrom(H2FullPrunedBlockStore source, File directory)
+            throws BlockStoreException {
+        if (new File(directory, "meta").exists())
+            throw new BlockStoreException("Refusing to migrate into an existing store: " + directory);
+        MappedFullPrunedBlockStore target =
+                new MappedFullPrunedBlockStore(source.getParams(), directory, source.getFullStoreDepth());
+        source.copyTo(target, 10000);
+        return target;
+    }
+
+    private void createNewStore() throws IOException, BlockStoreException {
+        meta.ensureLength(MappedPageFile.PAGE_SIZE);
+        meta.putInt(0, META_MAGIC);
+        meta.putInt(4, VERSION);
+        try {
+            StoredBlock storedGenesisHeader = new StoredBlock(params.getGenesisBlock().cloneAsHeader(), params.getGenesisBlock().getWork(), 0);
+            // The coinbase in the genesis block is not spendable
+            List<Transaction> genesisTransactions = Lists.newLinkedList();
+            StoredUndoableBlock storedGenesis = new StoredUndoableBlock(params.getGenesisBlock().getHash(), genesisTransactions);
+            beginDatabaseBatchWrite();
+            put(storedGenesisHeader, storedGenesis);
+            setChainHead(storedGenesisHeader);
+            setVerifiedChainHead(storedGenesisHeader);
+            commitDatabaseBatchWrite();
+        } catch (VerificationException e) {
+            throw new RuntimeException(e);  // Cannot happen.
+        }
+        checkpoint();
+    }
+
+    private void initFromFiles() throws BlockStoreException {
+        tables[UNDOABLE_BLOCKS].forEach(new MappedHashTable.Visitor() {
+            public void visit(byte[] key, byte[] value) {
+                addUndoableBlockHeight(readInt(value, 0), new Sha256Hash(key));
+            }
+        });
+        chainHead = readHead(CHAIN_HEAD_OFFSET);
+        verifiedChainHead = readHead(VERIFIED_CHAIN_HEAD_OFFSET);
+    }
+
+    private StoredBlock readHead(long offset) throws BlockStoreException {
+        byte[] hashBytes = new byte[32];
+        meta.get(offset, hashBytes, 0, 32);
+        StoredBlock block = get(new Sha256Hash(hashBytes));
+        if (block == null)
+            throw new BlockStoreException("Corrupted block store: could not find chain head " + new Sha256Hash(hashBytes));
+        return block;
+    }
+
+    NetworkParameters getParams() {
+        return params;
+    }
+
+    /** Returns how many unspent outputs are currently stored, not counting uncommitted batch writes. */
+    public synchronized long getUnspentOutputCount() {
+        return tables[OUTPUTS].size();
+    }
+
+    //////////////////////////////////////////////////////////////////////////////////////////////////////////////////
+    // Journal and checkpoints.
+
+    private List<MappedPageFile> getFiles() {
+        List<MappedPageFile> files = new ArrayList<MappedPageFile>(7);
+        files.add(meta);
+        for (MappedHashTable table : tables) {
+            files.add(table.getIndexFile());
+            files.add(table.getDataFile());
+        }
+        return files;
+    }
+
+    /** Makes everything that has been committed so far durable. */
+    private void checkpoint() throws IOException {
+        List<MappedPageFile> dirtyFiles = new ArrayList<MappedPageFile>();
+        for (MappedPageFile file : getFiles())
+            if (file.isDirty())
+                dirtyFiles.add(file);
+        if (dirtyFiles.isEmpty())
+            return;
+        FileOutputStream fileStream = new FileOutputStream(journalFile);
+        try {
+            BufferedOutputStream buffered = new BufferedOutputStream(fileStream);
+            CheckedOutputStream checked = new CheckedOutputStream(buffered, new CRC32());
+            DataOutputStream out = new DataOutputStream(checked);
+            out.writeInt(JOURNAL_MAGIC);
+            out.writeInt(dirtyFiles.size());
+            for (MappedPageFile file : dirtyFiles) {
+                out.writeUTF(file.getFile().getName());
+                file.writeDirtyPages(out);
+            }
+            out.flush();
+            new DataOutputStream(buffered).writeLong(checked.getChecksum().getValue());
+            buffered.flush();
+            fileStream.getFD().sync();
+        } finally {
+            fileStream.close();
+        }
+        // Now the journal is safely on disk we can update the files themselves.
+        for (MappedPageFile file : dirtyFiles)
+            file.checkpoint();
+        if (!journalFile.delete())
+            throw new IOException("Could not delete " + journalFile);
+    }
+
+    /** Applies a journal left behind by a checkpoint that was interrupted, if it was completely written. */
+    private void replayJournal() throws IOException {
+        if (!journalFile.exists())
+            return;
+        List<MappedPageFile> files = new ArrayList<MappedPageFile>();
+        boolean complete = false;
+        DataInputStream in = null;
+        try {
+            BufferedInputStream buffered = new BufferedInputStream(new FileInputStream(journalFile));
+            CheckedInputStream checked = new CheckedInputStream(buffered, new CRC32());
+            in = new DataInputStream(checked);
+            if (in.readInt() == JOURNAL_MAGIC) {
+                int numFiles = in.readInt();
+                for (int i = 0; i < numFiles; i++) {
+                    MappedPageFile file = new MappedPageFile(new File(directory, in.readUTF()));
+                    files.add(file);
+                    file.readJournalPages(in);
+                }
+                long expected = checked.getChecksum().getValue();
+                complete = new DataInputStream(buffered).readLong() == expected;
+            }
+        } catch (EOFException e) {
+            // The journal was never finished, so the files were never touched.
+        } finally {
+            if (in != null)
+                in.close();
+        }
+        if (complete) {
+            log.info("Replaying journal from interrupted checkpoint");
+            for (MappedPageFile file : files)
+                file.checkpoint();
+        } else {
+            log.info("Discarding incomplete journal");
+        }
+        for (MappedPageFile file : files)
+            file.close();
+        if (!journalFile.delete())
+            throw new IOException("Could not delete " + journalFile);
+    }
+
+    //////////////////////////////////////////////////////////////////////////////////////////////////////////////////
+    // Reads and writes, which go through the current thread's batch if there is one.
+
+    private byte[] read(int table, byte[] key) {
+        Batch b = batch.get();
+        if (b != null) {
+            Map<ByteBuffer, byte[]> writes = b.writes.get(table);
+            ByteBuffer wrappedKey = ByteBuffer.wrap(key);
+            if (writes.containsKey(wrappedKey))
+                return writes.get(wrappedKey);
+        }
+        synchronized (this) {
+            checkNotNull(tables, "MappedFullPrunedBlockStore is closed");
+            return tables[table].get(key);
+        }
+    }
+
+    private void write(int table, byte[] key, byte[] value) throws BlockStoreException {
+        Batch b = batch.get();
+        if (b != null) {
+            b.writes.get(table).put(ByteBuffer.wrap(key), value);
+        } else {
+            // Not in a batch, so apply it straight away as a batch of one.
+            Batch single = new Batch();
+            single.writes.get(table).put(ByteBuffer.wrap(key), value);
+            apply(single);
+        }
+    }
+
+    private synchronized void apply(Batch b) throws BlockStoreException {
+        checkNotNull(tables, "MappedFullPrunedBlockStore is closed");
+        try {
+            // Growing an index rewrites it from scratch, which can only be done with nothing dirty. So make room for
+            // the whole batch before applying any of it.
+            boolean mustGrow = false;
+            for (int i = 0; i < tables.length; i++)
+                mustGrow |= tables[i].needsGrowth(b.writes.get(i).size());
+            if (mustGrow) {
+                checkpoint();
+                for (int i = 0; i < tables.length; i++)
+                    if (tables[i].needsGrowth(b.writes.get(i).size()))
+                        tables[i].grow(b.writes.get(i).size());
+            }
+            for (int i = 0; i < tables.length; i++) {
+                for (Map.Entry<ByteBuffer, byte[]> entry : b.writes.get(i).entrySet()) {
+                    byte[] key = entry.getKey().array();
+                    byte[] value = entry.getValue();
+                    if (i == UNDOABLE_BLOCKS)
+                        trackUndoableBlock(key, value);
+                    if (value == null)
+                        tables[i].remove(key);
+                    else
+                        tables[i].put(key, value);
+                }
+            }
+            if (b.chainHead != null) {
+                meta.put(CHAIN_HEAD_OFFSET, b.chainHead.getHeader().getHash().getBytes(), 0, 32);
+                chainHead = b.chainHead;
+                ancestors.setChainHead(chainHead);
+            }
+            if (b.verifiedChainHead != null) {
+                meta.put(VERIFIED_CHAIN_HEAD_OFFSET, b.verifiedChainHead.getHeader().getHash().getBytes(), 0, 32);
+                verifiedChainHead = b.verifiedChainHead;
+            }
+            long dirtyBytes = 0;
+            for (MappedPageFile file : getFiles())
+                dirtyBytes += file.getDirtyBytes();
+            if (dirtyBytes >= checkpointBytes)
+                checkpoint();
+        } catch (IOException e) {
+            throw new BlockStoreException(e);
+        }
+    }
+
+    private void trackUndoableBlock(byte[] key, byte[] value) {
+        Sha256Hash hash = new Sha256Hash(key);
+        if (value != null) {
+            addUndoableBlockHeight(readInt(value, 0), hash);
+        } else {
+            byte[] old = tables[UNDOABLE_BLOCKS].get(key);
+            if (old == null)
+                return;
+            Set<Sha256Hash> hashes = undoableBlockHeights.get(readInt(old, 0));
+            if (hashes != null) {
+                hashes.remove(hash);
+                if (hashes.isEmpty())
+                    undoableBlockHeights.remove(readInt(old, 0));
+            }
+        }
+    }
+
+    private void addUndoableBlockHeight(int height, Sha256Hash hash) {
+        Set<Sha256Hash> hashes = undoableBlockHeights.get(height);
+        if (hashes == null) {
+            hashes = new HashSet<Sha256Hash>();
+            undoableBlockHeights.put(height, hashes);
+        }
+        hashes.add(hash);
+    }
+
+    private static int readInt(byte[] bytes, int offset) {
+        return ((bytes[offset] & 0xFF) << 24) |
+               ((bytes[offset + 1] & 0xFF) << 16) |
+               ((bytes[offset + 2] & 0xFF) << 8) |
+               (bytes[offset + 3] & 0xFF);
+    }
+
+    //////////////////////////////////////////////////////////////////////////////////////////////////////////////////
+    // BlockStore and FullPrunedBlockStore.
+
+    /** Stores a header with an explicit wasUndoable flag, used when migrating from another store. */
+    void putStoredBlock(StoredBlock storedBlock, boolean wasUndoable) throws BlockStoreException {
+        ByteBuffer value = ByteBuffer.allocate(1 + StoredBlock.COMPACT_SERIALIZED_SIZE);
+        value.put((byte) (wasUndoable ? 1 : 0));
+        storedBlock.serializeCompact(value);
+        write(HEADERS, storedBlock.getHeader().getHash().getBytes(), value.array());
+    }
+
+    public void put(StoredBlock storedBlock) throws BlockStoreException {
+        // Don't lose the flag if this block was already stored as undoable.
+        byte[] existing = read(HEADERS, storedBlock.getHeader().getHash().getBytes());
+        putStoredBlock(storedBlock, existing != null && existing[0] != 0);
+    }
+
+    public void put(StoredBlock storedBlock, StoredUndoableBlock undoableBlock) throws BlockStoreException {
+        ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        try {
+            DataOutputStream out = new DataOutputStream(bos);
+            out.writeInt(storedBlock.getHeight());
+            if (undoableBlock.getTxOutChanges() != null) {
+                out.writeByte(UNDO_CHANGES);
+                undoableBlock.getTxOutChanges().serializeCompact(out);
+            } else {
+                out.writeByte(UNDO_TRANSACTIONS);
+                H2FullPrunedBlockStore.serializeTransactions(undoableBlock.getTransactions(), out);
+            }
+            out.flush();
+        } catch (IOException e) {
+            throw new BlockStoreException(e);
+        }
+        Sha256Hash hash = storedBlock.getHeader().getHash();
+        write(UNDOABLE_BLOCKS, hash.getBytes(), bos.toByteArray());
+        putStoredBlock(storedBlock, true);
+    }
+
+    private StoredBlock get(Sha256Hash hash, boolean wasUndoableOnly) throws BlockStoreException {
+        byte[] value = read(HEADERS, hash.getBytes());
+        if (value == null || (wasUndoableOnly && value[0] == 0))
+            return null;
+        try {
+            return StoredBlock.deserializeCompact(params, ByteBuffer.wrap(value, 1, value.length - 1));
+        } catch (ProtocolException e) {
+            // Corrupted store.
+            throw new BlockStoreException(e);
+        }
+    }
+
+    public StoredBlock get(Sha256Hash hash) throws BlockStoreException {
+        return get(hash, false);
+    }
+
+    public StoredBlock getOnceUndoableStoredBlock(Sha256Hash hash) throws BlockStoreException {
+        return get(hash, true);
+    }
+
+    public StoredUndoableBlock getUndoBlock(Sha256Hash hash) throws BlockStoreException {
+        byte[] value = read(UNDOABLE_BLOCKS, hash.getBytes());
+        if (value == null)
+            return null;
+        try {
+            byte[] serialized = Arrays.copyOfRange(value, 5, value.length);
+            switch (value[4]) {
+                case UNDO_CHANGES:
+                    return H2FullPrunedBlockStore.deserializeUndoableBlock(params, hash, serialized, null);
+                case UNDO_TRANSACTIONS:
+                    return H2FullPrunedBlockStore.deserializeUndoableBlock(params, hash, null, serialized);
+                default:
+                    throw new BlockStoreException("Corrupted block store: unknown undoable block type " + value[4]);
+            }
+        } catch (ProtocolException e) {
+            // Corrupted store.
+            throw new BlockStoreException(e);
+        } catch (IOException e) {
+            // Corrupted store.
+            throw new BlockStoreException(e);
+        }
+    }
+
+    public StoredBlock getChainHead() throws BlockStoreException {
+        Batch b = batch.get();
+        if (b != null && b.chainHead != null)
+            return b.chainHead;
+        return chainHead;
+    }
+
+    public void setChainHead(StoredBlock chainHead) throws BlockStoreException {
+        Batch b = batch.get();
+        if (b != null) {
+            b.chainHead = chainHead;
+        } else {
+            Batch single = new Batch();
+            single.chainHead = chainHead;
+            apply(single);
+        }
+    }
+
+    public StoredBlock getAncestor(StoredBlock block, int height) throws BlockStoreException {
+        return ancestors.getAncestor(block, height);
+    }
+
+    public StoredBlock getVerifiedChainHead() throws BlockStoreException {
+        Batch b = batch.get();
+        if (b != null && b.verifiedChainHead != null)
+            return b.verifiedChainHead;
+        return verifiedChainHead;
+    }
+
+    public void setVerifiedChainHead(StoredBlock chainHead) throws BlockStoreException {
+        Batch b = batch.get();
+        boolean single = b == null;
+        if (single)
+            b = new Batch();
+        b.verifiedChainHead = chainHead;
+        StoredBlock currentHead = b.chainHead != null ? b.chainHead : this.chainHead;
+        if (currentHead == null || currentHead.getHeight() < chainHead.getHeight())
+            b.chainHead = chainHead;
+        // Prune undoable blocks that are now too deep to be needed for a re-org.
+        synchronized (this) {
+            int pruneHeight = chainHead.getHeight() - fullStoreDepth;
+            for (Set<Sha256Hash> hashes : undoableBlockHeights.headMap(pruneHeight, true).values())
+                for (Sha256Hash hash : hashes)
+                    b.writes.get(UNDOABLE_BLOCKS).put(ByteBuffer.wrap(hash.getBytes()), null);
+        }
+        if (single)
+            apply(b);
+    }
+
+    private static byte[] outputKey(Sha256Hash hash, long index) {
+        byte[] key = new byte[OUTPUT_KEY_LENGTH];
+        System.arraycopy(hash.getBytes(), 0, key, 0, 32);
+        Utils.uint32ToByteArrayBE(index, key, 32);
+        return key;
+    }
+
+    public StoredTransactionOutput getTransactionOutput(Sha256Hash hash, long index) throws BlockStoreException {
+        byte[] value = read(OUTPUTS, outputKey(hash, index));
+        if (value == null)
+            return null;
+        return decodeOutput(hash, index, value);
+    }
+
+    private static StoredTransactionOutput decodeOutput(Sha256Hash hash, long index, byte[] value)
+            throws BlockStoreException {
+        return H2FullPrunedBlockStore.decodeOutput(hash, index, value);
+    }
+
+    private static byte[] encodeOutput(StoredTransactionOutput out) throws BlockStoreException {
+        try {
+            return H2FullPrunedBlockStore.encodeOutput(out);
+        } catch (IOException e) {
+            throw new BlockStoreException(e);
+        }
+    }
+
+    public void addUnspentTransactionOutput(StoredTransactionOutput out) throws BlockStoreException {
+        write(OUTPUTS, outputKey(out.getHash(), out.getIndex()), encodeOutput(out));
+    }
+
+    public void removeUnspentTransactionOutput(StoredTransactionOutput out) throws BlockStoreException {
+        byte[] key = outputKey(out.getHash(), out.getIndex());
+        if (read(OUTPUTS, key) == null)
+            throw new BlockStoreException("Tried to remove a StoredTransactionOutput from MappedFullPrunedBlockStore that it didn't have!");
+        write(OUTPUTS, key, null);
+    }
+
+    public synchronized void forEachUnspentOutput(final OutputVisitor visitor) throws BlockStoreException {
+        tables[OUTPUTS].forEach(new MappedHashTable.Visitor() {
+            public void visit(byte[] key, byte[] value) throws BlockStoreException {
+                byte[] hash = new byte[32];
+                System.arraycopy(key, 0, hash, 0, 32);
+                visitor.visit(decodeOutput(new Sha256Hash(hash), Utils.readUint32BE(key, 32), value));
+            }
+        });
+    }
+
+    public boolean hasUnspentOutputs(Sha256Hash hash, int numOutputs) throws BlockStoreException {
+        for (int i = 0; i < numOutputs; i++)
+            if (read(OUTPUTS, outputKey(hash, i)) != null)
+                return true;
+        return false;
+    }
+
+    public void beginDatabaseBatchWrite() throws BlockStoreException {
+        if (batch.get() == null)
+            batch.set(new Batch());
+    }
+
+    public void commitDatabaseBatchWrite() throws BlockStoreException {
+        Batch b = batch.get();
+        if (b == null)
+            return;
+        batch.remove();
+        apply(b);
+    }
+
+    public void abortDatabaseBatchWrite() throws BlockStoreException {
+        batch.remove();
+    }
+
+    public synchronized void close() throws BlockStoreException {
+        if (tables == null)
+            return;
+        try {
+            checkpoint();
+        } catch (IOException e) {
+            throw new BlockStoreException(e);
+        } finally {
+            closeQuietly();
+        }
+    }
+
+    private void closeQuietly() {
+        try {
+            if (tables != null)
+                for (MappedHashTable table : tables)
+                    if (table != null)
+                        table.close();
+            if (meta != null)
+                meta.close();
+            if (lockFile != null)
+                lockFile.close();  // Also releases the lock.
+        } catch (IOException e) {
+            log.error("Failed to close store files", e);
+        }
+        tables = null;
+        meta = null;
+        lockFile = null;
+    }
+}
@@ -0,0 +1,375 @@
+/**
+ * Copyright 2013 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.bitcoin.store;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayDeque;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkState;
+
+/**
+ * <p>A persistent map of fixed length byte[] keys to variable length byte[] values, made of two
+ * {@link MappedPageFile}s.</p>
+ *
+ * <p>The data file holds the records themselves. Each record has a power of two capacity and a small header, freed
+ * records are kept on per-capacity free lists so that the heavy add/remove churn of the unspent output set reuses
+ * space instead of growing the file. The free lists aren't stored, they are rebuilt by scanning the data file
+ * when it is opened.</p>
+ *
+ * <p>The index file is an open-addressing hash table using linear probing. Each bucket holds a 64 bit hash of the
+ * key and the offset of the record in the data file, so a lookup is normally a single bucket read plus a single
+ * record read no matter how large the table gets. Deletions use backward shifting instead of tombstones so probe
+ * sequences never degrade. The index can always be rebuilt from the data file, which is what happens when it grows
+ * or if it goes missing.</p>
+ *
+ * <p>Like {@link MappedPageFile}, this class is not thread safe.</p>
+ */
+class MappedHashTable {
+    private static final Logger log = LoggerFactory.getLogger(MappedHashTable.class);
+
+    private static final int INDEX_MAGIC = 0x48494458;  // "HIDX"
+    private static final int DATA_MAGIC = 0x48444154;   // "HDAT"
+    private static final int VERSION = 1;
+
+    // Index file format:
+    //   4 bytes magic, 4 bytes version, 8 bytes bucket count, 8 bytes entry count, padded to a page
+    //   then for each bucket, 8 bytes key hash and 8 bytes record offset (0 for an empty bucket)
+    private static final int BUCKET_SIZE = 16;
+    private static final long INDEX_COUNT_OFFSET = 16;
+    static final int MIN_BUCKETS = 1 << 12;
+
+    // Data file format:
+    //   4 bytes magic, 4 bytes version, 8 bytes offset of the end of the last record, padded to a page
+    //   then for each record, 4 bytes capacity, 4 bytes length of key+value (0 if free), key, value
+    private static final long DATA_TOP_OFFSET = 8;
+    private static final int RECORD_HEADER_SIZE = 8;
+    private static final int MIN_RECORD_CAPACITY = 32;
+    private static final long DATA_GROWTH_STEP = 4 * 1024 * 1024;
+
+    /** Callback for {@link MappedHashTable#forEach(Visitor)}. */
+    interface Visitor {
+        void visit(byte[] key, byte[] value) throws BlockStoreException;
+    }
+
+    private final File indexFileName;
+    private final int keyLength;
+    private MappedPageFile index;
+    private final MappedPageFile data;
+    private long numBuckets;
+    private long count;
+    private long dataTop;
+    // Free records indexed by log2(capacity).
+    @SuppressWarnings("unchecked")
+    private final ArrayDeque<Long>[] freeLists = new ArrayDeque[32];
+
+    MappedHashTable(File directory, String name, int keyLength) throws IOException {
+        this.keyLength = keyLength;
+        this.indexFileName = new File(directory, name + ".idx");
+        for (int i = 0; i < freeLists.length; i++)
+            freeLists[i] = new ArrayDeque<Long>();
+
+        data = new MappedPageFile(new File(directory, name + ".dat"));
+        if (data.length() == 0) {
+            data.ensureLength(MappedPageFile.PAGE_SIZE);
+            data.putInt(0, DATA_MAGIC);
+            data.putInt(4, VERSION);
+            data.putLong(DATA_TOP_OFFSET, MappedPageFile.PAGE_SIZE);
+            data.checkpoint();
+        } else if (data.getInt(0) != DATA_MAGIC || data.getInt(4) != VERSION) {
+            throw new IOException("Not a data file, or a data file of the wrong version: " + data.getFile());
+        }
+        dataTop = data.getLong(DATA_TOP_OFFSET);
+
+        // A temporary index left over from an interrupted rebuild is useless, we will start again.
+        File tempIndex = new File(directory, name + ".idx.tmp");
+        if (tempIndex.exists() && !tempIndex.delete())
+            throw new IOException("Could not delete " + tempIndex);
+        if (!indexFileName.exists()) {
+            if (dataTop > MappedPageFile.PAGE_SIZE)
+                log.info("Index {} is missing, rebuilding it from the data file", indexFileName);
+            index = buildIndex(MIN_BUCKETS);
+        } else {
+            index = new MappedPageFile(indexFileName);
+            if (index.getInt(0) != INDEX_MAGIC || index.getInt(4) != VERSION)
+                throw new IOException("Not an index file, or an index file of the wrong version: " + indexFileName);
+            numBuckets = index.getLong(8);
+            count = index.getLong(INDEX_COUNT_OFFSET);
+        }
+        scanFreeRecords();
+    }
+
+    /** The files that must be journalled and checkpointed together. These change if the index is rebuilt. */
+    MappedPageFile getIndexFile() {
+        return index;
+    }
+
+    MappedPageFile getDataFile() {
+        return data;
+    }
+
+    long size() {
+        return count;
+    }
+
+    private void scanFreeRecords() {
+        long offset = MappedPageFile.PAGE_SIZE;
+        while (offset < dataTop) {
+            int capacity = data.getInt(offset);
+            checkState(capacity >= MIN_RECORD_CAPACITY && Integer.bitCount(capacity) == 1,
+                    "Corrupt record at " + offset + " in " + data.getFile());
+            if (data.getInt(offset + 4) == 0)
+                freeLists[Integer.numberOfTrailingZeros(capacity)].add(offset);
+            offset += capacity;
+        }
+    }
+
+    /** Returns the value stored for the given key, or null if there is none. */
+    byte[] get(byte[] key) {
+        long bucket = findBucket(key, hash(key));
+        if (bucket < 0)
+            return null;
+        long record = index.getLong(bucketOffset(bucket) + 8);
+        byte[] value = new byte[data.getInt(record + 4) - keyLength];
+        data.get(record + RECORD_HEADER_SIZE + keyLength, value, 0, value.length);
+        return value;
+    }
+
+    boolean contains(byte[] key) {
+        return findBucket(key, hash(key)) >= 0;
+    }
+
+    /**
+     * Returns true if the index must grow before the given number of new keys can be inserted. If so, the owner must
+     * make sure nothing is dirty and then call {@link #grow(long)}.
+     */
+    boolean needsGrowth(long additionalKeys) {
+        return (count + additionalKeys) * 4 > numBuckets * 3;
+    }
+
+    void put(byte[] key, byte[] value) {
+        checkArgument(key.length == keyLength);
+        long keyHash = hash(key);
+        long bucket = findBucket(key, keyHash);
+        int length = keyLength + value.length;
+        if (bucket >= 0) {
+            long bucketOffset = bucketOffset(bucket);
+            long record = index.getLong(bucketOffset + 8);
+            if (data.getInt(record) >= length + RECORD_HEADER_SIZE) {
+                writeRecord(record, key, value);
+                return;
+            }
+            freeRecord(record);
+            index.putLong(bucketOffset + 8, allocateRecord(key, value));
+            return;
+        }
+        checkState(count < numBuckets - 1, "Hash table is full");
+        long mask = numBuckets - 1;
+        for (long i = keyHash & mask; ; i = (i + 1) & mask) {
+            long bucketOffset = bucketOffset(i);
+            if (index.getLong(bucketOffset + 8) == 0) {
+                index.putLong(bucketOffset, keyHash);
+                index.putLong(bucketOffset + 8, allocateRecord(key, value));
+                break;
+            }
+        }
+        count++;
+        index.putLong(INDEX_COUNT_OFFSET, count);
+    }
+
+    /** Removes the given key, returning false if it was not present. */
+    boolean remove(byte[] key) {
+        long bucket = findBucket(key, hash(key));
+        if (bucket < 0)
+            return false;
+        freeRecord(index.getLong(bucketOffset(bucket) + 8));
+        // Backward shift deletion: pull any following entries whose probe sequence passes through the hole back into
+        // it, so lookups never need tombstones to know to keep going.
+        long mask = numBuckets - 1;
+        long hole = bucket;
+        for (long i = (hole + 1) & mask; ; i = (i + 1) & mask) {
+            long offset = bucketOffset(i);
+            long record = index.getLong(offset + 8);
+            if (record == 0)
+                break;
+            long keyHash = index.getLong(offset);
+            long home = keyHash & mask;
+            // Can the entry at i move to the hole? Only if its home is not cyclically within (hole, i].
+            boolean homeBetween = hole <= i ? (home > hole && home <= i) : (home > hole || home <= i);
+            if (!homeBetween) {
+                index.putLong(bucketOffset(hole), keyHash);
+                index.putLong(bucketOffset(hole) + 8, record);
+                hole = i;
+            }
+        }
+        index.putLong(bucketOffset(hole), 0);
+        index.putLong(bucketOffset(hole) + 8, 0);
+        count--;
+        index.putLong(INDEX_COUNT_OFFSET, count);
+        return true;
+    }
+
+    /** Calls the visitor for every record in data file order. The table must not be modified while visiting. */
+    void forEach(Visitor visitor) throws BlockStoreException {
+        long offset = MappedPageFile.PAGE_SIZE;
+        while (offset < dataTop) {
+            int capacity = data.getInt(offset);
+            int length = data.getInt(offset + 4);
+            if (length != 0) {
+                byte[] key = new byte[keyLength];
+                byte[] value = new byte[length - keyLength];
+                data.get(offset + RECORD_HEADER_SIZE, key, 0, keyLength);
+                data.get(offset + RECORD_HEADER_SIZE + keyLength, value, 0, value.length);
+                visitor.visit(key, value);
+            }
+            offset += capacity;
+        }
+    }
+
+    /**
+     * Rebuilds the index with enough buckets for the given number of extra keys. Nothing may be dirty when this is
+     * called: the new index is written to a temporary file, forced to disk and then renamed over the old one, so a
+     * crash at any point leaves either the old or the new index in place.
+     */
+    void grow(long additionalKeys) throws IOException {
+        checkState(!index.isDirty(), "Index must be checkpointed before it is rebuilt");
+        long buckets = numBuckets;
+        while ((count + additionalKeys) * 4 > buckets * 3)
+            buckets *= 2;
+        log.info("Growing {} from {} to {} buckets", new Object[]{indexFileName, numBuckets, buckets});
+        index.close();
+        index = buildIndex(buckets);
+    }
+
+    private MappedPageFile buildIndex(long buckets) throws IOException {
+        File tempFile = new File(indexFileName.getPath() + ".tmp");
+        MappedPageFile newIndex = new MappedPageFile(tempFile);
+        newIndex.ensureLength(MappedPageFile.PAGE_SIZE + buckets * BUCKET_SIZE);
+        newIndex.putInt(0, INDEX_MAGIC);
+        newIndex.putInt(4, VERSION);
+        newIndex.putLong(8, buckets);
+        long mask = buckets - 1;
+        long newCount = 0;
+        byte[] key = new byte[keyLength];
+        long offset = MappedPageFile.PAGE_SIZE;
+        while (offset < dataTop) {
+            int capacity = data.getInt(offset);
+            if (data.getInt(offset + 4) != 0) {
+                data.get(offset + RECORD_HEADER_SIZE, key, 0, keyLength);
+                long keyHash = hash(key);
+                for (long i = keyHash & mask; ; i = (i + 1) & mask) {
+                    long bucketOffset = MappedPageFile.PAGE_SIZE + i * BUCKET_SIZE;
+                    if (newIndex.getLong(bucketOffset + 8) == 0) {
+                        newIndex.putLong(bucketOffset, keyHash);
+                        newIndex.putLong(bucketOffset + 8, offset);
+                        break;
+                    }
+                }
+                newCount++;
+                // The temporary file isn't live, so we can write it out whenever we like to bound heap usage.
+                if (newIndex.getDirtyBytes() > DATA_GROWTH_STEP * 4)
+                    newIndex.checkpoint();
+            }
+            offset += capacity;
+        }
+        newIndex.putLong(INDEX_COUNT_OFFSET, newCount);
+        newIndex.checkpoint();
+        newIndex.close();
+        if (!tempFile.renameTo(indexFileName)) {
+            // Some platforms won't rename over an existing file. If we die between the delete and rename the index
+            // will just be rebuilt again next time.
+            if (!indexFileName.delete() || !tempFile.renameTo(indexFileName))
+                throw new IOException("Could not rename " + tempFile + " to " + indexFileName);
+        }
+        numBuckets = buckets;
+        count = newCount;
+        return new MappedPageFile(indexFileName);
+    }
+
+    private long findBucket(byte[] key, long keyHash) {
+        long mask = numBuckets - 1;
+        for (long i = keyHash & mask; ; i = (i + 1) & mask) {
+            long offset = bucketOffset(i);
+            long record = index.getLong(offset + 8);
+            if (record == 0)
+                return -1;
+            if (index.getLong(offset) == keyHash && keyMatches(record, key))
+                return i;
+        }
+    }
+
+    private boolean keyMatches(long record, byte[] key) {
+        long offset = record + RECORD_HEADER_SIZE;
+        for (int i = 0; i < keyLength; i++)
+            if (data.get(offset + i) != key[i])
+                return false;
+        return true;
+    }
+
+    private static long bucketOffset(long bucket) {
+        return MappedPageFile.PAGE_SIZE + bucket * BUCKET_SIZE;
+    }
+
+    private long allocateRecord(byte[] key, byte[] value) {
+        int needed = RECORD_HEADER_SIZE + keyLength + value.length;
+        int capacity = Math.max(MIN_RECORD_CAPACITY, Integer.highestOneBit(needed - 1) << 1);
+        ArrayDeque<Long> freeList = freeLists[Integer.numberOfTrailingZeros(capacity)];
+        long record;
+        if (!freeList.isEmpty()) {
+            record = freeList.poll();
+        } else {
+            record = dataTop;
+            dataTop += capacity;
+            if (dataTop > data.length())
+                data.ensureLength(Math.max(dataTop, data.length() + DATA_GROWTH_STEP));
+            data.putLong(DATA_TOP_OFFSET, dataTop);
+            data.putInt(record, capacity);
+        }
+        writeRecord(record, key, value);
+        return record;
+    }
+
+    private void writeRecord(long record, byte[] key, byte[] value) {
+        data.putInt(record + 4, keyLength + value.length);
+        data.put(record + RECORD_HEADER_SIZE, key, 0, keyLength);
+        data.put(record + RECORD_HEADER_SIZE + keyLength, value, 0, value.length);
+    }
+
+    private void freeRecord(long record) {
+        data.putInt(record + 4, 0);
+        freeLists[Integer.numberOfTrailingZeros(data.getInt(record))].add(record);
+    }
+
+    /** Keys are usually already hashes, but we mix every byte in so that structured keys spread well too. */
+    private static long hash(byte[] key) {
+        long h = 0xCBF29CE484222325L;
+        for (byte b : key) {
+            h ^= b & 0xFF;
+            h *= 0x100000001B3L;
+        }
+        return h ^ (h >>> 29);
+    }
+
+    void close() throws IOException {
+        index.close();
+        data.close();
+    }
+}
@@ -0,0 +1,306 @@
+/**
+ * Copyright 2013 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.bitcoin.store;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+/**
+ * <p>A file that is memory mapped in segments and accessed by absolute offsets, with a copy-on-write page overlay
+ * sitting in front of the mapping.</p>
+ *
+ * <p>Writes never touch the mapping directly. Instead the page being written is copied onto the heap and modified
+ * there, so the kernel can never flush a half finished update to disk behind our back. The owner decides when the
+ * dirty pages are durable: it first writes them to a journal with {@link #writeDirtyPages(DataOutputStream)}, syncs
+ * that, and only then calls {@link #checkpoint()} to copy them into the mapping and force it to disk. If the process
+ * dies in between, the journal can be replayed with {@link #readJournalPages(DataInputStream)}.</p>
+ *
+ * <p>This class is not thread safe, callers are expected to hold their own lock.</p>
+ */
+class MappedPageFile {
+    static final int PAGE_SIZE = 4096;
+    // Must be a multiple of PAGE_SIZE so that a page never straddles two mappings.
+    static final int SEGMENT_SIZE = 1 << 30;
+    private static final int PAGES_PER_SEGMENT = SEGMENT_SIZE / PAGE_SIZE;
+
+    private final File file;
+    private final RandomAccessFile randomAccessFile;
+    private final FileChannel channel;
+    private final List<MappedByteBuffer> segments = new ArrayList<MappedByteBuffer>();
+    // What is actually on disk and mapped, and what the file will be once the next checkpoint happens.
+    private long physicalLength;
+    private long length;
+    private final Map<Long, byte[]> dirtyPages = new HashMap<Long, byte[]>();
+
+    MappedPageFile(File file) throws IOException {
+        this.file = file;
+        this.randomAccessFile = new RandomAccessFile(file, "rw");
+        this.channel = randomAccessFile.getChannel();
+        this.physicalLength = randomAccessFile.length();
+        checkArgument(physicalLength % PAGE_SIZE == 0, "File " + file + " is not a whole number of pages");
+        this.length = physicalLength;
+        map();
+    }
+
+    private void map() throws IOException {
+        segments.clear();
+        for (long start = 0; start < physicalLength; start += SEGMENT_SIZE) {
+            long size = Math.min(SEGMENT_SIZE, physicalLength - start);
+            segments.add(channel.map(FileChannel.MapMode.READ_WRITE, start, size));
+        }
+    }
+
+    File getFile() {
+        return file;
+    }
+
+    /** The logical length of the file, including any growth that has not been checkpointed yet. */
+    long length() {
+        return length;
+    }
+
+    /** Grows the file to at least the given length (rounded up to a whole page). New space reads as zeros. */
+    void ensureLength(long newLength) {
+        if (newLength <= length)
+            return;
+        length = (newLength + PAGE_SIZE - 1) / PAGE_SIZE * PAGE_SIZE;
+    }
+
+    /** The number of bytes held in the overlay, waiting to be journalled and checkpointed. */
+    long getDirtyBytes() {
+        return (long) dirtyPages.size() * PAGE_SIZE;
+    }
+
+    boolean isDirty() {
+        return !dirtyPages.isEmpty() || length != physicalLength;
+    }
+
+    byte get(long offset) {
+        long pageNumber = offset / PAGE_SIZE;
+        int pageOffset = (int) (offset % PAGE_SIZE);
+        byte[] page = findDirtyPage(pageNumber);
+        if (page != null)
+            return page[pageOffset];
+        if (offset >= physicalLength)
+            return 0;
+        return segmentFor(pageNumber).get(positionInSegment(pageNumber) + pageOffset);
+    }
+
+    void get(long offset, byte[] dest, int destOffset, int count) {
+        while (count > 0) {
+            long pageNumber = offset / PAGE_SIZE;
+            int pageOffset = (int) (offset % PAGE_SIZE);
+            int chunk = Math.min(count, PAGE_SIZE - pageOffset);
+            byte[] page = findDirtyPage(pageNumber);
+            if (page != null) {
+                System.arraycopy(page, pageOffset, dest, destOffset, chunk);
+            } else if (offset >= physicalLength) {
+                for (int i = 0; i < chunk; i++)
+                    dest[destOffset + i] = 0;
+            } else {
+                ByteBuffer view = segmentFor(pageNumber).duplicate();
+                view.position(positionInSegment(pageNumber) + pageOffset);
+                view.get(dest, destOffset, chunk);
+            }
+            offset += chunk;
+            destOffset += chunk;
+            count -= chunk;
+        }
+    }
+
+    int getInt(long offset) {
+        long pageNumber = offset / PAGE_SIZE;
+        int pageOffset = (int) (offset % PAGE_SIZE);
+        if (pageOffset > PAGE_SIZE - 4)
+            return (int) getSplit(offset, 4);
+        byte[] page = findDirtyPage(pageNumber);
+        if (page != null)
+            return readInt(page, pageOffset);
+        if (offset >= physicalLength)
+            return 0;
+        return segmentFor(pageNumber).getInt(positionInSegment(pageNumber) + pageOffset);
+    }
+
+    long getLong(long offset) {
+        long pageNumber = offset / PAGE_SIZE;
+        int pageOffset = (int) (offset % PAGE_SIZE);
+        if (pageOffset > PAGE_SIZE - 8)
+            return getSplit(offset, 8);
+        byte[] page = findDirtyPage(pageNumber);
+        if (page != null)
+            return ((long) readInt(page, pageOffset) << 32) | (readInt(page, pageOffset + 4) & 0xFFFFFFFFL);
+        if (offset >= physicalLength)
+            return 0;
+        return segmentFor(pageNumber).getLong(positionInSegment(pageNumber) + pageOffset);
+    }
+
+    // Reads a big endian value that crosses a page boundary, a byte at a time.
+    private long getSplit(long offset, int size) {
+        long value = 0;
+        for (int i = 0; i < size; i++)
+            value = (value << 8) | (get(offset + i) & 0xFF);
+        return value;
+    }
+
+    private static int readInt(byte[] page, int offset) {
+        return ((page[offset] & 0xFF) << 24) |
+               ((page[offset + 1] & 0xFF) << 16) |
+               ((page[offset + 2] & 0xFF) << 8) |
+               (page[offset + 3] & 0xFF);
+    }
+
+    void put(long offset, byte b) {
+        getDirtyPage(offset / PAGE_SIZE)[(int) (offset % PAGE_SIZE)] = b;
+    }
+
+    void put(long offset, byte[] src, int srcOffset, int count) {
+        while (count > 0) {
+            long pageNumber = offset / PAGE_SIZE;
+            int pageOffset = (int) (offset % PAGE_SIZE);
+            int chunk = Math.min(count, PAGE_SIZE - pageOffset);
+            System.arraycopy(src, srcOffset, getDirtyPage(pageNumber), pageOffset, chunk);
+            offset += chunk;
+            srcOffset += chunk;
+            count -= chunk;
+        }
+    }
+
+    void putInt(long offset, int value) {
+        int pageOffset = (int) (offset % PAGE_SIZE);
+        if (pageOffset > PAGE_SIZE - 4) {
+            putSplit(offset, value, 4);
+            return;
+        }
+        writeInt(getDirtyPage(offset / PAGE_SIZE), pageOffset, value);
+    }
+
+    void putLong(long offset, long value) {
+        int pageOffset = (int) (offset % PAGE_SIZE);
+        if (pageOffset > PAGE_SIZE - 8) {
+            putSplit(offset, value, 8);
+            return;
+        }
+        byte[] page = getDirtyPage(offset / PAGE_SIZE);
+        writeInt(page, pageOffset, (int) (value >>> 32));
+        writeInt(page, pageOffset + 4, (int) value);
+    }
+
+    // Writes a big endian value that crosses a page boundary, a byte at a time.
+    private void putSplit(long offset, long value, int size) {
+        for (int i = size - 1; i >= 0; i--) {
+            put(offset + i, (byte) value);
+            value >>>= 8;
+        }
+    }
+
+    private static void writeInt(byte[] page, int offset, int value) {
+        page[offset] = (byte) (value >>> 24);
+        page[offset + 1] = (byte) (value >>> 16);
+        page[offset + 2] = (byte) (value >>> 8);
+        page[offset + 3] = (byte) value;
+    }
+
+    // Most reads happen with nothing dirty, so skip boxing the page number for a lookup that can't succeed.
+    private byte[] findDirtyPage(long pageNumber) {
+        return dirtyPages.isEmpty() ? null : dirtyPages.get(pageNumber);
+    }
+
+    private byte[] getDirtyPage(long pageNumber) {
+        byte[] page = findDirtyPage(pageNumber);
+        if (page == null) {
+            long offset = pageNumber * PAGE_SIZE;
+            checkArgument(offset < length, "Write past the end of " + file);
+            page = new byte[PAGE_SIZE];
+            if (offset < physicalLength) {
+                ByteBuffer view = segmentFor(pageNumber).duplicate();
+                view.position(positionInSegment(pageNumber));
+                view.get(page);
+            }
+            dirtyPages.put(pageNumber, page);
+        }
+        return page;
+    }
+
+    private MappedByteBuffer segmentFor(long pageNumber) {
+        return segments.get((int) (pageNumber / PAGES_PER_SEGMENT));
+    }
+
+    private static int positionInSegment(long pageNumber) {
+        return (int) (pageNumber % PAGES_PER_SEGMENT) * PAGE_SIZE;
+    }
+
+    /** Writes the new length of the file and an image of every dirty page to the given journal stream. */
+    void writeDirtyPages(DataOutputStream out) throws IOException {
+        out.writeLong(length);
+        out.writeInt(dirtyPages.size());
+        for (Map.Entry<Long, byte[]> entry : dirtyPages.entrySet()) {
+            out.writeLong(entry.getKey());
+            out.write(entry.getValue());
+        }
+    }
+
+    /** Reads back what {@link #writeDirtyPages(DataOutputStream)} wrote, making those pages dirty again. */
+    void readJournalPages(DataInputStream in) throws IOException {
+        ensureLength(in.readLong());
+        int numPages = in.readInt();
+        for (int i = 0; i < numPages; i++) {
+            long pageNumber = in.readLong();
+            byte[] page = new byte[PAGE_SIZE];
+            in.readFully(page);
+            dirtyPages.put(pageNumber, page);
+        }
+    }
+
+    /**
+     * Grows the file on disk if needed, copies every dirty page into the mapping and forces it out. Only safe to call
+     * once the dirty pages have been made durable somewhere else (or if the file isn't live yet).
+     */
+    void checkpoint() throws IOException {
+        if (length != physicalLength) {
+            randomAccessFile.setLength(length);
+            physicalLength = length;
+            map();
+        }
+        for (Map.Entry<Long, byte[]> entry : dirtyPages.entrySet()) {
+            long pageNumber = entry.getKey();
+            ByteBuffer view = segmentFor(pageNumber).duplicate();
+            view.position(positionInSegment(pageNumber));
+            view.put(entry.getValue());
+        }
+        dirtyPages.clear();
+        for (MappedByteBuffer segment : segments)
+            segment.force();
+    }
+
+    void close() throws IOException {
+        segments.clear();  // Allow the mappings to be GCd.
+        dirtyPages.clear();
+        randomAccessFile.close();
+    }
+}
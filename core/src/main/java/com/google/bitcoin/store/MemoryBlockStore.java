@@ -27,6 +27,7 @@ import java.util.Map;
 public class MemoryBlockStore implements BlockStore {
     private Map<Sha256Hash, StoredBlock> blockMap;
     private StoredBlock chainHead;
+    private final AncestorIndex ancestors = new AncestorIndex(this);
 
     public MemoryBlockStore(NetworkParameters params) {
         blockMap = new HashMap<Sha256Hash, StoredBlock>();
@@ -62,6 +63,11 @@ public class MemoryBlockStore implements BlockStore {
     public void setChainHead(StoredBlock chainHead) throws BlockStoreException {
         if (blockMap == null) throw new BlockStoreException("MemoryBlockStore is closed");
         this.chainHead = chainHead;
+        ancestors.setChainHead(chainHead);
+    }
+
+    public StoredBlock getAncestor(StoredBlock block, int height) throws BlockStoreException {
+        return ancestors.getAncestor(block, height);
     }
     
     public void close() {
@@ -307,7 +307,7 @@ class TransactionalMultiKeyHashMap<UniqueKeyType, MultiKeyType, ValueType> {
  * Keeps {@link StoredBlock}s, {@link StoredUndoableBlock}s and {@link StoredTransactionOutput}s in memory.
  * Used primarily for unit testing.
  */
-public class MemoryFullPrunedBlockStore implements FullPrunedBlockStore {
+public class MemoryFullPrunedBlockStore implements IterableFullPrunedBlockStore {
     protected static class StoredBlockAndWasUndoableFlag {
         public StoredBlock block;
         public boolean wasUndoable;
@@ -319,6 +319,7 @@ public class MemoryFullPrunedBlockStore implements FullPrunedBlockStore {
     private TransactionalHashMap<StoredTransactionOutPoint, StoredTransactionOutput> transactionOutputMap;
     private StoredBlock chainHead;
     private StoredBlock verifiedChainHead;
+    private final AncestorIndex ancestors = new AncestorIndex(this);
     private int fullStoreDepth;
     
     /**
@@ -385,6 +386,11 @@ public class MemoryFullPrunedBlockStore implements FullPrunedBlockStore {
     public synchronized void setChainHead(StoredBlock chainHead) throws BlockStoreException {
         Preconditions.checkNotNull(blockMap, "MemoryFullPrunedBlockStore is closed");
         this.chainHead = chainHead;
+        ancestors.setChainHead(chainHead);
+    }
+
+    public StoredBlock getAncestor(StoredBlock block, int height) throws BlockStoreException {
+        return ancestors.getAncestor(block, height);
     }
     
     public synchronized StoredBlock getVerifiedChainHead() throws BlockStoreException {
@@ -424,6 +430,12 @@ public class MemoryFullPrunedBlockStore implements FullPrunedBlockStore {
             throw new BlockStoreException("Tried to remove a StoredTransactionOutput from MemoryFullPrunedBlockStore that it didn't have!");
     }
 
+    public synchronized void forEachUnspentOutput(OutputVisitor visitor) throws BlockStoreException {
+        Preconditions.checkNotNull(transactionOutputMap, "MemoryFullPrunedBlockStore is closed");
+        for (StoredTransactionOutput out : transactionOutputMap.map.values())
+            visitor.visit(out);
+    }
+
     public synchronized void beginDatabaseBatchWrite() throws BlockStoreException {
         blockMap.beginDatabaseBatchWrite();
         fullBlockMap.BeginTransaction();
@@ -29,8 +29,8 @@ import java.nio.MappedByteBuffer;
 import java.nio.channels.FileChannel;
 import java.nio.channels.FileLock;
 import java.util.Arrays;
-import java.util.LinkedHashMap;
-import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReferenceArray;
 import java.util.concurrent.locks.ReentrantLock;
 
 import static com.google.common.base.Preconditions.checkArgument;
@@ -38,9 +38,20 @@ import static com.google.common.base.Preconditions.checkNotNull;
 import static com.google.common.base.Preconditions.checkState;
 
 /**
- * An SPVBlockStore holds a limited number of block headers in a memory mapped ring buffer. With such a store, you
+ * <p>An SPVBlockStore holds a limited number of block headers in a memory mapped ring buffer. With such a store, you
  * may not be able to process very deep re-orgs and could be disconnected from the chain (requiring a replay),
- * but as they are virtually unheard of this is not a significant risk.
+ * but as they are virtually unheard of this is not a significant risk.</p>
+ *
+ * <p>Headers are found by hash through an open addressing hash table kept in a second memory mapped file next to the
+ * ring (the store's file name plus ".idx"), so a lookup costs the same however many headers the ring holds. The index
+ * is only a hint: every hit is checked against the hash in the ring, and if the store wasn't closed cleanly the index
+ * is rebuilt from the ring when it is next opened.</p>
+ *
+ * <p>Reads don't take the lock. {@link #get(Sha256Hash)} first looks in a cache that can be read and written from
+ * any thread, and on a miss reads the index and ring through its own duplicate of the mapping, under a sequence
+ * number that writers bump before and after they change anything. If the number moved, the read is simply done
+ * again. Only {@link #put(StoredBlock)} and {@link #setChainHead(StoredBlock)} take the lock, to keep out of each
+ * other's way, and a reader only falls back to it if writes keep getting in the way.</p>
  */
 public class SPVBlockStore implements BlockStore {
     private static final Logger log = LoggerFactory.getLogger(SPVBlockStore.class);
@@ -53,7 +64,12 @@ public class SPVBlockStore implements BlockStore {
     protected int numHeaders;
     protected NetworkParameters params;
 
+    // Held by writers. Readers only take it if they keep losing races with writers.
     protected ReentrantLock lock = Locks.lock("SPVBlockStore");
+    private final AncestorIndex ancestors = new AncestorIndex(this);
+    // Odd while a writer is changing the ring or the index, and bumped twice by every write. See get().
+    final AtomicInteger writeSequence = new AtomicInteger();
+    private static final int OPTIMISTIC_READ_ATTEMPTS = 8;
 
     // The entire ring-buffer is mmapped and accessing it should be as fast as accessing regular memory once it's
     // faulted in. Unfortunately, in theory practice and theory are the same. In practice they aren't.
@@ -62,29 +78,22 @@ public class SPVBlockStore implements BlockStore {
     // the OpenJDK/Oracle JVM calls into the get() methods are compiled down to inlined native code on Android each
     // get() call is actually a full-blown JNI method under the hood, meaning it's unbelievably slow. The caches
     // below let us stay in the JIT-compiled Java world without expensive JNI transitions and make a 10x difference!
-    protected LinkedHashMap<Sha256Hash, StoredBlock> blockCache = new LinkedHashMap<Sha256Hash, StoredBlock>() {
-        @Override
-        protected boolean removeEldestEntry(Map.Entry<Sha256Hash, StoredBlock> entry) {
-            return size() > 2050;  // Slightly more than the difficulty transition period.
-        }
-    };
-    // Use a separate cache to track get() misses. This is to efficiently handle the case of an unconnected block
-    // during chain download. Each new block will do a get() on the unconnected block so if we haven't seen it yet we
-    // must efficiently respond.
     //
-    // We don't care about the value in this cache. It is always notFoundMarker. Unfortunately LinkedHashSet does not
-    // provide the removeEldestEntry control.
-    protected static final StoredBlock notFoundMarker = new StoredBlock(null, null, -1);
-    protected LinkedHashMap<Sha256Hash, StoredBlock> notFoundCache = new LinkedHashMap<Sha256Hash, StoredBlock>() {
-        @Override
-        protected boolean removeEldestEntry(Map.Entry<Sha256Hash, StoredBlock> entry) {
-            return size() > 100;  // This was chosen arbitrarily.
-        }
-    };
+    // The cache is direct mapped: a header can only live in the slot picked by its hash, and replaces whatever was
+    // there. That needs no lock to read or write. Misses used to have a cache of their own too, back when a miss meant
+    // scanning the whole ring, but with the index a miss is usually a single bucket read.
+    protected static final int BLOCK_CACHE_SIZE = 4096;  // Comfortably more than the difficulty transition period.
+    protected final AtomicReferenceArray<StoredBlock> blockCache =
+            new AtomicReferenceArray<StoredBlock>(BLOCK_CACHE_SIZE);
     // Used to stop other applications/processes from opening the store.
     protected FileLock fileLock = null;
     protected RandomAccessFile randomAccessFile = null;
 
+    // The hash index. Each bucket is an int holding the ring slot of a header plus one, or zero if it is empty.
+    protected volatile MappedByteBuffer indexBuffer;
+    protected RandomAccessFile indexFile = null;
+    protected int numBuckets;
+
     /**
      * Creates and initializes an SPV block store. Will create the given file if it's missing. This operation
      * will block on disk.
@@ -125,12 +134,15 @@ public class SPVBlockStore implements BlockStore {
                 buffer.get(header);
                 if (!new String(header, "US-ASCII").equals(HEADER_MAGIC))
                     throw new BlockStoreException("Header bytes do not equal " + HEADER_MAGIC);
+                openIndex(new File(file.getPath() + ".idx"), false);
             } else {
+                openIndex(new File(file.getPath() + ".idx"), true);
                 initNewStore(params);
             }
         } catch (Exception e) {
             try {
                 if (randomAccessFile != null) randomAccessFile.close();
+                if (indexFile != null) indexFile.close();
             } catch (IOException e2) {
                 throw new BlockStoreException(e2);
             }
@@ -138,6 +150,65 @@ public class SPVBlockStore implements BlockStore {
         }
     }
 
+    /**
+     * Maps the hash index, creating it if needed. The index is rebuilt from the ring if it is new, has the wrong size,
+     * or was not marked clean by {@link #close()} at the same ring cursor, which covers both a crash and a ring that
+     * was written without it. While the store is open the index is marked as not clean.
+     */
+    private void openIndex(File file, boolean newStore) throws IOException {
+        numBuckets = Integer.highestOneBit(numHeaders) * 4;  // Keeps the table at most half full.
+        indexFile = new RandomAccessFile(file, "rw");
+        int indexSize = INDEX_PROLOGUE_BYTES + numBuckets * 4;
+        boolean valid = !newStore && indexFile.length() == indexSize;
+        if (indexFile.length() != indexSize)
+            indexFile.setLength(indexSize);
+        indexBuffer = indexFile.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, indexSize);
+        if (valid) {
+            byte[] magic = new byte[4];
+            indexBuffer.position(0);
+            indexBuffer.get(magic);
+            valid = new String(magic, "US-ASCII").equals(INDEX_MAGIC) &&
+                    indexBuffer.getInt(4) == numBuckets &&
+                    indexBuffer.getInt(8) == INDEX_CLEAN &&
+                    indexBuffer.getInt(12) == getRingCursor(buffer);
+        }
+        lock.lock();
+        try {
+            if (!valid)
+                rebuildIndex(newStore);
+            indexBuffer.putInt(8, 0);
+            indexBuffer.force();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void rebuildIndex(boolean newStore) throws IOException {
+        checkState(lock.isHeldByCurrentThread());
+        if (!newStore)
+            log.info("Rebuilding SPV block store index");
+        indexBuffer.position(0);
+        indexBuffer.put(INDEX_MAGIC.getBytes("US-ASCII"));
+        indexBuffer.putInt(4, numBuckets);
+        for (int i = 0; i < numBuckets; i++)
+            indexBuffer.putInt(bucketOffset(i), 0);
+        if (newStore)
+            return;
+        // Go round the ring from the oldest record to the newest, so that if a header was written twice the later
+        // copy wins, just as it did for the old backwards scan.
+        ByteBuffer ring = buffer.duplicate();
+        int slot = (getRingCursor(buffer) - FILE_PROLOGUE_BYTES) / RECORD_SIZE;
+        byte[] scratch = new byte[32];
+        for (int i = 0; i < numHeaders; i++, slot++) {
+            if (slot == numHeaders)
+                slot = 0;
+            ring.position(slotOffset(slot));
+            ring.get(scratch);
+            if (!Arrays.equals(scratch, EMPTY_HASH))
+                indexPut(ring, scratch, slot);
+        }
+    }
+
     private void initNewStore(NetworkParameters params) throws Exception {
         byte[] header;
         header = HEADER_MAGIC.getBytes("US-ASCII");
@@ -155,6 +226,81 @@ public class SPVBlockStore implements BlockStore {
         setChainHead(storedGenesis);
     }
 
+    //////////////////////////////////////////////////////////////////////////////////////////////////////////////////
+    // The hash index. Only writers holding the lock may change it. The ring is read through a duplicate of the mapping
+    // passed in by the caller, so that nothing depends on the position of the shared buffer.
+
+    private static int bucketOffset(int bucket) {
+        return INDEX_PROLOGUE_BYTES + bucket * 4;
+    }
+
+    private static int slotOffset(int slot) {
+        return FILE_PROLOGUE_BYTES + slot * RECORD_SIZE;
+    }
+
+    /** The bucket a hash would like to live in, from its last four bytes like {@link Sha256Hash#hashCode()}. */
+    private int homeBucket(int hashCode) {
+        return hashCode & (numBuckets - 1);
+    }
+
+    /**
+     * Returns the bucket holding the given hash, or -1. A reader racing with a writer may get a wrong answer, but
+     * always gets one: the probe is bounded even if the table is being shifted under it.
+     */
+    private int indexFind(ByteBuffer ring, byte[] hash) {
+        byte[] scratch = new byte[32];
+        int bucket = homeBucket(hashTail(hash));
+        for (int i = 0; i < numBuckets; i++, bucket = (bucket + 1) & (numBuckets - 1)) {
+            int entry = indexBuffer.getInt(bucketOffset(bucket));
+            if (entry == 0)
+                return -1;
+            ring.position(slotOffset(entry - 1));
+            ring.get(scratch);
+            if (Arrays.equals(scratch, hash))
+                return bucket;
+        }
+        return -1;
+    }
+
+    private void indexPut(ByteBuffer ring, byte[] hash, int slot) {
+        int bucket = indexFind(ring, hash);
+        if (bucket < 0) {
+            bucket = homeBucket(hashTail(hash));
+            while (indexBuffer.getInt(bucketOffset(bucket)) != 0)
+                bucket = (bucket + 1) & (numBuckets - 1);
+        }
+        indexBuffer.putInt(bucketOffset(bucket), slot + 1);
+    }
+
+    /**
+     * Removes the given hash if the index points it at the given slot. Later entries in the same run are shifted back
+     * into the hole, so lookups never need tombstones.
+     */
+    private boolean indexRemove(ByteBuffer ring, byte[] hash, int slot) {
+        int hole = indexFind(ring, hash);
+        if (hole < 0 || indexBuffer.getInt(bucketOffset(hole)) != slot + 1)
+            return false;
+        final int mask = numBuckets - 1;
+        for (int bucket = (hole + 1) & mask; ; bucket = (bucket + 1) & mask) {
+            int entry = indexBuffer.getInt(bucketOffset(bucket));
+            if (entry == 0)
+                break;
+            int home = homeBucket(ring.getInt(slotOffset(entry - 1) + 28));
+            // Move the entry back unless its home lies cyclically in (hole, bucket].
+            boolean stays = hole <= bucket ? (home > hole && home <= bucket) : (home > hole || home <= bucket);
+            if (!stays) {
+                indexBuffer.putInt(bucketOffset(hole), entry);
+                hole = bucket;
+            }
+        }
+        indexBuffer.putInt(bucketOffset(hole), 0);
+        return true;
+    }
+
+    private static int hashTail(byte[] hash) {
+        return (hash[31] & 0xFF) | ((hash[30] & 0xFF) << 8) | ((hash[29] & 0xFF) << 16) | ((hash[28] & 0xFF) << 24);
+    }
+
     /** Returns the size in bytes of the file that is used to store the chain with the current parameters. */
     public int getFileSize() {
         return RECORD_SIZE * numHeaders + FILE_PROLOGUE_BYTES /* extra kilobyte for stuff */;
@@ -166,76 +312,125 @@ public class SPVBlockStore implements BlockStore {
 
         lock.lock();
         try {
+            ByteBuffer ring = buffer.duplicate();
             int cursor = getRingCursor(buffer);
             if (cursor == getFileSize()) {
                 // Wrapped around.
                 cursor = FILE_PROLOGUE_BYTES;
             }
-            buffer.position(cursor);
+            int slot = (cursor - FILE_PROLOGUE_BYTES) / RECORD_SIZE;
+            byte[] oldHash = new byte[32];
+            ring.position(cursor);
+            ring.get(oldHash);
             Sha256Hash hash = block.getHeader().getHash();
-            notFoundCache.remove(hash);
-            buffer.put(hash.getBytes());
-            block.serializeCompact(buffer);
-            setRingCursor(buffer, buffer.position());
-            blockCache.put(hash, block);
+            Sha256Hash overwritten = null;
+            writeSequence.incrementAndGet();
+            try {
+                // Forget the header we are about to overwrite, unless the index already points at a newer copy of it.
+                if (!Arrays.equals(oldHash, EMPTY_HASH) && indexRemove(ring, oldHash, slot))
+                    overwritten = new Sha256Hash(oldHash);
+                ring.position(cursor);
+                ring.put(hash.getBytes());
+                block.serializeCompact(ring);
+                setRingCursor(buffer, ring.position());
+                indexPut(ring, hash.getBytes(), slot);
+            } finally {
+                writeSequence.incrementAndGet();
+            }
+            if (overwritten != null) {
+                // It's gone from the ring, so don't keep handing it out from the cache either.
+                StoredBlock cached = blockCache.get(cacheSlot(overwritten));
+                if (cached != null && cached.getHeader().getHash().equals(overwritten))
+                    blockCache.compareAndSet(cacheSlot(overwritten), cached, null);
+            }
+            blockCache.set(cacheSlot(hash), block);
         } finally { lock.unlock(); }
     }
 
+    private static int cacheSlot(Sha256Hash hash) {
+        return hash.hashCode() & (BLOCK_CACHE_SIZE - 1);
+    }
+
     public StoredBlock get(Sha256Hash hash) throws BlockStoreException {
         final MappedByteBuffer buffer = this.buffer;
         if (buffer == null) throw new BlockStoreException("Store closed");
 
-        lock.lock();
-        try {
-            StoredBlock cacheHit = blockCache.get(hash);
-            if (cacheHit != null)
-                return cacheHit;
-            if (notFoundCache.get(hash) != null)
-                return null;
-
-            // Starting from the current tip of the ring work backwards until we have either found the block or
-            // wrapped around.
-            int cursor = getRingCursor(buffer);
-            final int startingPoint = cursor;
-            final int fileSize = getFileSize();
-            final byte[] targetHashBytes = hash.getBytes();
-            byte[] scratch = new byte[32];
-            do {
-                cursor -= RECORD_SIZE;
-                if (cursor < FILE_PROLOGUE_BYTES) {
-                    // We hit the start, so wrap around.
-                    cursor = fileSize - RECORD_SIZE;
-                }
-                // Cursor is now at the start of the next record to check, so read the hash and compare it.
-                buffer.position(cursor);
-                buffer.get(scratch);
-                if (Arrays.equals(scratch, targetHashBytes)) {
-                    // Found the target.
-                    StoredBlock storedBlock = StoredBlock.deserializeCompact(params, buffer);
-                    blockCache.put(hash, storedBlock);
-                    return storedBlock;
-                }
-            } while (cursor != startingPoint);
-            // Not found.
-            notFoundCache.put(hash, notFoundMarker);
+        StoredBlock cacheHit = blockCache.get(cacheSlot(hash));
+        if (cacheHit != null && cacheHit.getHeader().getHash().equals(hash))
+            return cacheHit;
+
+        StoredBlock storedBlock = null;
+        boolean done = false;
+        int sequence = 0;
+        for (int attempt = 0; attempt < OPTIMISTIC_READ_ATTEMPTS && !done; attempt++) {
+            sequence = writeSequence.get();
+            if ((sequence & 1) != 0) {
+                Thread.yield();  // A write is in progress.
+                continue;
+            }
+            ProtocolException failure = null;
+            try {
+                storedBlock = readFromRing(buffer, hash);
+            } catch (ProtocolException e) {
+                failure = e;  // Probably a torn read, which the check below will catch.
+            }
+            // A compareAndSet rather than a plain read: as well as checking nothing was written while we were
+            // reading, it stops the reads above from being reordered after the check.
+            if (writeSequence.compareAndSet(sequence, sequence)) {
+                if (failure != null)
+                    throw new RuntimeException(failure);  // Cannot happen.
+                done = true;
+            }
+        }
+        if (!done) {
+            // Writers keep getting in the way, so wait for them to finish.
+            lock.lock();
+            try {
+                sequence = writeSequence.get();
+                storedBlock = readFromRing(buffer, hash);
+            } catch (ProtocolException e) {
+                throw new RuntimeException(e);  // Cannot happen.
+            } finally { lock.unlock(); }
+        }
+        if (storedBlock != null) {
+            int slot = cacheSlot(hash);
+            blockCache.set(slot, storedBlock);
+            // A put() since our read may have overwritten the header and already cleared the slot, in which case we
+            // have just put it back. Take it out again; the header itself was valid when read, so still return it.
+            if (writeSequence.get() != sequence)
+                blockCache.compareAndSet(slot, storedBlock, null);
+        }
+        return storedBlock;
+    }
+
+    protected StoredBlock readFromRing(MappedByteBuffer buffer, Sha256Hash hash) throws ProtocolException {
+        ByteBuffer ring = buffer.duplicate();
+        int bucket = indexFind(ring, hash.getBytes());
+        if (bucket < 0)
             return null;
-        } catch (ProtocolException e) {
-            throw new RuntimeException(e);  // Cannot happen.
-        } finally { lock.unlock(); }
+        int entry = indexBuffer.getInt(bucketOffset(bucket));
+        if (entry == 0)
+            return null;  // Removed since we found it, which the caller will notice.
+        ring.position(slotOffset(entry - 1) + 32);
+        return StoredBlock.deserializeCompact(params, ring);
     }
 
-    protected StoredBlock lastChainHead = null;
+    protected volatile StoredBlock lastChainHead = null;
 
     public StoredBlock getChainHead() throws BlockStoreException {
         final MappedByteBuffer buffer = this.buffer;
         if (buffer == null) throw new BlockStoreException("Store closed");
 
+        StoredBlock head = lastChainHead;
+        if (head != null)
+            return head;
         lock.lock();
         try {
             if (lastChainHead == null) {
                 byte[] headHash = new byte[32];
-                buffer.position(8);
-                buffer.get(headHash);
+                ByteBuffer ring = buffer.duplicate();
+                ring.position(8);
+                ring.get(headHash);
                 Sha256Hash hash = new Sha256Hash(headHash);
                 StoredBlock block = get(hash);
                 if (block == null)
@@ -254,16 +449,34 @@ public class SPVBlockStore implements BlockStore {
         try {
             lastChainHead = chainHead;
             byte[] headHash = chainHead.getHeader().getHash().getBytes();
-            buffer.position(8);
-            buffer.put(headHash);
+            ByteBuffer ring = buffer.duplicate();
+            ring.position(8);
+            ring.put(headHash);
+            ancestors.setChainHead(chainHead);
         } finally { lock.unlock(); }
     }
 
+    public StoredBlock getAncestor(StoredBlock block, int height) throws BlockStoreException {
+        return ancestors.getAncestor(block, height);
+    }
+
     public void close() throws BlockStoreException {
         try {
             buffer.force();
+            // The index matches the ring as it is now on disk, so it can be trusted next time.
+            lock.lock();
+            try {
+                indexBuffer.force();
+                indexBuffer.putInt(12, getRingCursor(buffer));
+                indexBuffer.putInt(8, INDEX_CLEAN);
+                indexBuffer.force();
+            } finally {
+                lock.unlock();
+            }
             buffer = null;  // Allow it to be GCd and the underlying file mapping to go away.
+            indexBuffer = null;
             randomAccessFile.close();
+            indexFile.close();
         } catch (IOException e) {
             throw new BlockStoreException(e);
         }
@@ -283,6 +496,17 @@ public class SPVBlockStore implements BlockStore {
     //   80 bytes of block header data
     protected static final int FILE_PROLOGUE_BYTES = 1024;
 
+    // Index file format:
+    //   4 header bytes = "SPVI"
+    //   4 bytes number of buckets
+    //   4 bytes INDEX_CLEAN if the store was closed cleanly, otherwise zero
+    //   4 bytes ring cursor at the time of the clean close
+    //   then for each bucket, 4 bytes ring slot plus one, or zero if empty
+    protected static final String INDEX_MAGIC = "SPVI";
+    protected static final int INDEX_PROLOGUE_BYTES = 16;
+    private static final int INDEX_CLEAN = 0x434c4e21;
+    private static final byte[] EMPTY_HASH = new byte[32];
+
     /** Returns the offset from the file start where the latest block should be written (end of prev block). */
     private int getRingCursor(ByteBuffer buffer) {
         int c = buffer.getInt(4);
@@ -0,0 +1,267 @@
+/**
+ * Copyright 2013 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.bitcoin.store;
+
+import com.google.bitcoin.core.*;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.*;
+import java.math.BigInteger;
+import java.security.DigestInputStream;
+import java.security.DigestOutputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+
+/**
+ * <p>Writes and reads snapshots of the unspent output set of a {@link FullPrunedBlockStore} together with the header
+ * chain it belongs to, so that a new full node can start from a recent block instead of replaying every block since
+ * genesis. A snapshot is taken at the verified chain head of the store it is written from.</p>
+ *
+ * <p>The format is a stream, written and read one record at a time, so neither side ever holds the whole output set
+ * in memory:</p>
+ *
+ * <pre>
+ *   4 bytes magic, 4 bytes version, network id (modified UTF-8)
+ *   4 bytes height of the head, chain work of the head (2 byte length then big endian bytes)
+ *   the 80 byte headers from the head down to height 1
+ *   for each unspent output: 1 (a byte), 32 bytes transaction hash, 4 bytes index, 4 bytes height,
+ *       8 bytes value, 4 bytes script length, script
+ *   0 (a byte), 8 bytes number of outputs
+ *   32 bytes SHA-256 of everything above
+ * </pre>
+ *
+ * <p>The header chain is checked when reading: every header must have valid proof of work, link to the one below it
+ * and lead back to the genesis block, with chain work adding up. A snapshot still has to come from somewhere you
+ * trust, because the outputs themselves can't be checked without replaying the blocks; pass the hash you expect the
+ * head to have to {@link #read(FullPrunedBlockStore, InputStream, Sha256Hash)}.</p>
+ */
+public class UnspentOutputSnapshot {
+    private static final Logger log = LoggerFactory.getLogger(UnspentOutputSnapshot.class);
+
+    private static final int MAGIC = 0x5554584f;  // "UTXO"
+    private static final int VERSION = 1;
+    private static final int ROWS_PER_BATCH = 10000;
+    private static final int LOG_INTERVAL = 1000000;
+
+    private final NetworkParameters params;
+
+    public UnspentOutputSnapshot(NetworkParameters params) {
+        this.params = params;
+    }
+
+    /**
+     * Writes a snapshot of the given store, as of its verified chain head, to the stream. Blocks must not be connected
+     * to the store while this is running. The stream is not closed.
+     * @return The verified chain head the snapshot was taken at
+     */
+    public StoredBlock write(IterableFullPrunedBlockStore store, OutputStream stream)
+            throws BlockStoreException, IOException {
+        MessageDigest digest = newDigest();
+        final DataOutputStream out = new DataOutputStream(new DigestOutputStream(new BufferedOutputStream(stream), digest));
+        StoredBlock head = store.getVerifiedChainHead();
+        out.writeInt(MAGIC);
+        out.writeInt(VERSION);
+        out.writeUTF(params.getId());
+        out.writeInt(head.getHeight());
+        byte[] chainWork = head.getChainWork().toByteArray();
+        out.writeShort(chainWork.length);
+        out.write(chainWork);
+
+        StoredBlock cursor = head;
+        while (cursor.getHeight() > 0) {
+            out.write(cursor.getHeader().unsafeBitcoinSerialize(), 0, Block.HEADER_SIZE);
+            cursor = cursor.getPrev(store);
+            if (cursor == null)
+                throw new BlockStoreException("Missing a header below the verified chain head");
+        }
+
+        final long[] count = new long[1];
+        try {
+            store.forEachUnspentOutput(new IterableFullPrunedBlockStore.OutputVisitor() {
+                public void visit(StoredTransactionOutput output) throws BlockStoreException {
+                    try {
+                        out.writeByte(1);
+                        out.write(output.getHash().getBytes());
+                        out.writeInt((int) output.getIndex());
+                        out.writeInt(output.getHeight());
+                        out.writeLong(output.getValue().longValue());
+                        out.writeInt(output.getScriptBytes().length);
+                        out.write(output.getScriptBytes());
+                    } catch (IOException e) {
+                        throw new BlockStoreException(e);
+                    }
+                    if (++count[0] % LOG_INTERVAL == 0)
+                        log.info("Written {} unspent outputs", count[0]);
+                }
+            });
+        } catch (BlockStoreException e) {
+            if (e.getCause() instanceof IOException)
+                throw (IOException) e.getCause();
+            throw e;
+        }
+        out.writeByte(0);
+        out.writeLong(count[0]);
+        out.flush();
+        stream.write(digest.digest());
+        stream.flush();
+        log.info("Wrote a snapshot of {} unspent outputs at height {}", count[0], head.getHeight());
+        return head;
+    }
+
+    /**
+     * Reads a snapshot into the given store, which must not have had any blocks connected to it yet. The header
+     * chain is verified before any outputs are written, and the chain heads are only moved to the snapshot's head once
+     * the checksum at the end has been checked. If this throws, the store should be thrown away or reset.
+     * @param expectedHead The hash the snapshot's head must have, or null to accept any
+     * @return The new verified chain head
+     */
+    public StoredBlock read(FullPrunedBlockStore store, InputStream stream, Sha256Hash expectedHead)
+            throws BlockStoreException, IOException {
+        if (store.getVerifiedChainHead().getHeight() != 0)
+            throw new BlockStoreException("Snapshots can only be read into a new block store");
+        MessageDigest digest = newDigest();
+        DigestInputStream digestStream = new DigestInputStream(new BufferedInputStream(stream), digest);
+        DataInputStream in = new DataInputStream(digestStream);
+        if (in.readInt() != MAGIC)
+            throw new BlockStoreException("Not a snapshot");
+        if (in.readInt() != VERSION)
+            throw new BlockStoreException("Unsupported snapshot version");
+        String id = in.readUTF();
+        if (!id.equals(params.getId()))
+            throw new BlockStoreException("Snapshot is for a different network: " + id);
+        int height = in.readInt();
+        byte[] chainWorkBytes = new byte[in.readUnsignedShort()];
+        in.readFully(chainWorkBytes);
+        BigInteger chainWork = new BigInteger(chainWorkBytes);
+        if (height <= 0 || chainWork.signum() <= 0)
+            throw new BlockStoreException("Snapshot has a bad head");
+
+        StoredBlock head;
+        try {
+            head = readHeaders(store, in, height, chainWork, expectedHead);
+        } catch (VerificationException e) {
+            throw new BlockStoreException(e);
+        }
+
+        long count = 0;
+        store.beginDatabaseBatchWrite();
+        try {
+            while (in.readByte() != 0) {
+                byte[] hash = new byte[32];
+                in.readFully(hash);
+                long index = in.readInt() & 0xFFFFFFFFL;
+                int outputHeight = in.readInt();
+                BigInteger value = BigInteger.valueOf(in.readLong());
+                int scriptLength = in.readInt();
+                if (scriptLength < 0 || scriptLength > Block.MAX_BLOCK_SIZE)
+                    throw new BlockStoreException("Snapshot is corrupt: bad script length " + scriptLength);
+                byte[] script = new byte[scriptLength];
+                in.readFully(script);
+                // The height already has the non-coinbase marker applied, so pass it through as a coinbase.
+                store.addUnspentTransactionOutput(new StoredTransactionOutput(new Sha256Hash(hash), index, value,
+                        outputHeight, true, script));
+                if (++count % ROWS_PER_BATCH == 0) {
+                    store.commitDatabaseBatchWrite();
+                    store.beginDatabaseBatchWrite();
+                }
+                if (count % LOG_INTERVAL == 0)
+                    log.info("Read {} unspent outputs", count);
+            }
+            if (in.readLong() != count)
+                throw new BlockStoreException("Snapshot is corrupt: wrong number of outputs");
+            digestStream.on(false);
+            byte[] checksum = new byte[32];
+            in.readFully(checksum);
+            if (!Arrays.equals(checksum, digest.digest()))
+                throw new BlockStoreException("Snapshot is corrupt: checksum does not match");
+            store.setChainHead(head);
+            store.setVerifiedChainHead(head);
+            store.commitDatabaseBatchWrite();
+        } catch (BlockStoreException e) {
+            store.abortDatabaseBatchWrite();
+            throw e;
+        } catch (IOException e) {
+            store.abortDatabaseBatchWrite();
+            throw e;
+        }
+        log.info("Read a snapshot of {} unspent outputs at height {}", count, height);
+        return head;
+    }
+
+    // Reads the headers from the head downwards, checking each one, and stores them. The head is stored as undoable
+    // with no changes, like the genesis block, so that blocks can be connected on top of it.
+    private StoredBlock readHeaders(FullPrunedBlockStore store, DataInputStream in, int height, BigInteger chainWork,
+                                    Sha256Hash expectedHead)
+            throws BlockStoreException, IOException, VerificationException {
+        StoredBlock head = null;
+        Sha256Hash expectedHash = expectedHead;
+        store.beginDatabaseBatchWrite();
+        try {
+            for (int h = height; h > 0; h--) {
+                byte[] bytes = new byte[Block.HEADER_SIZE + 1];  // Extra byte for the 00 transactions length.
+                in.readFully(bytes, 0, Block.HEADER_SIZE);
+                Block header = new Block(params, bytes);
+                header.verifyHeader();
+                if (expectedHash != null && !expectedHash.equals(header.getHash()))
+                    throw new VerificationException("Snapshot header at height " + h + " is " + header.getHash() +
+                            ", expected " + expectedHash);
+                if (!params.passesCheckpoint(h, header.getHash()))
+                    throw new VerificationException("Snapshot header failed checkpoint lockin at " + h);
+                StoredBlock block = new StoredBlock(header, chainWork, h);
+                if (head == null) {
+                    head = block;
+                    store.put(block, new StoredUndoableBlock(header.getHash(), new TransactionOutputChanges(
+                            new ArrayList<StoredTransactionOutput>(), new ArrayList<StoredTransactionOutput>())));
+                } else {
+                    store.put(block);
+                }
+                expectedHash = header.getPrevBlockHash();
+                chainWork = chainWork.subtract(header.getWork());
+                if ((height - h + 1) % ROWS_PER_BATCH == 0) {
+                    store.commitDatabaseBatchWrite();
+                    store.beginDatabaseBatchWrite();
+                }
+            }
+            StoredBlock genesis = store.get(params.getGenesisBlock().getHash());
+            if (!params.getGenesisBlock().getHash().equals(expectedHash) || !genesis.getChainWork().equals(chainWork))
+                throw new VerificationException("Snapshot headers do not lead back to the genesis block");
+            store.commitDatabaseBatchWrite();
+        } catch (BlockStoreException e) {
+            store.abortDatabaseBatchWrite();
+            throw e;
+        } catch (VerificationException e) {
+            store.abortDatabaseBatchWrite();
+            throw e;
+        } catch (IOException e) {
+            store.abortDatabaseBatchWrite();
+            throw e;
+        }
+        log.info("Read {} headers", height);
+        return head;
+    }
+
+    private static MessageDigest newDigest() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new RuntimeException(e);  // Cannot happen.
+        }
+    }
+}
@@ -30,7 +30,10 @@ import org.junit.Test;
 
 import java.math.BigInteger;
 import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.Date;
+import java.util.List;
 
 import static com.google.bitcoin.core.TestUtils.createFakeBlock;
 import static com.google.bitcoin.core.TestUtils.createFakeTx;
@@ -172,6 +175,70 @@ public class BlockChainTest {
         assertEquals(chain.getChainHead().getHeader(), b3.cloneAsHeader());
     }
 
+    @Test
+    public void orphansConnectInOrder() throws Exception {
+        // A chain with a fork at b2, arriving in reverse order.
+        Block b1 = unitTestParams.getGenesisBlock().createNextBlock(coinbaseTo);
+        Block b2 = b1.createNextBlock(coinbaseTo);
+        Block b3 = b2.createNextBlock(coinbaseTo);
+        Block b4 = b3.createNextBlock(coinbaseTo);
+        Block b3fork = b2.createNextBlock(coinbaseTo);
+        for (Block b : new Block[] {b4, b3fork, b3, b2})
+            assertFalse(chain.add(b));
+        assertEquals(4, chain.getOrphanBlockCount());
+        assertTrue(chain.getOrphanBlockBytes() > 4 * Block.HEADER_SIZE);
+        assertEquals(b2, chain.getOrphanRoot(b4.getHash()));
+
+        // Everything connects as soon as the missing block arrives.
+        assertTrue(chain.add(b1));
+        assertEquals(0, chain.getOrphanBlockCount());
+        assertEquals(0, chain.getOrphanBlockBytes());
+        assertEquals(4, chain.getBestChainHeight());
+        assertEquals(b4.cloneAsHeader(), chain.getChainHead().getHeader());
+    }
+
+    @Test
+    public void orphanEviction() throws Exception {
+        Block b1 = unitTestParams.getGenesisBlock().createNextBlock(coinbaseTo);
+        Block b2 = b1.createNextBlock(coinbaseTo);
+        Block b3 = b2.createNextBlock(coinbaseTo);
+        Block b4 = b3.createNextBlock(coinbaseTo);
+        assertFalse(chain.add(b2));
+        long oneBlock = chain.getOrphanBlockBytes();
+        chain.setMaxOrphanBlockBytes(oneBlock * 2);
+        assertFalse(chain.add(b3));
+        assertFalse(chain.add(b4));
+        // The oldest was dropped to make room.
+        assertEquals(2, chain.getOrphanBlockCount());
+        assertEquals(1, chain.getEvictedOrphanBlockCount());
+        assertFalse(chain.isOrphan(b2.getHash()));
+        assertEquals(b3, chain.getOrphanRoot(b4.getHash()));
+        // So the chain only gets as far as b1 until b2 is sent again.
+        assertTrue(chain.add(b1));
+        assertEquals(1, chain.getBestChainHeight());
+        assertTrue(chain.add(b2));
+        assertEquals(4, chain.getBestChainHeight());
+    }
+
+    @Test
+    public void orphanChangedWhileHeld() throws Exception {
+        Block b1 = unitTestParams.getGenesisBlock().createNextBlock(coinbaseTo);
+        Block b2 = b1.createNextBlock(coinbaseTo);
+        assertFalse(chain.add(b2));
+        Sha256Hash hash = b2.getHash();
+        // The block grows, and so gets a new hash, after it was added.
+        Transaction tx = new Transaction(unitTestParams);
+        tx.addInput(b1.getTransactions().get(0).getOutput(0));
+        tx.addOutput(Utils.toNanoCoins(1, 0), new ECKey());
+        b2.addTransaction(tx);
+        assertFalse(hash.equals(b2.getHash()));
+        // Dropping it takes out exactly what adding it put in.
+        chain.setMaxOrphanBlockBytes(1);
+        assertEquals(0, chain.getOrphanBlockCount());
+        assertEquals(0, chain.getOrphanBlockBytes());
+        assertFalse(chain.isOrphan(hash));
+    }
+
     @Test
     public void difficultyTransitions() throws Exception {
         // Add a bunch of blocks in a loop until we reach a difficulty transition point. The unit test params have an
@@ -383,6 +450,41 @@ public class BlockChainTest {
         return b1;
     }
 
+    @Test
+    public void blockLocator() throws Exception {
+        // No difficulty transitions to get in the way.
+        NetworkParameters params = new UnitTestParams() {
+            @Override public int getInterval() {
+                return 10000;
+            }
+        };
+        blockStore = new MemoryBlockStore(params);
+        chain = new BlockChain(params, blockStore);
+        Block prev = params.getGenesisBlock();
+        List<Sha256Hash> hashes = new ArrayList<Sha256Hash>();
+        hashes.add(prev.getHash());
+        for (int height = 1; height <= 200; height++) {
+            prev = prev.createNextBlock(coinbaseTo);
+            assertTrue(chain.add(prev));
+            hashes.add(prev.getHash());
+        }
+        // Ten in a row, then each gap twice as big as the last.
+        int[] heights = { 200, 199, 198, 197, 196, 195, 194, 193, 192, 191, 189, 185, 177, 161, 129, 65, 0 };
+        List<Sha256Hash> expected = new ArrayList<Sha256Hash>();
+        for (int height : heights)
+            expected.add(hashes.get(height));
+        assertEquals(expected, chain.getBlockLocator(chain.getChainHead()));
+
+        // A short chain lists every block.
+        assertEquals(hashes.subList(0, 4), reverse(chain.getBlockLocator(blockStore.getAncestor(chain.getChainHead(), 3))));
+    }
+
+    private static List<Sha256Hash> reverse(List<Sha256Hash> list) {
+        List<Sha256Hash> result = new ArrayList<Sha256Hash>(list);
+        Collections.reverse(result);
+        return result;
+    }
+
     @Test
     public void estimatedBlockTime() throws Exception {
         NetworkParameters params = MainNetParams.get();
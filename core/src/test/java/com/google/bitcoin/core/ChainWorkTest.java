@@ -0,0 +1,96 @@
+/**
+ * Copyright 2013 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.bitcoin.core;
+
+import com.google.bitcoin.params.MainNetParams;
+import com.google.bitcoin.params.UnitTestParams;
+import org.junit.Test;
+
+import java.math.BigInteger;
+import java.nio.ByteBuffer;
+
+import static org.junit.Assert.*;
+
+public class ChainWorkTest {
+    @Test
+    public void addAndCompare() throws Exception {
+        BigInteger a = BigInteger.ONE.shiftLeft(64).subtract(BigInteger.ONE);
+        BigInteger b = new BigInteger("123456789abcdef0123456789", 16);
+        ChainWork sum = ChainWork.valueOf(a).add(ChainWork.valueOf(b));
+        assertEquals(a.add(b), sum.toBigInteger());
+        assertTrue(sum.compareTo(ChainWork.valueOf(b)) > 0);
+        assertTrue(ChainWork.valueOf(a).compareTo(ChainWork.valueOf(b)) < 0);
+        assertEquals(0, sum.compareTo(ChainWork.valueOf(a.add(b))));
+        assertEquals(ChainWork.valueOf(a.add(b)), sum);
+
+        ChainWork max = ChainWork.valueOf(BigInteger.ONE.shiftLeft(128).subtract(BigInteger.ONE));
+        try {
+            max.add(ChainWork.valueOf(BigInteger.ONE));
+            fail();
+        } catch (IllegalStateException e) {
+            // Expected.
+        }
+    }
+
+    @Test
+    public void readAndWrite() throws Exception {
+        ChainWork work = ChainWork.valueOf(new BigInteger("fedcba9876543210ff", 16));
+        ByteBuffer buffer = ByteBuffer.allocate(StoredBlock.CHAIN_WORK_BYTES);
+        work.write(buffer, StoredBlock.CHAIN_WORK_BYTES);
+        // The same bytes as a padded BigInteger.
+        assertArrayEquals(Utils.bigIntegerToBytes(work.toBigInteger(), StoredBlock.CHAIN_WORK_BYTES), buffer.array());
+        buffer.flip();
+        assertEquals(work, ChainWork.read(buffer, StoredBlock.CHAIN_WORK_BYTES));
+
+        ChainWork tooBig = ChainWork.valueOf(BigInteger.ONE.shiftLeft(100));
+        try {
+            tooBig.write(ByteBuffer.allocate(16), StoredBlock.CHAIN_WORK_BYTES);
+            fail();
+        } catch (IllegalStateException e) {
+            // Expected.
+        }
+    }
+
+    @Test
+    public void blockWork() throws Exception {
+        for (Block block : new Block[] { MainNetParams.get().getGenesisBlock(), UnitTestParams.get().getGenesisBlock() }) {
+            ChainWork work = ChainWork.forDifficultyTarget(block.getDifficultyTarget());
+            assertEquals(block.getWork(), work.toBigInteger());
+            // Looked up the second time.
+            assertSame(work, ChainWork.forDifficultyTarget(block.getDifficultyTarget()));
+        }
+    }
+
+    @Test
+    public void compactStoredBlock() throws Exception {
+        Block header = UnitTestParams.get().getGenesisBlock().cloneAsHeader();
+        StoredBlock stored = new StoredBlock(header, header.getWork(), 0);
+        StoredBlock compact = stored.toCompact();
+        assertEquals(stored, compact);
+        assertEquals(header.getHash(), compact.getHeader().getHash());
+        assertEquals(stored.getChainWork(), compact.getChainWork());
+        assertSame(compact, compact.toCompact());
+        // The header is rebuilt from the stored bytes, with the stored hash.
+        Block next = header.createNextBlock(new ECKey().toAddress(UnitTestParams.get())).cloneAsHeader();
+        StoredBlock compactNext = stored.build(next).toCompact();
+        assertArrayEquals(next.bitcoinSerialize(), compactNext.getHeader().bitcoinSerialize());
+        assertSame(compactNext.getHeader().getHash(), compactNext.getHeader().getHash());
+        // Changes to a returned header don't affect the stored one.
+        compact.getHeader().setNonce(1);
+        assertEquals(header.getHash(), compact.getHeader().getHash());
+    }
+}
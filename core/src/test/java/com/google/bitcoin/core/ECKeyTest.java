@@ -38,6 +38,8 @@ import java.security.SecureRandom;
 import java.security.SignatureException;
 import java.util.Arrays;
 import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 import java.io.InputStream;
 
 import static com.google.bitcoin.core.Utils.reverseBytes;
@@ -81,6 +83,50 @@ public class ECKeyTest {
         assertTrue(key.verify(Sha256Hash.ZERO_HASH.getBytes(), sig));
     }
 
+    @Test
+    public void batchVerify() throws Exception {
+        checkBatchVerify();
+    }
+
+    @Test
+    public void batchVerifySecp256k1() throws Exception {
+        ECKey.setUseSecp256k1Verifier(true);
+        try {
+            checkBatchVerify();
+        } finally {
+            ECKey.setUseSecp256k1Verifier(false);
+        }
+    }
+
+    private void checkBatchVerify() throws Exception {
+        ECKey.BatchVerifier batch = new ECKey.BatchVerifier();
+        ECKey key = new ECKey();
+        // Enough for several chunks.
+        for (int i = 0; i < 150; i++) {
+            byte[] hash = Sha256Hash.create(new byte[] { (byte) i }).getBytes();
+            byte[] sig = key.sign(new Sha256Hash(hash)).encodeToDER();
+            if (i == 7 || i == 100)
+                hash = Sha256Hash.ZERO_HASH.getBytes();
+            if (i == 120)
+                sig = new byte[] { 0x30, 0 };
+            assertEquals(i, batch.add(hash, sig, key.getPubKey()));
+        }
+        ExecutorService executor = Executors.newFixedThreadPool(2);
+        assertFalse(batch.verify(executor));
+        executor.shutdown();
+        assertEquals(Arrays.asList(7, 100, 120), batch.getInvalid());
+
+        // Batches can be merged, as when each input collects its own signatures.
+        ECKey.BatchVerifier good = new ECKey.BatchVerifier(), more = new ECKey.BatchVerifier();
+        byte[] hash = Sha256Hash.ZERO_HASH.getBytes();
+        good.add(hash, key.sign(Sha256Hash.ZERO_HASH).encodeToDER(), key.getPubKey());
+        more.add(hash, key.sign(Sha256Hash.ZERO_HASH).encodeToDER(), key.getPubKey());
+        assertEquals(1, good.addAll(more));
+        assertEquals(2, good.size());
+        assertTrue(good.verify());
+        assertTrue(good.getInvalid().isEmpty());
+    }
+
     @Test
     public void testASN1Roundtrip() throws Exception {
         byte[] privkeyASN1 = Hex.decode(
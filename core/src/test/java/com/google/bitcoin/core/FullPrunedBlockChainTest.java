@@ -22,10 +22,13 @@ import com.google.bitcoin.params.MainNetParams;
 import com.google.bitcoin.params.UnitTestParams;
 import com.google.bitcoin.script.Script;
 import com.google.bitcoin.store.BlockStoreException;
+import com.google.bitcoin.store.CachingFullPrunedBlockStore;
 import com.google.bitcoin.store.FullPrunedBlockStore;
+import com.google.bitcoin.store.H2FullPrunedBlockStore;
 import com.google.bitcoin.store.MemoryFullPrunedBlockStore;
 import com.google.bitcoin.utils.BlockFileLoader;
 import com.google.bitcoin.utils.BriefLogFormatter;
+import com.google.common.util.concurrent.Uninterruptibles;
 import org.junit.Before;
 import org.junit.Test;
 import org.slf4j.Logger;
@@ -35,7 +38,12 @@ import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.IOException;
 import java.lang.ref.WeakReference;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import static org.junit.Assert.*;
 
@@ -67,6 +75,119 @@ public class FullPrunedBlockChainTest {
         BlockAndValidityList blockList = generator.getBlocksToTest(false, false, null);
         
         store = new MemoryFullPrunedBlockStore(params, blockList.maximumReorgBlockCount);
+        runGeneratedChain(blockList);
+    }
+
+    @Test
+    public void testGeneratedChainWithCache() throws Exception {
+        // The same again, with a cache small enough that it flushes and evicts all the time, through all the re-orgs.
+        FullBlockTestGenerator generator = new FullBlockTestGenerator(params);
+        BlockAndValidityList blockList = generator.getBlocksToTest(false, false, null);
+
+        CachingFullPrunedBlockStore cache = new CachingFullPrunedBlockStore(
+                new MemoryFullPrunedBlockStore(params, blockList.maximumReorgBlockCount), 16 * 1024);
+        store = cache;
+        runGeneratedChain(blockList);
+        assertTrue(cache.getFlushes() > 0);
+        assertTrue(cache.getCoalescedOutputs() > 0);
+    }
+
+    @Test
+    public void testGeneratedChainH2() throws Exception {
+        // And once more against H2, which holds back output changes until each batch write commits.
+        FullBlockTestGenerator generator = new FullBlockTestGenerator(params);
+        BlockAndValidityList blockList = generator.getBlocksToTest(false, false, null);
+
+        File dbFile = File.createTempFile("fullprunedblockchaintest", null);
+        dbFile.delete();
+        H2FullPrunedBlockStore h2 = new H2FullPrunedBlockStore(params, dbFile.getAbsolutePath(), blockList.maximumReorgBlockCount);
+        store = h2;
+        try {
+            runGeneratedChain(blockList);
+        } finally {
+            h2.close();
+            new File(dbFile.getAbsolutePath() + ".h2.db").delete();
+        }
+    }
+
+    @Test
+    public void testGeneratedChainPipelined() throws Exception {
+        // Pipelining stops at the first invalid block, leaving everything before it connected.
+        FullBlockTestGenerator generator = new FullBlockTestGenerator(params);
+        BlockAndValidityList blockList = generator.getBlocksToTest(false, false, null);
+
+        store = new MemoryFullPrunedBlockStore(params, blockList.maximumReorgBlockCount);
+        chain = new FullPrunedBlockChain(params, store);
+        // The proof of work is checked by the chain's verifier.
+        final AtomicInteger verified = new AtomicInteger();
+        chain.setProofOfWorkVerifier(new ProofOfWorkVerifier(params) {
+            @Override
+            public void verifyHeaders(List<Block> headers) throws VerificationException {
+                verified.addAndGet(headers.size());
+                super.verifyHeaders(headers);
+            }
+        });
+        List<Block> blocks = new ArrayList<Block>();
+        BlockAndValidity lastGood = null;
+        for (BlockAndValidity block : blockList.list) {
+            blocks.add(block.block);
+            if (block.throwsException)
+                break;
+            lastGood = block;
+        }
+        try {
+            chain.addAll(blocks);
+            fail();
+        } catch (VerificationException e) {
+            // Expected.
+        }
+        assertEquals(lastGood.hashChainTipAfterBlock, chain.getChainHead().getHeader().getHash());
+        assertEquals(lastGood.heightAfterBlock, chain.getChainHead().getHeight());
+        assertEquals(blocks.size(), verified.get());
+    }
+
+    @Test
+    public void testPipelinedPrefetchesFinishFirst() throws Exception {
+        // Prefetches still running when a block fails to connect are done before addAll() returns, as the store may
+        // be closed straight afterwards.
+        FullBlockTestGenerator generator = new FullBlockTestGenerator(params);
+        BlockAndValidityList blockList = generator.getBlocksToTest(false, false, null);
+        final AtomicBoolean returned = new AtomicBoolean();
+        final AtomicBoolean readAfterReturn = new AtomicBoolean();
+        store = new MemoryFullPrunedBlockStore(params, blockList.maximumReorgBlockCount) {
+            @Override
+            public StoredTransactionOutput getTransactionOutput(Sha256Hash hash, long index)
+                    throws BlockStoreException {
+                if (Thread.currentThread().getName().startsWith("FullPrunedBlockChain-prefetch"))
+                    Uninterruptibles.sleepUninterruptibly(20, TimeUnit.MILLISECONDS);
+                StoredTransactionOutput out = super.getTransactionOutput(hash, index);
+                if (returned.get())
+                    readAfterReturn.set(true);
+                return out;
+            }
+        };
+        chain = new FullPrunedBlockChain(params, store);
+        // Everything up to the first invalid block, and the blocks after it which are being prefetched by then.
+        List<Block> blocks = new ArrayList<Block>();
+        int end = blockList.list.size();
+        for (int i = 0; i < end; i++) {
+            blocks.add(blockList.list.get(i).block);
+            if (blockList.list.get(i).throwsException)
+                end = Math.min(end, i + 2 * chain.getPipelineDepth());
+        }
+        try {
+            chain.addAll(blocks);
+            fail();
+        } catch (VerificationException e) {
+            // Expected.
+        } finally {
+            returned.set(true);
+        }
+        Thread.sleep(100);
+        assertFalse(readAfterReturn.get());
+    }
+
+    private void runGeneratedChain(BlockAndValidityList blockList) throws Exception {
         chain = new FullPrunedBlockChain(params, store);
         
         for (BlockAndValidity block : blockList.list) {
@@ -156,6 +277,98 @@ public class FullPrunedBlockChainTest {
         assertNull(out.get());
     }
     
+    @Test
+    public void testAssumeValid() throws Exception {
+        // A chain with a spend signed by the wrong key, and one block on top of it.
+        ECKey outKey = new ECKey();
+        List<Block> blocks = new ArrayList<Block>();
+        Block rollingBlock = params.getGenesisBlock().createNextBlockWithCoinbase(outKey.getPubKey());
+        blocks.add(rollingBlock);
+        TransactionOutPoint spendableOutput = new TransactionOutPoint(params, 0, rollingBlock.getTransactions().get(0).getHash());
+        byte[] spendableOutputScriptPubKey = rollingBlock.getTransactions().get(0).getOutputs().get(0).getScriptBytes();
+        for (int i = 1; i < params.getSpendableCoinbaseDepth(); i++) {
+            rollingBlock = rollingBlock.createNextBlockWithCoinbase(outKey.getPubKey());
+            blocks.add(rollingBlock);
+        }
+        rollingBlock = rollingBlock.createNextBlock(null);
+        Transaction t = new Transaction(params);
+        t.addOutput(new TransactionOutput(params, t, Utils.toNanoCoins(50, 0), new byte[] {}));
+        addInputToTransaction(t, spendableOutput, spendableOutputScriptPubKey, new ECKey());
+        rollingBlock.addTransaction(t);
+        rollingBlock.solve();
+        blocks.add(rollingBlock);
+        Block badBlock = rollingBlock;
+        rollingBlock = rollingBlock.createNextBlock(null);
+        blocks.add(rollingBlock);
+        int height = blocks.size();
+
+        // Without assume-valid the bad signature is caught.
+        store = new MemoryFullPrunedBlockStore(params, 10);
+        chain = new FullPrunedBlockChain(params, store);
+        assertNull(chain.getAssumeValidHash());
+        try {
+            for (Block block : blocks)
+                chain.add(block);
+            fail();
+        } catch (VerificationException e) {
+            // Expected.
+        }
+
+        // Until the assume-valid block's header is known, scripts are still run.
+        store = new MemoryFullPrunedBlockStore(params, 10);
+        chain = new FullPrunedBlockChain(params, store);
+        chain.setAssumeValid(rollingBlock.getHash(), height);
+        assertEquals(rollingBlock.getHash(), chain.getAssumeValidHash());
+        try {
+            for (Block block : blocks)
+                chain.add(block);
+            fail();
+        } catch (VerificationException e) {
+            // Expected.
+        }
+
+        // Headers that don't lead to the assume-valid block don't help either.
+        store = new MemoryFullPrunedBlockStore(params, 10);
+        chain = new FullPrunedBlockChain(params, store);
+        chain.setAssumeValid(rollingBlock.getHash(), height);
+        List<Block> otherHeaders = new ArrayList<Block>(blocks.subList(0, blocks.size() - 1));
+        otherHeaders.add(badBlock.createNextBlockWithCoinbase(new ECKey().getPubKey()));
+        chain.notifyHeaders(otherHeaders);
+        try {
+            for (Block block : blocks)
+                chain.add(block);
+            fail();
+        } catch (VerificationException e) {
+            // Expected.
+        }
+
+        // Below the assume-valid block scripts are skipped once the headers leading up to it are known, but the
+        // outputs are still spent.
+        store = new MemoryFullPrunedBlockStore(params, 10);
+        chain = new FullPrunedBlockChain(params, store);
+        chain.setAssumeValid(rollingBlock.getHash(), height);
+        chain.notifyHeaders(blocks.subList(0, 2));
+        chain.notifyHeaders(blocks.subList(2, blocks.size()));
+        for (Block block : blocks)
+            assertTrue(chain.add(block));
+        assertEquals(height, chain.getBestChainHeight());
+        assertNull(store.getTransactionOutput(spendableOutput.getHash(), spendableOutput.getIndex()));
+
+        // A different block at the assume-valid height is rejected.
+        store = new MemoryFullPrunedBlockStore(params, 10);
+        chain = new FullPrunedBlockChain(params, store);
+        chain.setAssumeValid(otherHeaders.get(otherHeaders.size() - 1).getHash(), height);
+        chain.notifyHeaders(otherHeaders);
+        try {
+            for (Block block : blocks)
+                chain.add(block);
+            fail();
+        } catch (VerificationException e) {
+            assertTrue(e.getCause().getMessage().contains("assume-valid"));
+        }
+        assertEquals(height - 1, chain.getBestChainHeight());
+    }
+
     private void addInputToTransaction(Transaction t, TransactionOutPoint prevOut, byte[] prevOutScriptPubKey, ECKey sigKey) throws ScriptException {
         TransactionInput input = new TransactionInput(params, t, new byte[]{}, prevOut);
         t.addInput(input);
@@ -186,4 +399,17 @@ public class FullPrunedBlockChainTest {
         for (Block block : loader)
             chain.add(block);
     }
+
+    @Test
+    public void testFirst100KBlocksPipelined() throws Exception {
+        NetworkParameters params = MainNetParams.get();
+        File blockFile = new File(getClass().getResource("first-100k-blocks.dat").getFile());
+        BlockFileLoader loader = new BlockFileLoader(params, Arrays.asList(new File[] {blockFile}));
+
+        store = new MemoryFullPrunedBlockStore(params, 10);
+        chain = new FullPrunedBlockChain(params, store);
+        int added = chain.addAll(loader);
+        // The file starts with the genesis block, which add() accepts as a duplicate of the chain head.
+        assertEquals(added - 1, chain.getBestChainHeight());
+    }
 }
@@ -0,0 +1,172 @@
+/**
+ * Copyright 2013 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.bitcoin.core;
+
+import com.google.bitcoin.params.UnitTestParams;
+import com.google.bitcoin.store.MemoryBlockStore;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.Arrays;
+
+import static org.junit.Assert.*;
+
+public class HeadersFirstDownloadTest extends TestWithPeerGroup {
+    static final NetworkParameters params = UnitTestParams.get();
+
+    private VersionMessage versionMessage;
+
+    @Override
+    @Before
+    public void setUp() throws Exception {
+        // No wallet, so no Bloom filter and full blocks are downloaded.
+        super.setUp(new MemoryBlockStore(UnitTestParams.get()));
+        versionMessage = new VersionMessage(params, 3);
+        versionMessage.clientVersion = Pong.MIN_PROTOCOL_VERSION;
+        peerGroup.setHeadersFirstDownload(true);
+        peerGroup.startAndWait();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        super.tearDown();
+        peerGroup.stopAndWait();
+    }
+
+    @Test
+    public void blocksFromAllPeersConnectInOrder() throws Exception {
+        FakeChannel p1 = connectPeer(1, versionMessage);
+        Block b1 = TestUtils.makeSolvedTestBlock(params.getGenesisBlock());
+        Block b2 = TestUtils.makeSolvedTestBlock(b1);
+        Block b3 = TestUtils.makeSolvedTestBlock(b2);
+        Block b4 = TestUtils.makeSolvedTestBlock(b3);
+
+        // Only headers are asked for from the download peer.
+        peerGroup.startBlockChainDownload(new AbstractPeerEventListener() {
+        });
+        GetHeadersMessage getheaders = (GetHeadersMessage) outbound(p1);
+        assertEquals(Sha256Hash.ZERO_HASH, getheaders.getStopHash());
+        FakeChannel p2 = connectPeer(2, versionMessage);
+        FakeChannel p3 = connectPeer(3, versionMessage);
+        assertNull(outbound(p2));
+
+        // The blocks are spread over all the peers.
+        inbound(p1, new HeadersMessage(params, b1.cloneAsHeader(), b2.cloneAsHeader(), b3.cloneAsHeader(),
+                b4.cloneAsHeader()));
+        assertEquals(0, blockChain.getBestChainHeight());
+        GetDataMessage getdata1 = (GetDataMessage) outbound(p1);
+        GetDataMessage getdata2 = (GetDataMessage) outbound(p2);
+        GetDataMessage getdata3 = (GetDataMessage) outbound(p3);
+        assertEquals(2, getdata1.getItems().size());
+        assertEquals(b1.getHash(), getdata1.getItems().get(0).hash);
+        assertEquals(b4.getHash(), getdata1.getItems().get(1).hash);
+        assertEquals(b2.getHash(), getdata2.getItems().get(0).hash);
+        assertEquals(b3.getHash(), getdata3.getItems().get(0).hash);
+
+        // They are only connected once everything before them has arrived.
+        inbound(p1, b4);
+        inbound(p3, b3);
+        assertEquals(0, blockChain.getBestChainHeight());
+        inbound(p1, b1);
+        assertEquals(1, blockChain.getBestChainHeight());
+
+        // If a peer goes away, what it was fetching is asked for from someone else.
+        closePeer(peerOf(p2));
+        GetDataMessage retry = (GetDataMessage) outbound(p3);
+        assertEquals(b2.getHash(), retry.getItems().get(0).hash);
+        inbound(p3, b2);
+        assertEquals(4, blockChain.getBestChainHeight());
+        assertEquals(b4.getHash(), blockChain.getChainHead().getHeader().getHash());
+    }
+
+    @Test
+    public void badDifficultyDropsBatch() throws Exception {
+        FakeChannel p1 = connectPeer(1, versionMessage);
+        peerGroup.startBlockChainDownload(new AbstractPeerEventListener() {
+        });
+        assertTrue(outbound(p1) instanceof GetHeadersMessage);
+        Block b1 = TestUtils.makeSolvedTestBlock(params.getGenesisBlock());
+        Block b2 = TestUtils.makeSolvedTestBlock(b1);
+        // The difficulty changes away from a retarget, which its proof of work alone doesn't show.
+        Block b3 = b2.createNextBlock(new ECKey().toAddress(params));
+        b3.setDifficultyTarget(b2.getDifficultyTarget() - 0x01000000L);
+        b3.solve();
+
+        // None of the batch is queued, not even the good headers in it.
+        inbound(p1, new HeadersMessage(params, b1.cloneAsHeader(), b2.cloneAsHeader(), b3.cloneAsHeader()));
+        assertNull(outbound(p1));
+
+        // Headers that don't build on the bad one are still taken.
+        inbound(p1, new HeadersMessage(params, b1.cloneAsHeader(), b2.cloneAsHeader()));
+        GetDataMessage getdata = (GetDataMessage) outbound(p1);
+        assertEquals(2, getdata.getItems().size());
+        inbound(p1, b1);
+        inbound(p1, b2);
+        assertEquals(2, blockChain.getBestChainHeight());
+    }
+
+    @Test
+    public void retargetCheckedAgainstQueuedHeaders() throws Exception {
+        FakeChannel p1 = connectPeer(1, versionMessage);
+        peerGroup.startBlockChainDownload(new AbstractPeerEventListener() {
+        });
+        assertTrue(outbound(p1) instanceof GetHeadersMessage);
+        Address to = new ECKey().toAddress(params);
+        Block[] headers = new Block[params.getInterval()];
+        Block prev = params.getGenesisBlock();
+        for (int i = 0; i < params.getInterval() - 1; i++) {
+            prev = prev.createNextBlock(to, prev.getTimeSeconds() + 2);
+            headers[i] = prev.cloneAsHeader();
+        }
+        // The first retarget, after a very fast interval. The headers it is checked against are still queued.
+        Block unchanged = prev.createNextBlock(to, prev.getTimeSeconds() + 2);
+        Block retarget = prev.createNextBlock(to, prev.getTimeSeconds() + 2);
+        retarget.setDifficultyTarget(0x201fFFFFL);
+        retarget.solve();
+
+        inbound(p1, new HeadersMessage(params, headers[0], headers[1], headers[2], headers[3], headers[4]));
+        assertEquals(5, ((GetDataMessage) outbound(p1)).getItems().size());
+        headers[headers.length - 1] = unchanged.cloneAsHeader();
+        inbound(p1, new HeadersMessage(params, Arrays.copyOfRange(headers, 5, headers.length)));
+        assertNull(outbound(p1));
+        headers[headers.length - 1] = retarget.cloneAsHeader();
+        inbound(p1, new HeadersMessage(params, Arrays.copyOfRange(headers, 5, headers.length)));
+        assertEquals(5, ((GetDataMessage) outbound(p1)).getItems().size());
+    }
+
+    @Test
+    public void newBlockAnnouncedAfterDownload() throws Exception {
+        FakeChannel p1 = connectPeer(1, versionMessage);
+        peerGroup.startBlockChainDownload(new AbstractPeerEventListener() {
+        });
+        assertTrue(outbound(p1) instanceof GetHeadersMessage);
+        inbound(p1, new HeadersMessage(params));
+
+        // An announced block is fetched by asking for its header first.
+        Block b1 = TestUtils.makeSolvedTestBlock(params.getGenesisBlock());
+        InventoryMessage inv = new InventoryMessage(params);
+        inv.addBlock(b1);
+        inbound(p1, inv);
+        assertTrue(outbound(p1) instanceof GetHeadersMessage);
+        inbound(p1, new HeadersMessage(params, b1.cloneAsHeader()));
+        GetDataMessage getdata = (GetDataMessage) outbound(p1);
+        assertEquals(b1.getHash(), getdata.getItems().get(0).hash);
+        inbound(p1, b1);
+        assertEquals(1, blockChain.getBestChainHeight());
+    }
+}
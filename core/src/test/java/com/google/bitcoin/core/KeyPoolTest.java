@@ -0,0 +1,63 @@
+/**
+ * Copyright 2013 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.bitcoin.core;
+
+import com.google.bitcoin.params.UnitTestParams;
+import org.junit.Test;
+
+import java.math.BigInteger;
+import java.util.HashSet;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class KeyPoolTest {
+    @Test
+    public void generateKeys() throws Exception {
+        List<ECKey> keys = ECKey.generateKeys(50);
+        assertEquals(50, keys.size());
+        assertEquals(50, new HashSet<ECKey>(keys).size());
+        for (ECKey key : keys) {
+            // Compressed, and matching the private key.
+            assertArrayEquals(ECKey.publicKeyFromPrivate(new BigInteger(1, key.getPrivKeyBytes()), true), key.getPubKey());
+            assertTrue(key.getCreationTimeSeconds() > 0);
+        }
+        ECKey key = keys.get(0);
+        assertTrue(key.verify(Sha256Hash.ZERO_HASH, key.sign(Sha256Hash.ZERO_HASH)));
+    }
+
+    @Test
+    public void poolAndWallet() throws Exception {
+        KeyPool pool = new KeyPool(100);
+        assertNotNull(pool.take());
+        // More than the pool holds, so some are made on this thread.
+        Wallet wallet = new Wallet(UnitTestParams.get());
+        List<ECKey> keys = wallet.addNewKeys(pool, 300);
+        assertEquals(300, keys.size());
+        assertEquals(300, wallet.getKeychainSize());
+        assertTrue(wallet.isPubKeyMine(keys.get(299).getPubKey()));
+        // Adding them again changes nothing.
+        assertEquals(0, wallet.addKeys(keys));
+        pool.shutdown();
+        try {
+            pool.take(1);
+            fail();
+        } catch (IllegalStateException e) {
+            // Expected.
+        }
+    }
+}
@@ -0,0 +1,129 @@
+/**
+ * Copyright 2013 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.bitcoin.core;
+
+import com.google.bitcoin.params.UnitTestParams;
+import com.google.bitcoin.store.MemoryBlockStore;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.math.BigInteger;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+public class ProofOfWorkVerifierTest {
+    // A network whose proof of work is expensive, and fails for blocks it has been told to reject.
+    private static class SlowPowParams extends UnitTestParams {
+        final AtomicInteger hashes = new AtomicInteger();
+        final Set<Sha256Hash> rejected = Collections.synchronizedSet(new HashSet<Sha256Hash>());
+
+        SlowPowParams() {
+            interval = 10000;
+        }
+
+        @Override
+        public Sha256Hash getProofOfWorkHash(Block header) {
+            if (hashes == null)
+                return super.getProofOfWorkHash(header);  // Still in the constructor, solving the genesis block.
+            hashes.incrementAndGet();
+            if (rejected.contains(header.getHash()))
+                return new Sha256Hash(Utils.bigIntegerToBytes(BigInteger.ONE.shiftLeft(256).subtract(BigInteger.ONE), 32));
+            return header.getHash();
+        }
+
+        @Override
+        public boolean isProofOfWorkExpensive() {
+            return true;
+        }
+    }
+
+    private SlowPowParams params;
+    private ProofOfWorkVerifier verifier;
+    private List<Block> blocks;
+
+    @Before
+    public void setUp() throws Exception {
+        params = new SlowPowParams();
+        verifier = new ProofOfWorkVerifier(params, 4);
+        Address to = new ECKey().toAddress(params);
+        blocks = new ArrayList<Block>();
+        Block block = params.getGenesisBlock();
+        for (int i = 0; i < 200; i++) {
+            block = block.createNextBlock(to);
+            // A copy, as the solved block already knows its proof of work is good.
+            blocks.add(block.cloneAsHeader());
+        }
+        params.hashes.set(0);
+    }
+
+    @After
+    public void tearDown() {
+        verifier.shutdown();
+    }
+
+    @Test
+    public void verifiesOnceAndConnects() throws Exception {
+        verifier.verifyHeaders(blocks);
+        assertEquals(blocks.size(), params.hashes.get());
+
+        // Connecting them doesn't check the proof of work again.
+        BlockChain chain = new BlockChain(params, new MemoryBlockStore(params));
+        chain.setProofOfWorkVerifier(verifier);
+        assertEquals(blocks.size(), chain.addAll(blocks));
+        assertEquals(blocks.size(), chain.getBestChainHeight());
+        assertEquals(blocks.size(), params.hashes.get());
+    }
+
+    @Test
+    public void reportsFirstFailure() throws Exception {
+        params.rejected.add(blocks.get(150).getHash());
+        params.rejected.add(blocks.get(70).getHash());
+        try {
+            verifier.verifyHeaders(blocks);
+            fail();
+        } catch (VerificationException e) {
+            assertTrue(e.getMessage(), e.getMessage().contains("higher than target"));
+        }
+        // The one before the first bad block has been checked, so this will only hash the bad one.
+        params.hashes.set(0);
+        try {
+            verifier.verifyHeaders(blocks.subList(69, 71));
+            fail();
+        } catch (VerificationException e) {
+            // Expected.
+        }
+        assertEquals(1, params.hashes.get());
+
+        // Nothing after a bad block is connected.
+        BlockChain chain = new BlockChain(params, new MemoryBlockStore(params));
+        chain.setProofOfWorkVerifier(verifier);
+        try {
+            chain.addAll(blocks);
+            fail();
+        } catch (VerificationException e) {
+            // Expected.
+        }
+        assertEquals(0, chain.getBestChainHeight());
+    }
+}
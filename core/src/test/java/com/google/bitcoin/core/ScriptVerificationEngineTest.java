@@ -0,0 +1,123 @@
+/**
+ * Copyright 2013 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.bitcoin.core;
+
+import com.google.bitcoin.params.UnitTestParams;
+import com.google.bitcoin.script.Script;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.Arrays;
+
+import static org.junit.Assert.*;
+
+public class ScriptVerificationEngineTest {
+    private NetworkParameters params;
+    private ScriptVerificationEngine engine;
+    private Transaction funding;
+    private ECKey key;
+
+    @Before
+    public void setUp() {
+        params = UnitTestParams.get();
+        engine = new ScriptVerificationEngine(2);
+        key = new ECKey();
+        funding = new Transaction(params);
+        for (int i = 0; i < 10; i++)
+            funding.addOutput(Utils.toNanoCoins(1, 0), key);
+    }
+
+    @After
+    public void tearDown() {
+        engine.shutdown();
+    }
+
+    // Returns a transaction spending every output of funding, with the given input signed badly.
+    private Transaction spend(int badInput) throws Exception {
+        Transaction spend = new Transaction(params);
+        spend.addOutput(Utils.toNanoCoins(10, 0), new ECKey());
+        for (TransactionOutput output : funding.getOutputs())
+            spend.addInput(output);
+        for (int i = 0; i < spend.getInputs().size(); i++) {
+            Script scriptPubKey = funding.getOutput(i).getScriptPubKey();
+            Sha256Hash hash = spend.hashTransactionForSignature(i, scriptPubKey.getProgram(), Transaction.SigHash.ALL, false);
+            byte[] sig = (i == badInput ? new ECKey() : key).sign(hash).encodeToDER();
+            byte[] sigWithType = Arrays.copyOf(sig, sig.length + 1);
+            sigWithType[sig.length] = (byte) (Transaction.SigHash.ALL.ordinal() + 1);
+            spend.getInput(i).setScriptBytes(Script.createInputScript(sigWithType));
+        }
+        return spend;
+    }
+
+    private ScriptVerificationEngine.Batch batch(Transaction spend) throws Exception {
+        ScriptVerificationEngine.Batch batch = engine.newBatch();
+        for (int i = 0; i < spend.getInputs().size(); i++)
+            batch.add(spend, i, funding.getOutput(i).getScriptPubKey(), true);
+        return batch;
+    }
+
+    @Test
+    public void verifiesEveryInput() throws Exception {
+        SignatureCache.getDefault().clear();
+        batch(spend(-1)).await();
+        assertEquals(10, engine.getInputsVerified());
+        assertEquals(1, engine.getBatchesCompleted());
+        assertEquals(0, engine.getBatchesFailed());
+        assertEquals(0, engine.getQueueDepth());
+        assertTrue(engine.getInputsPerSecond() > 0);
+    }
+
+    @Test
+    public void failureLeavesEngineUsable() throws Exception {
+        try {
+            batch(spend(0)).await();
+            fail();
+        } catch (VerificationException e) {
+            // Expected.
+        }
+        assertEquals(1, engine.getBatchesFailed());
+        assertTrue(engine.getInputsVerified() <= 10);
+        // The threads are still there for the next block.
+        batch(spend(-1)).await();
+        assertEquals(1, engine.getBatchesCompleted());
+
+        // A cancelled batch neither completes nor fails.
+        batch(spend(-1)).cancel();
+        assertEquals(1, engine.getBatchesCompleted());
+        assertEquals(1, engine.getBatchesFailed());
+    }
+
+    @Test
+    public void deferredSignatures() throws Exception {
+        engine.setDeferSignatures(true);
+        SignatureCache.getDefault().clear();
+        batch(spend(-1)).await();
+        assertEquals(10, engine.getSignaturesDeferred());
+        assertEquals(1, engine.getBatchesCompleted());
+
+        // The bad signature is only found once the batch is verified, and its input is run again to be sure.
+        try {
+            batch(spend(3)).await();
+            fail();
+        } catch (ScriptException e) {
+            // Expected.
+        }
+        assertEquals(20, engine.getSignaturesDeferred());
+        assertEquals(1, engine.getBatchesFailed());
+    }
+}
@@ -0,0 +1,109 @@
+/**
+ * Copyright 2013 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.bitcoin.core;
+
+import com.google.bitcoin.params.UnitTestParams;
+import com.google.bitcoin.script.Script;
+import org.junit.After;
+import org.junit.Test;
+
+import java.util.Arrays;
+
+import static org.junit.Assert.*;
+
+public class SignatureCacheTest {
+    private final SignatureCache originalDefault = SignatureCache.getDefault();
+
+    @After
+    public void tearDown() {
+        SignatureCache.setDefault(originalDefault);
+    }
+
+    @Test
+    public void cachesValidSignaturesOnly() {
+        SignatureCache cache = new SignatureCache(10);
+        ECKey key = new ECKey();
+        byte[] hash = Sha256Hash.create(new byte[] {1}).getBytes();
+        byte[] sig = key.sign(new Sha256Hash(hash)).encodeToDER();
+
+        assertTrue(cache.verify(hash, sig, key.getPubKey()));
+        assertEquals(0, cache.getHitCount());
+        assertTrue(cache.verify(hash, sig, key.getPubKey()));
+        assertEquals(1, cache.getHitCount());
+        assertEquals(1, cache.size());
+
+        // A different key or message is a different entry, and a bad signature is never remembered.
+        byte[] otherHash = Sha256Hash.create(new byte[] {2}).getBytes();
+        assertFalse(cache.verify(otherHash, sig, key.getPubKey()));
+        assertFalse(cache.verify(otherHash, sig, key.getPubKey()));
+        assertFalse(cache.verify(hash, sig, new ECKey().getPubKey()));
+        assertEquals(1, cache.size());
+        assertEquals(1, cache.getHitCount());
+        assertEquals(4, cache.getMissCount());
+        assertEquals(0.2, cache.getHitRate(), 0.001);
+
+        // Asking whether a signature is remembered leaves the statistics alone.
+        assertTrue(cache.contains(hash, sig, key.getPubKey()));
+        assertFalse(cache.contains(otherHash, sig, key.getPubKey()));
+        assertEquals(1, cache.getHitCount());
+        assertEquals(4, cache.getMissCount());
+    }
+
+    @Test
+    public void eviction() {
+        SignatureCache cache = new SignatureCache(5);
+        ECKey key = new ECKey();
+        for (int i = 0; i < 20; i++) {
+            byte[] hash = Sha256Hash.create(new byte[] {(byte) i}).getBytes();
+            assertTrue(cache.verify(hash, key.sign(new Sha256Hash(hash)).encodeToDER(), key.getPubKey()));
+        }
+        assertTrue(cache.size() <= 5);
+        assertTrue(cache.getEvictionCount() >= 15);
+        cache.clear();
+        assertEquals(0, cache.size());
+    }
+
+    @Test
+    public void usedByScripts() throws Exception {
+        SignatureCache cache = new SignatureCache(10);
+        SignatureCache.setDefault(cache);
+        NetworkParameters params = UnitTestParams.get();
+        ECKey key = new ECKey();
+        Transaction funding = new Transaction(params);
+        funding.addOutput(Utils.toNanoCoins(1, 0), key);
+        Transaction spend = new Transaction(params);
+        spend.addOutput(Utils.toNanoCoins(1, 0), new ECKey());
+        TransactionInput input = spend.addInput(funding.getOutput(0));
+        Script scriptPubKey = funding.getOutput(0).getScriptPubKey();
+        Sha256Hash hash = spend.hashTransactionForSignature(0, scriptPubKey.getProgram(), Transaction.SigHash.ALL, false);
+        byte[] sig = key.sign(hash).encodeToDER();
+        byte[] sigWithType = Arrays.copyOf(sig, sig.length + 1);
+        sigWithType[sig.length] = (byte) (Transaction.SigHash.ALL.ordinal() + 1);
+        input.setScriptBytes(Script.createInputScript(sigWithType));
+
+        spend.getInput(0).getScriptSig().correctlySpends(spend, 0, scriptPubKey, true);
+        assertEquals(0, cache.getHitCount());
+        spend.getInput(0).getScriptSig().correctlySpends(spend, 0, scriptPubKey, true);
+        assertEquals(1, cache.getHitCount());
+
+        // With the cache turned off, nothing is recorded.
+        SignatureCache.setDefault(null);
+        spend.getInput(0).getScriptSig().correctlySpends(spend, 0, scriptPubKey, true);
+        assertEquals(1, cache.getHitCount());
+        assertEquals(1, cache.getMissCount());
+    }
+}
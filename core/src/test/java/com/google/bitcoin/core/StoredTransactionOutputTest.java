@@ -0,0 +1,153 @@
+/**
+ * Copyright 2013 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.bitcoin.core;
+
+import com.google.bitcoin.params.UnitTestParams;
+import com.google.bitcoin.script.ScriptBuilder;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.math.BigInteger;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class StoredTransactionOutputTest {
+    private static final Sha256Hash HASH = Sha256Hash.create(new byte[] {1});
+
+    private static byte[] compact(StoredTransactionOutput out) throws IOException {
+        ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        out.serializeCompact(bos);
+        return bos.toByteArray();
+    }
+
+    private static StoredTransactionOutput roundTrip(StoredTransactionOutput out, int expectedLength) throws IOException {
+        byte[] bytes = compact(out);
+        if (expectedLength >= 0)
+            assertEquals(expectedLength, bytes.length);
+        ByteArrayInputStream in = new ByteArrayInputStream(bytes);
+        StoredTransactionOutput result = StoredTransactionOutput.deserializeCompact(out.getHash(), out.getIndex(), in);
+        assertEquals(-1, in.read());
+        assertEquals(out, result);
+        assertEquals(out.getHeight(), result.getHeight());
+        assertEquals(out.getValue(), result.getValue());
+        assertArrayEquals(out.getScriptBytes(), result.getScriptBytes());
+        return result;
+    }
+
+    private static byte[] payToKeyScript(boolean compressed) {
+        ECKey key = new ECKey(new BigInteger(1, new ECKey().getPrivKeyBytes()), null, compressed);
+        return ScriptBuilder.createOutputScript(key).getProgram();
+    }
+
+    private static StoredTransactionOutput output(byte[] script) {
+        return new StoredTransactionOutput(HASH, 3, Utils.toNanoCoins(50, 0), 0, false, script);
+    }
+
+    @Test
+    public void standardScripts() throws Exception {
+        // One byte each for the height code and amount, then the script type and its hash or key.
+        Address address = new ECKey().toAddress(UnitTestParams.get());
+        roundTrip(output(ScriptBuilder.createOutputScript(address).getProgram()), 2 + 1 + 20);
+        byte[] p2sh = new byte[23];
+        p2sh[0] = (byte) 0xa9;
+        p2sh[1] = 20;
+        System.arraycopy(Utils.sha256hash160(new byte[] {1}), 0, p2sh, 2, 20);
+        p2sh[22] = (byte) 0x87;
+        roundTrip(output(p2sh), 2 + 1 + 20);
+        // Both parities of y must come back.
+        for (int i = 0; i < 10; i++) {
+            roundTrip(output(payToKeyScript(true)), 2 + 1 + 32);
+            roundTrip(output(payToKeyScript(false)), 2 + 1 + 32);
+        }
+    }
+
+    @Test
+    public void otherScripts() throws Exception {
+        roundTrip(output(new byte[0]), 3);
+        roundTrip(output(new byte[] {0x6a, 1, 2}), 6);
+        byte[] big = new byte[10000];
+        Arrays.fill(big, (byte) 0x51);
+        roundTrip(output(big), -1);
+        // An uncompressed key that isn't on the curve can't be rebuilt from x, so it's kept whole.
+        byte[] notOnCurve = payToKeyScript(false);
+        notOnCurve[40] ^= 1;
+        roundTrip(output(notOnCurve), 2 + 1 + 67);
+    }
+
+    @Test
+    public void heightsAndValues() throws Exception {
+        byte[] script = new byte[] {0x51};
+        long[] values = {0, 1, 9, 10, 12345678, 100000000, 2099999997690000L, 2100000000000000L};
+        for (long value : values) {
+            roundTrip(new StoredTransactionOutput(HASH, 0, BigInteger.valueOf(value), 0, false, script), -1);
+            roundTrip(new StoredTransactionOutput(HASH, 0xFFFFFFFFL, BigInteger.valueOf(value), 250000, true, script), -1);
+        }
+        roundTrip(new StoredTransactionOutput(HASH, 0, BigInteger.ONE, 0, true, script), -1);
+        roundTrip(new StoredTransactionOutput(HASH, 0, BigInteger.ONE, Integer.MAX_VALUE, true, script), -1);
+        try {
+            compact(new StoredTransactionOutput(HASH, 0, BigInteger.valueOf(-1), 0, false, script));
+            fail();
+        } catch (IOException e) {
+            // Expected.
+        }
+        try {
+            compact(new StoredTransactionOutput(HASH, 0, NetworkParameters.MAX_MONEY.add(BigInteger.ONE), 0, false,
+                    script));
+            fail();
+        } catch (IOException e) {
+            // Expected.
+        }
+    }
+
+    @Test
+    public void varInts() throws Exception {
+        long[] values = {0, 1, 127, 128, 255, 16511, 16512, Integer.MAX_VALUE, Long.MAX_VALUE, -1, Long.MIN_VALUE};
+        for (long value : values) {
+            ByteArrayOutputStream bos = new ByteArrayOutputStream();
+            CompactEncoding.writeVarInt(value, bos);
+            assertEquals(value, CompactEncoding.readVarInt(new ByteArrayInputStream(bos.toByteArray())));
+        }
+        ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        CompactEncoding.writeVarInt(127, bos);
+        CompactEncoding.writeVarInt(128, bos);
+        assertArrayEquals(new byte[] {0x7f, (byte) 0x80, 0x00}, bos.toByteArray());
+    }
+
+    @Test
+    public void outputChanges() throws Exception {
+        List<StoredTransactionOutput> created = new ArrayList<StoredTransactionOutput>();
+        List<StoredTransactionOutput> spent = new ArrayList<StoredTransactionOutput>();
+        created.add(output(payToKeyScript(false)));
+        created.add(new StoredTransactionOutput(Sha256Hash.create(new byte[] {2}), 7, BigInteger.TEN, 12, true,
+                new byte[] {0x51}));
+        spent.add(new StoredTransactionOutput(Sha256Hash.create(new byte[] {3}), 0, BigInteger.ONE, 0, false,
+                new byte[0]));
+        ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        new TransactionOutputChanges(created, spent).serializeCompact(bos);
+        TransactionOutputChanges result =
+                TransactionOutputChanges.deserializeCompact(new ByteArrayInputStream(bos.toByteArray()));
+        assertEquals(created, result.txOutsCreated);
+        assertEquals(spent, result.txOutsSpent);
+        assertEquals(12, result.txOutsCreated.get(1).getHeight());
+        assertArrayEquals(created.get(0).getScriptBytes(), result.txOutsCreated.get(0).getScriptBytes());
+    }
+}
@@ -0,0 +1,164 @@
+/**
+ * Copyright 2013 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.bitcoin.core;
+
+import com.google.bitcoin.params.UnitTestParams;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import static com.google.bitcoin.core.Utils.int64ToByteStreamLE;
+import static com.google.bitcoin.core.Utils.uint32ToByteStreamLE;
+import static org.junit.Assert.*;
+
+public class TransactionSigHasherTest {
+    private static final byte[] HASH_TYPES = { 0, 1, 2, 3, 4, (byte) 0x81, (byte) 0x82, (byte) 0x83 };
+
+    private NetworkParameters params;
+    private Transaction tx;
+
+    @Before
+    public void setUp() throws Exception {
+        params = UnitTestParams.get();
+        Transaction funding = new Transaction(params);
+        for (int i = 0; i < 5; i++)
+            funding.addOutput(Utils.toNanoCoins(1, 0), new ECKey());
+        tx = new Transaction(params);
+        for (TransactionOutput output : funding.getOutputs())
+            tx.addInput(output).setSequenceNumber(1000 + output.getIndex());
+        tx.getInput(2).setScriptBytes(new byte[] { 1, 2, 3 });
+        for (int i = 0; i < 3; i++)
+            tx.addOutput(Utils.toNanoCoins(0, 10 + i), new ECKey());
+        tx.setLockTime(123456);
+    }
+
+    // The simplified transaction, serialized the straightforward way.
+    private static Sha256Hash reference(Transaction tx, int inputIndex, byte[] script, byte sigHashType)
+            throws Exception {
+        int type = sigHashType & 0x1f;
+        boolean anyoneCanPay = (sigHashType & 0x80) != 0;
+        if (type == 3 && inputIndex >= tx.getOutputs().size())
+            return new Sha256Hash("0100000000000000000000000000000000000000000000000000000000000000");
+        ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        uint32ToByteStreamLE(tx.getVersion(), bos);
+        bos.write(new VarInt(anyoneCanPay ? 1 : tx.getInputs().size()).encode());
+        for (int i = 0; i < tx.getInputs().size(); i++) {
+            if (anyoneCanPay && i != inputIndex)
+                continue;
+            TransactionInput input = tx.getInput(i);
+            byte[] inputScript = i == inputIndex ? script : new byte[0];
+            bos.write(input.getOutpoint().bitcoinSerialize());
+            bos.write(new VarInt(inputScript.length).encode());
+            bos.write(inputScript);
+            boolean zeroSequence = (type == 2 || type == 3) && i != inputIndex;
+            uint32ToByteStreamLE(zeroSequence ? 0 : input.getSequenceNumber(), bos);
+        }
+        if (type == 2) {
+            bos.write(0);
+        } else if (type == 3) {
+            bos.write(new VarInt(inputIndex + 1).encode());
+            for (int i = 0; i < inputIndex; i++) {
+                int64ToByteStreamLE(-1, bos);
+                bos.write(0);
+            }
+            bos.write(tx.getOutput(inputIndex).bitcoinSerialize());
+        } else {
+            bos.write(new VarInt(tx.getOutputs().size()).encode());
+            for (TransactionOutput output : tx.getOutputs())
+                bos.write(output.bitcoinSerialize());
+        }
+        uint32ToByteStreamLE(tx.getLockTime(), bos);
+        uint32ToByteStreamLE(0xff & sigHashType, bos);
+        return new Sha256Hash(Utils.doubleDigest(bos.toByteArray()));
+    }
+
+    private byte[] connectedScript(int inputIndex) {
+        return tx.getInput(inputIndex).getOutpoint().getConnectedPubKeyScript();
+    }
+
+    @Test
+    public void matchesReference() throws Exception {
+        byte[] serialized = tx.bitcoinSerialize();
+        for (byte type : HASH_TYPES) {
+            for (int i = 0; i < tx.getInputs().size(); i++) {
+                assertEquals(reference(tx, i, connectedScript(i), type),
+                        tx.hashTransactionForSignature(i, connectedScript(i), type));
+            }
+        }
+        // Hashing leaves the transaction as it was.
+        assertArrayEquals(serialized, tx.bitcoinSerialize());
+        assertArrayEquals(new byte[] { 1, 2, 3 }, tx.getInput(2).getScriptBytes());
+        assertEquals(1001, tx.getInput(1).getSequenceNumber());
+
+        // OP_CODESEPARATOR is removed from the connected script.
+        byte[] script = connectedScript(0);
+        byte[] withSeparator = Arrays.copyOf(script, script.length + 1);
+        withSeparator[script.length] = (byte) 0xab;
+        assertEquals(tx.hashTransactionForSignature(0, script, (byte) 1),
+                tx.hashTransactionForSignature(0, withSeparator, (byte) 1));
+    }
+
+    @Test
+    public void changesAreSeen() throws Exception {
+        byte[] script = connectedScript(1);
+        Sha256Hash before = tx.hashTransactionForSignature(1, script, (byte) 1);
+        tx.getInput(3).setSequenceNumber(7);
+        tx.addOutput(Utils.toNanoCoins(0, 1), new ECKey());
+        tx.setLockTime(654321);
+        Sha256Hash after = tx.hashTransactionForSignature(1, script, (byte) 1);
+        assertFalse(before.equals(after));
+        assertEquals(reference(tx, 1, script, (byte) 1), after);
+        // The scriptSigs of the inputs don't matter.
+        tx.getInput(0).setScriptBytes(new byte[] { 4, 5 });
+        assertEquals(after, tx.hashTransactionForSignature(1, script, (byte) 1));
+    }
+
+    @Test
+    public void parallel() throws Exception {
+        final List<Sha256Hash> expected = new ArrayList<Sha256Hash>();
+        for (int i = 0; i < tx.getInputs().size(); i++)
+            expected.add(reference(tx, i, connectedScript(i), (byte) 1));
+        ExecutorService executor = Executors.newFixedThreadPool(4);
+        try {
+            List<Future<Boolean>> results = new ArrayList<Future<Boolean>>();
+            for (int thread = 0; thread < 4; thread++) {
+                results.add(executor.submit(new Callable<Boolean>() {
+                    public Boolean call() throws Exception {
+                        for (int round = 0; round < 200; round++) {
+                            int i = round % expected.size();
+                            if (!expected.get(i).equals(tx.hashTransactionForSignature(i, connectedScript(i), (byte) 1)))
+                                return false;
+                        }
+                        return true;
+                    }
+                }));
+            }
+            for (Future<Boolean> result : results)
+                assertTrue(result.get());
+        } finally {
+            executor.shutdown();
+        }
+    }
+}
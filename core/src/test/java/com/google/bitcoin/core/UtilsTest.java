@@ -18,8 +18,10 @@ package com.google.bitcoin.core;
 
 import org.junit.Assert;
 import org.junit.Test;
+import org.spongycastle.util.encoders.Hex;
 
 import java.math.BigInteger;
+import java.util.Arrays;
 
 import static com.google.bitcoin.core.Utils.*;
 import static junit.framework.Assert.assertEquals;
@@ -106,4 +108,16 @@ public class UtilsTest {
         Assert.assertArrayEquals(new byte[0], Utils.reverseDwordBytes(new byte[] {4,3,2,1,8,7,6,5}, 0));
         Assert.assertArrayEquals(new byte[0], Utils.reverseDwordBytes(new byte[0], 0));
     }
+
+    @Test
+    public void testDigests() throws Exception {
+        byte[] hello = "xhello".getBytes("US-ASCII");
+        byte[] expected = Hex.decode("9595c9df90075148eb06860365df33584b75bff782a510c6cd4883a419833d50");
+        Assert.assertArrayEquals(expected, doubleDigest(hello, 1, 5));
+        byte[] out = new byte[34];
+        doubleDigest(hello, 1, 5, out, 2);
+        Assert.assertArrayEquals(expected, Arrays.copyOfRange(out, 2, 34));
+        assertEquals(new Sha256Hash(reverseBytes(expected)), Sha256Hash.createDoubleReversed(hello, 1, 5));
+        Assert.assertArrayEquals(Hex.decode("b472a266d0bd89c13706a4132ccfb16f7c3b9fcb"), sha256hash160(new byte[0]));
+    }
 }
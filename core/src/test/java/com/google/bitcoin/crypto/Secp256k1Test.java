@@ -0,0 +1,154 @@
+/**
+ * Copyright 2013 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.bitcoin.crypto;
+
+import com.google.bitcoin.core.ECKey;
+import com.google.bitcoin.core.Sha256Hash;
+import org.junit.After;
+import org.junit.Test;
+import org.spongycastle.util.encoders.Hex;
+
+import java.math.BigInteger;
+import java.util.Random;
+
+import static com.google.bitcoin.core.Utils.reverseBytes;
+import static org.junit.Assert.*;
+
+public class Secp256k1Test {
+    @After
+    public void tearDown() throws Exception {
+        ECKey.setUseSecp256k1Verifier(false);
+    }
+
+    @Test
+    public void field() throws Exception {
+        Random random = new Random(1);
+        for (int i = 0; i < 1000; i++) {
+            // Mostly random, sometimes right at the top of the field.
+            BigInteger a = i % 10 == 0 ? Secp256k1Field.P.subtract(BigInteger.valueOf(i + 1)) : new BigInteger(256, random).mod(Secp256k1Field.P);
+            BigInteger b = new BigInteger(256, random).mod(Secp256k1Field.P);
+            int[] fa = Secp256k1Field.fromBigInteger(a), fb = Secp256k1Field.fromBigInteger(b), r = new int[8];
+            Secp256k1Field.add(fa, fb, r);
+            assertEquals(a.add(b).mod(Secp256k1Field.P), Secp256k1Field.toBigInteger(r));
+            Secp256k1Field.sub(fa, fb, r);
+            assertEquals(a.subtract(b).mod(Secp256k1Field.P), Secp256k1Field.toBigInteger(r));
+            Secp256k1Field.mul(fa, fb, r);
+            assertEquals(a.multiply(b).mod(Secp256k1Field.P), Secp256k1Field.toBigInteger(r));
+            Secp256k1Field.inverse(fa, r);
+            assertEquals(a.modInverse(Secp256k1Field.P), Secp256k1Field.toBigInteger(r));
+            boolean hasRoot = Secp256k1Field.sqrt(fa, r);
+            BigInteger root = Secp256k1Field.toBigInteger(r);
+            assertEquals(hasRoot, root.multiply(root).mod(Secp256k1Field.P).equals(a));
+        }
+    }
+
+    @Test
+    public void vectors() throws Exception {
+        ECKey.setUseSecp256k1Verifier(true);
+        ECKey key = new ECKey(new BigInteger(1, Hex.decode("180cb41c7c600be951b5d3d0a7334acc7506173875834f7a6c4c786a28fcbb19")));
+        assertTrue(key.verify(Sha256Hash.ZERO_HASH.getBytes(), key.sign(Sha256Hash.ZERO_HASH).encodeToDER()));
+        byte[] sig = Hex.decode(
+                "3046022100dffbc26774fc841bbe1c1362fd643609c6e42dcb274763476d87af2c0597e89e022100c59e3c13b96b316cae9fa0ab0260612c7a133a6fe2b3445b6bf80b3123bf274d");
+        assertTrue(key.verify(Sha256Hash.ZERO_HASH.getBytes(), sig));
+        assertFalse(key.verify(Sha256Hash.create(new byte[1]).getBytes(), sig));
+
+        key = ECKey.fromASN1(Hex.decode(
+                "3082011302010104205c0b98e524ad188ddef35dc6abba13c34a351a05409e5d285403718b93336a4aa081a53081a2020101302c06072a8648ce3d0101022100fffffffffffffffffffffffffffffffffffffffffffffffffffffffefffffc2f300604010004010704410479be667ef9dcbbac55a06295ce870b07029bfcdb2dce28d959f2815b16f81798483ada7726a3c4655da4fbfc0e1108a8fd17b448a68554199c47d08ffb10d4b8022100fffffffffffffffffffffffffffffffebaaedce6af48a03bbfd25e8cd0364141020101a144034200042af7a2aafe8dafd7dc7f9cfb58ce09bda7dce28653ab229b98d1d3d759660c672dd0db18c8c2d76aa470448e876fc2089ab1354c01a6e72cefc50915f4a963ee"));
+        byte[] message = reverseBytes(Hex.decode("11da3761e86431e4a54c176789e41f1651b324d240d599a7067bee23d328ec2a"));
+        sig = Hex.decode(
+                "304502206faa2ebc614bf4a0b31f0ce4ed9012eb193302ec2bcaccc7ae8bb40577f47549022100c73a1a1acc209f3f860bf9b9f5e13e9433db6f8b7bd527a088a0e0cd0a4c83e9");
+        assertTrue(key.verify(message, sig));
+    }
+
+    @Test
+    public void matchesSpongyCastle() throws Exception {
+        Random random = new Random(2);
+        for (int i = 0; i < 50; i++) {
+            ECKey key = new ECKey();
+            byte[] pub = ECKey.publicKeyFromPrivate(new BigInteger(1, key.getPrivKeyBytes()), i % 2 == 0);
+            byte[] hash = new byte[32];
+            random.nextBytes(hash);
+            ECKey.ECDSASignature sig = key.sign(new Sha256Hash(hash));
+            assertTrue(Secp256k1.verify(hash, sig.r, sig.s, pub));
+            assertTrue(ECKey.verify(hash, sig, pub));
+
+            // Spoil one part or another and check both implementations agree it's no good.
+            BigInteger r = sig.r, s = sig.s;
+            switch (i % 3) {
+                case 0: hash[random.nextInt(32)] ^= 1; break;
+                case 1: r = r.add(BigInteger.ONE); break;
+                default: s = s.negate().mod(Secp256k1.N).add(BigInteger.ONE); break;
+            }
+            assertFalse(Secp256k1.verify(hash, r, s, pub));
+            assertFalse(ECKey.verify(hash, new ECKey.ECDSASignature(r, s), pub));
+        }
+        // Both forms of s are valid.
+        ECKey key = new ECKey();
+        byte[] hash = new byte[32];
+        ECKey.ECDSASignature sig = key.sign(new Sha256Hash(hash));
+        assertTrue(Secp256k1.verify(hash, sig.r, Secp256k1.N.subtract(sig.s), key.getPubKey()));
+        assertFalse(Secp256k1.verify(hash, sig.r, Secp256k1.N, key.getPubKey()));
+        assertFalse(Secp256k1.verify(hash, BigInteger.ZERO, sig.s, key.getPubKey()));
+    }
+
+    @Test
+    public void publicKeyEncodings() throws Exception {
+        ECKey key = new ECKey();
+        byte[] hash = new byte[32];
+        ECKey.ECDSASignature sig = key.sign(new Sha256Hash(hash));
+        byte[] pub = ECKey.publicKeyFromPrivate(new BigInteger(1, key.getPrivKeyBytes()), false);
+        // Hybrid encoding, where the prefix also gives the parity of y.
+        byte[] hybrid = pub.clone();
+        hybrid[0] = (byte) ((pub[64] & 1) == 0 ? 6 : 7);
+        assertTrue(Secp256k1.verify(hash, sig.r, sig.s, hybrid));
+        hybrid[0] ^= 1;
+        assertFalse(Secp256k1.verify(hash, sig.r, sig.s, hybrid));
+        // A point that is not on the curve.
+        byte[] offCurve = pub.clone();
+        offCurve[64] ^= 1;
+        assertFalse(Secp256k1.verify(hash, sig.r, sig.s, offCurve));
+        try {
+            Secp256k1.verify(hash, sig.r, sig.s, new byte[] { 5, 1, 2, 3 });
+            fail();
+        } catch (IllegalArgumentException e) {
+            // Expected.
+        }
+    }
+
+    @Test
+    public void publicKeysFromPrivate() throws Exception {
+        Random random = new Random(3);
+        BigInteger[] privKeys = new BigInteger[20];
+        for (int i = 0; i < privKeys.length; i++)
+            privKeys[i] = new BigInteger(256, random).mod(Secp256k1.N);
+        // The extremes, and a key with every window of four bits set.
+        privKeys[0] = BigInteger.ONE;
+        privKeys[1] = Secp256k1.N.subtract(BigInteger.ONE);
+        privKeys[2] = BigInteger.ONE.shiftLeft(252).subtract(BigInteger.ONE);
+        for (boolean compressed : new boolean[] { false, true }) {
+            byte[][] pubKeys = Secp256k1.publicKeysFromPrivate(privKeys, compressed);
+            for (int i = 0; i < privKeys.length; i++)
+                assertArrayEquals(ECKey.publicKeyFromPrivate(privKeys[i], compressed), pubKeys[i]);
+        }
+        try {
+            Secp256k1.publicKeysFromPrivate(new BigInteger[] { Secp256k1.N }, true);
+            fail();
+        } catch (IllegalArgumentException e) {
+            // Expected.
+        }
+    }
+}
@@ -0,0 +1,165 @@
+/**
+ * Copyright 2013 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.bitcoin.store;
+
+import com.google.bitcoin.core.*;
+import com.google.bitcoin.params.UnitTestParams;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class AncestorIndexTest {
+    private NetworkParameters params;
+    private Address to;
+    private CountingBlockStore store;
+
+    // Counts reads, to check that ancestors are found without walking the chain.
+    private static class CountingBlockStore extends MemoryBlockStore {
+        int gets;
+
+        CountingBlockStore(NetworkParameters params) {
+            super(params);
+        }
+
+        @Override
+        public synchronized StoredBlock get(Sha256Hash hash) throws BlockStoreException {
+            gets++;
+            return super.get(hash);
+        }
+    }
+
+    @Before
+    public void setUp() throws Exception {
+        params = UnitTestParams.get();
+        to = new ECKey().toAddress(params);
+        store = new CountingBlockStore(params);
+    }
+
+    private List<StoredBlock> extend(StoredBlock from, int count) throws Exception {
+        List<StoredBlock> blocks = new ArrayList<StoredBlock>();
+        StoredBlock block = from;
+        for (int i = 0; i < count; i++) {
+            block = block.build(block.getHeader().createNextBlock(to).cloneAsHeader());
+            store.put(block);
+            blocks.add(block);
+        }
+        return blocks;
+    }
+
+    private List<StoredBlock> extendChain(StoredBlock from, int count) throws Exception {
+        List<StoredBlock> blocks = extend(from, count);
+        for (StoredBlock block : blocks)
+            store.setChainHead(block);
+        return blocks;
+    }
+
+    @Test
+    public void bestChain() throws Exception {
+        StoredBlock genesis = store.getChainHead();
+        List<StoredBlock> blocks = extendChain(genesis, 100);
+        StoredBlock head = blocks.get(99);
+        // Following the chain head along didn't need any reads.
+        assertEquals(0, store.gets);
+
+        assertEquals(head, store.getAncestor(head, 100));
+        assertEquals(blocks.get(49), store.getAncestor(head, 50));
+        assertEquals(genesis, store.getAncestor(head, 0));
+        assertEquals(blocks.get(9), store.getAncestor(blocks.get(59), 10));
+        assertNull(store.getAncestor(head, 101));
+        assertNull(store.getAncestor(head, -1));
+
+        // Now that the index reaches down to the genesis block, any ancestor is a single read.
+        store.gets = 0;
+        assertEquals(blocks.get(19), store.getAncestor(head, 20));
+        assertEquals(1, store.gets);
+    }
+
+    @Test
+    public void reorganize() throws Exception {
+        StoredBlock genesis = store.getChainHead();
+        List<StoredBlock> main = extendChain(genesis, 100);
+        StoredBlock mainHead = main.get(99);
+        assertEquals(genesis, store.getAncestor(mainHead, 0));
+
+        // A side chain forking off at height 80 and overtaking the main chain.
+        List<StoredBlock> side = extend(main.get(79), 25);
+        StoredBlock sideHead = side.get(24);
+        assertEquals(side.get(9), store.getAncestor(sideHead, 90));
+        assertEquals(main.get(79), store.getAncestor(sideHead, 80));
+        assertEquals(main.get(39), store.getAncestor(sideHead, 40));
+
+        store.setChainHead(sideHead);
+        assertEquals(side.get(9), store.getAncestor(sideHead, 90));
+        assertEquals(main.get(39), store.getAncestor(sideHead, 40));
+        // The old chain is now the side chain.
+        assertEquals(main.get(89), store.getAncestor(mainHead, 90));
+        assertEquals(main.get(69), store.getAncestor(mainHead, 70));
+
+        // And back again.
+        List<StoredBlock> more = extendChain(mainHead, 10);
+        StoredBlock head = more.get(9);
+        assertEquals(main.get(94), store.getAncestor(head, 95));
+        assertEquals(side.get(4), store.getAncestor(sideHead, 85));
+        assertEquals(genesis, store.getAncestor(head, 0));
+    }
+
+    @Test
+    public void newIndexOnExistingChain() throws Exception {
+        StoredBlock genesis = store.getChainHead();
+        List<StoredBlock> blocks = extendChain(genesis, 50);
+        // An index the store never told about its chain head, as if the store had just been opened.
+        AncestorIndex index = new AncestorIndex(store);
+        assertEquals(blocks.get(9), index.getAncestor(blocks.get(49), 10));
+        assertEquals(blocks.get(29), index.getAncestor(blocks.get(39), 30));
+        index.setChainHead(extendChain(blocks.get(49), 1).get(0));
+        store.gets = 0;
+        assertEquals(blocks.get(19), index.getAncestor(blocks.get(49), 20));
+        assertEquals(1, store.gets);
+    }
+
+    @Test
+    public void headJumpsSeveralBlocks() throws Exception {
+        StoredBlock genesis = store.getChainHead();
+        List<StoredBlock> blocks = extendChain(genesis, 50);
+        assertEquals(genesis, store.getAncestor(blocks.get(49), 0));
+
+        // The head moves on by ten blocks at once, as when a batch is connected before the head is written.
+        List<StoredBlock> more = extend(blocks.get(49), 10);
+        store.gets = 0;
+        store.setChainHead(more.get(9));
+        assertEquals(9, store.gets);
+        StoredBlock head = more.get(9);
+        store.gets = 0;
+        assertEquals(more.get(4), store.getAncestor(head, 55));
+        assertEquals(blocks.get(19), store.getAncestor(head, 20));
+        assertEquals(genesis, store.getAncestor(head, 0));
+        // What was indexed before is kept, so each is a single read.
+        assertEquals(3, store.gets);
+
+        // Onto a side chain that forks below the old head and goes past it.
+        List<StoredBlock> side = extend(more.get(4), 8);
+        store.setChainHead(side.get(7));
+        store.gets = 0;
+        assertEquals(side.get(2), store.getAncestor(side.get(7), 58));
+        assertEquals(blocks.get(9), store.getAncestor(side.get(7), 10));
+        assertEquals(2, store.gets);
+    }
+}
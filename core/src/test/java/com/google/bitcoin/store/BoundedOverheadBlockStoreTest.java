@@ -25,9 +25,11 @@ import org.junit.Test;
 import org.junit.rules.TemporaryFolder;
 
 import java.io.File;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.List;
 
-import static org.junit.Assert.assertEquals;
-import static org.junit.Assert.fail;
+import static org.junit.Assert.*;
 
 @SuppressWarnings("deprecation")
 public class BoundedOverheadBlockStoreTest {
@@ -74,4 +76,42 @@ public class BoundedOverheadBlockStoreTest {
             // Expected
         }
     }
+
+    @Test
+    public void testIndex() throws Exception {
+        File temp = folder.newFile("bitcoinj-test");
+        File index = new File(temp.getPath() + ".idx");
+        NetworkParameters params = UnitTestParams.get();
+        Address to = new ECKey().toAddress(params);
+        BoundedOverheadBlockStore store = new BoundedOverheadBlockStore(params, temp);
+        List<StoredBlock> blocks = new ArrayList<StoredBlock>();
+        StoredBlock block = store.getChainHead();
+        blocks.add(block);
+        for (int i = 0; i < 300; i++) {
+            block = block.build(block.getHeader().createNextBlock(to).cloneAsHeader());
+            store.put(block);
+            blocks.add(block);
+        }
+        store.setChainHead(block);
+        store.close();
+
+        // Found through the index after a clean close, after a crash, and when the index is missing.
+        for (int attempt = 0; attempt < 3; attempt++) {
+            if (attempt == 1) {
+                RandomAccessFile raf = new RandomAccessFile(index, "rw");
+                raf.seek(12);
+                raf.writeInt(0);
+                raf.close();
+            } else if (attempt == 2) {
+                assertTrue(index.delete());
+            }
+            store = new BoundedOverheadBlockStore(params, temp);
+            // Walking backwards, as the chain does.
+            for (int i = blocks.size() - 1; i >= 0; i--)
+                assertEquals(blocks.get(i), store.get(blocks.get(i).getHeader().getHash()));
+            assertEquals(block, store.getChainHead());
+            assertNull(store.get(block.getHeader().createNextBlock(to).getHash()));
+            store.close();
+        }
+    }
 }
@@ -0,0 +1,202 @@
+/**
+ * Copyright 2013 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.bitcoin.store;
+
+import com.google.bitcoin.core.*;
+import com.google.bitcoin.params.UnitTestParams;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.math.BigInteger;
+
+import static org.junit.Assert.*;
+
+public class CachingFullPrunedBlockStoreTest {
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private NetworkParameters params;
+    private MemoryFullPrunedBlockStore backing;
+    private CachingFullPrunedBlockStore store;
+
+    @Before
+    public void setUp() throws Exception {
+        params = new UnitTestParams() {
+            @Override public int getInterval() {
+                return 10000;
+            }
+        };
+        backing = new MemoryFullPrunedBlockStore(params, 10);
+        store = new CachingFullPrunedBlockStore(backing);
+    }
+
+    private static StoredTransactionOutput output(int i) {
+        Sha256Hash hash = Sha256Hash.create(new byte[] {(byte) i, (byte) (i >> 8), (byte) (i >> 16)});
+        return new StoredTransactionOutput(hash, i % 3, BigInteger.valueOf(i), 1, false, new byte[i % 50]);
+    }
+
+    private static boolean has(FullPrunedBlockStore store, StoredTransactionOutput out) throws BlockStoreException {
+        return store.getTransactionOutput(out.getHash(), out.getIndex()) != null;
+    }
+
+    @Test
+    public void coalescing() throws Exception {
+        // Created and spent within one batch.
+        store.beginDatabaseBatchWrite();
+        store.addUnspentTransactionOutput(output(1));
+        store.removeUnspentTransactionOutput(output(1));
+        store.commitDatabaseBatchWrite();
+        // Created and spent in different batches.
+        store.beginDatabaseBatchWrite();
+        store.addUnspentTransactionOutput(output(2));
+        store.addUnspentTransactionOutput(output(3));
+        store.commitDatabaseBatchWrite();
+        assertTrue(has(store, output(2)));
+        assertFalse(has(backing, output(2)));
+        store.beginDatabaseBatchWrite();
+        store.removeUnspentTransactionOutput(output(2));
+        store.commitDatabaseBatchWrite();
+        assertEquals(2, store.getCoalescedOutputs());
+
+        store.flush();
+        assertEquals(1, store.getFlushes());
+        assertEquals(1, store.getFlushedWrites());
+        assertFalse(has(backing, output(1)));
+        assertFalse(has(backing, output(2)));
+        assertTrue(has(backing, output(3)));
+        assertTrue(store.hasUnspentOutputs(output(3).getHash(), 3));
+    }
+
+    @Test
+    public void batches() throws Exception {
+        store.addUnspentTransactionOutput(output(1));
+        store.flush();
+
+        store.beginDatabaseBatchWrite();
+        store.removeUnspentTransactionOutput(output(1));
+        store.addUnspentTransactionOutput(output(2));
+        assertFalse(has(store, output(1)));
+        assertFalse(store.hasUnspentOutputs(output(1).getHash(), 3));
+        assertTrue(has(store, output(2)));
+        try {
+            store.removeUnspentTransactionOutput(output(1));
+            fail();
+        } catch (BlockStoreException e) {
+            // Expected.
+        }
+        store.abortDatabaseBatchWrite();
+        assertTrue(has(store, output(1)));
+        assertFalse(has(store, output(2)));
+
+        // Spends are not visible in the backing store until a flush, and neither is the verified chain head.
+        StoredBlock genesis = store.getVerifiedChainHead();
+        StoredBlock b1 = genesis.build(genesis.getHeader().createNextBlock(new ECKey().toAddress(params)).cloneAsHeader());
+        store.beginDatabaseBatchWrite();
+        store.put(b1);
+        store.removeUnspentTransactionOutput(output(1));
+        store.setVerifiedChainHead(b1);
+        store.commitDatabaseBatchWrite();
+        assertEquals(b1, store.getVerifiedChainHead());
+        assertEquals(b1, backing.getChainHead());
+        assertEquals(genesis, backing.getVerifiedChainHead());
+        assertTrue(has(backing, output(1)));
+        assertFalse(has(store, output(1)));
+        store.flush();
+        assertEquals(b1, backing.getVerifiedChainHead());
+        assertFalse(has(backing, output(1)));
+    }
+
+    @Test
+    public void statsOnlyCountLookups() throws Exception {
+        store.addUnspentTransactionOutput(output(1));
+        store.addUnspentTransactionOutput(output(2));
+        store.removeUnspentTransactionOutput(output(1));
+        store.beginDatabaseBatchWrite();
+        store.removeUnspentTransactionOutput(output(2));
+        assertFalse(store.hasUnspentOutputs(output(2).getHash(), 3));
+        store.commitDatabaseBatchWrite();
+        assertEquals(0, store.getHits() + store.getMisses());
+        assertFalse(has(store, output(1)));
+        assertEquals(1, store.getHits() + store.getMisses());
+    }
+
+    @Test
+    public void deepAncestors() throws Exception {
+        final int[] reads = new int[1];
+        backing = new MemoryFullPrunedBlockStore(params, 10) {
+            @Override
+            public synchronized StoredBlock get(Sha256Hash hash) throws BlockStoreException {
+                reads[0]++;
+                return super.get(hash);
+            }
+        };
+        store = new CachingFullPrunedBlockStore(backing);
+        FullPrunedBlockChain chain = new FullPrunedBlockChain(params, store);
+        ECKey key = new ECKey();
+        Block rollingBlock = params.getGenesisBlock();
+        for (int i = 0; i < 50; i++) {
+            rollingBlock = rollingBlock.createNextBlockWithCoinbase(key.getPubKey(), Utils.toNanoCoins(50, 0));
+            assertTrue(chain.add(rollingBlock));
+            // The index follows the chain head as blocks are connected, so only the first deep lookup walks back.
+            assertEquals(1, store.getAncestor(chain.getChainHead(), 1).getHeight());
+        }
+        StoredBlock head = chain.getChainHead();
+        reads[0] = 0;
+        assertEquals(params.getGenesisBlock().getHash(), store.getAncestor(head, 0).getHeader().getHash());
+        assertEquals(rollingBlock.getHash(), store.getAncestor(head, 50).getHeader().getHash());
+        assertTrue(reads[0] <= 2);
+    }
+
+    @Test
+    public void memoryLimit() throws Exception {
+        store = new CachingFullPrunedBlockStore(backing, 16 * 1024);
+        for (int i = 0; i < 1000; i++) {
+            store.beginDatabaseBatchWrite();
+            store.addUnspentTransactionOutput(output(i));
+            store.commitDatabaseBatchWrite();
+        }
+        assertTrue(store.getFlushes() > 0);
+        assertTrue(store.getCacheBytes() <= 16 * 1024);
+        for (int i = 0; i < 1000; i++)
+            assertTrue(has(store, output(i)));
+        assertTrue(store.getHits() > 0);
+        assertTrue(store.getMisses() > 0);
+    }
+
+    @Test
+    public void h2() throws Exception {
+        H2FullPrunedBlockStore h2 = new H2FullPrunedBlockStore(params, new File(folder.getRoot(), "h2").getAbsolutePath(), 10);
+        store = new CachingFullPrunedBlockStore(h2, 16 * 1024);
+        FullPrunedBlockChain chain = new FullPrunedBlockChain(params, store);
+        ECKey key = new ECKey();
+        Block rollingBlock = params.getGenesisBlock();
+        for (int i = 0; i < 20; i++) {
+            rollingBlock = rollingBlock.createNextBlockWithCoinbase(key.getPubKey(), Utils.toNanoCoins(50, 0));
+            assertTrue(chain.add(rollingBlock));
+        }
+        Transaction coinbase = rollingBlock.getTransactions().get(0);
+        store.close();
+
+        h2 = new H2FullPrunedBlockStore(params, new File(folder.getRoot(), "h2").getAbsolutePath(), 10);
+        assertEquals(20, h2.getVerifiedChainHead().getHeight());
+        assertNotNull(h2.getTransactionOutput(coinbase.getHash(), 0));
+        h2.close();
+    }
+}
@@ -0,0 +1,219 @@
+/**
+ * Copyright 2013 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.bitcoin.store;
+
+import com.google.bitcoin.core.*;
+import com.google.bitcoin.params.UnitTestParams;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.math.BigInteger;
+import java.sql.*;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class H2FullPrunedBlockStoreTest {
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private NetworkParameters params;
+    private H2FullPrunedBlockStore store;
+    private List<Sha256Hash> hashes;
+    private List<Sha256Hash> coinbases;
+
+    @Before
+    public void setUp() throws Exception {
+        params = new UnitTestParams() {
+            @Override public int getInterval() {
+                return 10000;
+            }
+        };
+        store = new H2FullPrunedBlockStore(params, new File(folder.getRoot(), "h2").getAbsolutePath(), 10);
+        store.setPruneChunkSize(3);
+        FullPrunedBlockChain chain = new FullPrunedBlockChain(params, store);
+        ECKey key = new ECKey();
+        hashes = new ArrayList<Sha256Hash>();
+        coinbases = new ArrayList<Sha256Hash>();
+        Block rollingBlock = params.getGenesisBlock();
+        for (int i = 0; i < 30; i++) {
+            rollingBlock = rollingBlock.createNextBlockWithCoinbase(key.getPubKey(), Utils.toNanoCoins(50, 0));
+            assertTrue(chain.add(rollingBlock));
+            hashes.add(rollingBlock.getHash());
+            coinbases.add(rollingBlock.getTransactions().get(0).getHash());
+        }
+    }
+
+    @After
+    public void tearDown() {
+        store.close();
+    }
+
+    // Undo data must be kept for the last fullStoreDepth blocks, and nothing older.
+    private void assertPruned() throws BlockStoreException {
+        for (int height = 1; height <= 30; height++) {
+            StoredUndoableBlock undo = store.getUndoBlock(hashes.get(height - 1));
+            if (height <= 30 - 10)
+                assertNull("height " + height, undo);
+            else
+                assertNotNull("height " + height, undo);
+        }
+    }
+
+    @Test
+    public void pruneOnCallingThread() throws Exception {
+        store.pruneUndoableBlocks();
+        assertPruned();
+    }
+
+    @Test
+    public void pruneInBackground() throws Exception {
+        long giveUp = System.currentTimeMillis() + 10000;
+        while (store.getUndoBlock(hashes.get(30 - 10 - 1)) != null && System.currentTimeMillis() < giveUp)
+            Thread.sleep(10);
+        assertPruned();
+    }
+
+    @Test
+    public void pruneOnlyAfterCommit() throws Exception {
+        StoredBlock head = store.getVerifiedChainHead();
+        for (int i = 0; i < 5; i++)
+            head = head.build(head.getHeader().createNextBlock(new ECKey().toAddress(params)).cloneAsHeader());
+
+        // A batch that moves the verified head on and is then rolled back must not lose any undo data.
+        store.beginDatabaseBatchWrite();
+        store.setVerifiedChainHead(head);
+        store.abortDatabaseBatchWrite();
+        store.pruneUndoableBlocks();
+        assertPruned();
+
+        // Once committed, the older undo data goes.
+        store.beginDatabaseBatchWrite();
+        store.setVerifiedChainHead(head);
+        store.commitDatabaseBatchWrite();
+        store.pruneUndoableBlocks();
+        assertNull(store.getUndoBlock(hashes.get(25 - 1)));
+        assertNotNull(store.getUndoBlock(hashes.get(26 - 1)));
+    }
+
+    @Test
+    public void upgradeFromVersion3() throws Exception {
+        List<StoredTransactionOutput> outputs = new ArrayList<StoredTransactionOutput>();
+        for (Sha256Hash hash : coinbases)
+            outputs.add(store.getTransactionOutput(hash, 0));
+        StoredUndoableBlock undo = store.getUndoBlock(hashes.get(29));
+        store.close();
+
+        // Put the database into the layout the original schema 03 code created and wrote.
+        String path = new File(folder.getRoot(), "h2").getAbsolutePath();
+        Connection conn = DriverManager.getConnection("jdbc:h2:" + path + ";create=true;LOCK_TIMEOUT=60000");
+        Statement s = conn.createStatement();
+        s.executeUpdate("DROP TABLE openOutputs");
+        s.executeUpdate("CREATE TABLE openOutputs ("
+                + "hash BINARY(32) NOT NULL,"
+                + "index INT NOT NULL,"
+                + "height INT NOT NULL,"
+                + "value BLOB NOT NULL,"
+                + "scriptBytes BLOB NOT NULL,"
+                + "PRIMARY KEY (hash, index),"
+                + ")");
+        PreparedStatement insert = conn.prepareStatement(
+                "INSERT INTO openOutputs (hash, index, height, value, scriptBytes) VALUES (?, ?, ?, ?, ?)");
+        for (StoredTransactionOutput out : outputs) {
+            insert.setBytes(1, out.getHash().getBytes());
+            insert.setInt(2, (int) out.getIndex());
+            insert.setInt(3, out.getHeight());
+            insert.setBytes(4, out.getValue().toByteArray());
+            insert.setBytes(5, out.getScriptBytes());
+            insert.executeUpdate();
+        }
+        // An index above 2^31, which the old schema kept as a negative int.
+        StoredTransactionOutput highIndex = new StoredTransactionOutput(coinbases.get(0), 0x80000001L,
+                BigInteger.valueOf(12345), 7, false, new byte[] { 1, 2, 3 });
+        insert.setBytes(1, highIndex.getHash().getBytes());
+        insert.setInt(2, (int) highIndex.getIndex());
+        insert.setInt(3, highIndex.getHeight());
+        insert.setBytes(4, highIndex.getValue().toByteArray());
+        insert.setBytes(5, highIndex.getScriptBytes());
+        insert.executeUpdate();
+        outputs.add(highIndex);
+        writeLegacyUndoData(conn);
+        s.executeUpdate("UPDATE settings SET value = '03' WHERE name = 'version'");
+        s.close();
+        conn.close();
+
+        store = new H2FullPrunedBlockStore(params, path, 10);
+        assertUpgraded(outputs, undo);
+        // Opening it again finds the current version and leaves it alone.
+        store.close();
+        store = new H2FullPrunedBlockStore(params, path, 10);
+        assertUpgraded(outputs, undo);
+
+        // And the upgraded store can be moved on to a mapped store.
+        MappedFullPrunedBlockStore mapped =
+                MappedFullPrunedBlockStore.migrateFrom(store, new File(folder.getRoot(), "mapped"));
+        for (StoredTransactionOutput out : outputs) {
+            StoredTransactionOutput migrated = mapped.getTransactionOutput(out.getHash(), out.getIndex());
+            assertEquals(out.getValue(), migrated.getValue());
+            assertArrayEquals(out.getScriptBytes(), migrated.getScriptBytes());
+        }
+        assertEquals(undo.getTxOutChanges().txOutsSpent, mapped.getUndoBlock(hashes.get(29)).getTxOutChanges().txOutsSpent);
+        assertEquals(store.getVerifiedChainHead(), mapped.getVerifiedChainHead());
+        mapped.close();
+    }
+
+    // Rewrites the undo data in the fixed width form used before schema 05.
+    private static void writeLegacyUndoData(Connection conn) throws Exception {
+        Statement s = conn.createStatement();
+        PreparedStatement update = conn.prepareStatement("UPDATE undoableBlocks SET txOutChanges = ? WHERE hash = ?");
+        ResultSet rs = s.executeQuery("SELECT hash, txOutChanges FROM undoableBlocks WHERE txOutChanges IS NOT NULL");
+        int undoableBlocks = 0;
+        while (rs.next()) {
+            ByteArrayOutputStream bos = new ByteArrayOutputStream();
+            TransactionOutputChanges.deserializeCompact(new ByteArrayInputStream(rs.getBytes(2))).serializeToStream(bos);
+            update.setBytes(1, bos.toByteArray());
+            update.setBytes(2, rs.getBytes(1));
+            update.executeUpdate();
+            undoableBlocks++;
+        }
+        rs.close();
+        assertTrue(undoableBlocks > 0);
+        update.close();
+        s.close();
+    }
+
+    private void assertUpgraded(List<StoredTransactionOutput> outputs, StoredUndoableBlock undo) throws Exception {
+        for (StoredTransactionOutput out : outputs) {
+            StoredTransactionOutput upgraded = store.getTransactionOutput(out.getHash(), out.getIndex());
+            assertEquals(out.getHeight(), upgraded.getHeight());
+            assertEquals(out.getValue(), upgraded.getValue());
+            assertArrayEquals(out.getScriptBytes(), upgraded.getScriptBytes());
+        }
+        assertTrue(store.hasUnspentOutputs(coinbases.get(5), 1));
+        StoredUndoableBlock upgradedUndo = store.getUndoBlock(hashes.get(29));
+        assertEquals(undo.getTxOutChanges().txOutsCreated, upgradedUndo.getTxOutChanges().txOutsCreated);
+        assertEquals(undo.getTxOutChanges().txOutsSpent, upgradedUndo.getTxOutChanges().txOutsSpent);
+        assertEquals(30, store.getVerifiedChainHead().getHeight());
+    }
+}
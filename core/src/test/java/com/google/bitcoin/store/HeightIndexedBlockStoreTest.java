@@ -0,0 +1,147 @@
+/**
+ * Copyright 2013 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.bitcoin.store;
+
+import com.google.bitcoin.core.Address;
+import com.google.bitcoin.core.ECKey;
+import com.google.bitcoin.core.NetworkParameters;
+import com.google.bitcoin.core.StoredBlock;
+import com.google.bitcoin.params.UnitTestParams;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class HeightIndexedBlockStoreTest {
+    private NetworkParameters params;
+    private Address to;
+    private File file;
+
+    @Before
+    public void setUp() throws Exception {
+        params = UnitTestParams.get();
+        to = new ECKey().toAddress(params);
+        file = File.createTempFile("heightindexedblockstore", null);
+        file.delete();
+        file.deleteOnExit();
+        new File(file.getPath() + ".idx").deleteOnExit();
+        new File(file.getPath() + ".hgt").deleteOnExit();
+    }
+
+    private List<StoredBlock> extend(BlockStore store, StoredBlock from, int count) throws Exception {
+        List<StoredBlock> blocks = new ArrayList<StoredBlock>();
+        StoredBlock block = from;
+        for (int i = 0; i < count; i++) {
+            block = block.build(block.getHeader().createNextBlock(to).cloneAsHeader());
+            store.put(block);
+            blocks.add(block);
+        }
+        return blocks;
+    }
+
+    private void checkChain(HeightIndexedBlockStore store, List<StoredBlock> chain) throws Exception {
+        StoredBlock head = chain.get(chain.size() - 1);
+        assertEquals(head, store.getChainHead());
+        for (StoredBlock block : chain) {
+            assertEquals(block, store.get(block.getHeader().getHash()));
+            assertEquals(block, store.getByHeight(block.getHeight()));
+        }
+        assertNull(store.getByHeight(head.getHeight() + 1));
+    }
+
+    @Test
+    public void basics() throws Exception {
+        HeightIndexedBlockStore store = new HeightIndexedBlockStore(params, file);
+        // Check the first block in a new store is the genesis block.
+        StoredBlock genesis = store.getChainHead();
+        assertEquals(params.getGenesisBlock(), genesis.getHeader());
+        assertEquals(0, genesis.getHeight());
+        assertEquals(genesis, store.getByHeight(0));
+
+        // Enough headers to make all the files grow.
+        List<StoredBlock> chain = new ArrayList<StoredBlock>();
+        chain.add(genesis);
+        chain.addAll(extend(store, genesis, 5000));
+        store.setChainHead(chain.get(chain.size() - 1));
+        checkChain(store, chain);
+        assertEquals(chain.get(1234), store.getAncestor(chain.get(4000), 1234));
+        store.close();
+
+        // Check we can get them back out again if we rebuild the store object.
+        store = new HeightIndexedBlockStore(params, file);
+        checkChain(store, chain);
+        store.close();
+    }
+
+    @Test
+    public void reorganize() throws Exception {
+        HeightIndexedBlockStore store = new HeightIndexedBlockStore(params, file);
+        StoredBlock genesis = store.getChainHead();
+        List<StoredBlock> main = new ArrayList<StoredBlock>();
+        main.add(genesis);
+        main.addAll(extend(store, genesis, 20));
+        store.setChainHead(main.get(20));
+
+        // A side chain that forks at height 10 and ends lower, but with more work.
+        List<StoredBlock> side = new ArrayList<StoredBlock>(main.subList(0, 11));
+        side.addAll(extend(store, main.get(10), 5));
+        StoredBlock sideHead = side.get(side.size() - 1);
+        assertEquals(main.get(3), store.getAncestor(sideHead, 3));
+        assertEquals(side.get(12), store.getAncestor(sideHead, 12));
+        store.setChainHead(sideHead);
+        checkChain(store, side);
+        assertEquals(main.get(12), store.getAncestor(main.get(20), 12));
+
+        // And back again.
+        store.setChainHead(main.get(20));
+        checkChain(store, main);
+        store.close();
+    }
+
+    @Test
+    public void recoversFromCrash() throws Exception {
+        HeightIndexedBlockStore store = new HeightIndexedBlockStore(params, file);
+        StoredBlock genesis = store.getChainHead();
+        List<StoredBlock> chain = new ArrayList<StoredBlock>();
+        chain.add(genesis);
+        chain.addAll(extend(store, genesis, 100));
+        store.setChainHead(chain.get(100));
+        store.close();
+
+        // As if it was never closed, with the indexes gone and a header that never reached the disk.
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        raf.seek(4);
+        raf.writeInt(102);
+        raf.writeInt(100);
+        raf.writeInt(0);
+        raf.close();
+        assertTrue(new File(file.getPath() + ".idx").delete());
+        assertTrue(new File(file.getPath() + ".hgt").delete());
+        store = new HeightIndexedBlockStore(params, file);
+        checkChain(store, chain);
+        // The store carries on from the last header that made it.
+        chain.addAll(extend(store, chain.get(100), 1));
+        store.setChainHead(chain.get(101));
+        checkChain(store, chain);
+        store.close();
+    }
+}
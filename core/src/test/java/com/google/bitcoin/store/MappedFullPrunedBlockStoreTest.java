@@ -0,0 +1,229 @@
+/**
+ * Copyright 2013 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.bitcoin.store;
+
+import com.google.bitcoin.core.*;
+import com.google.bitcoin.params.UnitTestParams;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.math.BigInteger;
+
+import static org.junit.Assert.*;
+
+public class MappedFullPrunedBlockStoreTest {
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private NetworkParameters params;
+    private File directory;
+
+    @Before
+    public void setUp() throws Exception {
+        params = new UnitTestParams() {
+            @Override public int getInterval() {
+                return 10000;
+            }
+        };
+        directory = new File(folder.getRoot(), "store");
+    }
+
+    private static StoredTransactionOutput output(int i) {
+        Sha256Hash hash = Sha256Hash.create(new byte[] {(byte) i, (byte) (i >> 8), (byte) (i >> 16)});
+        return new StoredTransactionOutput(hash, i % 3, BigInteger.valueOf(i), 1, false, new byte[i % 50]);
+    }
+
+    @Test
+    public void pageFileWords() throws Exception {
+        MappedPageFile file = new MappedPageFile(folder.newFile("pages"));
+        file.ensureLength(MappedPageFile.PAGE_SIZE * 3);
+        // Inside a page, and straddling the first page boundary at each possible split.
+        long[] offsets = { 0, 100, MappedPageFile.PAGE_SIZE - 8, MappedPageFile.PAGE_SIZE - 7,
+                MappedPageFile.PAGE_SIZE - 3, MappedPageFile.PAGE_SIZE - 1 };
+        for (int round = 0; round < 2; round++) {
+            for (int i = 0; i < offsets.length; i++) {
+                long offset = offsets[i] + round * MappedPageFile.PAGE_SIZE;
+                long value = 0x0102030405060708L * (i + 1) * (round == 0 ? 1 : -1);
+                file.putLong(offset, value);
+                assertEquals(value, file.getLong(offset));
+                assertEquals((int) (value >>> 32), file.getInt(offset));
+                assertEquals((byte) (value >>> 56), file.get(offset));
+                file.putInt(offset + 4, (int) value + 1);
+                assertEquals((value & 0xFFFFFFFF00000000L) | (((int) value + 1) & 0xFFFFFFFFL), file.getLong(offset));
+            }
+            // Once written out, the same values come back from the mapping instead of the dirty pages.
+            long[] before = new long[offsets.length];
+            for (int i = 0; i < offsets.length; i++)
+                before[i] = file.getLong(offsets[i] + round * MappedPageFile.PAGE_SIZE);
+            file.checkpoint();
+            for (int i = 0; i < offsets.length; i++)
+                assertEquals(before[i], file.getLong(offsets[i] + round * MappedPageFile.PAGE_SIZE));
+        }
+        // Space that has been grown into but not written reads as zeros.
+        file.ensureLength(MappedPageFile.PAGE_SIZE * 5);
+        assertEquals(0, file.getLong(MappedPageFile.PAGE_SIZE * 4 - 4));
+        assertEquals(0, file.getInt(MappedPageFile.PAGE_SIZE * 4 + 8));
+        file.close();
+    }
+
+    @Test
+    public void basics() throws Exception {
+        MappedFullPrunedBlockStore store = new MappedFullPrunedBlockStore(params, directory, 10);
+        StoredBlock genesis = store.getChainHead();
+        assertEquals(params.getGenesisBlock(), genesis.getHeader());
+        assertEquals(genesis, store.getVerifiedChainHead());
+
+        StoredBlock b1 = genesis.build(genesis.getHeader().createNextBlock(new ECKey().toAddress(params)).cloneAsHeader());
+        store.put(b1);
+        store.setChainHead(b1);
+        store.addUnspentTransactionOutput(output(1));
+        store.close();
+
+        store = new MappedFullPrunedBlockStore(params, directory, 10);
+        assertEquals(b1, store.get(b1.getHeader().getHash()));
+        assertNull(store.getOnceUndoableStoredBlock(b1.getHeader().getHash()));
+        assertEquals(b1, store.getChainHead());
+        StoredTransactionOutput out = store.getTransactionOutput(output(1).getHash(), output(1).getIndex());
+        assertEquals(output(1), out);
+        assertEquals(BigInteger.ONE, out.getValue());
+        assertEquals(1, out.getScriptBytes().length);
+        assertTrue(store.hasUnspentOutputs(output(1).getHash(), 3));
+        store.close();
+    }
+
+    @Test
+    public void batches() throws Exception {
+        MappedFullPrunedBlockStore store = new MappedFullPrunedBlockStore(params, directory, 10);
+        store.beginDatabaseBatchWrite();
+        store.addUnspentTransactionOutput(output(1));
+        assertNotNull(store.getTransactionOutput(output(1).getHash(), output(1).getIndex()));
+        store.abortDatabaseBatchWrite();
+        assertNull(store.getTransactionOutput(output(1).getHash(), output(1).getIndex()));
+
+        store.beginDatabaseBatchWrite();
+        store.addUnspentTransactionOutput(output(2));
+        store.commitDatabaseBatchWrite();
+        assertNotNull(store.getTransactionOutput(output(2).getHash(), output(2).getIndex()));
+
+        store.beginDatabaseBatchWrite();
+        store.removeUnspentTransactionOutput(output(2));
+        assertNull(store.getTransactionOutput(output(2).getHash(), output(2).getIndex()));
+        store.commitDatabaseBatchWrite();
+        assertNull(store.getTransactionOutput(output(2).getHash(), output(2).getIndex()));
+        try {
+            store.removeUnspentTransactionOutput(output(2));
+            fail();
+        } catch (BlockStoreException e) {
+            // Expected.
+        }
+        store.close();
+    }
+
+    @Test
+    public void growthAndCheckpoints() throws Exception {
+        // A tiny checkpoint size means we go through the journal many times, and enough outputs to grow the index.
+        MappedFullPrunedBlockStore store = new MappedFullPrunedBlockStore(params, directory, 10, 64 * 1024);
+        final int count = MappedHashTable.MIN_BUCKETS * 3;
+        for (int i = 0; i < count; i++) {
+            if (i % 100 == 0) store.beginDatabaseBatchWrite();
+            store.addUnspentTransactionOutput(output(i));
+            if (i % 100 == 99) store.commitDatabaseBatchWrite();
+        }
+        store.commitDatabaseBatchWrite();
+        for (int i = 0; i < count; i += 2)
+            store.removeUnspentTransactionOutput(output(i));
+        assertEquals(count / 2, store.getUnspentOutputCount());
+        store.close();
+
+        store = new MappedFullPrunedBlockStore(params, directory, 10, 64 * 1024);
+        assertEquals(count / 2, store.getUnspentOutputCount());
+        for (int i = 0; i < count; i++) {
+            StoredTransactionOutput out = store.getTransactionOutput(output(i).getHash(), output(i).getIndex());
+            if (i % 2 == 0) {
+                assertNull(out);
+            } else {
+                assertNotNull(out);
+                assertEquals(BigInteger.valueOf(i), out.getValue());
+            }
+        }
+        store.close();
+    }
+
+    @Test
+    public void incompleteJournalIsIgnored() throws Exception {
+        MappedFullPrunedBlockStore store = new MappedFullPrunedBlockStore(params, directory, 10);
+        store.addUnspentTransactionOutput(output(1));
+        store.close();
+        // Simulate a crash half way through writing a journal.
+        FileOutputStream journal = new FileOutputStream(new File(directory, "journal"));
+        journal.write(new byte[] {0x4d, 0x46, 0x4a, 0x4c, 0, 0});
+        journal.close();
+        store = new MappedFullPrunedBlockStore(params, directory, 10);
+        assertNotNull(store.getTransactionOutput(output(1).getHash(), output(1).getIndex()));
+        assertFalse(new File(directory, "journal").exists());
+        store.close();
+    }
+
+    @Test
+    public void locking() throws Exception {
+        MappedFullPrunedBlockStore store = new MappedFullPrunedBlockStore(params, directory, 10);
+        try {
+            new MappedFullPrunedBlockStore(params, directory, 10);
+            fail();
+        } catch (BlockStoreException e) {
+            // Expected.
+        }
+        store.close();
+    }
+
+    @Test
+    public void chainAndMigration() throws Exception {
+        H2FullPrunedBlockStore h2 = new H2FullPrunedBlockStore(params, new File(folder.getRoot(), "h2").getAbsolutePath(), 5);
+        FullPrunedBlockChain chain = new FullPrunedBlockChain(params, h2);
+        ECKey key = new ECKey();
+        Block rollingBlock = params.getGenesisBlock();
+        for (int i = 0; i < 10; i++) {
+            rollingBlock = rollingBlock.createNextBlockWithCoinbase(key.getPubKey(), Utils.toNanoCoins(50, 0));
+            assertTrue(chain.add(rollingBlock));
+        }
+        Transaction coinbase = rollingBlock.getTransactions().get(0);
+
+        MappedFullPrunedBlockStore store = MappedFullPrunedBlockStore.migrateFrom(h2, directory);
+        assertEquals(h2.getChainHead(), store.getChainHead());
+        assertEquals(h2.getVerifiedChainHead(), store.getVerifiedChainHead());
+        assertEquals(h2.getTransactionOutput(coinbase.getHash(), 0), store.getTransactionOutput(coinbase.getHash(), 0));
+        assertNotNull(store.getUndoBlock(rollingBlock.getHash()));
+        assertNotNull(store.getOnceUndoableStoredBlock(params.getGenesisBlock().getHash()));
+        h2.close();
+
+        // Carry on building the chain on top of the migrated store.
+        chain = new FullPrunedBlockChain(params, store);
+        for (int i = 0; i < 10; i++) {
+            rollingBlock = rollingBlock.createNextBlockWithCoinbase(key.getPubKey(), Utils.toNanoCoins(50, 0));
+            assertTrue(chain.add(rollingBlock));
+        }
+        assertEquals(20, store.getVerifiedChainHead().getHeight());
+        assertNotNull(store.getTransactionOutput(coinbase.getHash(), 0));
+        // Old undo data is pruned.
+        assertNull(store.getUndoBlock(coinbase.getHash()));
+        store.close();
+    }
+}
@@ -19,13 +19,23 @@ package com.google.bitcoin.store;
 import com.google.bitcoin.core.Address;
 import com.google.bitcoin.core.ECKey;
 import com.google.bitcoin.core.NetworkParameters;
+import com.google.bitcoin.core.ProtocolException;
+import com.google.bitcoin.core.Sha256Hash;
 import com.google.bitcoin.core.StoredBlock;
 import com.google.bitcoin.params.UnitTestParams;
 import org.junit.Test;
 
 import java.io.File;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
 
 public class SPVBlockStoreTest {
 
@@ -58,4 +68,178 @@ public class SPVBlockStoreTest {
         StoredBlock chainHead = store.getChainHead();
         assertEquals(b1, chainHead);
     }
+
+    private static void checkRing(SPVBlockStore store, List<StoredBlock> blocks) throws Exception {
+        // Only the last DEFAULT_NUM_HEADERS records are still in the ring, one of which is a header written twice.
+        int first = blocks.size() - SPVBlockStore.DEFAULT_NUM_HEADERS + 1;
+        for (int i = 0; i < blocks.size(); i++) {
+            StoredBlock block = store.get(blocks.get(i).getHeader().getHash());
+            if (i < first)
+                assertNull(block);
+            else
+                assertEquals(blocks.get(i), block);
+        }
+        assertEquals(blocks.get(blocks.size() - 1), store.getChainHead());
+    }
+
+    @Test
+    public void indexSurvivesWraparoundAndReopening() throws Exception {
+        NetworkParameters params = UnitTestParams.get();
+        File f = File.createTempFile("spvblockstore", null);
+        f.delete();
+        f.deleteOnExit();
+        File index = new File(f.getPath() + ".idx");
+        index.deleteOnExit();
+        SPVBlockStore store = new SPVBlockStore(params, f);
+
+        Address to = new ECKey().toAddress(params);
+        List<StoredBlock> blocks = new ArrayList<StoredBlock>();
+        StoredBlock block = store.getChainHead();
+        blocks.add(block);
+        for (int i = 0; i < SPVBlockStore.DEFAULT_NUM_HEADERS + 100; i++) {
+            block = block.build(block.getHeader().createNextBlock(to).cloneAsHeader());
+            store.put(block);
+            blocks.add(block);
+        }
+        // Writing a header again leaves the newest copy in the index.
+        store.put(blocks.get(blocks.size() - 2));
+        store.setChainHead(block);
+        checkRing(store, blocks);
+        store.close();
+
+        // A clean close keeps the index.
+        store = new SPVBlockStore(params, f);
+        checkRing(store, blocks);
+        store.close();
+
+        // If the store wasn't closed cleanly, or the index is missing, it is rebuilt from the ring.
+        RandomAccessFile raf = new RandomAccessFile(index, "rw");
+        raf.seek(8);
+        raf.writeInt(0);
+        raf.close();
+        store = new SPVBlockStore(params, f);
+        checkRing(store, blocks);
+        store.close();
+        assertEquals(true, index.delete());
+        store = new SPVBlockStore(params, f);
+        checkRing(store, blocks);
+        store.close();
+    }
+
+    @Test
+    public void readersDoNotSeeWritesInProgress() throws Exception {
+        NetworkParameters params = UnitTestParams.get();
+        File f = File.createTempFile("spvblockstore", null);
+        f.delete();
+        f.deleteOnExit();
+        new File(f.getPath() + ".idx").deleteOnExit();
+        final SPVBlockStore store = new SPVBlockStore(params, f);
+
+        Address to = new ECKey().toAddress(params);
+        final List<StoredBlock> blocks = new ArrayList<StoredBlock>();
+        StoredBlock block = store.getChainHead();
+        for (int i = 0; i < SPVBlockStore.DEFAULT_NUM_HEADERS; i++) {
+            block = block.build(block.getHeader().createNextBlock(to).cloneAsHeader());
+            store.put(block);
+            blocks.add(block);
+        }
+        List<StoredBlock> more = new ArrayList<StoredBlock>();
+        for (int i = 0; i < 2000; i++) {
+            block = block.build(block.getHeader().createNextBlock(to).cloneAsHeader());
+            more.add(block);
+        }
+
+        // The last 3000 of the first batch stay in the ring while the second batch wraps around over the rest.
+        final AtomicBoolean stop = new AtomicBoolean();
+        final AtomicReference<Throwable> failure = new AtomicReference<Throwable>();
+        List<Thread> readers = new ArrayList<Thread>();
+        for (int t = 0; t < 4; t++) {
+            final Random random = new Random(t);
+            Thread reader = new Thread() {
+                @Override
+                public void run() {
+                    try {
+                        while (!stop.get()) {
+                            StoredBlock expected = blocks.get(2000 + random.nextInt(3000));
+                            // Empty the cache now and then so that reads go to the ring.
+                            store.blockCache.set(random.nextInt(SPVBlockStore.BLOCK_CACHE_SIZE), null);
+                            store.blockCache.set(expected.getHeader().getHash().hashCode() &
+                                    (SPVBlockStore.BLOCK_CACHE_SIZE - 1), null);
+                            assertEquals(expected, store.get(expected.getHeader().getHash()));
+                            assertEquals(expected.getChainWork(),
+                                    store.get(expected.getHeader().getHash()).getChainWork());
+                        }
+                    } catch (Throwable e) {
+                        failure.set(e);
+                    }
+                }
+            };
+            reader.start();
+            readers.add(reader);
+        }
+        for (StoredBlock b : more) {
+            store.put(b);
+            store.setChainHead(b);
+        }
+        stop.set(true);
+        for (Thread reader : readers)
+            reader.join();
+        if (failure.get() != null)
+            throw new AssertionError(failure.get());
+        assertNull(store.get(blocks.get(0).getHeader().getHash()));
+        assertEquals(block, store.getChainHead());
+        store.close();
+    }
+
+    @Test
+    public void getDoesNotCacheHeaderOverwrittenAfterRead() throws Exception {
+        NetworkParameters params = UnitTestParams.get();
+        File f = File.createTempFile("spvblockstore", null);
+        f.delete();
+        f.deleteOnExit();
+        new File(f.getPath() + ".idx").deleteOnExit();
+        final AtomicReference<Sha256Hash> target = new AtomicReference<Sha256Hash>();
+        final AtomicReference<StoredBlock> overwriter = new AtomicReference<StoredBlock>();
+        SPVBlockStore store = new SPVBlockStore(params, f) {
+            @Override
+            protected StoredBlock readFromRing(MappedByteBuffer buffer, Sha256Hash hash) throws ProtocolException {
+                StoredBlock block = super.readFromRing(buffer, hash);
+                if (!hash.equals(target.get()))
+                    return block;
+                if (!lock.isHeldByCurrentThread()) {
+                    // Look like a write got in the way every time, so that get() falls back to reading under the lock.
+                    writeSequence.addAndGet(2);
+                } else if (overwriter.get() != null) {
+                    // Now overwrite the header just read, before get() gets to put it in the cache.
+                    try {
+                        put(overwriter.getAndSet(null));
+                    } catch (BlockStoreException e) {
+                        throw new RuntimeException(e);
+                    }
+                }
+                return block;
+            }
+        };
+
+        // Fill the ring, so that the next put overwrites the genesis block.
+        Address to = new ECKey().toAddress(params);
+        StoredBlock genesis = store.getChainHead();
+        StoredBlock block = genesis;
+        for (int i = 1; i < SPVBlockStore.DEFAULT_NUM_HEADERS; i++) {
+            block = block.build(block.getHeader().createNextBlock(to).cloneAsHeader());
+            store.put(block);
+        }
+        overwriter.set(block.build(block.getHeader().createNextBlock(to).cloneAsHeader()));
+        for (int i = 0; i < SPVBlockStore.BLOCK_CACHE_SIZE; i++)
+            store.blockCache.set(i, null);
+        target.set(genesis.getHeader().getHash());
+
+        // The header was still there when it was read.
+        assertEquals(genesis, store.get(genesis.getHeader().getHash()));
+        assertNull(overwriter.get());
+        // But it must not have been left in the cache.
+        target.set(null);
+        assertNull(store.get(genesis.getHeader().getHash()));
+        store.close();
+    }
 }
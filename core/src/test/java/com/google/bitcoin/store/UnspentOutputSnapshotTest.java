@@ -0,0 +1,143 @@
+/**
+ * Copyright 2013 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.bitcoin.store;
+
+import com.google.bitcoin.core.*;
+import com.google.bitcoin.params.UnitTestParams;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class UnspentOutputSnapshotTest {
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private NetworkParameters params;
+    private MemoryFullPrunedBlockStore source;
+    private List<Transaction> coinbases;
+    private Block lastBlock;
+    private ECKey key;
+
+    @Before
+    public void setUp() throws Exception {
+        params = new UnitTestParams() {
+            @Override public int getInterval() {
+                return 10000;
+            }
+        };
+        source = new MemoryFullPrunedBlockStore(params, 10);
+        FullPrunedBlockChain chain = new FullPrunedBlockChain(params, source);
+        key = new ECKey();
+        coinbases = new ArrayList<Transaction>();
+        lastBlock = params.getGenesisBlock();
+        for (int i = 0; i < 20; i++) {
+            lastBlock = lastBlock.createNextBlockWithCoinbase(key.getPubKey(), Utils.toNanoCoins(50, 0));
+            assertTrue(chain.add(lastBlock));
+            coinbases.add(lastBlock.getTransactions().get(0));
+        }
+    }
+
+    private byte[] export() throws Exception {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        StoredBlock head = new UnspentOutputSnapshot(params).write(source, bytes);
+        assertEquals(lastBlock.getHash(), head.getHeader().getHash());
+        return bytes.toByteArray();
+    }
+
+    private void checkImported(FullPrunedBlockStore store) throws Exception {
+        assertEquals(lastBlock.getHash(), store.getVerifiedChainHead().getHeader().getHash());
+        assertEquals(source.getVerifiedChainHead().getChainWork(), store.getVerifiedChainHead().getChainWork());
+        for (Transaction coinbase : coinbases) {
+            StoredTransactionOutput out = store.getTransactionOutput(coinbase.getHash(), 0);
+            StoredTransactionOutput expected = source.getTransactionOutput(coinbase.getHash(), 0);
+            assertEquals(expected.getHeight(), out.getHeight());
+            assertEquals(expected.getValue(), out.getValue());
+        }
+
+        // The chain carries on from the snapshot, and can spend outputs that came from it.
+        FullPrunedBlockChain chain = new FullPrunedBlockChain(params, store);
+        Block next = lastBlock.createNextBlockWithCoinbase(key.getPubKey(), Utils.toNanoCoins(50, 0));
+        assertTrue(chain.add(next));
+        assertEquals(21, chain.getBestChainHeight());
+    }
+
+    @Test
+    public void roundTripMemory() throws Exception {
+        MemoryFullPrunedBlockStore store = new MemoryFullPrunedBlockStore(params, 10);
+        StoredBlock head = new UnspentOutputSnapshot(params).read(store, new ByteArrayInputStream(export()),
+                lastBlock.getHash());
+        assertEquals(20, head.getHeight());
+        checkImported(store);
+    }
+
+    @Test
+    public void roundTripMapped() throws Exception {
+        MappedFullPrunedBlockStore store = new MappedFullPrunedBlockStore(params, folder.newFolder("mapped"), 10);
+        new UnspentOutputSnapshot(params).read(store, new ByteArrayInputStream(export()), null);
+
+        // And back out again. The outputs may come out in a different order, but there are as many of them.
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        new UnspentOutputSnapshot(params).write(store, bytes);
+        assertEquals(export().length, bytes.size());
+
+        checkImported(store);
+        store.close();
+    }
+
+    @Test
+    public void rejectsCorruption() throws Exception {
+        byte[] snapshot = export();
+        snapshot[snapshot.length - 40] ^= 1;
+        try {
+            new UnspentOutputSnapshot(params).read(new MemoryFullPrunedBlockStore(params, 10),
+                    new ByteArrayInputStream(snapshot), null);
+            fail();
+        } catch (BlockStoreException e) {
+            // Expected.
+        }
+
+        // The wrong head is caught before any output is written.
+        MemoryFullPrunedBlockStore store = new MemoryFullPrunedBlockStore(params, 10);
+        try {
+            new UnspentOutputSnapshot(params).read(store, new ByteArrayInputStream(export()),
+                    params.getGenesisBlock().getHash());
+            fail();
+        } catch (BlockStoreException e) {
+            assertTrue(e.getCause() instanceof VerificationException);
+        }
+        assertEquals(0, store.getVerifiedChainHead().getHeight());
+        assertNull(store.getTransactionOutput(coinbases.get(0).getHash(), 0));
+    }
+
+    @Test
+    public void onlyIntoNewStores() throws Exception {
+        try {
+            new UnspentOutputSnapshot(params).read(source, new ByteArrayInputStream(export()), null);
+            fail();
+        } catch (BlockStoreException e) {
+            // Expected.
+        }
+    }
+}
@@ -3,7 +3,6 @@ package com.google.bitcoin.tools;
 import java.io.File;
 
 import com.google.bitcoin.core.AbstractBlockChain;
-import com.google.bitcoin.core.Block;
 import com.google.bitcoin.core.BlockChain;
 import com.google.bitcoin.core.FullPrunedBlockChain;
 import com.google.bitcoin.core.NetworkParameters;
@@ -17,6 +16,7 @@ import com.google.bitcoin.store.BoundedOverheadBlockStore;
 import com.google.bitcoin.store.DiskBlockStore;
 import com.google.bitcoin.store.FullPrunedBlockStore;
 import com.google.bitcoin.store.H2FullPrunedBlockStore;
+import com.google.bitcoin.store.MappedFullPrunedBlockStore;
 import com.google.bitcoin.store.MemoryBlockStore;
 import com.google.bitcoin.store.MemoryFullPrunedBlockStore;
 import com.google.bitcoin.store.SPVBlockStore;
@@ -26,7 +26,7 @@ import com.google.common.base.Preconditions;
 /** Very thin wrapper around {@link com.google.bitcoin.util.BlockFileLoader} */
 public class BlockImporter {
     public static void main(String[] args) throws BlockStoreException, VerificationException, PrunedException {
-        System.out.println("USAGE: BlockImporter (prod|test) (H2|BoundedOverhead|Disk|MemFull|Mem|SPV) [blockStore]");
+        System.out.println("USAGE: BlockImporter (prod|test) (H2|Mapped|BoundedOverhead|Disk|MemFull|Mem|SPV) [blockStore]");
         System.out.println("       blockStore is required unless type is Mem or MemFull");
         System.out.println("       eg BlockImporter prod H2 /home/user/bitcoinj.h2store");
         System.out.println("       Does full verification if the store supports it");
@@ -42,6 +42,9 @@ public class BlockImporter {
         if (args[1].equals("H2")) {
             Preconditions.checkArgument(args.length == 3);
             store = new H2FullPrunedBlockStore(params, args[2], 100);
+        } else if (args[1].equals("Mapped")) {
+            Preconditions.checkArgument(args.length == 3);
+            store = new MappedFullPrunedBlockStore(params, new File(args[2]), 100);
         } else if (args[1].equals("BoundedOverhead")) {
             Preconditions.checkArgument(args.length == 3);
             store = new BoundedOverheadBlockStore(params, new File(args[2]));
@@ -67,7 +70,6 @@ public class BlockImporter {
         
         BlockFileLoader loader = new BlockFileLoader(params, BlockFileLoader.getReferenceClientBlockFileList());
         
-        for (Block block : loader)
-            chain.add(block);
+        chain.addAll(loader);
     }
 }
@@ -0,0 +1,97 @@
+package com.google.bitcoin.tools;
+
+import com.google.bitcoin.core.Block;
+import com.google.bitcoin.core.Utils;
+
+import java.security.MessageDigest;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Measures how many block headers a growing number of threads can double hash, first with {@link Utils} and then
+ * with every thread sharing one digest under a lock, the way Utils used to work.
+ */
+public class HashingBenchmark {
+    private static final int RUN_MILLIS = 3000;
+
+    private interface Hasher {
+        void hash(byte[] input, byte[] out) throws Exception;
+    }
+
+    private static final Hasher PER_THREAD = new Hasher() {
+        public void hash(byte[] input, byte[] out) {
+            Utils.doubleDigest(input, 0, input.length, out, 0);
+        }
+    };
+
+    private static final Hasher SHARED = new Hasher() {
+        private final MessageDigest digest = newDigest();
+
+        public void hash(byte[] input, byte[] out) throws Exception {
+            synchronized (digest) {
+                digest.reset();
+                digest.update(input);
+                digest.digest(out, 0, 32);
+                digest.update(out, 0, 32);
+                digest.digest(out, 0, 32);
+            }
+        }
+    };
+
+    private static MessageDigest newDigest() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (Exception e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        int maxThreads = args.length > 0 ? Integer.parseInt(args[0]) : Runtime.getRuntime().availableProcessors();
+        System.out.println("USAGE: HashingBenchmark [maxThreads]");
+        for (int threads = 1; threads <= maxThreads; threads *= 2) {
+            // Once to warm up, then for real.
+            run(PER_THREAD, threads);
+            long perThread = run(PER_THREAD, threads);
+            run(SHARED, threads);
+            long shared = run(SHARED, threads);
+            System.out.println(String.format("%2d threads: per thread digests %,d hashes/sec, shared digest %,d hashes/sec",
+                    threads, perThread * 1000 / RUN_MILLIS, shared * 1000 / RUN_MILLIS));
+        }
+    }
+
+    private static long run(final Hasher hasher, int threads) throws Exception {
+        final AtomicBoolean stop = new AtomicBoolean();
+        final AtomicLong hashes = new AtomicLong();
+        final CountDownLatch done = new CountDownLatch(threads);
+        for (int i = 0; i < threads; i++) {
+            final byte[] header = new byte[Block.HEADER_SIZE];
+            new Random(i).nextBytes(header);
+            new Thread("hasher " + i) {
+                @Override
+                public void run() {
+                    byte[] out = new byte[32];
+                    long count = 0;
+                    try {
+                        while (!stop.get()) {
+                            hasher.hash(header, out);
+                            header[0] = out[0];
+                            count++;
+                        }
+                    } catch (Exception e) {
+                        throw new RuntimeException(e);
+                    } finally {
+                        hashes.addAndGet(count);
+                        done.countDown();
+                    }
+                }
+            }.start();
+        }
+        Thread.sleep(RUN_MILLIS);
+        stop.set(true);
+        done.await();
+        return hashes.get();
+    }
+}
@@ -0,0 +1,54 @@
+package com.google.bitcoin.tools;
+
+import com.google.bitcoin.core.ECKey;
+import com.google.bitcoin.core.KeyPool;
+
+/**
+ * Measures how many keys a second can be created one at a time with the ECKey constructor, in bulk with
+ * {@link ECKey#generateKeys(int)} and by taking them from a {@link KeyPool}.
+ */
+public class KeyGenerationBenchmark {
+    private static final int RUN_MILLIS = 5000;
+
+    private interface Generator {
+        int generate();
+    }
+
+    public static void main(String[] args) throws Exception {
+        final int batchSize = args.length > 0 ? Integer.parseInt(args[0]) : 1000;
+        System.out.println("USAGE: KeyGenerationBenchmark [batchSize]");
+        report("new ECKey()", new Generator() {
+            public int generate() {
+                new ECKey();
+                return 1;
+            }
+        });
+        report("ECKey.generateKeys(" + batchSize + ")", new Generator() {
+            public int generate() {
+                return ECKey.generateKeys(batchSize).size();
+            }
+        });
+        final KeyPool pool = new KeyPool(batchSize);
+        report("KeyPool.take(" + batchSize + ")", new Generator() {
+            public int generate() {
+                return pool.take(batchSize).size();
+            }
+        });
+        pool.shutdown();
+    }
+
+    private static void report(String name, Generator generator) {
+        // Once to warm up, then for real.
+        run(generator);
+        long keys = run(generator);
+        System.out.println(String.format("%s: %,d keys/sec", name, keys * 1000 / RUN_MILLIS));
+    }
+
+    private static long run(Generator generator) {
+        long end = System.currentTimeMillis() + RUN_MILLIS;
+        long keys = 0;
+        while (System.currentTimeMillis() < end)
+            keys += generator.generate();
+        return keys;
+    }
+}
@@ -0,0 +1,123 @@
+package com.google.bitcoin.tools;
+
+import com.google.bitcoin.core.Address;
+import com.google.bitcoin.core.ECKey;
+import com.google.bitcoin.core.NetworkParameters;
+import com.google.bitcoin.core.Sha256Hash;
+import com.google.bitcoin.core.StoredBlock;
+import com.google.bitcoin.params.UnitTestParams;
+import com.google.bitcoin.store.BlockStoreException;
+import com.google.bitcoin.store.SPVBlockStore;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Measures how many headers a number of threads can read from an {@link SPVBlockStore} while another thread keeps
+ * adding new ones, first with the store as it is and then with every read taking the store's lock, the way reads
+ * used to work.
+ */
+public class SPVBlockStoreBenchmark {
+    // Exactly enough to fill the ring, so when the writer puts them again in order each one replaces itself and the
+    // readers can always find them. There are more of them than the store caches, so not every read is a cache hit.
+    private static final int NUM_BLOCKS = SPVBlockStore.DEFAULT_NUM_HEADERS;
+    private static final int RUN_MILLIS = 5000;
+    // Still far faster than headers arrive from the network.
+    private static final long WRITE_INTERVAL_NANOS = 100000;
+
+    /** Reads under the writer's lock, for comparison. */
+    private static class LockingSPVBlockStore extends SPVBlockStore {
+        LockingSPVBlockStore(NetworkParameters params, File file) throws BlockStoreException {
+            super(params, file);
+        }
+
+        @Override
+        public StoredBlock get(Sha256Hash hash) throws BlockStoreException {
+            lock.lock();
+            try {
+                return super.get(hash);
+            } finally { lock.unlock(); }
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        int readers = args.length > 0 ? Integer.parseInt(args[0]) : Runtime.getRuntime().availableProcessors();
+        System.out.println("USAGE: SPVBlockStoreBenchmark [readerThreads]");
+        NetworkParameters params = UnitTestParams.get();
+
+        System.out.println("Building " + NUM_BLOCKS + " headers ...");
+        Address to = new ECKey().toAddress(params);
+        List<StoredBlock> blocks = new ArrayList<StoredBlock>();
+        StoredBlock block = new StoredBlock(params.getGenesisBlock().cloneAsHeader(),
+                params.getGenesisBlock().getWork(), 0);
+        for (int i = 0; i < NUM_BLOCKS; i++) {
+            block = block.build(block.getHeader().createNextBlock(to).cloneAsHeader());
+            blocks.add(block);
+        }
+
+        for (int i = 0; i < 2; i++) {
+            boolean locking = i == 1;
+            File file = File.createTempFile("spvbenchmark", ".spvchain");
+            file.delete();
+            SPVBlockStore store = locking ? new LockingSPVBlockStore(params, file) : new SPVBlockStore(params, file);
+            try {
+                long[] counts = run(store, blocks, readers);
+                System.out.println(String.format("%-10s %d readers: %,d gets/sec, %,d puts/sec",
+                        locking ? "Locking" : "Lock-free", readers, counts[0] * 1000 / RUN_MILLIS,
+                        counts[1] * 1000 / RUN_MILLIS));
+            } finally {
+                store.close();
+                file.delete();
+                new File(file.getPath() + ".idx").delete();
+            }
+        }
+    }
+
+    private static long[] run(final SPVBlockStore store, final List<StoredBlock> blocks, int readers) throws Exception {
+        for (StoredBlock block : blocks)
+            store.put(block);
+
+        final AtomicBoolean stop = new AtomicBoolean();
+        final AtomicLong gets = new AtomicLong();
+        final CountDownLatch done = new CountDownLatch(readers);
+        for (int i = 0; i < readers; i++) {
+            final Random random = new Random(i);
+            new Thread("reader " + i) {
+                @Override
+                public void run() {
+                    long count = 0;
+                    try {
+                        while (!stop.get()) {
+                            StoredBlock block = blocks.get(random.nextInt(blocks.size()));
+                            store.get(block.getHeader().getHash());
+                            count++;
+                        }
+                    } catch (BlockStoreException e) {
+                        throw new RuntimeException(e);
+                    } finally {
+                        gets.addAndGet(count);
+                        done.countDown();
+                    }
+                }
+            }.start();
+        }
+
+        long end = System.currentTimeMillis() + RUN_MILLIS;
+        long puts = 0;
+        while (System.currentTimeMillis() < end) {
+            StoredBlock block = blocks.get((int) (puts++ % blocks.size()));
+            store.put(block);
+            store.setChainHead(block);
+            LockSupport.parkNanos(WRITE_INTERVAL_NANOS);
+        }
+        stop.set(true);
+        done.await();
+        return new long[] { gets.get(), puts };
+    }
+}
@@ -0,0 +1,73 @@
+package com.google.bitcoin.tools;
+
+import com.google.bitcoin.core.NetworkParameters;
+import com.google.bitcoin.core.Sha256Hash;
+import com.google.bitcoin.core.StoredBlock;
+import com.google.bitcoin.params.MainNetParams;
+import com.google.bitcoin.params.TestNet3Params;
+import com.google.bitcoin.store.H2FullPrunedBlockStore;
+import com.google.bitcoin.store.IterableFullPrunedBlockStore;
+import com.google.bitcoin.store.MappedFullPrunedBlockStore;
+import com.google.bitcoin.store.UnspentOutputSnapshot;
+import com.google.bitcoin.utils.BriefLogFormatter;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+
+/**
+ * Exports the unspent output set of a full block store to a snapshot file, or bootstraps a new store from one. See
+ * {@link UnspentOutputSnapshot}.
+ */
+public class UnspentOutputSnapshotTool {
+    public static void main(String[] args) throws Exception {
+        if (args.length < 5 || args.length > 6 || !(args[1].equals("export") || args[1].equals("import"))) {
+            System.out.println("USAGE: UnspentOutputSnapshotTool (prod|test) (export|import) (H2|Mapped) blockStore snapshot [headHash]");
+            System.out.println("       export writes the unspent outputs of blockStore, as of its verified chain head, to snapshot");
+            System.out.println("       import reads snapshot into blockStore, which must be new, checking the head against headHash");
+            System.out.println("       eg UnspentOutputSnapshotTool prod export H2 /home/user/bitcoinj.h2store utxo.snapshot");
+            return;
+        }
+        BriefLogFormatter.init();
+
+        NetworkParameters params;
+        if (args[0].equals("test"))
+            params = TestNet3Params.get();
+        else
+            params = MainNetParams.get();
+
+        IterableFullPrunedBlockStore store;
+        if (args[2].equals("H2"))
+            store = new H2FullPrunedBlockStore(params, args[3], 100);
+        else if (args[2].equals("Mapped"))
+            store = new MappedFullPrunedBlockStore(params, new File(args[3]), 100);
+        else
+            throw new IllegalArgumentException("Unknown block store type " + args[2]);
+
+        UnspentOutputSnapshot snapshot = new UnspentOutputSnapshot(params);
+        try {
+            StoredBlock head;
+            if (args[1].equals("export")) {
+                FileOutputStream out = new FileOutputStream(args[4]);
+                try {
+                    head = snapshot.write(store, out);
+                    out.getFD().sync();
+                } finally {
+                    out.close();
+                }
+            } else {
+                Sha256Hash expectedHead = args.length == 6 ? new Sha256Hash(args[5]) : null;
+                FileInputStream in = new FileInputStream(args[4]);
+                try {
+                    head = snapshot.read(store, in, expectedHead);
+                } finally {
+                    in.close();
+                }
+            }
+            System.out.println(String.format("Snapshot head is %s at height %d",
+                    head.getHeader().getHashAsString(), head.getHeight()));
+        } finally {
+            store.close();
+        }
+    }
+}
@@ -0,0 +1,48 @@
+package com.google.bitcoin.tools;
+
+import com.google.bitcoin.core.ECKey;
+import com.google.bitcoin.core.Sha256Hash;
+
+import java.util.Random;
+
+/**
+ * Measures how many signatures a single thread can verify with the Spongy Castle code and with
+ * {@link com.google.bitcoin.crypto.Secp256k1}.
+ */
+public class VerifyBenchmark {
+    private static final int KEYS = 100;
+    private static final int RUN_MILLIS = 5000;
+
+    public static void main(String[] args) throws Exception {
+        Random random = new Random();
+        byte[][] hashes = new byte[KEYS][32];
+        byte[][] pubs = new byte[KEYS][];
+        ECKey.ECDSASignature[] sigs = new ECKey.ECDSASignature[KEYS];
+        for (int i = 0; i < KEYS; i++) {
+            ECKey key = new ECKey();
+            random.nextBytes(hashes[i]);
+            pubs[i] = key.getPubKey();
+            sigs[i] = key.sign(new Sha256Hash(hashes[i]));
+        }
+        for (boolean secp256k1 : new boolean[] { false, true }) {
+            ECKey.setUseSecp256k1Verifier(secp256k1);
+            // Once to warm up, then for real.
+            run(hashes, sigs, pubs);
+            long count = run(hashes, sigs, pubs);
+            System.out.println(String.format("%s: %,d verifies/sec", secp256k1 ? "Secp256k1" : "Spongy Castle",
+                    count * 1000 / RUN_MILLIS));
+        }
+    }
+
+    private static long run(byte[][] hashes, ECKey.ECDSASignature[] sigs, byte[][] pubs) {
+        long end = System.currentTimeMillis() + RUN_MILLIS;
+        long count = 0;
+        while (System.currentTimeMillis() < end) {
+            int i = (int) (count % KEYS);
+            if (!ECKey.verify(hashes[i], sigs[i], pubs[i]))
+                throw new RuntimeException("Signature did not verify");
+            count++;
+        }
+        return count;
+    }
+}